@@ -192,6 +192,9 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    // max items fetched together when a single-item cache miss hits an id announced via Mailbox.expectItems()
+    public static final KnownKey zimbra_mailbox_item_batch_load_size = KnownKey.newKey(100);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -202,6 +205,14 @@ public final class LC {
     public static final KnownKey zimbra_mailbox_lock_timeout = KnownKey.newKey(60); // seconds
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
+    // Locks under a different ZooKeeper path than the exclusive lock, so servers using one don't exclude servers using
+    // the other.  Only turn on when every server in the cluster is stopped, and on all of them before restarting.
+    public static final KnownKey zimbra_mailbox_distributed_lock_readwrite = KnownKey.newKey(false);
+    public static final KnownKey zimbra_mailbox_distributed_lock_lease_ms = KnownKey.newKey(500);
+    // 0 notifies non-IMAP sessions and MailboxListeners on the committing thread, under the mailbox lock
+    public static final KnownKey zimbra_mailbox_notify_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_mailbox_notify_source_wait_ms = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_message_cache_max_bytes = KnownKey.newKey(64 * 1024 * 1024);
 
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
@@ -209,6 +220,9 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
 
+    public static final KnownKey zimbra_index_extract_threads = KnownKey.newKey(Runtime.getRuntime().availableProcessors());
+    public static final KnownKey zimbra_index_extract_max_pending = KnownKey.newKey(64);
+
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
 
@@ -224,6 +238,8 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    public static final KnownKey zimbra_index_searcher_refresh_delay_ms = KnownKey.newKey(250);
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -327,6 +343,8 @@ public final class LC {
     @Supported
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
+    // threads shared by all BatchRequests sent with parallel="1"
+    public static final KnownKey soap_batch_parallel_threads = KnownKey.newKey(8);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
@@ -502,6 +520,10 @@ public final class LC {
     @Supported
     public static final KnownKey ldap_cache_zimlet_maxage = KnownKey.newKey(15);
 
+    // percentage of an account/cos/domain cache entry's maxage after which one lookup reloads it
+    // from LDAP while other lookups keep being served the cached copy; 0 disables refresh-ahead
+    public static final KnownKey ldap_cache_refresh_ahead_percent = KnownKey.newKey(0);
+
     public static final KnownKey ldap_cache_custom_dynamic_group_membership_maxage_ms =
             KnownKey.newKey(10 * Constants.MILLIS_PER_MINUTE);
 
@@ -565,6 +587,12 @@ public final class LC {
     @Supported
     public static final KnownKey mysql_backup_retention = KnownKey.newKey(0);
 
+    // rows sent per JDBC executeBatch() by multi-item mailbox mutations
+    public static final KnownKey zimbra_db_batch_size = KnownKey.newKey(500);
+
+    // prepared statements kept open per pooled DB connection (0 disables the cache)
+    public static final KnownKey zimbra_db_statement_cache_size = KnownKey.newKey(100);
+
     @Supported
     public static final KnownKey derby_properties = KnownKey.newKey("${zimbra_home}/conf/derby.properties");
 
@@ -692,6 +720,10 @@ public final class LC {
     @Supported
     public static final KnownKey calendar_cache_range_months = KnownKey.newKey(3);
     public static final KnownKey calendar_cache_max_stale_items = KnownKey.newKey(10);
+    public static final KnownKey calendar_cache_lru_max_weight = KnownKey.newKey(500000); // items + instances; 0 for no limit
+    public static final KnownKey calendar_cache_memcached_republish_ms = KnownKey.newKey(60000);
+    public static final KnownKey calendar_freebusy_index_lru_size = KnownKey.newKey(1000); // mailboxes; 0 disables
+    public static final KnownKey calendar_freebusy_index_max_days = KnownKey.newKey(92);
     public static final KnownKey calendar_exchange_form_auth_url = KnownKey.newKey("/exchweb/bin/auth/owaauth.dll");
     public static final KnownKey calendar_item_get_max_retries = KnownKey.newKey(100);
 
@@ -706,6 +738,8 @@ public final class LC {
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
+    // schedule IMAP/POP3/LMTP requests fairly between accounts instead of first come, first served
+    public static final KnownKey nio_fair_scheduling_enabled = KnownKey.newKey(false);
 
     public static final KnownKey imap_max_request_size = KnownKey.newKey(10 * 1024);
     public static final KnownKey imap_max_nesting_in_search_request = KnownKey.newKey(100);
@@ -717,6 +751,11 @@ public final class LC {
     // Default 3 days.  Without limit 1 server was needing to restart every 30 to 45 days
     public static final KnownKey imap_noninteractive_session_cache_maxage_days = KnownKey.newKey(3);
     public static final KnownKey imap_use_ehcache = KnownKey.newKey(true);
+    // false caches IMAP folders with Java serialization again; both formats are always readable
+    public static final KnownKey imap_cache_compact_encoding = KnownKey.newKey(true);
+    // estimated bytes of folder state kept in memory across all IMAP sessions before the least
+    // recently used ones are paged out to the IMAP cache; 0 leaves only the message count limit
+    public static final KnownKey imap_total_session_heap_limit = KnownKey.newKey(0);
     public static final KnownKey imap_write_timeout = KnownKey.newKey(10);
     public static final KnownKey imap_write_chunk_size = KnownKey.newKey(8 * 1024);
     public static final KnownKey imap_thread_keep_alive_time = KnownKey.newKey(60);
@@ -726,6 +765,13 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // messages per batch loaded ahead of the FETCH response writer (also how often it flushes)
+    public static final KnownKey imap_fetch_prefetch_batch_size = KnownKey.newKey(100);
+    // threads shared by all IMAP connections for parsing prefetched messages; 0 parses on the writer's thread
+    public static final KnownKey imap_fetch_prefetch_threads = KnownKey.newKey(4);
+    // store BODY/BODYSTRUCTURE/ENVELOPE in message metadata on delivery, up to this many characters in total
+    public static final KnownKey imap_fetch_summary_enabled = KnownKey.newKey(true);
+    public static final KnownKey imap_fetch_summary_max_length = KnownKey.newKey(8192);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     public static final KnownKey pop3_write_timeout = KnownKey.newKey(10);
@@ -824,6 +870,8 @@ public final class LC {
     public static final KnownKey search_disable_database_hints = KnownKey.newKey(false);
     public static final KnownKey search_dbfirst_term_percentage_cutoff = KnownKey.newKey(0.8F);
     public static final KnownKey search_tagged_item_count_join_query_cutoff = KnownKey.newKey(1000); //beyond this limit server will not use join in the query while fetching unread items
+    public static final KnownKey search_slow_query_threshold = KnownKey.newKey(2000); // ms; DB/index steps slower than this log their plan
+    public static final KnownKey search_result_cache_max_rows = KnownKey.newKey(1000); // per mailbox; 0 disables the search result cache
 
     public static final KnownKey zmstat_interval = KnownKey.newKey(30);
     public static final KnownKey zmstat_disk_interval = KnownKey.newKey(600);
@@ -1079,6 +1127,13 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_lmtp_delivery_queue_size = KnownKey.newKey(100);
+
+    public static final KnownKey redolog_group_commit_enabled = KnownKey.newKey(false);
+    public static final KnownKey redolog_group_commit_max_buffer_bytes = KnownKey.newKey(1024 * 1024);
+    public static final KnownKey redolog_mmap_replay_enabled = KnownKey.newKey(true);
+    public static final KnownKey redolog_crash_recovery_threads = KnownKey.newKey(4);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
@@ -1207,6 +1262,8 @@ public final class LC {
 
     public static final KnownKey command_line_editing_enabled = KnownKey.newKey(true);
     public static final KnownKey thread_pool_warn_percent = KnownKey.newKey(100);
+    public static final KnownKey zimbra_timer_tick_ms = KnownKey.newKey(100);
+    public static final KnownKey zimbra_timer_threads = KnownKey.newKey(4);
 
     public static final KnownKey robots_txt = KnownKey.newKey("${zimbra_home}/conf/robots.txt");
 
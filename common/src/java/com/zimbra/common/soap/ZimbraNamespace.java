@@ -47,6 +47,7 @@ public class ZimbraNamespace {
     public static final QName E_ARGUMENT = QName.get("a", ZIMBRA);
 
     public static final String A_ONERROR = "onerror";
+    public static final String A_PARALLEL = "parallel";
     public static final String A_REQUEST_ID = "requestId";
     public static final String A_ARG_NAME = "n";
     public static final String A_ARG_TYPE = "t";
@@ -773,6 +773,25 @@ public final class ZimbraLog {
         ZimbraLog.addToContext(C_OPROTO, protocol);
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, for handing to {@link #setContext}
+     * on a worker thread.
+     */
+    public static Map<String, String> getContext() {
+        Map<String, String> contextMap = sContextMap.get();
+        return contextMap == null ? new LinkedHashMap<String, String>() : new LinkedHashMap<String, String>(contextMap);
+    }
+
+    /**
+     * Replaces the current thread's logging context with a copy returned by {@link #getContext}.
+     */
+    public static void setContext(Map<String, String> context) {
+        clearContext();
+        for (Map.Entry<String, String> entry : context.entrySet()) {
+            addToContext(entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * Clears the current thread's logging context.
      *
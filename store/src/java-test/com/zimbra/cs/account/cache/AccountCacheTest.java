@@ -0,0 +1,191 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public final class AccountCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+    }
+
+    private static Account newAccount(String name, String... aliases) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraMailAlias, aliases);
+        return new Account(name, UUID.randomUUID().toString(), attrs, null, Provisioning.getInstance());
+    }
+
+    @Test
+    public void lookups() {
+        AccountCache cache = new AccountCache(10, 60000);
+        Account acct = newAccount("user1@zimbra.com", "alias1@zimbra.com");
+        cache.put(acct);
+
+        Assert.assertSame(acct, cache.getById(acct.getId()));
+        Assert.assertSame(acct, cache.getByName("USER1@zimbra.com"));
+        Assert.assertSame(acct, cache.getByName("alias1@zimbra.com"));
+        Assert.assertNull(cache.getById(null));
+        Assert.assertNull(cache.getByName("nobody@zimbra.com"));
+
+        cache.remove(acct);
+        Assert.assertNull(cache.getById(acct.getId()));
+        Assert.assertNull(cache.getByName("alias1@zimbra.com"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void bounded() {
+        AccountCache cache = new AccountCache(100, 0);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(newAccount("user" + i + "@zimbra.com"));
+        }
+        Assert.assertEquals(100, cache.getSize());
+    }
+
+    @Test
+    public void expire() throws Exception {
+        AccountCache cache = new AccountCache(10, 50);
+        Account acct = newAccount("user1@zimbra.com", "alias1@zimbra.com");
+        cache.put(acct);
+        Thread.sleep(100);
+
+        Assert.assertNull(cache.getByName("user1@zimbra.com"));
+        // every key of the stale entry is dropped, not just the one that was looked up
+        Assert.assertNull(cache.getByName("alias1@zimbra.com"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        AccountCache cache = new AccountCache(10, 1000, 10);
+        Account acct = newAccount("user1@zimbra.com");
+        cache.put(acct);
+        Assert.assertSame(acct, cache.getById(acct.getId()));
+        Thread.sleep(200);
+
+        // exactly one caller is sent to LDAP, the others are still served
+        Assert.assertNull(cache.getById(acct.getId()));
+        Assert.assertSame(acct, cache.getById(acct.getId()));
+        Assert.assertSame(acct, cache.getByName("user1@zimbra.com"));
+
+        Account reloaded = newAccount("user1@zimbra.com");
+        cache.replace(reloaded);
+        Assert.assertSame(reloaded, cache.getByName("user1@zimbra.com"));
+    }
+
+    @Test
+    public void namedEntryRefreshAhead() throws Exception {
+        NamedEntryCache<Account> cache = new NamedEntryCache<Account>(10, 1000, 10);
+        Account acct = newAccount("user1@zimbra.com");
+        cache.put(acct);
+        Thread.sleep(200);
+
+        Assert.assertNull(cache.getByName("user1@zimbra.com"));
+        Assert.assertSame(acct, cache.getByName("user1@zimbra.com"));
+        Assert.assertSame(acct, cache.getById(acct.getId()));
+    }
+
+    /**
+     * Threads doing mixed id/name/alias lookups, reloading on every miss, against a cache that is
+     * smaller than the working set.  Every hit must be the account that was asked for.
+     */
+    @Test
+    public void concurrentMixedLookups() throws Exception {
+        final int threads = 16;
+        final int opsPerThread = 5000;
+        final AccountCache cache = new AccountCache(512, 60000, 50);
+        final List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 1024; i++) {
+            Account acct = newAccount("user" + i + "@zimbra.com", "alias" + i + "@zimbra.com");
+            accounts.add(acct);
+            cache.put(acct);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong hits = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            new Thread("AccountCacheTest-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int i = 0; i < opsPerThread; i++) {
+                            int n = rnd.nextInt(accounts.size());
+                            Account acct = accounts.get(n);
+                            Account found;
+                            switch (rnd.nextInt(4)) {
+                            case 0:
+                                found = cache.getById(acct.getId());
+                                break;
+                            case 1:
+                                found = cache.getByName(acct.getName());
+                                break;
+                            case 2:
+                                found = cache.getByName("alias" + n + "@zimbra.com");
+                                break;
+                            default:
+                                found = null;
+                                break;
+                            }
+                            if (found != null) {
+                                Assert.assertEquals(acct.getId(), found.getId());
+                                hits.incrementAndGet();
+                            } else {
+                                cache.put(acct);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        Assert.assertTrue(hits.get() > 0);
+        Assert.assertTrue(cache.getSize() <= 512);
+    }
+}
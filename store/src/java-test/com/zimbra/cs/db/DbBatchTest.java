@@ -0,0 +1,190 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link DbBatch}.
+ */
+public final class DbBatchTest {
+
+    private static final String INSERT = "INSERT INTO mboxgroup1.mail_item " +
+            "(mailbox_id, id, type, index_id, date, size, flags, tags, mod_metadata, mod_content) " +
+            "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0, 0)";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private DbConnection conn = null;
+    private Mailbox mbox = null;
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        conn = DbPool.getConnection(mbox);
+    }
+
+    @After
+    public void tearDown() {
+        conn.closeQuietly();
+    }
+
+    private List<Integer> insert(int first, int count) throws Exception {
+        List<Integer> ids = new ArrayList<Integer>(count);
+        DbBatch batch = new DbBatch(conn, INSERT, 64);
+        try {
+            for (int id = first; id < first + count; id++) {
+                PreparedStatement stmt = batch.getStatement();
+                stmt.setInt(1, mbox.getId());
+                stmt.setInt(2, id);
+                stmt.setByte(3, MailItem.Type.MESSAGE.toByte());
+                batch.add();
+                ids.add(id);
+            }
+            Assert.assertEquals(count, batch.execute());
+        } finally {
+            batch.close();
+        }
+        return ids;
+    }
+
+    private int countIndexed() throws Exception {
+        return DbUtil.executeQuery(conn, "SELECT COUNT(*) FROM mboxgroup1.mail_item WHERE index_id = id").getInt(1);
+    }
+
+    @Test
+    public void executeIn() throws Exception {
+        // a few full IN chunks plus a remainder
+        int count = Db.getINClauseBatchSize() * 3 + 7;
+        List<Integer> ids = insert(1000, count);
+        Assert.assertEquals(count, DbBatch.executeIn(conn, n -> "UPDATE mboxgroup1.mail_item SET index_id = id" +
+                " WHERE mailbox_id = ? AND " + DbUtil.whereIn("id", n), (stmt, pos) -> {
+                    stmt.setInt(pos++, mbox.getId());
+                    return pos;
+                }, ids));
+        Assert.assertEquals(count, countIndexed());
+
+        // exactly one chunk, and ids that do not exist
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < Db.getINClauseBatchSize(); i++) {
+            missing.add(100000 + i);
+        }
+        Assert.assertEquals(0, DbBatch.executeIn(conn, n -> "DELETE FROM mboxgroup1.mail_item WHERE " +
+                DbUtil.whereIn("id", n), missing));
+        Assert.assertEquals(count, DbBatch.executeIn(conn, n -> "DELETE FROM mboxgroup1.mail_item WHERE " +
+                DbUtil.whereIn("id", n), ids));
+    }
+
+    @Test
+    public void setIndexIds() throws Exception {
+        List<Integer> ids = insert(1000, 250);
+        DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item_dumpster " +
+                "(mailbox_id, id, type, index_id, date, size, flags, tags, mod_metadata, mod_content) " +
+                "VALUES(?, ?, ?, ?, 0, 0, 0, 0, 0, 0)", mbox.getId(), 5000, MailItem.Type.MESSAGE.toByte(), 0);
+        ids.add(5000);
+
+        DbMailItem.setIndexIds(conn, mbox, ids);
+        Assert.assertEquals(250, countIndexed());
+        Assert.assertEquals(5000, DbUtil.executeQuery(conn,
+                "SELECT index_id FROM mboxgroup1.mail_item_dumpster WHERE id = ?", 5000).getInt(1));
+    }
+
+    /**
+     * Mailbox lock hold time for 10k-item mutations issued one statement per item, as the tagged item and tombstone
+     * writers used to, and through {@link DbBatch}.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        int count = 10000;
+        List<Integer> ids = insert(1000, count);
+        String update = "UPDATE mboxgroup1.mail_item SET index_id = id WHERE mailbox_id = ? AND id = ?";
+
+        mbox.lock.lock();
+        long start = System.nanoTime();
+        try {
+            for (int id : ids) {
+                PreparedStatement stmt = conn.prepareStatement(update);
+                try {
+                    stmt.setInt(1, mbox.getId());
+                    stmt.setInt(2, id);
+                    stmt.executeUpdate();
+                } finally {
+                    DbPool.closeStatement(stmt);
+                }
+            }
+        } finally {
+            mbox.lock.release();
+        }
+        long perItem = System.nanoTime() - start;
+        Assert.assertEquals(count, countIndexed());
+        DbUtil.executeUpdate(conn, "UPDATE mboxgroup1.mail_item SET index_id = 0");
+
+        mbox.lock.lock();
+        start = System.nanoTime();
+        try {
+            DbBatch batch = new DbBatch(conn, update);
+            try {
+                for (int id : ids) {
+                    batch.getStatement().setInt(1, mbox.getId());
+                    batch.getStatement().setInt(2, id);
+                    batch.add();
+                }
+                batch.execute();
+            } finally {
+                batch.close();
+            }
+        } finally {
+            mbox.lock.release();
+        }
+        long batched = System.nanoTime() - start;
+        Assert.assertEquals(count, countIndexed());
+        DbUtil.executeUpdate(conn, "UPDATE mboxgroup1.mail_item SET index_id = 0");
+
+        mbox.lock.lock();
+        start = System.nanoTime();
+        try {
+            DbMailItem.setIndexIds(conn, mbox, ids);
+        } finally {
+            mbox.lock.release();
+        }
+        long in = System.nanoTime() - start;
+        Assert.assertEquals(count, countIndexed());
+
+        ZimbraLog.test.info("lock held for %d items: per-item statements %dms, batched %dms, batched IN chunks %dms",
+                count, perItem / 1000000, batched / 1000000, in / 1000000);
+    }
+}
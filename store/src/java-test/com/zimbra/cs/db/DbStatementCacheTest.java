@@ -0,0 +1,142 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for the prepared statement cache in {@link DbPool} and {@link DbUtil#bucketInSize(int)}.
+ */
+public final class DbStatementCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private DbConnection conn = null;
+    private Mailbox mbox = null;
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        conn = DbPool.getConnection(mbox);
+        for (int id = 100; id < 110; id++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, index_id, date, size, flags, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0, 0)", mbox.getId(), id, MailItem.Type.MESSAGE.toByte());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        conn.closeQuietly();
+    }
+
+    @Test
+    public void bucketInSize() {
+        int max = Db.getINClauseBatchSize();
+        Assert.assertEquals(1, DbUtil.bucketInSize(1));
+        Assert.assertEquals(3, DbUtil.bucketInSize(3));
+        Assert.assertEquals(4, DbUtil.bucketInSize(4));
+        Assert.assertEquals(8, DbUtil.bucketInSize(5));
+        Assert.assertEquals(Math.min(64, max), DbUtil.bucketInSize(Math.min(33, max)));
+        Assert.assertEquals(max, DbUtil.bucketInSize(max));
+        Assert.assertEquals(max + 1, DbUtil.bucketInSize(max + 1));
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        String sql = "SELECT COUNT(*) FROM mboxgroup1.mail_item WHERE mailbox_id = ? AND id >= ?";
+        long hits = StatTrackingPreparedStatement.getCacheHits();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(10, count(sql));
+        }
+        ZimbraLog.test.info("1000 prepare/execute of the same SQL: %dus", (System.nanoTime() - start) / 1000);
+        Assert.assertTrue(StatTrackingPreparedStatement.getCacheHits() - hits >= 999);
+    }
+
+    @Test
+    public void limitsReset() throws Exception {
+        String sql = "SELECT id FROM mboxgroup1.mail_item WHERE mailbox_id = ? AND id >= ?";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            stmt.setMaxRows(2);
+            stmt.setInt(1, mbox.getId());
+            stmt.setInt(2, 0);
+            Assert.assertEquals(2, rows(stmt.executeQuery()));
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+
+        stmt = conn.prepareStatement(sql);
+        try {
+            Assert.assertEquals(0, stmt.getMaxRows());
+            stmt.setInt(1, mbox.getId());
+            stmt.setInt(2, 0);
+            Assert.assertEquals(10, rows(stmt.executeQuery()));
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    private int count(String sql) throws Exception {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            stmt.setInt(1, mbox.getId());
+            stmt.setInt(2, 0);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                rs.next();
+                return rs.getInt(1);
+            } finally {
+                rs.close();
+            }
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    private static int rows(ResultSet rs) throws Exception {
+        try {
+            int count = 0;
+            while (rs.next()) {
+                count++;
+            }
+            return count;
+        } finally {
+            rs.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.ZCalendar.ZComponent;
+import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.fb.FreeBusy.Interval;
+import com.zimbra.cs.mailbox.Appointment;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+import com.zimbra.cs.mailbox.calendar.Invite;
+import com.zimbra.cs.mailbox.calendar.ZOrganizer;
+
+/**
+ * Unit test for {@link LocalFreeBusyProvider}.
+ */
+public final class LocalFreeBusyProviderTest {
+
+    // 2026-01-05T00:00:00Z
+    private static final long DAY = 20458 * Constants.MILLIS_PER_DAY;
+    private static final long HOUR = Constants.MILLIS_PER_HOUR;
+    private static final long MINUTE = Constants.MILLIS_PER_MINUTE;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void bitmapIndex() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        addAppointment(mbox, DAY + 9 * HOUR, DAY + 10 * HOUR, IcalXmlStrMap.FBTYPE_BUSY);
+        addAppointment(mbox, DAY + 9 * HOUR + 30 * MINUTE, DAY + 11 * HOUR, IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE);
+        long otherStart = DAY + 2 * Constants.MILLIS_PER_DAY;
+        Appointment other = addAppointment(mbox, otherStart, otherStart + HOUR, IcalXmlStrMap.FBTYPE_BUSY);
+
+        // an excluded appointment takes the exact path; slot-aligned appointments must come out the same
+        long start = DAY;
+        long end = DAY + Constants.MILLIS_PER_DAY;
+        List<String> exact = describe(mbox.getFreeBusy(null, start, end, other));
+        Assert.assertEquals(2, exact.size());
+        Assert.assertEquals(describe(DAY + 9 * HOUR, DAY + 10 * HOUR, IcalXmlStrMap.FBTYPE_BUSY), exact.get(0));
+        Assert.assertEquals(describe(DAY + 10 * HOUR, DAY + 11 * HOUR, IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE),
+                exact.get(1));
+        Assert.assertEquals(exact, describe(mbox.getFreeBusy(null, start, end, FreeBusyQuery.CALENDAR_FOLDER_ALL)));
+        Assert.assertEquals(exact, describe(mbox.getFreeBusy(null, start, end, FreeBusyQuery.CALENDAR_FOLDER_ALL)));
+
+        // a new appointment invalidates the day; unaligned instances are widened to whole slots
+        addAppointment(mbox, DAY + 13 * HOUR + 5 * MINUTE, DAY + 13 * HOUR + 20 * MINUTE,
+                IcalXmlStrMap.FBTYPE_BUSY_UNAVAILABLE);
+        List<String> fb = describe(mbox.getFreeBusy(null, start, end, FreeBusyQuery.CALENDAR_FOLDER_ALL));
+        Assert.assertEquals(3, fb.size());
+        Assert.assertEquals(describe(DAY + 13 * HOUR, DAY + 13 * HOUR + 30 * MINUTE,
+                IcalXmlStrMap.FBTYPE_BUSY_UNAVAILABLE), fb.get(2));
+
+        // ranges that don't start on a slot boundary are clipped
+        fb = describe(mbox.getFreeBusy(null, DAY + 9 * HOUR + 10 * MINUTE, end, FreeBusyQuery.CALENDAR_FOLDER_ALL));
+        Assert.assertEquals(describe(DAY + 9 * HOUR + 10 * MINUTE, DAY + 10 * HOUR, IcalXmlStrMap.FBTYPE_BUSY),
+                fb.get(0));
+
+        // deleting an appointment drops it from the index
+        mbox.delete(null, other.getId(), MailItem.Type.APPOINTMENT);
+        fb = describe(mbox.getFreeBusy(null, otherStart, otherStart + Constants.MILLIS_PER_DAY,
+                FreeBusyQuery.CALENDAR_FOLDER_ALL));
+        Assert.assertTrue(fb.toString(), fb.isEmpty());
+    }
+
+    @Test
+    public void attendees() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        List<Mailbox> mboxes = new ArrayList<Mailbox>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            Account acct = prov.createAccount("attendee" + i + "@zimbra.com", "secret", attrs);
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+            for (int day = 0; day < 30; day += 3) {
+                long apptStart = DAY + day * Constants.MILLIS_PER_DAY + (8 + i % 8) * HOUR;
+                addAppointment(mbox, apptStart, apptStart + HOUR, IcalXmlStrMap.FBTYPE_BUSY);
+            }
+            mboxes.add(mbox);
+        }
+
+        long start = DAY;
+        long end = DAY + 30 * Constants.MILLIS_PER_DAY;
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.currentTimeMillis();
+            for (Mailbox mbox : mboxes) {
+                Assert.assertEquals(10, describe(mbox.getFreeBusy(null, start, end,
+                        FreeBusyQuery.CALENDAR_FOLDER_ALL)).size());
+            }
+            ZimbraLog.test.info("free/busy of 100 attendees over 30 days, round %d: %dms", round,
+                    System.currentTimeMillis() - t0);
+        }
+    }
+
+    private static Appointment addAppointment(Mailbox mbox, long start, long end, String freeBusy) throws Exception {
+        Account acct = mbox.getAccount();
+        ZVCalendar calendar = new ZVCalendar();
+        calendar.addComponent(new ZComponent("VEVENT"));
+        Invite invite = MailboxTestUtil.generateInvite(acct, "appointment", calendar);
+        invite.setDtStart(ParsedDateTime.fromUTCTime(start, ICalTimeZone.getUTC()));
+        invite.setDtEnd(ParsedDateTime.fromUTCTime(end, ICalTimeZone.getUTC()));
+        invite.setOrganizer(new ZOrganizer(acct.getName(), null));
+        invite.setUid(UUID.randomUUID().toString());
+        invite.setMethod("REQUEST");
+        invite.setName("appointment");
+        invite.setFreeBusy(freeBusy);
+        invite.setIsOrganizer(true);
+        invite.setItemType(MailItem.Type.APPOINTMENT);
+        int id = mbox.addInvite(null, invite, Mailbox.ID_FOLDER_CALENDAR).calItemId;
+        return mbox.getAppointmentById(null, id);
+    }
+
+    private static List<String> describe(FreeBusy fb) {
+        List<String> result = new ArrayList<String>();
+        for (Iterator<Interval> iter = fb.iterator(); iter.hasNext(); ) {
+            Interval ival = iter.next();
+            if (!IcalXmlStrMap.FBTYPE_FREE.equals(ival.getStatus())) {
+                result.add(describe(ival.getStart(), ival.getEnd(), ival.getStatus()));
+            }
+        }
+        return result;
+    }
+
+    private static String describe(long start, long end, String status) {
+        return start + "-" + end + " " + status;
+    }
+}
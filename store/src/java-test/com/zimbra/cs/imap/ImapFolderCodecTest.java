@@ -0,0 +1,162 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.util.TagUtil;
+
+/**
+ * Unit test for {@link ImapFolderCodec}.
+ */
+public final class ImapFolderCodecTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static ImapFolder newFolder(int size, int tagCount, String query) {
+        ImapFlagCache tagset = new ImapFlagCache();
+        String[] names = new String[tagCount];
+        for (int i = 0; i < tagCount; i++) {
+            names[i] = "tag" + i;
+            tagset.cache(new ImapFlag(names[i], "TAG" + i, 64 + i, 0, true, true, true, i));
+        }
+        List<ImapMessage> messages = new ArrayList<ImapMessage>(size);
+        for (int i = 0; i < size; i++) {
+            int uid = 1000 + i * 3;
+            // every tenth message was moved in and kept a different item id
+            int id = i % 10 == 0 ? uid + 7 : uid;
+            String[] tags = tagCount == 0 || i % 4 != 0 ? new String[0] :
+                new String[] { names[i % tagCount], names[(i * 7) % tagCount] };
+            ImapMessage i4msg = new ImapMessage(id, i % 50 == 0 ? MailItem.Type.CONTACT : MailItem.Type.MESSAGE, uid,
+                    i % 3 == 0 ? Flag.BITMASK_UNREAD : Flag.BITMASK_REPLIED | Flag.BITMASK_FLAGGED, tags);
+            if (i % 5 == 0) {
+                i4msg.sflags |= ImapMessage.FLAG_RECENT;
+            }
+            messages.add(i4msg);
+        }
+        return new ImapFolder(257, 12345, query, query == null ? ImapHandler.ITEM_TYPES :
+            EnumSet.of(MailItem.Type.MESSAGE), tagset, messages);
+    }
+
+    private static byte[] serialize(ImapFolder folder) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(folder);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static void assertFolderEquals(ImapFolder expected, ImapFolder actual) {
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getUIDValidity(), actual.getUIDValidity());
+        Assert.assertEquals(expected.isVirtual(), actual.isVirtual());
+        Assert.assertEquals(expected.getQuery(), actual.getQuery());
+        Assert.assertEquals(expected.getTypeConstraint(), actual.getTypeConstraint());
+        Assert.assertEquals(expected.getTagset().listNames(false), actual.getTagset().listNames(false));
+        for (ImapFlag i4flag : expected.getTagset()) {
+            ImapFlag other = actual.getTagset().getByImapName(i4flag.mImapName);
+            Assert.assertNotNull(i4flag.mImapName, other);
+            Assert.assertEquals(i4flag.mName, other.mName);
+            Assert.assertEquals(i4flag.mId, other.mId);
+            Assert.assertEquals(i4flag.mModseq, other.mModseq);
+        }
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        for (int seq = 1; seq <= expected.getSize(); seq++) {
+            ImapMessage msg1 = expected.getBySequence(seq), msg2 = actual.getBySequence(seq);
+            Assert.assertEquals(seq, msg2.sequence);
+            Assert.assertEquals(msg1.msgId, msg2.msgId);
+            Assert.assertEquals(msg1.imapUid, msg2.imapUid);
+            Assert.assertEquals(msg1.flags, msg2.flags);
+            Assert.assertEquals(msg1.sflags, msg2.sflags);
+            Assert.assertTrue(TagUtil.tagsMatch(msg1.tags, msg2.tags));
+            Assert.assertSame(msg2, actual.getById(msg1.msgId));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        // 70 tags need two bitmap words per message
+        ImapFolder folder = newFolder(500, 70, null);
+        byte[] data = ImapFolderCodec.write(folder);
+        Assert.assertTrue(ImapFolderCodec.isEnabled());
+        assertFolderEquals(folder, ImapFolderCodec.read(data));
+        Assert.assertSame(ImapHandler.ITEM_TYPES, ImapFolderCodec.read(data).getTypeConstraint());
+
+        ImapFolder search = newFolder(20, 0, "in:inbox is:unread");
+        assertFolderEquals(search, ImapFolderCodec.read(ImapFolderCodec.write(search)));
+
+        ImapFolder empty = newFolder(0, 0, null);
+        assertFolderEquals(empty, ImapFolderCodec.read(ImapFolderCodec.write(empty)));
+    }
+
+    @Test
+    public void readSerialized() throws Exception {
+        ImapFolder folder = newFolder(100, 3, null);
+        assertFolderEquals(folder, ImapFolderCodec.read(serialize(folder)));
+    }
+
+    @Test
+    public void rejectUnknownVersion() throws Exception {
+        byte[] data = ImapFolderCodec.write(newFolder(10, 1, null));
+        data[4] = ImapFolderCodec.VERSION + 1;
+        try {
+            ImapFolderCodec.read(data);
+            Assert.fail();
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+
+    @Test
+    public void sizeAndDecodeTime() throws Exception {
+        ImapFolder folder = newFolder(100000, 8, null);
+        byte[] serialized = serialize(folder);
+        byte[] encoded = ImapFolderCodec.write(folder);
+        Assert.assertTrue(encoded.length * 4 < serialized.length);
+
+        int rounds = 10;
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ImapFolderCodec.read(serialized);
+        }
+        long serializedNanos = (System.nanoTime() - begin) / rounds;
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ImapFolderCodec.read(encoded);
+        }
+        long encodedNanos = (System.nanoTime() - begin) / rounds;
+        ZimbraLog.test.info("ImapFolder of %d messages: serialized %d bytes, decoded in %dms; encoded %d bytes, " +
+                "decoded in %dms", folder.getSize(), serialized.length, serializedNanos / 1000000, encoded.length,
+                encodedNanos / 1000000);
+    }
+}
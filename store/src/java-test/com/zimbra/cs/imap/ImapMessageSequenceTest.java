@@ -0,0 +1,171 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ImapMessageSequence}.
+ */
+public final class ImapMessageSequenceTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    private static ImapMessage message(int id, int uid) {
+        return new ImapMessage(id, MailItem.Type.MESSAGE, uid, Flag.BITMASK_UNREAD, new String[0]);
+    }
+
+    @Test
+    public void listOperations() throws Exception {
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        for (int uid = 10; uid <= 100; uid += 10) {
+            sequence.add(message(uid, uid));
+        }
+        sequence.add(2, message(25, 25));
+        Assert.assertEquals(11, sequence.size());
+        Assert.assertEquals(25, sequence.getUid(2));
+        Assert.assertEquals(2, sequence.uidSearch(25));
+        Assert.assertEquals(-3, sequence.uidSearch(21));
+        Assert.assertEquals(-12, sequence.uidSearch(101));
+
+        Assert.assertEquals(10, sequence.remove(0).imapUid);
+        Assert.assertEquals(1, sequence.uidSearch(25));
+        sequence.set(0, message(15, 15));
+        Assert.assertEquals(0, sequence.uidSearch(15));
+        Assert.assertTrue(sequence.uidSearch(20) < 0);
+
+        sequence.truncate(3);
+        Assert.assertEquals(3, sequence.size());
+        Assert.assertTrue(sequence.uidSearch(40) < 0);
+        try {
+            sequence.get(3);
+            Assert.fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void idIndex() throws Exception {
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        Assert.assertFalse(sequence.hasIdIndex());
+        sequence.putId(5, 500);
+        Assert.assertEquals(0, sequence.getUidForId(5));
+
+        sequence.add(message(7, 700));
+        sequence.add(message(800, 800));
+        sequence.buildIdIndex();
+        Assert.assertEquals(700, sequence.getUidForId(7));
+        Assert.assertEquals(0, sequence.getUidForId(800));
+
+        // random puts and removes, cross-checked against a HashMap
+        Random random = new Random(42);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        expected.put(7, 700);
+        for (int i = 0; i < 100000; i++) {
+            int id = 1 + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                sequence.removeId(id);
+                expected.remove(id);
+            } else {
+                sequence.putId(id, id + 100000);
+                expected.put(id, id + 100000);
+            }
+        }
+        for (int id = 1; id <= 5000; id++) {
+            Integer uid = expected.get(id);
+            Assert.assertEquals(uid == null ? 0 : uid.intValue(), sequence.getUidForId(id));
+        }
+    }
+
+    @Test
+    public void serialize() throws Exception {
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        for (int i = 1; i <= 100; i++) {
+            sequence.add(message(i * 2, i));
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(sequence);
+        oout.close();
+        ImapMessageSequence copy = (ImapMessageSequence) new ObjectInputStream(
+                new ByteArrayInputStream(bout.toByteArray())).readObject();
+        Assert.assertEquals(100, copy.size());
+        Assert.assertEquals(41, copy.uidSearch(42));
+        Assert.assertEquals(84, copy.get(41).msgId);
+        Assert.assertFalse(copy.hasIdIndex());
+    }
+
+    @Test
+    public void heapEstimate() throws Exception {
+        ImapMessageSequence sequence = new ImapMessageSequence();
+        long empty = sequence.estimateHeapSize();
+        for (int i = 1; i <= 1000; i++) {
+            sequence.add(message(i, i));
+        }
+        long filled = sequence.estimateHeapSize();
+        Assert.assertTrue(filled >= empty + 1000L * (ImapMessageSequence.MESSAGE_BYTES + 4));
+        sequence.get(0).tags = new String[] { "a", "b", "c" };
+        Assert.assertTrue(sequence.estimateHeapSize() > filled);
+    }
+
+    @Test
+    public void folderLookupsAndExpunge() throws Exception {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        for (int uid = 1; uid <= 20; uid++) {
+            // odd messages were moved in and carry a different item id
+            messages.add(message(uid % 2 == 1 ? uid + 1000 : uid, uid));
+        }
+        ImapFolder folder = new ImapFolder(2, 1, null, ImapHandler.ITEM_TYPES, new ImapFlagCache(), messages);
+        Assert.assertEquals(4, folder.getById(4).imapUid);
+        Assert.assertEquals(3, folder.getById(1003).imapUid);
+        Assert.assertNull(folder.getById(3));
+
+        for (int uid : new int[] { 1, 2, 3, 10, 20 }) {
+            folder.markMessageExpunged(folder.getByImapId(uid));
+        }
+        Assert.assertNull(folder.getById(1003));
+        Assert.assertEquals(Arrays.asList(1, 1, 1, 7, 16), folder.collapseExpunged(false));
+        Assert.assertEquals(15, folder.getSize());
+        for (int seq = 1; seq <= folder.getSize(); seq++) {
+            ImapMessage i4msg = folder.getBySequence(seq);
+            Assert.assertEquals(seq, i4msg.sequence);
+            Assert.assertSame(i4msg, folder.getById(i4msg.msgId));
+        }
+        Assert.assertEquals(1005, folder.getBySequence(2).msgId);
+        Assert.assertNull(folder.getById(1003));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Unit test for {@link ImapMessageSummary}.
+ */
+public final class ImapMessageSummaryTest {
+
+    private static final String PLAIN = "From: Bob Evans <bob@example.com>\r\n" +
+            "To: Jimmy Dean <jdean@example.com>, \"Vera\" <oli@example.com>\r\n" +
+            "Subject: =?utf-8?Q?caf=C3=A9?=\r\n" +
+            "Message-ID: <summary-1@example.com>\r\n" +
+            "Content-Type: text/plain; charset=utf-8\r\n" +
+            "\r\n" +
+            "nothing to see here\r\n";
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Mailbox getMailbox() throws Exception {
+        return MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+    }
+
+    private static Message deliver(Mailbox mbox, ParsedMessage pm) throws Exception {
+        return mbox.addMessage(null, pm, new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+    }
+
+    private static byte[] toBytes(ParsedMessage pm) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        pm.getMimeMessage().writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    private static void assertMatchesMime(Message msg) throws Exception {
+        ImapMessageSummary summary = ImapMessageSummary.of(msg);
+        Assert.assertNotNull("summary stored on delivery", summary);
+        MimeMessage mm = ImapMessage.getMimeMessage(msg);
+        Assert.assertEquals(ImapMessageSummary.render(mm, ImapMessageSummary.FETCH_BODY), summary.body);
+        Assert.assertEquals(ImapMessageSummary.render(mm, ImapMessageSummary.FETCH_BODYSTRUCTURE), summary.bodyStructure);
+        Assert.assertEquals(ImapMessageSummary.render(mm, ImapMessageSummary.FETCH_ENVELOPE), summary.envelope);
+    }
+
+    @Test
+    public void plain() throws Exception {
+        Mailbox mbox = getMailbox();
+        Message msg = deliver(mbox, new ParsedMessage(PLAIN.getBytes("UTF-8"), false));
+        assertMatchesMime(msg);
+        // and after the item is reloaded from the database
+        mbox.purge(MailItem.Type.MESSAGE);
+        assertMatchesMime(mbox.getMessageById(null, msg.getId()));
+    }
+
+    @Test
+    public void multipart() throws Exception {
+        Mailbox mbox = getMailbox();
+        byte[] raw = toBytes(MailboxTestUtil.generateMessageWithAttachment("attached"));
+        assertMatchesMime(deliver(mbox, new ParsedMessage(raw, false)));
+    }
+
+    @Test
+    public void notFromRawData() throws Exception {
+        Mailbox mbox = getMailbox();
+        // the stored blob is a reserialization of the MimeMessage and may not render identically
+        Message msg = deliver(mbox, MailboxTestUtil.generateMessage("generated"));
+        Assert.assertNull(ImapMessageSummary.of(msg));
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        StringBuilder to = new StringBuilder("To: ");
+        for (int i = 0; i < 1000; i++) {
+            to.append(i == 0 ? "" : ", ").append("user").append(i).append("@example.com");
+        }
+        byte[] raw = PLAIN.replace("To: Jimmy Dean <jdean@example.com>, \"Vera\" <oli@example.com>",
+                to.toString()).getBytes("UTF-8");
+        MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession(), new ByteArrayInputStream(raw));
+        Assert.assertNull(ImapMessageSummary.encode(mm));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Mailbox mbox = getMailbox();
+        byte[] raw = toBytes(MailboxTestUtil.generateMessageWithAttachment("attached"));
+        int count = 200;
+        Message[] msgs = new Message[count];
+        for (int i = 0; i < count; i++) {
+            msgs[i] = deliver(mbox, new ParsedMessage(raw, false));
+        }
+        int rounds = 500;
+        long len = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (Message msg : msgs) {
+                MimeMessage mm = ImapMessage.getMimeMessage(msg);
+                len += ImapMessageSummary.render(mm, ImapMessageSummary.FETCH_BODYSTRUCTURE).length() +
+                        ImapMessageSummary.render(mm, ImapMessageSummary.FETCH_ENVELOPE).length();
+            }
+        }
+        long mime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (Message msg : msgs) {
+                ImapMessageSummary summary = ImapMessageSummary.of(msg);
+                len -= summary.bodyStructure.length() + summary.envelope.length();
+            }
+        }
+        long cached = System.nanoTime() - start;
+        Assert.assertEquals(0, len);
+        ZimbraLog.test.info("FETCH (BODYSTRUCTURE ENVELOPE) x %d: MIME %dms, summary %dms", count * rounds,
+                mime / 1000000, cached / 1000000);
+    }
+}
@@ -674,7 +674,7 @@ public abstract class AbstractIndexStoreTest {
                 Collections.singletonMap(ContactConstants.A_email, email)), folder.getId(), null);
     }
 
-    private Contact createContact(Mailbox mbox, String firstName, String lastName, String email)
+    protected Contact createContact(Mailbox mbox, String firstName, String lastName, String email)
             throws ServiceException {
         Folder folder = mbox.getFolderById(null, Mailbox.ID_FOLDER_CONTACTS);
         Map<String, Object> fields;
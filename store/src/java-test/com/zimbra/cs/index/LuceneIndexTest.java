@@ -16,6 +16,13 @@
  */
 package com.zimbra.cs.index;
 
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +34,28 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void searcherReusedUntilCommit() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        createContact(mbox, "a", "bc", "abc@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        IndexStore index = mbox.index.getIndexStore();
+        ZimbraIndexSearcher searcher1 = index.openSearcher();
+        ZimbraIndexSearcher searcher2 = index.openSearcher();
+        Assert.assertSame("searcher shared while the index is unchanged", searcher1, searcher2);
+        Assert.assertEquals(1, searcher1.getIndexReader().numDocs());
+        searcher2.close();
+
+        createContact(mbox, "x", "yz", "xyz@zimbra.com");
+        mbox.index.indexDeferredItems();
+        ZimbraIndexSearcher searcher3 = index.openSearcher();
+        Assert.assertNotSame("searcher reopened after commit", searcher1, searcher3);
+        Assert.assertEquals(2, searcher3.getIndexReader().numDocs());
+        // the old searcher stays usable until its last user closes it
+        Assert.assertEquals(1, searcher1.getIndexReader().numDocs());
+        searcher1.close();
+        searcher3.close();
+    }
 }
@@ -255,6 +255,38 @@ public final class ZimbraQueryTest {
         Closeables.closeQuietly(result);
     }
 
+    @Test
+    public void explain() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        mbox.addMessage(null, new ParsedMessage("From: test1@zimbra.com".getBytes(), false), dopt, null);
+        mbox.addMessage(null, new ParsedMessage("From: test2@zimbra.com".getBytes(), false), dopt, null);
+        mbox.addMessage(null, new ParsedMessage("From: test3@zimbra.com".getBytes(), false), dopt, null);
+        MailboxTestUtil.index(mbox);
+
+        DbSearchConstraints.Leaf leaf = new DbSearchConstraints.Leaf();
+        leaf.folders.add(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX));
+        Assert.assertEquals(3, leaf.estimateRowCount(mbox));
+        leaf.itemIds.add(1000);
+        Assert.assertEquals(1, leaf.estimateRowCount(mbox));
+
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox from:test1@zimbra.com");
+        params.setSortBy(SortBy.NONE);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setFetchMode(SearchParams.Fetch.IDS);
+
+        ZimbraQuery query = new ZimbraQuery(new OperationContext(mbox), SoapProtocol.Soap12, mbox, params);
+        Assert.assertEquals("", query.explain());
+        ZimbraQueryResults result = query.execute();
+        Assert.assertNotNull(result.getNext());
+        Assert.assertNull(result.getNext());
+        String plan = query.explain();
+        Assert.assertTrue(plan,
+                plan.matches("(?s).*DBQueryOperation est=\\d+ (DB|LUCENE)_FIRST db=3 index=(\\d+|\\?) rows=1 .*"));
+        Closeables.closeQuietly(result);
+    }
+
     @Test
     public void dumpster() throws Exception {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
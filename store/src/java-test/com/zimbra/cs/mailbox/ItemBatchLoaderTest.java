@@ -0,0 +1,175 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.primitives.Ints;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
+
+/**
+ * Unit test for {@link ItemBatchLoader}.
+ */
+public final class ItemBatchLoaderTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static List<Integer> deliver(Mailbox mbox, int count) throws Exception {
+        List<Integer> ids = new ArrayList<Integer>(count);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < count; i++) {
+            ids.add(mbox.addMessage(null, MailboxTestUtil.generateMessage("batch " + i), dopt, null).getId());
+        }
+        mbox.purge(MailItem.Type.MESSAGE);
+        return ids;
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = deliver(mbox, 10);
+        ItemBatchLoader loader = mbox.getItemLoader();
+        long queries = loader.getQueryCount();
+
+        mbox.expectItems(ids);
+        for (int id : ids) {
+            Assert.assertEquals(id, mbox.getMessageById(null, id).getId());
+        }
+        Assert.assertEquals("one query for all announced items", queries + 1, loader.getQueryCount());
+
+        // items nobody announced are still loaded one at a time
+        mbox.purge(MailItem.Type.MESSAGE);
+        mbox.getMessageById(null, ids.get(0));
+        Assert.assertEquals(queries + 1, loader.getQueryCount());
+    }
+
+    @Test
+    public void staleAnnouncements() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = deliver(mbox, 10);
+        ItemBatchLoader loader = mbox.getItemLoader();
+        for (int id : ids) {
+            mbox.getMessageById(null, id);
+        }
+
+        // announced items that are served from the cache don't stay pending
+        for (int i = 0; i < ItemBatchLoader.MAX_PENDING / ids.size() + 1; i++) {
+            mbox.expectItems(ids);
+            for (int id : ids) {
+                mbox.getMessageById(null, id);
+            }
+        }
+        Assert.assertEquals(0, loader.getPendingCount());
+
+        // nor do announced items that are never looked up
+        List<Integer> unused = new ArrayList<Integer>(ItemBatchLoader.MAX_PENDING);
+        for (int i = 0; i < ItemBatchLoader.MAX_PENDING; i++) {
+            unused.add(1000000 + i);
+        }
+        mbox.expectItems(unused);
+
+        // batching still happens afterwards
+        mbox.purge(MailItem.Type.MESSAGE);
+        long queries = loader.getQueryCount();
+        mbox.expectItems(ids);
+        for (int id : ids) {
+            Assert.assertEquals(id, mbox.getMessageById(null, id).getId());
+        }
+        Assert.assertEquals("one query for all announced items", queries + 1, loader.getQueryCount());
+    }
+
+    @Test
+    public void wrongType() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = deliver(mbox, 3);
+        int folderId = mbox.createFolder(null, "batch", new Folder.FolderOptions()).getId();
+
+        List<Integer> expected = new ArrayList<Integer>(ids);
+        expected.add(folderId);
+        mbox.expectItems(expected);
+        try {
+            mbox.getContactById(null, ids.get(0));
+            Assert.fail("loaded a message as a contact");
+        } catch (NoSuchItemException expectedException) {
+        }
+        try {
+            mbox.getMessageById(null, folderId);
+            Assert.fail("loaded a folder as a message");
+        } catch (NoSuchItemException expectedException) {
+        }
+        // the rest of the batch is still usable
+        Assert.assertEquals(ids.get(1).intValue(), mbox.getMessageById(null, ids.get(1)).getId());
+        Assert.assertEquals(ids.get(2).intValue(), mbox.getMessageById(null, ids.get(2)).getId());
+    }
+
+    @Test
+    public void missing() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = deliver(mbox, 2);
+        mbox.expectItems(Arrays.asList(ids.get(0), ids.get(1), 99999));
+        try {
+            mbox.getMessageById(null, 99999);
+            Assert.fail();
+        } catch (NoSuchItemException expected) {
+        }
+        Assert.assertNotNull(mbox.getMessageById(null, ids.get(0)));
+    }
+
+    /** Counts the round trips an ItemActionRequest op="delete" saves over resolving each item on its own. */
+    @Test
+    public void benchmark() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = deliver(mbox, 200);
+        ItemBatchLoader loader = mbox.getItemLoader();
+        long queries = loader.getQueryCount(), saved = loader.getSavedRoundTrips();
+
+        long start = System.nanoTime();
+        mbox.delete(null, Ints.toArray(ids), MailItem.Type.UNKNOWN, null);
+        long elapsed = System.nanoTime() - start;
+
+        queries = loader.getQueryCount() - queries;
+        saved = loader.getSavedRoundTrips() - saved;
+        Assert.assertTrue("batched " + queries, queries > 0 && queries < ids.size() / 5);
+        Assert.assertTrue("saved " + saved, saved >= ids.size() - ids.size() / 5);
+        for (int id : ids) {
+            try {
+                mbox.getMessageById(null, id);
+                Assert.fail("not deleted: " + id);
+            } catch (NoSuchItemException expected) {
+            }
+        }
+        ZimbraLog.test.info("delete of %d items: %d item queries instead of %d (%d round trips saved), %dms",
+                ids.size(), queries, ids.size(), saved, elapsed / 1000000);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Unit test for {@link MailboxManager}.
+ */
+public final class MailboxManagerTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void concurrentLoadSharesMailbox() throws Exception {
+        final MailboxManager mmgr = MailboxManager.getInstance();
+        final int mailboxId = mmgr.getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID).getId();
+        mmgr.clearCache();
+        Assert.assertFalse(mmgr.isMailboxLoadedAndAvailable(mailboxId));
+
+        int numThreads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Mailbox>> futures = new ArrayList<Future<Mailbox>>();
+            for (int i = 0; i < numThreads; i++) {
+                futures.add(executor.submit(new Callable<Mailbox>() {
+                    @Override
+                    public Mailbox call() throws Exception {
+                        start.await();
+                        return mmgr.getMailboxById(mailboxId);
+                    }
+                }));
+            }
+            start.countDown();
+            Mailbox mbox = futures.get(0).get();
+            for (Future<Mailbox> future : futures) {
+                Assert.assertSame(mbox, future.get());
+            }
+            Assert.assertSame(mbox, mmgr.getMailboxById(mailboxId));
+            Assert.assertTrue(mmgr.isMailboxLoadedAndAvailable(mailboxId));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void noSuchMailbox() throws Exception {
+        try {
+            MailboxManager.getInstance().getMailboxById(Integer.MAX_VALUE);
+            Assert.fail("mailbox should not exist");
+        } catch (MailServiceException e) {
+            Assert.assertEquals(MailServiceException.NO_SUCH_MBOX, e.getCode());
+        }
+    }
+
+    @Test
+    public void mapDemotesToSoftReferences() {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(MailboxManager.MailboxMap.STRIPES);
+        // keys 1 and 1 + STRIPES land in the same stripe, which holds one hard reference
+        map.put(1, "one");
+        map.put(1 + MailboxManager.MailboxMap.STRIPES, "two");
+        map.put(2, "three");
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("one", map.get(1));
+        Assert.assertEquals("two", map.get(1 + MailboxManager.MailboxMap.STRIPES));
+        Assert.assertEquals(3, map.values().size());
+        Assert.assertEquals(3, map.entrySet().size());
+        Assert.assertEquals("one", map.remove(1));
+        Assert.assertNull(map.get(1));
+        Assert.assertEquals(2, map.keySet().size());
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void mapConcurrentAccess() throws Exception {
+        final MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(100);
+        int numThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < numThreads; i++) {
+                final int base = i * 1000;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < 1000; j++) {
+                            map.put(base + j, "v" + j);
+                            Assert.assertEquals("v" + j, map.get(base + j));
+                            if (j % 2 == 0) {
+                                map.remove(base + j);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(numThreads * 500, map.size());
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxListener.ChangeNotification;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.Session;
+
+public final class MailboxNotifierTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        prov.createAccount("test2@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    /** Runs the delivery tasks only when the test says so. */
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> batch = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : batch) {
+                task.run();
+            }
+        }
+    }
+
+    private static class RecordingSession extends Session {
+        final List<Integer> changeIds = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        RecordingSession(Account acct) {
+            super(acct.getId(), Session.Type.NULL);
+        }
+
+        @Override
+        protected boolean isMailboxListener() {
+            return true;
+        }
+
+        @Override
+        protected boolean isRegisteredInCache() {
+            return false;
+        }
+
+        @Override
+        protected long getSessionIdleLifetime() {
+            return 0;
+        }
+
+        @Override
+        public void notifyPendingChanges(PendingModifications pns, int changeId, Session source) {
+            changeIds.add(changeId);
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        protected void cleanup() {
+        }
+    }
+
+    private static ChangeNotification notification(Mailbox mbox, Account acct, int changeId) throws Exception {
+        PendingModifications mods = new PendingModifications();
+        mods.recordModified(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX), Change.SIZE);
+        return new ChangeNotification(acct, mods, null, changeId, MailboxOperation.MoveItem,
+                System.currentTimeMillis());
+    }
+
+    @Test
+    public void orderedAndCoalesced() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        ManualExecutor executor = new ManualExecutor();
+        MailboxNotifier notifier = new MailboxNotifier(mbox, executor);
+        RecordingSession listener = new RecordingSession(acct);
+        listener.register();
+        try {
+            List<Session> sessions = Collections.<Session>singletonList(listener);
+            notifier.enqueue(notification(mbox, acct, 101), sessions, null);
+            notifier.enqueue(notification(mbox, acct, 102), sessions, null);
+            long last = notifier.enqueue(notification(mbox, acct, 103), sessions, null);
+
+            // nothing is delivered on the committing thread, and the burst shares one task
+            Assert.assertTrue(listener.changeIds.isEmpty());
+            Assert.assertEquals(1, executor.tasks.size());
+            Assert.assertFalse(notifier.awaitDelivery(last, 0));
+            Assert.assertEquals(3, MailboxNotifier.getPendingCount());
+
+            executor.runAll();
+            Assert.assertEquals(Arrays.asList(101, 102, 103), listener.changeIds);
+            Assert.assertTrue(notifier.awaitDelivery(last, 0));
+            Assert.assertEquals(0, MailboxNotifier.getPendingCount());
+
+            // once drained, the next change schedules a new task
+            last = notifier.enqueue(notification(mbox, acct, 104), sessions, null);
+            Assert.assertEquals(1, executor.tasks.size());
+            executor.runAll();
+            Assert.assertEquals(104, listener.changeIds.get(3).intValue());
+            Assert.assertTrue(notifier.awaitDelivery(last, 0));
+        } finally {
+            listener.unregister();
+        }
+    }
+
+    @Test
+    public void synchronousWithoutExecutor() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        MailboxNotifier notifier = new MailboxNotifier(mbox, null);
+        RecordingSession listener = new RecordingSession(acct);
+        listener.register();
+        try {
+            long seq = notifier.enqueue(notification(mbox, acct, 201), Collections.<Session>singletonList(listener),
+                    null);
+            Assert.assertEquals(Collections.singletonList(201), listener.changeIds);
+            Assert.assertTrue(notifier.awaitDelivery(seq, 0));
+        } finally {
+            listener.unregister();
+        }
+    }
+
+    @Test
+    public void flushOnCallingThread() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        ManualExecutor executor = new ManualExecutor();
+        MailboxNotifier notifier = new MailboxNotifier(mbox, executor);
+        RecordingSession listener = new RecordingSession(acct);
+        listener.register();
+        try {
+            List<Session> sessions = Collections.<Session>singletonList(listener);
+            notifier.enqueue(notification(mbox, acct, 301), sessions, null);
+            long seq = notifier.enqueue(notification(mbox, acct, 302), sessions, null);
+
+            // the committing thread delivers its change, and what was queued ahead of it, itself
+            Assert.assertTrue(notifier.flush(seq, 0));
+            Assert.assertEquals(Arrays.asList(301, 302), listener.changeIds);
+            Assert.assertEquals(Arrays.asList(Thread.currentThread(), Thread.currentThread()), listener.threads);
+            Assert.assertEquals(0, MailboxNotifier.getPendingCount());
+
+            // the task scheduled before the flush finds nothing left to deliver
+            executor.runAll();
+            Assert.assertEquals(2, listener.changeIds.size());
+        } finally {
+            listener.unregister();
+        }
+    }
+
+    @Test
+    public void orderedPerMailbox() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        final Account[] accts = new Account[] {
+                prov.getAccountByName("test@zimbra.com"), prov.getAccountByName("test2@zimbra.com") };
+        final Mailbox[] mboxes = new Mailbox[accts.length];
+        final MailboxNotifier[] notifiers = new MailboxNotifier[accts.length];
+        final RecordingSession[] listeners = new RecordingSession[accts.length];
+        final long[] last = new long[accts.length];
+        final int count = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < accts.length; i++) {
+                mboxes[i] = MailboxManager.getInstance().getMailboxByAccount(accts[i]);
+                notifiers[i] = new MailboxNotifier(mboxes[i], executor);
+                listeners[i] = new RecordingSession(accts[i]);
+                listeners[i].register();
+            }
+            // one committing thread per mailbox, as the mailbox lock guarantees; every tenth change flushes
+            Thread[] committers = new Thread[accts.length];
+            for (int i = 0; i < accts.length; i++) {
+                final int m = i;
+                committers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        List<Session> sessions = Collections.<Session>singletonList(listeners[m]);
+                        try {
+                            for (int id = 1; id <= count; id++) {
+                                last[m] = notifiers[m].enqueue(notification(mboxes[m], accts[m], id), sessions, null);
+                                if (id % 10 == 0) {
+                                    notifiers[m].flush(last[m], 5000);
+                                }
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                committers[i].start();
+            }
+            for (int i = 0; i < accts.length; i++) {
+                committers[i].join();
+                Assert.assertTrue(notifiers[i].awaitDelivery(last[i], 10000));
+                Assert.assertEquals(count, listeners[i].changeIds.size());
+                for (int id = 1; id <= count; id++) {
+                    Assert.assertEquals(id, listeners[i].changeIds.get(id - 1).intValue());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            for (RecordingSession listener : listeners) {
+                if (listener != null) {
+                    listener.unregister();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void deliveredAfterCommit() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        final int count = 20;
+        final CountDownLatch done = new CountDownLatch(count);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        RecordingSession listener = new RecordingSession(acct) {
+            @Override
+            public void notifyPendingChanges(PendingModifications pns, int changeId, Session source) {
+                super.notifyPendingChanges(pns, changeId, source);
+                // the change is committed, and its folder visible, by the time the session hears of it
+                if (mbox.getLastChangeID() < changeId) {
+                    errors.add("change " + changeId + " not committed");
+                }
+                if (pns.created != null) {
+                    for (MailItem item : pns.created.values()) {
+                        try {
+                            mbox.getFolderById(null, item.getId());
+                        } catch (Exception e) {
+                            errors.add("change " + changeId + ": " + e);
+                        }
+                    }
+                }
+                done.countDown();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        mbox.notifier.setExecutor(executor);
+        listener.register();
+        try {
+            for (int i = 0; i < count; i++) {
+                mbox.createFolder(null, "async" + i, new Folder.FolderOptions());
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(Collections.emptyList(), errors);
+            for (int i = 1; i < count; i++) {
+                Assert.assertTrue(listener.changeIds.get(i - 1) < listener.changeIds.get(i));
+            }
+            Assert.assertFalse(listener.threads.contains(Thread.currentThread()));
+        } finally {
+            listener.unregister();
+            mbox.notifier.setExecutor(null);
+            executor.shutdown();
+        }
+    }
+}
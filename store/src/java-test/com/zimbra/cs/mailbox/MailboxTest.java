@@ -103,6 +103,24 @@ public final class MailboxTest {
         Assert.assertEquals(2, terms.get(3).getFreq());
     }
 
+    @Test
+    public void indexDeferredItemsAcrossChunks() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        // more items than fit in a single index transaction, so several chunks go through the pipeline
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < LC.zimbra_index_max_transaction_items.intValue() * 2 + 5; i++) {
+            ids.add(mbox.addMessage(null, MailboxTestUtil.generateMessage("chunk " + i), STANDARD_DELIVERY_OPTIONS,
+                    null).getId());
+        }
+        mbox.index.indexDeferredItems();
+
+        for (int id : ids) {
+            Assert.assertEquals("item " + id + " indexed", MailItem.IndexStatus.DONE,
+                    mbox.getMessageById(null, id).getIndexStatus());
+        }
+    }
+
     @Test
     public void threadDraft() throws Exception {
         Account acct = Provisioning.getInstance().getAccount("test@zimbra.com");
@@ -0,0 +1,108 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.util.JMSession;
+
+/**
+ * Unit test for {@link MessageCache}.
+ */
+public final class MessageCacheTest {
+
+    private static int defaultCacheSize;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        defaultCacheSize = prov.getLocalServer().getMessageCacheSize();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        setCacheSize(defaultCacheSize);
+    }
+
+    private static void setCacheSize(int size) throws Exception {
+        Provisioning.getInstance().getLocalServer().setMessageCacheSize(size);
+        MessageCache.loadSettings();
+    }
+
+    private static MimeMessage newMimeMessage() {
+        return new Mime.FixedMimeMessage(JMSession.getSession());
+    }
+
+    @Test
+    public void cacheAndPurge() throws Exception {
+        int size = MessageCache.getSize();
+        MimeMessage mm = newMimeMessage();
+        MessageCache.cacheMessage("cacheAndPurge", mm, mm);
+        Assert.assertTrue(MessageCache.contains("cacheAndPurge"));
+        Assert.assertEquals(size + 1, MessageCache.getSize());
+
+        MessageCache.purge("cacheAndPurge");
+        Assert.assertFalse(MessageCache.contains("cacheAndPurge"));
+        Assert.assertEquals(size, MessageCache.getSize());
+    }
+
+    @Test
+    public void evictsToMaxSize() throws Exception {
+        setCacheSize(20);
+        for (int i = 0; i < 100; i++) {
+            MimeMessage mm = newMimeMessage();
+            MessageCache.cacheMessage("evict-" + i, mm, mm);
+        }
+        Assert.assertEquals(20, MessageCache.getSize());
+        Assert.assertTrue("most recent entry", MessageCache.contains("evict-99"));
+    }
+
+    @Test
+    public void frequentlyReadSurvivesScan() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("hot"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null);
+        setCacheSize(20);
+
+        // the second read promotes the message out of probation
+        MessageCache.getMimeMessage(msg, false);
+        MessageCache.getMimeMessage(msg, false);
+        for (int i = 0; i < 200; i++) {
+            MimeMessage mm = newMimeMessage();
+            MessageCache.cacheMessage("scan-" + i, mm, mm);
+        }
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        Assert.assertEquals(20, MessageCache.getSize());
+    }
+}
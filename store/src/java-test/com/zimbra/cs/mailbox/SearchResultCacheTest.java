@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.db.DbSearch;
+import com.zimbra.cs.index.DbSearchConstraints;
+import com.zimbra.cs.index.SortBy;
+
+/**
+ * Unit test for {@link SearchResultCache}.
+ */
+public final class SearchResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static void deliver(Mailbox mbox, int folderId, String subject) throws Exception {
+        mbox.addMessage(null, MailboxTestUtil.generateMessage(subject),
+                new DeliveryOptions().setFolderId(folderId), null);
+    }
+
+    private static List<DbSearch.Result> searchInbox(Mailbox mbox, DbSearch.FetchMode fetch) throws Exception {
+        DbSearchConstraints.Leaf leaf = new DbSearchConstraints.Leaf();
+        leaf.folders.add(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX));
+        leaf.types.add(MailItem.Type.MESSAGE);
+        return mbox.index.search(leaf, fetch, SortBy.DATE_DESC, 0, 100, false);
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        deliver(mbox, Mailbox.ID_FOLDER_INBOX, "one");
+        deliver(mbox, Mailbox.ID_FOLDER_INBOX, "two");
+
+        List<DbSearch.Result> first = searchInbox(mbox, DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, first.size());
+        Assert.assertEquals(1, mbox.index.getCachedResultCount());
+        Assert.assertEquals(first, searchInbox(mbox, DbSearch.FetchMode.ID));
+
+        // a change in another folder leaves the entry valid
+        deliver(mbox, Mailbox.ID_FOLDER_SENT, "three");
+        Assert.assertEquals(1, mbox.index.getCachedResultCount());
+        Assert.assertEquals(2, searchInbox(mbox, DbSearch.FetchMode.ID).size());
+
+        // a change in the inbox drops it
+        deliver(mbox, Mailbox.ID_FOLDER_INBOX, "four");
+        Assert.assertEquals(0, mbox.index.getCachedResultCount());
+        Assert.assertEquals(3, searchInbox(mbox, DbSearch.FetchMode.ID).size());
+
+        // so does moving a message out of the inbox
+        mbox.move(null, first.get(0).getId(), MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_TRASH);
+        Assert.assertEquals(0, mbox.index.getCachedResultCount());
+        Assert.assertEquals(2, searchInbox(mbox, DbSearch.FetchMode.ID).size());
+    }
+
+    @Test
+    public void indexIds() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        deliver(mbox, Mailbox.ID_FOLDER_INBOX, "one");
+        searchInbox(mbox, DbSearch.FetchMode.ID);
+        Assert.assertEquals(1, mbox.index.getCachedResultCount());
+
+        // rewriting the index IDs doesn't take a change ID, but the cached rows hold the old ones
+        int changeId = mbox.getLastChangeID();
+        mbox.lock.lock();
+        try {
+            mbox.resetIndex();
+        } finally {
+            mbox.lock.release();
+        }
+        Assert.assertEquals(changeId, mbox.getLastChangeID());
+        Assert.assertEquals(0, mbox.index.getCachedResultCount());
+        Assert.assertEquals(1, searchInbox(mbox, DbSearch.FetchMode.ID).size());
+    }
+
+    @Test
+    public void items() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        deliver(mbox, Mailbox.ID_FOLDER_INBOX, "one");
+
+        MailItem item = searchInbox(mbox, DbSearch.FetchMode.MAIL_ITEM).get(0).getItem();
+        mbox.purge(MailItem.Type.MESSAGE);
+        MailItem cached = searchInbox(mbox, DbSearch.FetchMode.MAIL_ITEM).get(0).getItem();
+        Assert.assertEquals(item.getId(), cached.getId());
+        Assert.assertNotSame("cached item data is copied, not shared", item.getUnderlyingData(),
+                cached.getUnderlyingData());
+
+        int rounds = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            searchInbox(mbox, DbSearch.FetchMode.ID);
+        }
+        ZimbraLog.test.info("%d cached inbox searches: %dus", rounds, (System.nanoTime() - start) / 1000);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.calendar.ICalTimeZone;
+import com.zimbra.common.calendar.ParsedDateTime;
+import com.zimbra.common.calendar.TimeZoneMap;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ZRecur}.
+ */
+public final class ZRecurTest {
+
+    private static final ICalTimeZone EASTERN = new ICalTimeZone("America/New_York",
+            -5 * (int) Constants.MILLIS_PER_HOUR, "16010101T020000",
+            "FREQ=YEARLY;WKST=MO;INTERVAL=1;BYMONTH=11;BYDAY=1SU", "EST",
+            -4 * (int) Constants.MILLIS_PER_HOUR, "16010101T020000",
+            "FREQ=YEARLY;WKST=MO;INTERVAL=1;BYMONTH=3;BYDAY=2SU", "EDT");
+
+    private static final String[] RULES = {
+        "FREQ=DAILY",
+        "FREQ=DAILY;INTERVAL=3;BYHOUR=9,15",
+        "FREQ=DAILY;BYDAY=MO,TU,WE,TH,FR",
+        "FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE,FR",
+        "FREQ=MONTHLY;BYDAY=2TU",
+        "FREQ=MONTHLY;INTERVAL=5",
+        "FREQ=YEARLY;BYMONTH=3,9",
+        "FREQ=DAILY;COUNT=500",
+        "FREQ=WEEKLY;COUNT=60;BYDAY=TU,TH",
+    };
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    /**
+     * Expanding a later range resumes from checkpoints and skips whole intervals; the result must not differ from
+     * expanding everything from DTSTART.
+     */
+    @Test
+    public void expandOverRange() throws Exception {
+        for (ICalTimeZone tz : new ICalTimeZone[] { ICalTimeZone.getUTC(), EASTERN }) {
+            TimeZoneMap tzmap = new TimeZoneMap(tz);
+            ParsedDateTime dtStart = ParsedDateTime.parse("20230131T103000", tzmap, tz, tz);
+            long[][] ranges = {
+                { time(2024, 3, 1, tz), time(2024, 4, 1, tz) },
+                { time(2024, 9, 15, tz), time(2024, 11, 20, tz) },
+                { time(2024, 1, 1, tz), time(2024, 2, 1, tz) },
+                { time(2024, 10, 1, tz), time(2024, 10, 8, tz) },
+            };
+            for (String rule : RULES) {
+                ZRecur recur = new ZRecur(rule, tzmap);
+                for (long[] range : ranges) {
+                    List<Date> expected = new ArrayList<Date>();
+                    for (Date date : new ZRecur(rule, tzmap).expandRecurrenceOverRange(
+                            dtStart, dtStart.getUtcTime(), range[1])) {
+                        if (date.getTime() >= range[0]) {
+                            expected.add(date);
+                        }
+                    }
+                    Assert.assertEquals(rule + " " + tz.getID(), expected,
+                            recur.expandRecurrenceOverRange(dtStart, range[0], range[1]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        TimeZoneMap tzmap = new TimeZoneMap(EASTERN);
+        ParsedDateTime dtStart = ParsedDateTime.parse("20090105T090000", tzmap, EASTERN, EASTERN);
+        long start = time(2026, 10, 1, EASTERN);
+        long end = time(2026, 11, 1, EASTERN);
+        for (String rule : new String[] { "FREQ=DAILY", "FREQ=WEEKLY;BYDAY=MO,WE,FR", "FREQ=DAILY;COUNT=10000" }) {
+            ZRecur recur = new ZRecur(rule, tzmap);
+            Assert.assertFalse(recur.expandRecurrenceOverRange(dtStart, start, end).isEmpty());
+            long t0 = System.nanoTime();
+            for (int i = 0; i < 1000; i++) {
+                recur.expandRecurrenceOverRange(dtStart, start, end);
+            }
+            ZimbraLog.test.info("%s: %dus per expansion of a month in 2026 from a 2009 DTSTART", rule,
+                    (System.nanoTime() - t0) / 1000 / 1000);
+        }
+    }
+
+    private static long time(int year, int month, int day, ICalTimeZone tz) throws Exception {
+        String str = String.format("%04d%02d%02dT000000", year, month, day);
+        return ParsedDateTime.parse(str, new TimeZoneMap(tz), tz, tz).getUtcTime();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.Iterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+public final class CalendarDataTest {
+    private static final long HOUR = 3600 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    private static CalendarItemData item(int id, long... starts) {
+        FullInstanceData defaultData = new FullInstanceData(null, starts[0], HOUR, 0, 0, null, null, null, 1, 0,
+                0, 0, 0, null, null, null, null, null, null, null, "appt " + id, null, null, null, null, null,
+                null, null, null, null, null, null, null, null);
+        CalendarItemData calItemData = new CalendarItemData(MailItem.Type.APPOINTMENT, 10, id, "", new String[0], "",
+                1, 1, 0, 0, 0, "uid-" + id, starts.length > 1, false, true, null, defaultData);
+        for (long start : starts) {
+            calItemData.addInstance(new InstanceData(null, start, HOUR, null, null, null, null, null));
+        }
+        calItemData.setActualRange(starts[0], starts[starts.length - 1] + HOUR);
+        return calItemData;
+    }
+
+    @Test
+    public void merge() {
+        // Item 1 recurs daily across both ranges, item 2 is only in the first and item 3 only in the second.
+        CalendarData first = new CalendarData(10, 5, 0, 7 * DAY);
+        first.addCalendarItem(item(1, 0, DAY, 6 * DAY));
+        first.addCalendarItem(item(2, 2 * DAY));
+        CalendarData second = new CalendarData(10, 5, 7 * DAY, 14 * DAY);
+        second.addCalendarItem(item(1, 7 * DAY, 8 * DAY));
+        second.addCalendarItem(item(3, 9 * DAY));
+        second.markItemStale(3);
+
+        CalendarData merged = second.merge(first);
+        Assert.assertEquals(0, merged.getRangeStart());
+        Assert.assertEquals(14 * DAY, merged.getRangeEnd());
+        Assert.assertEquals(5, merged.getModSeq());
+        Assert.assertEquals(3, merged.getNumItems());
+        Assert.assertTrue(merged.isItemStale(3));
+        Assert.assertEquals(3 + 7, merged.getWeight());
+
+        CalendarItemData recurring = merged.getCalendarItemData(1);
+        Assert.assertEquals(5, recurring.getNumInstances());
+        Assert.assertEquals(0, recurring.getActualRangeStart());
+        Assert.assertEquals(8 * DAY + HOUR, recurring.getActualRangeEnd());
+        long last = -1;
+        for (Iterator<InstanceData> iter = recurring.instanceIterator(); iter.hasNext(); ) {
+            long start = iter.next().getDtStart();
+            Assert.assertTrue("instances are in order", start > last);
+            last = start;
+        }
+
+        // The merged data answers sub-range requests spanning the old boundary.
+        CalendarData sub = merged.getSubRange(5 * DAY, 10 * DAY);
+        Assert.assertEquals(3, sub.getNumItems());
+        Assert.assertEquals(3, sub.getCalendarItemData(1).getNumInstances());
+    }
+
+    @Test
+    public void publishing() {
+        CalendarData calData = new CalendarData(10, 5, 0, 7 * DAY);
+        Assert.assertTrue(calData.needsPublishing(1000, 60000));
+        calData.setPublished(1000);
+        Assert.assertFalse(calData.needsPublishing(2000, 60000));
+        // republished once memcached may have evicted it
+        Assert.assertTrue(calData.needsPublishing(61000, 60000));
+        // and right away once memcached dropped it
+        calData.setPublished(61000);
+        calData.clearPublished();
+        Assert.assertTrue(calData.needsPublishing(62000, 60000));
+    }
+}
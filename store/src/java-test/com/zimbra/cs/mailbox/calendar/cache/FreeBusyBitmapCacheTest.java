@@ -0,0 +1,49 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+
+public final class FreeBusyBitmapCacheTest {
+    private static final String ACCOUNT = "11111111-1111-1111-1111-111111111111";
+
+    @Test
+    public void modSeqMismatch() {
+        FreeBusyBitmapCache cache = new FreeBusyBitmapCache(10, 31);
+        long day = 20000;
+        long[] bitmap = FreeBusyBitmapCache.newBitmap();
+        FreeBusyBitmapCache.mark(bitmap, day, IcalXmlStrMap.FBTYPE_BUSY, FreeBusyBitmapCache.getDayStart(day),
+                FreeBusyBitmapCache.getDayStart(day) + FreeBusyBitmapCache.SLOT_MSEC);
+        long sequence = cache.getSequence(ACCOUNT);
+        cache.put(ACCOUNT, 10, 5, day, new long[][] { bitmap }, sequence);
+        Assert.assertSame(bitmap, cache.get(ACCOUNT, 10, 5, day));
+
+        // the folder changed without a notification reaching the cache
+        Assert.assertNull(cache.get(ACCOUNT, 10, 6, day));
+        Assert.assertNull("dropped, not kept for the old modseq", cache.get(ACCOUNT, 10, 5, day));
+
+        // bitmaps built at the new modseq replace the old ones
+        cache.put(ACCOUNT, 10, 5, day, new long[][] { bitmap }, sequence);
+        long[] rebuilt = FreeBusyBitmapCache.newBitmap();
+        cache.put(ACCOUNT, 10, 6, day + 1, new long[][] { rebuilt }, sequence);
+        Assert.assertNull(cache.get(ACCOUNT, 10, 6, day));
+        Assert.assertSame(rebuilt, cache.get(ACCOUNT, 10, 6, day + 1));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RedoLogProvider;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.SetActiveSyncDisabled;
+
+/**
+ * Unit test for {@link GroupCommitLogWriter}.
+ */
+public final class GroupCommitLogWriterTest {
+
+    private File logFile;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logFile = new File("build/test/redo/groupcommit.log");
+        logFile.getParentFile().mkdirs();
+        logFile.delete();
+    }
+
+    private static RedoLogManager getRedoLogManager() {
+        return RedoLogProvider.getInstance().getRedoLogManager();
+    }
+
+    private static RedoableOp newChangeOp(int mboxId, RedoCommitCallback callback) {
+        RedoableOp op = new SetActiveSyncDisabled(mboxId, Mailbox.ID_FOLDER_INBOX, true);
+        op.setCommitCallback(callback);
+        op.start(System.currentTimeMillis());
+        return op;
+    }
+
+    private static int countOps(File file) throws Exception {
+        FileLogReader reader = new FileLogReader(file);
+        reader.open();
+        try {
+            int count = 0;
+            while (reader.getNextOp() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Logs a change entry and its commit record from each of {@code numThreads} threads and
+     * returns the elapsed time in milliseconds.
+     */
+    private static long logConcurrently(final LogWriter writer, int numThreads, final int txnsPerThread,
+            final AtomicInteger callbacks, final AtomicInteger errors) throws Exception {
+        List<Thread> threads = new ArrayList<Thread>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final int mboxId = i + 1;
+            threads.add(new Thread("GroupCommitLogWriterTest-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < txnsPerThread; j++) {
+                            final AtomicInteger done = new AtomicInteger();
+                            RedoableOp op = newChangeOp(mboxId, new RedoCommitCallback() {
+                                @Override
+                                public void callback(CommitId cid) {
+                                    done.incrementAndGet();
+                                    callbacks.incrementAndGet();
+                                }
+                            });
+                            writer.log(op, op.getInputStream(), false);
+                            CommitTxn commit = new CommitTxn(op);
+                            writer.log(commit, commit.getInputStream(), true);
+                            // the commit record is on disk, so its callback must have been made
+                            if (done.get() != 1) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        ZimbraLog.test.error("error logging redo entries", e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void concurrentCommits() throws Exception {
+        GroupCommitLogWriter writer = new GroupCommitLogWriter(getRedoLogManager(), logFile, 10);
+        writer.open();
+        AtomicInteger callbacks = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        logConcurrently(writer, 16, 25, callbacks, errors);
+        writer.close();
+
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(16 * 25, callbacks.get());
+        Assert.assertEquals(16 * 25 * 2, countOps(logFile));
+        Assert.assertEquals(logFile.length(), writer.getSize());
+    }
+
+    @Test
+    public void closeWritesBufferedEntries() throws Exception {
+        GroupCommitLogWriter writer = new GroupCommitLogWriter(getRedoLogManager(), logFile, 10);
+        writer.open();
+        for (int i = 0; i < 10; i++) {
+            RedoableOp op = newChangeOp(1, null);
+            writer.log(op, op.getInputStream(), false);
+        }
+        Assert.assertFalse(writer.isEmpty());
+        writer.close();
+
+        Assert.assertEquals(10, countOps(logFile));
+    }
+
+    @Test
+    public void asyncCommitFlushedWhenIdle() throws Exception {
+        GroupCommitLogWriter writer = new GroupCommitLogWriter(getRedoLogManager(), logFile, 10);
+        writer.open();
+        final CountDownLatch done = new CountDownLatch(1);
+        RedoableOp op = newChangeOp(1, new RedoCommitCallback() {
+            @Override
+            public void callback(CommitId cid) {
+                done.countDown();
+            }
+        });
+        writer.log(op, op.getInputStream(), false);
+        CommitTxn commit = new CommitTxn(op);
+        writer.log(commit, commit.getInputStream(), false);
+        // nothing else is logged, so the linger thread has to flush the commit record
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        Assert.assertEquals(2, countOps(logFile));
+    }
+
+    @Test
+    public void logAfterClose() throws Exception {
+        GroupCommitLogWriter writer = new GroupCommitLogWriter(getRedoLogManager(), logFile, 10);
+        writer.open();
+        writer.close();
+        RedoableOp op = newChangeOp(1, null);
+        try {
+            writer.log(op, op.getInputStream(), true);
+            Assert.fail("log should fail on a closed writer");
+        } catch (java.io.IOException expected) {
+        }
+    }
+
+    /**
+     * Compares commit throughput with {@link FileLogWriter} from 1 to 64 concurrent writers.
+     */
+    @Test
+    public void compareWithFileLogWriter() throws Exception {
+        for (int numThreads : new int[] { 1, 4, 16, 64 }) {
+            AtomicInteger errors = new AtomicInteger();
+
+            logFile.delete();
+            FileLogWriter fileWriter = new FileLogWriter(getRedoLogManager(), logFile, 10);
+            fileWriter.open();
+            long fileMs = logConcurrently(fileWriter, numThreads, 10, new AtomicInteger(), errors);
+            fileWriter.close();
+
+            logFile.delete();
+            GroupCommitLogWriter groupWriter = new GroupCommitLogWriter(getRedoLogManager(), logFile, 10);
+            groupWriter.open();
+            long groupMs = logConcurrently(groupWriter, numThreads, 10, new AtomicInteger(), errors);
+            groupWriter.close();
+
+            Assert.assertEquals(0, errors.get());
+            Assert.assertEquals(numThreads * 10 * 2, countOps(logFile));
+            ZimbraLog.test.info("%d writers: FileLogWriter %dms, GroupCommitLogWriter %dms",
+                    numThreads, fileMs, groupMs);
+        }
+    }
+}
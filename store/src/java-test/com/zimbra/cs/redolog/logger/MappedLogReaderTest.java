@@ -0,0 +1,135 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogProvider;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.SetActiveSyncDisabled;
+
+/**
+ * Unit test for {@link MappedLogReader}.
+ */
+public final class MappedLogReaderTest {
+
+    private File logFile;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logFile = new File("build/test/redo/mapped.log");
+        logFile.getParentFile().mkdirs();
+        logFile.delete();
+
+        FileLogWriter writer = new FileLogWriter(RedoLogProvider.getInstance().getRedoLogManager(), logFile, 10);
+        writer.open();
+        for (int i = 1; i <= 20; i++) {
+            RedoableOp op = new SetActiveSyncDisabled(i, Mailbox.ID_FOLDER_INBOX, i % 2 == 0);
+            op.start(System.currentTimeMillis());
+            writer.log(op, op.getInputStream(), false);
+            CommitTxn commit = new CommitTxn(op);
+            writer.log(commit, commit.getInputStream(), true);
+        }
+        writer.close();
+    }
+
+    private List<String> readOps(FileLogReader reader) throws Exception {
+        List<String> ops = new ArrayList<String>();
+        reader.open();
+        try {
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                ops.add(op.toString());
+                Assert.assertEquals(reader.getSize(), logFile.length());
+            }
+            Assert.assertEquals(logFile.length(), reader.position());
+        } finally {
+            reader.close();
+        }
+        return ops;
+    }
+
+    @Test
+    public void sameOpsAsFileLogReader() throws Exception {
+        List<String> expected = readOps(new FileLogReader(logFile));
+        Assert.assertEquals(40, expected.size());
+        Assert.assertEquals(expected, readOps(new MappedLogReader(logFile)));
+        Assert.assertEquals(new FileLogReader(logFile).getHeader().getSequence(),
+                new MappedLogReader(logFile).getHeader().getSequence());
+    }
+
+    @Test
+    public void skipBadBytes() throws Exception {
+        // Overwrite the magic marker of the first op.  The reader should resume at the next op.
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.seek(FileHeader.HEADER_LEN);
+            raf.write("XXXXXX".getBytes());
+        } finally {
+            raf.close();
+        }
+        Assert.assertEquals(39, readOps(new MappedLogReader(logFile)).size());
+    }
+
+    @Test
+    public void truncateJunk() throws Exception {
+        long size = logFile.length();
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+
+        MappedLogReader reader = new MappedLogReader(logFile, true);
+        reader.open();
+        try {
+            int count = 0;
+            try {
+                while (reader.getNextOp() != null) {
+                    count++;
+                }
+                Assert.fail("junk at the end of the log should fail to parse");
+            } catch (IOException expected) {
+            }
+            Assert.assertEquals(40, count);
+            Assert.assertEquals(size, reader.position());
+            reader.truncate(reader.position());
+        } finally {
+            reader.close();
+        }
+        Assert.assertEquals(size, logFile.length());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.stats.StopWatch;
+
+public final class FairRequestExecutorTest {
+
+    private static final class Request implements Runnable {
+        final String lane;
+        final String group;
+        final int cost;
+        final Runnable body;
+
+        Request(String lane, String group, int cost, Runnable body) {
+            this.lane = lane;
+            this.group = group;
+            this.cost = cost;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+    }
+
+    private static final FairRequestExecutor.Classifier CLASSIFIER = new FairRequestExecutor.Classifier() {
+        @Override
+        public Object getLane(Runnable task) {
+            return ((Request) task).lane;
+        }
+
+        @Override
+        public Object getGroup(Runnable task) {
+            return ((Request) task).group;
+        }
+
+        @Override
+        public int getCost(Runnable task) {
+            return ((Request) task).cost;
+        }
+    };
+
+    private static FairRequestExecutor newExecutor(int maxThreads) {
+        return new FairRequestExecutor(maxThreads, 60, Executors.defaultThreadFactory(), new StopWatch(), CLASSIFIER);
+    }
+
+    @Test
+    public void laneOrder() throws Exception {
+        FairRequestExecutor executor = newExecutor(8);
+        final List<Integer> order = Collections.synchronizedList(Lists.<Integer>newArrayList());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            final int seq = i;
+            executor.execute(new Request("conn", "acct", 1, new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    order.add(seq);
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(1000, order.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void lightGroupNotStarved() throws Exception {
+        FairRequestExecutor executor = newExecutor(1);
+        CountDownLatch release = block(executor);
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        for (int i = 0; i < 20; i++) {
+            executor.execute(new Request("heavy" + (i % 5), "heavy", 8, record(order, "heavy")));
+        }
+        executor.execute(new Request("light", "light", 1, record(order, "light")));
+        Assert.assertEquals(21, executor.getQueueSize());
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(21, order.size());
+        Assert.assertTrue("light request ran at " + order.indexOf("light"), order.indexOf("light") <= 1);
+        Assert.assertEquals(0, executor.getQueueSize());
+    }
+
+    /**
+     * Occupies the only thread of the executor until the returned latch is counted down.
+     */
+    private static CountDownLatch block(FairRequestExecutor executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Request("blocker", "blocker", 1, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        }));
+        started.await();
+        return release;
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void costShare() throws Exception {
+        // Two groups always ready; the one issuing requests 4 times as expensive gets a quarter of the turns.
+        FairRequestExecutor executor = newExecutor(1);
+        CountDownLatch release = block(executor);
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        for (int i = 0; i < 40; i++) {
+            executor.execute(new Request("cheap" + (i % 4), "cheap", 1, record(order, "cheap")));
+            executor.execute(new Request("dear" + (i % 4), "dear", 4, record(order, "dear")));
+        }
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        int dear = Collections.frequency(order.subList(0, 40), "dear");
+        Assert.assertTrue("dear requests in first 40: " + dear, dear >= 7 && dear <= 9);
+    }
+}
@@ -29,6 +29,7 @@ import javax.mail.Address;
 import javax.mail.internet.MimeMessage;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -204,6 +205,18 @@ public class GetMsgTest {
 
     }
 
+    @Test
+    public void parallelBatchSafe() throws Exception {
+        Element request = new Element.XMLElement(MailConstants.GET_MSG_REQUEST);
+        Element msg = request.addElement(MailConstants.E_MSG);
+        msg.addAttribute(MailConstants.A_ID, "257");
+        Assert.assertTrue(new GetMsg().isParallelBatchSafe(request));
+
+        // marking the message read is a change, so it has to stay sequential
+        msg.addAttribute(MailConstants.A_MARK_READ, "1");
+        Assert.assertFalse(new GetMsg().isParallelBatchSafe(request));
+    }
+
     private static final String desc = "The following is a new meeting " +
         "request";
 
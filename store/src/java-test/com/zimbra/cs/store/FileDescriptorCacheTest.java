@@ -26,6 +26,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -110,18 +112,83 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
 
         fdc.read(file3.getPath(), content3.length(), 0, buf, 0, buf.length);
+        fdc.waitForPendingCloses();
         assertTrue(uc.containsDigest(digest1));
         assertTrue(uc.containsDigest(digest3));
         assertFalse(uc.containsDigest(digest4));
         assertEquals(2, fdc.getSize());
 
         fdc.read(file4.getPath(), content4.length(), 0, buf, 0, buf.length);
+        fdc.waitForPendingCloses();
         assertFalse(uc.containsDigest(digest1));
         assertTrue(uc.containsDigest(digest3));
         assertTrue(uc.containsDigest(digest4));
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void concurrentReads()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        final FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        fdc.setMaxSize(3);
+
+        final int numFiles = 8;
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < numFiles; i++) {
+            File file = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(file);
+            byte[] content = new byte[1024];
+            for (int j = 0; j < content.length; j++) {
+                content[j] = (byte) (i + j);
+            }
+            Files.write(content, file);
+            files.add(file);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    byte[] buf = new byte[16];
+                    try {
+                        for (int n = 0; n < 500; n++) {
+                            int i = random.nextInt(numFiles);
+                            int offset = random.nextInt(1024 - buf.length);
+                            File file = files.get(i);
+                            int numRead = fdc.read(file.getPath(), file.length(), offset, buf, 0, buf.length);
+                            assertEquals(buf.length, numRead);
+                            for (int j = 0; j < buf.length; j++) {
+                                assertEquals((byte) (i + offset + j), buf[j]);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        fdc.waitForPendingCloses();
+        assertEquals(3, fdc.getSize());
+        assertEquals("evicted descriptors are closed", fdc.getSize(), fdc.getOpenCount());
+
+        fdc.shutdown();
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getOpenCount());
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
@@ -0,0 +1,227 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.stats.StatsDumperDataSource;
+
+public final class TimingWheelTest {
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel("TimingWheelTest", 10, 64, 2);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void oneShot() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        wheel.schedule("oneShot", countDown(latch), 50);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+        // beyond one revolution of the wheel
+        latch = new CountDownLatch(1);
+        start = System.currentTimeMillis();
+        wheel.schedule("oneShot", countDown(latch), 1000);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+        // metrics are recorded just after the task returns
+        for (int i = 0; i < 100 && wheel.getTaskStats().get("oneShot").getRuns() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, wheel.getTaskStats().get("oneShot").getRuns());
+        Assert.assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void cancelAndReschedule() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule("cancel", countDown(cancelled), 50);
+        Assert.assertTrue(timeout.cancel());
+        Assert.assertFalse(timeout.cancel());
+        Assert.assertFalse(timeout.reschedule(10));
+        Assert.assertTrue(timeout.isCancelled());
+
+        CountDownLatch pushedBack = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        timeout = wheel.schedule("reschedule", countDown(pushedBack), 50);
+        Assert.assertTrue(timeout.reschedule(300));
+        Assert.assertFalse(pushedBack.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(pushedBack.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+        Assert.assertFalse(cancelled.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void periodic() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(5);
+        TimingWheel.Timeout timeout = wheel.schedule("periodic", new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                latch.countDown();
+            }
+        }, 20, 20);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(timeout.cancel());
+        int count = runs.get();
+        Thread.sleep(100);
+        Assert.assertEquals(count, runs.get());
+        Assert.assertEquals(count, wheel.getTaskStats().get("periodic").getRuns());
+    }
+
+    @Test
+    public void slowTaskDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        wheel.schedule("slow", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        }, 10, 10);
+        CountDownLatch fast = new CountDownLatch(3);
+        wheel.schedule("fast", countDown(fast), 20, 20);
+        try {
+            Assert.assertTrue(fast.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        // the slow task overran its 10ms period
+        for (int i = 0; i < 100 && wheel.getTaskStats().get("slow").getOverruns() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, wheel.getTaskStats().get("slow").getOverruns());
+    }
+
+    @Test
+    public void cancelWhileQueued() throws Exception {
+        TimingWheel single = new TimingWheel("TimingWheelTest-single", 10, 64, 0);  // clamped to 1 thread
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            single.schedule("busy", new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }, 0);
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            // due, but stuck behind the busy task
+            final AtomicInteger runs = new AtomicInteger();
+            TimingWheel.Timeout queued = single.schedule("queued", new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            }, 0);
+            Assert.assertTrue(queued.cancel());
+            CountDownLatch after = new CountDownLatch(1);
+            single.schedule("after", countDown(after), 0);
+            release.countDown();
+            Assert.assertTrue(after.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, runs.get());
+            Assert.assertTrue(queued.isCancelled());
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void serialExecutor() throws Exception {
+        Executor serial = wheel.newSerialExecutor("serial");
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            final int n = i;
+            serial.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    try {
+                        Thread.sleep(n % 2 == 0 ? 5 : 0);
+                    } catch (InterruptedException e) {
+                    }
+                    order.add(n);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, overlaps.get());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void statsDumper() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        wheel.schedule("dumped", countDown(latch), 0);
+        wheel.schedule("dumped", countDown(latch), 10);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && wheel.getTaskStats().get("dumped").getRuns() < 2; i++) {
+            Thread.sleep(10);
+        }
+        StatsDumperDataSource dumper = wheel.getStatsDumperDataSource("timers.csv");
+        Collection<String> lines = dumper.getDataLines();
+        Assert.assertEquals(1, lines.size());
+        Assert.assertTrue(lines.iterator().next(), lines.iterator().next().startsWith("dumped,2,"));
+        // only the runs since the last dump are written
+        Assert.assertTrue(dumper.getDataLines().isEmpty());
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.zookeeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Unit test for {@link DistributedReadWriteLock} against an in-process ZooKeeper server.  Each
+ * {@link CuratorFramework} client stands in for one server of the cluster.
+ */
+public final class DistributedReadWriteLockTest {
+
+    private static final String PATH = "/locks/rw/test";
+
+    private TestingServer zk;
+    private CuratorFramework client1;
+    private CuratorFramework client2;
+
+    @Before
+    public void setUp() throws Exception {
+        zk = new TestingServer();
+        client1 = newClient();
+        client2 = newClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client1.close();
+        client2.close();
+        zk.close();
+    }
+
+    private CuratorFramework newClient() {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(zk.getConnectString(), new RetryOneTime(100));
+        client.start();
+        return client;
+    }
+
+    @Test
+    public void readersShare() throws Exception {
+        DistributedReadWriteLock lock1 = new DistributedReadWriteLock(client1, PATH, 0);
+        DistributedReadWriteLock lock2 = new DistributedReadWriteLock(client2, PATH, 0);
+        Assert.assertTrue(lock1.acquire(false, 1, TimeUnit.SECONDS));
+        Assert.assertTrue(lock2.acquire(false, 1, TimeUnit.SECONDS));
+        lock1.release();
+        lock2.release();
+        Assert.assertTrue(client1.getChildren().forPath(PATH).isEmpty());
+    }
+
+    @Test
+    public void writerExcludes() throws Exception {
+        DistributedReadWriteLock lock1 = new DistributedReadWriteLock(client1, PATH, 0);
+        DistributedReadWriteLock lock2 = new DistributedReadWriteLock(client2, PATH, 0);
+        Assert.assertTrue(lock1.acquire(true, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(lock2.acquire(false, 200, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(lock2.acquire(true, 200, TimeUnit.MILLISECONDS));
+        lock1.release();
+        Assert.assertTrue(lock2.acquire(true, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(lock1.acquire(false, 200, TimeUnit.MILLISECONDS));
+        lock2.release();
+        // timed out attempts must not leave nodes behind
+        Assert.assertTrue(client1.getChildren().forPath(PATH).isEmpty());
+    }
+
+    @Test
+    public void readerBlocksWriter() throws Exception {
+        DistributedReadWriteLock lock1 = new DistributedReadWriteLock(client1, PATH, 0);
+        DistributedReadWriteLock lock2 = new DistributedReadWriteLock(client2, PATH, 0);
+        Assert.assertTrue(lock1.acquire(false, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(lock2.acquire(true, 200, TimeUnit.MILLISECONDS));
+        lock1.release();
+        Assert.assertTrue(lock2.acquire(true, 1, TimeUnit.SECONDS));
+        lock2.release();
+    }
+
+    @Test
+    public void leaseSkipsZooKeeper() throws Exception {
+        DistributedReadWriteLock lock1 = new DistributedReadWriteLock(client1, PATH, 60000);
+        Assert.assertTrue(lock1.acquire(false, 1, TimeUnit.SECONDS));
+        String node = lock1.getNodePath();
+        lock1.release();
+        // the node is kept for the lease and reused, by readers on this server
+        Assert.assertTrue(lock1.acquire(false, 1, TimeUnit.SECONDS));
+        Assert.assertTrue(lock1.acquire(false, 1, TimeUnit.SECONDS));
+        Assert.assertEquals(node, lock1.getNodePath());
+        lock1.release();
+        lock1.release();
+        // upgrading to write replaces the node
+        Assert.assertTrue(lock1.acquire(true, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(node.equals(lock1.getNodePath()));
+        lock1.release();
+        // a write node covers readers
+        node = lock1.getNodePath();
+        Assert.assertTrue(lock1.acquire(false, 1, TimeUnit.SECONDS));
+        Assert.assertEquals(node, lock1.getNodePath());
+        lock1.release();
+        Assert.assertEquals(1, client1.getChildren().forPath(PATH).size());
+    }
+
+    @Test
+    public void leaseExpires() throws Exception {
+        DistributedReadWriteLock lock1 = new DistributedReadWriteLock(client1, PATH, 100);
+        DistributedReadWriteLock lock2 = new DistributedReadWriteLock(client2, PATH, 100);
+        Assert.assertTrue(lock1.acquire(true, 1, TimeUnit.SECONDS));
+        lock1.release();
+        Assert.assertNotNull(lock1.getNodePath());
+        // the other server gets in once the lease runs out
+        Assert.assertTrue(lock2.acquire(true, 5, TimeUnit.SECONDS));
+        Assert.assertNull(lock1.getNodePath());
+        lock2.release();
+    }
+
+    @Test
+    public void waitersStopReuse() throws Exception {
+        final DistributedReadWriteLock lock1 = new DistributedReadWriteLock(client1, PATH, 60000);
+        final DistributedReadWriteLock lock2 = new DistributedReadWriteLock(client2, PATH, 60000);
+        Assert.assertTrue(lock1.acquire(true, 1, TimeUnit.SECONDS));
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread waiter = new Thread("DistributedReadWriteLockTest-waiter") {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(lock2.acquire(true, 10, TimeUnit.SECONDS));
+                } catch (Exception e) {
+                    ZimbraLog.test.error("error locking", e);
+                }
+            }
+        };
+        waiter.start();
+        for (int i = 0; i < 100 && !lock1.isContended(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(lock1.isContended());
+        // the other server is queued, so local threads no longer share our node
+        Assert.assertFalse(lock1.acquire(false, 200, TimeUnit.MILLISECONDS));
+        // and it goes away on release instead of being kept for the lease
+        lock1.release();
+        Assert.assertNull(lock1.getNodePath());
+        waiter.join(10000);
+        Assert.assertTrue(acquired.get());
+        lock2.release();
+        // lock2's leased node is given up as soon as we queue behind it
+        Assert.assertTrue(lock1.acquire(false, 5, TimeUnit.SECONDS));
+        Assert.assertNull(lock2.getNodePath());
+        lock1.release();
+    }
+
+    /**
+     * Read-heavy workload: each thread takes the read lock and occasionally the write lock, with and without a lease.
+     * As in {@code MailboxLock}, threads first take a local read/write lock.
+     */
+    @Test
+    public void readHeavyBenchmark() throws Exception {
+        for (long lease : new long[] { 0, 500 }) {
+            long elapsed = runWorkload(new DistributedReadWriteLock(client1, PATH, lease), 8, 200);
+            ZimbraLog.test.info("read-heavy workload with %dms lease: %dms", lease, elapsed);
+        }
+    }
+
+    private long runWorkload(final DistributedReadWriteLock lock, int numThreads, final int iterations)
+            throws Exception {
+        final ReentrantReadWriteLock localLock = new ReentrantReadWriteLock();
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            threads.add(new Thread("DistributedReadWriteLockTest-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < iterations; j++) {
+                            boolean write = j % 20 == 0;
+                            Lock local = write ? localLock.writeLock() : localLock.readLock();
+                            local.lock();
+                            try {
+                                if (lock.acquire(write, 10, TimeUnit.SECONDS)) {
+                                    lock.release();
+                                } else {
+                                    errors.incrementAndGet();
+                                }
+                            } finally {
+                                local.unlock();
+                            }
+                        }
+                    } catch (Exception e) {
+                        ZimbraLog.test.error("error locking", e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertEquals(0, errors.get());
+        return elapsed;
+    }
+}
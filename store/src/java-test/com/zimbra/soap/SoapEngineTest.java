@@ -0,0 +1,231 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.QName;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.service.AuthProvider;
+
+/**
+ * Unit test for parallel <tt>BatchRequest</tt> dispatch in {@link SoapEngine}.
+ */
+public final class SoapEngineTest {
+    private static final QName ECHO_REQUEST = QName.get("EchoRequest", MailConstants.NAMESPACE);
+
+    private final Map<String, Thread> threads = new ConcurrentHashMap<String, Thread>();
+    private final Map<String, AuthToken> tokens = new ConcurrentHashMap<String, AuthToken>();
+    private SoapEngine engine;
+    private ZimbraSoapContext zsc;
+    private Map<String, Object> context;
+
+    /**
+     * Answers with the value of its <tt>v</tt> attribute, after sleeping for <tt>sleep</tt> ms.
+     * Fails if <tt>fail</tt> is set.
+     */
+    private final class EchoHandler extends DocumentHandler {
+        @Override
+        public boolean needsAuth(Map<String, Object> context) {
+            return false;
+        }
+
+        @Override
+        public boolean isParallelBatchSafe(Element request) {
+            return true;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            ZimbraSoapContext zsc = getZimbraSoapContext(context);
+            String v = request.getAttribute("v");
+            threads.put(v, Thread.currentThread());
+            tokens.put(v, zsc.getAuthToken());
+            try {
+                Thread.sleep(request.getAttributeLong("sleep", 0));
+            } catch (InterruptedException e) {
+            }
+            if (request.getAttributeBool("fail", false)) {
+                throw ServiceException.FAILURE("failed " + v, null);
+            }
+            return getResponseElement(zsc).addAttribute("v", v);
+        }
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", Maps.<String, Object>newHashMap());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new SoapEngine();
+        engine.getDocumentDispatcher().registerHandler(ECHO_REQUEST, new EchoHandler());
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        zsc = new ZimbraSoapContext(AuthProvider.getAuthToken(acct), acct.getId(),
+                SoapProtocol.Soap12, SoapProtocol.Soap12);
+        context = new HashMap<String, Object>();
+        context.put(SoapEngine.ZIMBRA_CONTEXT, zsc);
+        context.put(SoapEngine.ZIMBRA_ENGINE, engine);
+    }
+
+    private static Element batch(String onerror) {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        batch.addAttribute(ZimbraNamespace.A_PARALLEL, true);
+        if (onerror != null) {
+            batch.addAttribute(ZimbraNamespace.A_ONERROR, onerror);
+        }
+        return batch;
+    }
+
+    private static Element echo(Element batch, String v, long sleep) {
+        Element req = batch.addNonUniqueElement(ECHO_REQUEST);
+        req.addAttribute("v", v);
+        req.addAttribute("sleep", sleep);
+        req.addAttribute(SoapEngine.A_REQUEST_CORRELATOR, "id-" + v);
+        return req;
+    }
+
+    private List<Element> dispatch(Element batch) {
+        Element response = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
+        engine.dispatchBatch(batch, response, context, zsc, false, null);
+        return response.listElements();
+    }
+
+    @Test
+    public void requestOrder() throws Exception {
+        Element batch = batch(null);
+        // later requests finish first
+        for (int i = 0; i < 4; i++) {
+            echo(batch, Integer.toString(i), 200 - 50 * i);
+        }
+        List<Element> responses = dispatch(batch);
+        Assert.assertEquals(4, responses.size());
+        for (int i = 0; i < 4; i++) {
+            Element resp = responses.get(i);
+            Assert.assertEquals(Integer.toString(i), resp.getAttribute("v"));
+            Assert.assertEquals("id-" + i, resp.getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+        }
+
+        // proxying changes the token in the context, so every sub-request but the first has its own
+        Assert.assertSame(zsc.getAuthToken(), tokens.get("0"));
+        for (int i = 1; i < 4; i++) {
+            AuthToken token = tokens.get(Integer.toString(i));
+            Assert.assertNotSame(zsc.getAuthToken(), token);
+            Assert.assertEquals(zsc.getAuthToken().getAccountId(), token.getAccountId());
+            for (int j = 1; j < i; j++) {
+                Assert.assertNotSame(tokens.get(Integer.toString(j)), token);
+            }
+        }
+    }
+
+    @Test
+    public void faultContinues() throws Exception {
+        Element batch = batch("continue");
+        echo(batch, "0", 0);
+        echo(batch, "1", 50).addAttribute("fail", true);
+        echo(batch, "2", 0);
+        List<Element> responses = dispatch(batch);
+        Assert.assertEquals(3, responses.size());
+        Assert.assertEquals("0", responses.get(0).getAttribute("v"));
+        Assert.assertTrue(SoapProtocol.Soap12.isFault(responses.get(1)));
+        Assert.assertEquals("id-1", responses.get(1).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+        Assert.assertEquals("2", responses.get(2).getAttribute("v"));
+    }
+
+    @Test
+    public void faultStops() throws Exception {
+        Element batch = batch("stop");
+        echo(batch, "0", 0);
+        echo(batch, "1", 50).addAttribute("fail", true);
+        echo(batch, "2", 0);
+        List<Element> responses = dispatch(batch);
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals("0", responses.get(0).getAttribute("v"));
+        Assert.assertTrue(SoapProtocol.Soap12.isFault(responses.get(1)));
+        Assert.assertEquals("id-1", responses.get(1).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+
+        // nothing after the fault runs once the batch has stopped
+        threads.clear();
+        batch = batch("stop");
+        echo(batch, "0", 0).addAttribute("fail", true);
+        batch.addNonUniqueElement("NoOpRequest"); // not parallel-safe, so it would run on its own
+        echo(batch, "2", 0);
+        responses = dispatch(batch);
+        Assert.assertEquals(1, responses.size());
+        Assert.assertTrue(SoapProtocol.Soap12.isFault(responses.get(0)));
+        Assert.assertNull(threads.get("2"));
+    }
+
+    @Test
+    public void callerRunsWhenSaturated() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        try {
+            Assert.assertTrue(busy.await(5, TimeUnit.SECONDS));
+            engine.setBatchExecutor(executor);
+            Element batch = batch(null);
+            for (int i = 0; i < 3; i++) {
+                echo(batch, Integer.toString(i), 0);
+            }
+            List<Element> responses = dispatch(batch);
+            Assert.assertEquals(3, responses.size());
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(Integer.toString(i), responses.get(i).getAttribute("v"));
+                Assert.assertSame(Thread.currentThread(), threads.get(Integer.toString(i)));
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -93,6 +93,18 @@ public abstract class AuthToken {
         }
     }
 
+    /**
+     * Returns a copy of this token whose proxy auth token can be changed without affecting this
+     * one, or null if this kind of token can't be copied.
+     */
+    public AuthToken copy() {
+        try {
+            return (AuthToken) clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
     @Override
     public abstract String toString();
 
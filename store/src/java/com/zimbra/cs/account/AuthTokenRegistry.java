@@ -18,7 +18,6 @@ package com.zimbra.cs.account;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.zimbra.common.localconfig.LC;
@@ -34,7 +33,7 @@ import com.zimbra.soap.admin.message.RefreshRegisteredAuthTokensRequest;
  * @author gsolovyev
  * a registry of authtokens that have been deregistered (logged out) and need to be broadcasted to other servers.
  * This class implements storage of tokens as a queue limited in size by {@link LC#zimbra_deregistered_authtoken_queue_size}
- * and a {@link TimerTask} task responsible for broadcasting the queue to other servers.
+ * and a periodic task responsible for broadcasting the queue to other servers.
  * TODO: switch to using a global shared registry such as Redis or a subscription based notification mechanism such as RabbitMQ
  */
 public final class AuthTokenRegistry {
@@ -55,14 +54,14 @@ public final class AuthTokenRegistry {
     }
 
     /**
-     * starts up the {@link TimerTask} for broadcasting the queue to other servers
+     * starts up the periodic task for broadcasting the queue to other servers
      * @param interval
      */
     public static void startup(long interval) {
-        Zimbra.sTimer.schedule(new SendTokensTimerTask(), interval, interval);
+        Zimbra.sTimingWheel.schedule("AuthTokenBroadcast", new SendTokensTimerTask(), interval, interval);
     }
 
-    private static final class SendTokensTimerTask extends TimerTask {
+    private static final class SendTokensTimerTask implements Runnable {
 
         SendTokensTimerTask()  { }
 
@@ -23,52 +23,48 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 
-public class AccountCache implements IAccountCache {
-    
-    private Map<String, CacheEntry> mNameCache;
-    private Map<String, CacheEntry> mIdCache;
-    private Map<String, CacheEntry> mAliasCache;
-    private Map<String, CacheEntry> mForeignPrincipalCache;
-    private Counter mHitRate = new HitRateCounter();
-
-    private long mRefreshTTL;
-
-    static class CacheEntry {
-        long mLifetime;
-        Account mEntry;
-        CacheEntry(Account entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
 /**
- * @param maxItems
- * @param refreshTTL
+ * Lookups never block: each key space is a bounded concurrent map, and an entry that has gone
+ * stale is dropped with a conditional remove so a concurrent {@link #put} of a fresh copy wins.
  */
+public class AccountCache implements IAccountCache {
+
+    private final ConcurrentMap<String, CacheEntry<Account>> mNameCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mIdCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mAliasCache;
+    private final ConcurrentMap<String, CacheEntry<Account>> mForeignPrincipalCache;
+    private final Counter mHitRate = new HitRateCounter();
+
+    private final long mRefreshTTL;
+    private final int mRefreshAheadPercent;
+
     public AccountCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mAliasCache = MapUtil.newLruMap(maxItems); 
-        mForeignPrincipalCache = MapUtil.newLruMap(maxItems);  
-        
+        this(maxItems, refreshTTL, 0);
+    }
+
+    /**
+     * @param refreshAheadPercent once an entry is this far (in percent) into its TTL, one caller
+     *        gets a miss and reloads it while the others keep being served; 0 disables refresh-ahead
+     */
+    public AccountCache(int maxItems, long refreshTTL, int refreshAheadPercent) {
+        mNameCache = CacheEntry.newLruMap(maxItems);
+        mIdCache = CacheEntry.newLruMap(maxItems);
+        mAliasCache = CacheEntry.newLruMap(maxItems);
+        mForeignPrincipalCache = CacheEntry.newLruMap(maxItems);
+
         mRefreshTTL = refreshTTL;
+        mRefreshAheadPercent = refreshAheadPercent;
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         mNameCache.clear();
         mIdCache.clear();
         mAliasCache.clear();
@@ -76,72 +72,93 @@ public class AccountCache implements IAccountCache {
     }
 
     @Override
-    public synchronized void remove(Account entry) {
+    public void remove(Account entry) {
         if (entry != null) {
             mNameCache.remove(entry.getName());
             mIdCache.remove(entry.getId());
-            
-            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);            
+
+            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
             for (String alias : aliases) {
                 mAliasCache.remove(alias);
             }
-            
-            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);            
+
+            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
             for (String fp : fps) {
                 mForeignPrincipalCache.remove(fp);
             }
         }
     }
-    
+
+    /**
+     * Drops {@code ce} from every key space it was put under, leaving any newer entry alone.
+     */
+    private void removeStale(CacheEntry<Account> ce) {
+        Account entry = ce.mEntry;
+        CacheEntry.removeIfSame(mNameCache, entry.getName(), ce);
+        CacheEntry.removeIfSame(mIdCache, entry.getId(), ce);
+
+        for (String alias : entry.getMultiAttr(Provisioning.A_zimbraMailAlias)) {
+            CacheEntry.removeIfSame(mAliasCache, alias, ce);
+        }
+        for (String fp : entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal)) {
+            CacheEntry.removeIfSame(mForeignPrincipalCache, fp, ce);
+        }
+    }
+
     @Override
-    public synchronized void put(Account entry) {
+    public void put(Account entry) {
         if (entry != null) {
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+            CacheEntry<Account> cacheEntry = new CacheEntry<Account>(entry, mRefreshTTL, mRefreshAheadPercent);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
-            
-            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);            
+
+            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
             for (String alias : aliases) {
-                mAliasCache.put(alias, cacheEntry); 
+                mAliasCache.put(alias, cacheEntry);
             }
-            
-            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);            
+
+            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
             for (String fp : fps) {
-                mForeignPrincipalCache.put(fp, cacheEntry); 
+                mForeignPrincipalCache.put(fp, cacheEntry);
             }
         }
     }
-    
+
     @Override
-    public synchronized void replace(Account entry) {
+    public void replace(Account entry) {
         remove(entry);
         put(entry);
     }
 
-    private Account get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
+    private Account get(String key, ConcurrentMap<String, CacheEntry<Account>> cache) {
+        CacheEntry<Account> ce = key == null ? null : cache.get(key);
         if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+            if (mRefreshTTL != 0) {
+                long now = System.currentTimeMillis();
+                if (ce.isStale(now)) {
+                    removeStale(ce);
+                    mHitRate.increment(0);
+                    return null;
+                } else if (ce.claimRefresh(now)) {
+                    mHitRate.increment(0);
+                    return null;
+                }
             }
+            mHitRate.increment(100);
+            return ce.mEntry;
         } else {
             mHitRate.increment(0);
             return null;
         }
     }
-    
+
     @Override
-    public synchronized Account getById(String key) {
+    public Account getById(String key) {
         return get(key, mIdCache);
     }
-    
+
     @Override
-    public synchronized Account getByName(String key) {
+    public Account getByName(String key) {
         Account acct = get(key.toLowerCase(), mNameCache);
         if (acct != null) {
             return acct;
@@ -149,23 +166,22 @@ public class AccountCache implements IAccountCache {
             return get(key.toLowerCase(), mAliasCache);
         }
     }
-    
+
     @Override
-    public synchronized Account getByForeignPrincipal(String key) {
+    public Account getByForeignPrincipal(String key) {
         return get(key, mForeignPrincipalCache);
     }
-    
+
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public double getHitRate() {
+        return mHitRate.getAverage();
     }
 }
-
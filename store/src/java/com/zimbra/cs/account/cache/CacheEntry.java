@@ -0,0 +1,74 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * An entry in one of the provisioning entry caches.  The same instance is stored under each of
+ * the entry's keys (name, id, aliases, ...), so a stale entry can be dropped from every map with
+ * a conditional remove without clobbering a fresher entry another thread has just put.
+ */
+final class CacheEntry<E> {
+    final E mEntry;
+    private final long mLifetime;
+    private final long mRefreshAt;
+    private final AtomicBoolean mRefreshClaimed = new AtomicBoolean(false);
+
+    CacheEntry(E entry, long expires, int refreshAheadPercent) {
+        long now = System.currentTimeMillis();
+        mEntry = entry;
+        mLifetime = now + expires;
+        if (expires > 0 && refreshAheadPercent > 0 && refreshAheadPercent < 100) {
+            mRefreshAt = now + expires * refreshAheadPercent / 100;
+        } else {
+            mRefreshAt = Long.MAX_VALUE;
+        }
+    }
+
+    boolean isStale(long now) {
+        return mLifetime < now;
+    }
+
+    /**
+     * Returns true to exactly one caller once the entry is past its refresh-ahead point.  That
+     * caller is handed a cache miss so it reloads the entry from LDAP and puts it back; every other
+     * caller keeps getting this entry until it is replaced or goes stale.
+     */
+    boolean claimRefresh(long now) {
+        return now >= mRefreshAt && !mRefreshClaimed.get() && mRefreshClaimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Returns a bounded map that evicts in approximate LRU order without a global lock.
+     */
+    static <K, V> ConcurrentMap<K, V> newLruMap(int maxItems) {
+        return new ConcurrentLinkedHashMap.Builder<K, V>().maximumWeightedCapacity(maxItems).build();
+    }
+
+    /**
+     * Removes {@code key} only if it still maps to {@code ce}.
+     */
+    static <E> void removeIfSame(ConcurrentMap<String, CacheEntry<E>> cache, String key, CacheEntry<E> ce) {
+        if (key != null) {
+            cache.remove(key, ce);
+        }
+    }
+}
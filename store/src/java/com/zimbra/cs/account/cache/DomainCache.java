@@ -23,9 +23,8 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.account.Key.DomainBy;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
@@ -33,18 +32,23 @@ import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
 
 /**
+ * Domains are cached by name, id, virtual hostname, foreign name and Kerberos realm, each in its
+ * own bounded concurrent map, so lookups never block.  A stale entry is removed from all of them
+ * only where it is still the cached one, leaving alone a fresh copy another thread just {@link #put}.
+ *
  * @author schemers
- **/
+ */
 public class DomainCache implements IDomainCache {
     
-    private Map mNameCache;
-    private Map mIdCache;
-    private Map mVirtualHostnameCache;
-    private Map mForeignNameCache;
-    private Map mKrb5RealmCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mNameCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mIdCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mVirtualHostnameCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mForeignNameCache;
+    private final ConcurrentMap<String, CacheEntry<Domain>> mKrb5RealmCache;
     
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
+    private final long mRefreshTTL;
+    private final int mRefreshAheadPercent;
+    private final Counter mHitRate = new HitRateCounter();
 
     
     public enum GetFromDomainCacheOption {
@@ -59,20 +63,7 @@ public class DomainCache implements IDomainCache {
      * 
      * entries in the NegativeCache has the same TTS/max as this DomainCache.
      */
-    private NegativeCache mNegativeCache;
-
-    static class CacheEntry {
-        long mLifetime;
-        Domain mEntry;
-        CacheEntry(Domain entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
+    private final NegativeCache mNegativeCache;
     
     public static class NonExistingDomain extends Domain {
         private NonExistingDomain() {
@@ -82,11 +73,11 @@ public class DomainCache implements IDomainCache {
     
 
     class NegativeCache {
-        private Map mNegativeNameCache;
-        private Map mNegativeIdCache;
-        private Map mNegativeVirtualHostnameCache;
-        private Map mNegativeForeignNameCache;
-        private Map mNegativeKrb5RealmCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeNameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeIdCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeVirtualHostnameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeForeignNameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeKrb5RealmCache;
 
         private long mNERefreshTTL;
         
@@ -94,19 +85,19 @@ public class DomainCache implements IDomainCache {
          * if for any reason we want to disable caching of non-existing entries
          * just set mEnabled to false, as a master switch for emergency fix.
          */
-        private boolean mEnabled = true;
+        private volatile boolean mEnabled = true;
         
         private NegativeCache(int maxItems, long refreshTTL) {
-            mNegativeNameCache = MapUtil.newLruMap(maxItems);
-            mNegativeIdCache = MapUtil.newLruMap(maxItems);
-            mNegativeVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeForeignNameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+            mNegativeNameCache = CacheEntry.newLruMap(maxItems);
+            mNegativeIdCache = CacheEntry.newLruMap(maxItems);
+            mNegativeVirtualHostnameCache = CacheEntry.newLruMap(maxItems);  
+            mNegativeForeignNameCache = CacheEntry.newLruMap(maxItems);  
+            mNegativeKrb5RealmCache = CacheEntry.newLruMap(maxItems);   
             mNERefreshTTL = refreshTTL;
         }
         
         private void put(DomainBy domainBy, String key) {
-            if (!mEnabled)
+            if (!mEnabled || key == null)
                 return;
             
             NonExistingDomain nonExistingDomain = new NonExistingDomain();
@@ -131,26 +122,26 @@ public class DomainCache implements IDomainCache {
         }
         
         private NonExistingDomain get(DomainBy domainBy, String key) {
-            if (!mEnabled)
+            if (!mEnabled || key == null)
                 return null;
             
             switch (domainBy) {
             case name:
-                return (NonExistingDomain)mNegativeNameCache.get(key);
+                return mNegativeNameCache.get(key);
             case id:
-                return (NonExistingDomain)mNegativeIdCache.get(key);
+                return mNegativeIdCache.get(key);
             case virtualHostname:
-                return (NonExistingDomain)mNegativeVirtualHostnameCache.get(key);
+                return mNegativeVirtualHostnameCache.get(key);
             case foreignName:
-                return (NonExistingDomain)mNegativeForeignNameCache.get(key);
+                return mNegativeForeignNameCache.get(key);
             case krb5Realm:
-                return (NonExistingDomain)mNegativeKrb5RealmCache.get(key);
+                return mNegativeKrb5RealmCache.get(key);
             }
             return null;
         }
         
         private void remove(DomainBy domainBy, String key) {
-            if (!mEnabled)
+            if (!mEnabled || key == null)
                 return;
             
             switch (domainBy) {
@@ -173,8 +164,10 @@ public class DomainCache implements IDomainCache {
         }
         
         private void clean(DomainBy domainBy, String key, Domain entry) {
-            mNegativeNameCache.remove(entry.getName());
-            mNegativeIdCache.remove(entry.getId());
+            if (entry.getName() != null)
+                mNegativeNameCache.remove(entry.getName());
+            if (entry.getId() != null)
+                mNegativeIdCache.remove(entry.getId());
             
             String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
             for (String vh : vhost)
@@ -204,18 +197,28 @@ public class DomainCache implements IDomainCache {
  * @param refreshTTL
  */
     public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-        mForeignNameCache = MapUtil.newLruMap(maxItems); 
-        mKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+        this(maxItems, refreshTTL, maxItemsNegative, refreshTTLNegative, 0);
+    }
+
+    /**
+     * @param refreshAheadPercent once an entry is this far (in percent) into its TTL, one caller
+     *        gets a miss and reloads it while the others keep being served; 0 disables refresh-ahead
+     */
+    public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative,
+            int refreshAheadPercent) {
+        mNameCache = CacheEntry.newLruMap(maxItems);
+        mIdCache = CacheEntry.newLruMap(maxItems);
+        mVirtualHostnameCache = CacheEntry.newLruMap(maxItems);  
+        mForeignNameCache = CacheEntry.newLruMap(maxItems); 
+        mKrb5RealmCache = CacheEntry.newLruMap(maxItems);   
         mRefreshTTL = refreshTTL;
+        mRefreshAheadPercent = refreshAheadPercent;
         
         mNegativeCache = new NegativeCache(maxItemsNegative, refreshTTLNegative);
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         mNameCache.clear();
         mIdCache.clear();
         mVirtualHostnameCache.clear();
@@ -226,7 +229,7 @@ public class DomainCache implements IDomainCache {
     }
 
     @Override
-    public synchronized void remove(Domain entry) {
+    public void remove(Domain entry) {
         if (entry != null) {
             mNameCache.remove(entry.getName());
             mIdCache.remove(entry.getId());
@@ -246,23 +249,23 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized void replace(Domain entry) {
+    public void replace(Domain entry) {
         remove(entry);
         put(DomainBy.id, entry.getId(), entry);
     }
     
     @Override
-    public synchronized void removeFromNegativeCache(DomainBy domainBy, String key) {
+    public void removeFromNegativeCache(DomainBy domainBy, String key) {
         mNegativeCache.remove(domainBy, key);
     }
     
     @Override
-    public synchronized void put(DomainBy domainBy, String key, Domain entry) {
+    public void put(DomainBy domainBy, String key, Domain entry) {
         if (entry != null) {
             // clean it from the non-existing cache first
             mNegativeCache.clean(domainBy, key, entry);
             
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+            CacheEntry<Domain> cacheEntry = new CacheEntry<Domain>(entry, mRefreshTTL, mRefreshAheadPercent);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
             
@@ -282,17 +285,39 @@ public class DomainCache implements IDomainCache {
         }
     }
 
-    private Domain get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
+    /**
+     * Drops {@code ce} from every key space it was put under, leaving any newer entry alone.
+     */
+    private void removeStale(CacheEntry<Domain> ce) {
+        Domain entry = ce.mEntry;
+        CacheEntry.removeIfSame(mNameCache, entry.getName(), ce);
+        CacheEntry.removeIfSame(mIdCache, entry.getId(), ce);
+
+        for (String vh : entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname))
+            CacheEntry.removeIfSame(mVirtualHostnameCache, vh.toLowerCase(), ce);
+
+        for (String fn : entry.getMultiAttr(Provisioning.A_zimbraForeignName))
+            CacheEntry.removeIfSame(mForeignNameCache, fn.toLowerCase(), ce);
+
+        CacheEntry.removeIfSame(mKrb5RealmCache, entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm), ce);
+    }
+
+    private Domain get(String key, ConcurrentMap<String, CacheEntry<Domain>> cache) {
+        CacheEntry<Domain> ce = key == null ? null : cache.get(key);
         if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+            if (mRefreshTTL != 0) {
+                long now = System.currentTimeMillis();
+                if (ce.isStale(now)) {
+                    removeStale(ce);
+                    mHitRate.increment(0);
+                    return null;
+                } else if (ce.claimRefresh(now)) {
+                    mHitRate.increment(0);
+                    return null;
+                }
             }
+            mHitRate.increment(100);
+            return ce.mEntry;
         } else {
             mHitRate.increment(0);
             return null;
@@ -300,7 +325,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getById(String key, GetFromDomainCacheOption option) {
+    public Domain getById(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -318,7 +343,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByName(String key, GetFromDomainCacheOption option) {
+    public Domain getByName(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -336,7 +361,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
+    public Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -354,7 +379,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByForeignName(String key, GetFromDomainCacheOption option) {
+    public Domain getByForeignName(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -372,7 +397,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
+    public Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -390,7 +415,7 @@ public class DomainCache implements IDomainCache {
     }
 
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
     
@@ -398,7 +423,7 @@ public class DomainCache implements IDomainCache {
      * Returns the cache hit rate as a value between 0 and 100.<br />
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
     	 return mHitRate.getAverage();
     }
 }
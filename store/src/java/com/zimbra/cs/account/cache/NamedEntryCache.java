@@ -24,85 +24,86 @@
 package com.zimbra.cs.account.cache;
 
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.NamedEntry;
 
 /**
+ * Lookups never block: both key spaces are bounded concurrent maps, and an entry that has gone
+ * stale is dropped with a conditional remove so a concurrent {@link #put} of a fresh copy wins.
+ *
  * @author schemers
- **/
-public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
-   
-
-    static class CacheEntry<E extends NamedEntry> {
-        long mLifetime;
-        E mEntry;
-        CacheEntry(E entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
-/**
- * @param maxItems
- * @param refreshTTL
  */
+public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
+
+    private final ConcurrentMap<String, CacheEntry<E>> mNameCache;
+    private final ConcurrentMap<String, CacheEntry<E>> mIdCache;
+
+    private final long mRefreshTTL;
+    private final int mRefreshAheadPercent;
+    private final Counter mHitRate = new HitRateCounter();
+
     public NamedEntryCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
+        this(maxItems, refreshTTL, 0);
+    }
+
+    /**
+     * @param refreshAheadPercent once an entry is this far (in percent) into its TTL, one caller
+     *        gets a miss and reloads it while the others keep being served; 0 disables refresh-ahead
+     */
+    public NamedEntryCache(int maxItems, long refreshTTL, int refreshAheadPercent) {
+        mNameCache = CacheEntry.newLruMap(maxItems);
+        mIdCache = CacheEntry.newLruMap(maxItems);
         mRefreshTTL = refreshTTL;
+        mRefreshAheadPercent = refreshAheadPercent;
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         mNameCache.clear();
         mIdCache.clear();
     }
 
     @Override
-    public synchronized void remove(String name, String id) {
-        mNameCache.remove(name);
-        mIdCache.remove(id);
+    public void remove(String name, String id) {
+        if (name != null) {
+            mNameCache.remove(name);
+        }
+        if (id != null) {
+            mIdCache.remove(id);
+        }
     }
-    
+
     @Override
-    public synchronized void remove(E entry) {
+    public void remove(E entry) {
         if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
+            remove(entry.getName(), entry.getId());
         }
     }
-    
+
     @Override
-    public synchronized void put(E entry) {
+    public void put(E entry) {
         if (entry != null) {
-            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
+            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL, mRefreshAheadPercent);
+            if (entry.getName() != null) {
+                mNameCache.put(entry.getName(), cacheEntry);
+            }
+            if (entry.getId() != null) {
+                mIdCache.put(entry.getId(), cacheEntry);
+            }
         }
     }
-    
+
     @Override
-    public synchronized void replace(E entry) {
+    public void replace(E entry) {
         remove(entry);
         put(entry);
     }
 
     @Override
-    public synchronized void put(List<E> entries, boolean clear) {
+    public void put(List<E> entries, boolean clear) {
         if (entries != null) {
             if (clear) clear();
             for (E e: entries)
@@ -110,45 +111,50 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private E get(String key, Map cache) {
-        CacheEntry<E> ce = (CacheEntry<E>) cache.get(key);
+    private E get(String key, ConcurrentMap<String, CacheEntry<E>> cache) {
+        CacheEntry<E> ce = key == null ? null : cache.get(key);
         if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+            if (mRefreshTTL != 0) {
+                long now = System.currentTimeMillis();
+                if (ce.isStale(now)) {
+                    CacheEntry.removeIfSame(mNameCache, ce.mEntry.getName(), ce);
+                    CacheEntry.removeIfSame(mIdCache, ce.mEntry.getId(), ce);
+                    mHitRate.increment(0);
+                    return null;
+                } else if (ce.claimRefresh(now)) {
+                    mHitRate.increment(0);
+                    return null;
+                }
             }
+            mHitRate.increment(100);
+            return ce.mEntry;
         } else {
             mHitRate.increment(0);
             return null;
         }
     }
-    
+
     @Override
-    public synchronized E getById(String key) {
+    public E getById(String key) {
         return get(key, mIdCache);
     }
-    
+
     @Override
-    public synchronized E getByName(String key) {
+    public E getByName(String key) {
         return get(key.toLowerCase(), mNameCache);
     }
-    
+
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
-  
+
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
         return mHitRate.getAverage();
     }
 }
@@ -72,12 +72,14 @@ abstract class LdapCache {
         private final IAccountCache accountCache =
             new AccountCache(
                     LC.ldap_cache_account_maxsize.intValue(),
-                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_refresh_ahead_percent.intValue());
 
         private final INamedEntryCache<LdapCos> cosCache =
             new NamedEntryCache<LdapCos>(
                     LC.ldap_cache_cos_maxsize.intValue(),
-                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_refresh_ahead_percent.intValue());
 
         private final INamedEntryCache<ShareLocator> shareLocatorCache =
                 new NamedEntryCache<ShareLocator>(
@@ -89,7 +91,8 @@ abstract class LdapCache {
                     LC.ldap_cache_domain_maxsize.intValue(),
                     LC.ldap_cache_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
                     LC.ldap_cache_external_domain_maxsize.intValue(),
-                    LC.ldap_cache_external_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_external_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_refresh_ahead_percent.intValue());
 
         private final IMimeTypeCache mimeTypeCache = new LdapMimeTypeCache();
 
@@ -0,0 +1,174 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.db.DbPool.DbConnection;
+
+/**
+ * Runs one parameterized statement for many rows through JDBC statement batching, so that multi-item mutations
+ * prepare their SQL once and send it to the database {@code zimbra_db_batch_size} rows at a time instead of preparing
+ * and executing a statement per row or per {@code IN} chunk.
+ * <p>
+ * On MySQL and MariaDB the connector rewrites batched {@code INSERT}s into multi-row inserts
+ * ({@code rewriteBatchedStatements}); on SQLite, batching saves the per-statement compile.
+ * <pre>
+ *   DbBatch batch = new DbBatch(conn, "INSERT INTO ... VALUES (?, ?)");
+ *   try {
+ *       for (...) {
+ *           PreparedStatement stmt = batch.getStatement();
+ *           stmt.setInt(1, ...);
+ *           batch.add();
+ *       }
+ *       batch.execute();
+ *   } finally {
+ *       batch.close();
+ *   }
+ * </pre>
+ */
+public final class DbBatch {
+
+    /** Binds the parameters that precede the {@code IN} list and returns the position of the first list entry. */
+    public interface Parameters {
+        int set(PreparedStatement stmt, int pos) throws SQLException;
+    }
+
+    private static final Parameters NO_PARAMETERS = new Parameters() {
+        @Override
+        public int set(PreparedStatement stmt, int pos) {
+            return pos;
+        }
+    };
+
+    private final PreparedStatement stmt;
+    private final int batchSize;
+    private int pending = 0;
+    private long updated = 0;
+    private boolean countsKnown = true;
+
+    public DbBatch(DbConnection conn, String sql) throws SQLException {
+        this(conn, sql, LC.zimbra_db_batch_size.intValue());
+    }
+
+    DbBatch(DbConnection conn, String sql, int batchSize) throws SQLException {
+        this.stmt = conn.prepareStatement(sql);
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /** Returns the statement whose parameters are to be set for the next row. */
+    public PreparedStatement getStatement() {
+        return stmt;
+    }
+
+    /** Queues the row whose parameters have just been set, sending the batch to the database once it is full. */
+    public void add() throws SQLException {
+        stmt.addBatch();
+        if (++pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends any queued rows.
+     *
+     * @return the number of rows affected by all the rows sent so far, or -1 if the driver did not report it
+     */
+    public long execute() throws SQLException {
+        flush();
+        return countsKnown ? updated : -1;
+    }
+
+    private void flush() throws SQLException {
+        if (pending == 0) {
+            return;
+        }
+        pending = 0;
+        for (int count : stmt.executeBatch()) {
+            if (count >= 0) {
+                updated += count;
+            } else {
+                countsKnown = false;
+            }
+        }
+    }
+
+    /** Closes the statement. Rows queued since the last {@link #execute()} are discarded. */
+    public void close() throws ServiceException {
+        DbPool.closeStatement(stmt);
+    }
+
+    /** @see #executeIn(DbConnection, IntFunction, Parameters, List) */
+    public static long executeIn(DbConnection conn, IntFunction<String> sql, List<Integer> ids) throws SQLException,
+            ServiceException {
+        return executeIn(conn, sql, NO_PARAMETERS, ids);
+    }
+
+    /**
+     * Executes a statement whose last parameters are an {@code IN} list, once per {@link Db#getINClauseBatchSize()}
+     * ids. All the full-sized chunks share one prepared statement and are sent as a batch; the remainder, if any, gets
+     * a statement of its own, its {@code IN} list padded to {@link DbUtil#bucketInSize} entries.
+     *
+     * @param sql returns the SQL for an {@code IN} list of the given size, e.g. built with {@link DbUtil#whereIn}
+     * @param params binds the parameters preceding the {@code IN} list; the same for every chunk
+     * @return the number of rows affected, or -1 if the driver did not report it
+     */
+    public static long executeIn(DbConnection conn, IntFunction<String> sql, Parameters params, List<Integer> ids)
+            throws SQLException, ServiceException {
+        int chunk = Db.getINClauseBatchSize();
+        int full = ids.size() - ids.size() % chunk;
+        long updated = 0;
+        if (full > 0) {
+            DbBatch batch = new DbBatch(conn, sql.apply(chunk));
+            try {
+                for (int offset = 0; offset < full; offset += chunk) {
+                    bind(batch.stmt, params, ids, offset, chunk, chunk);
+                    batch.add();
+                }
+                updated = batch.execute();
+            } finally {
+                batch.close();
+            }
+        }
+        if (full < ids.size()) {
+            int count = ids.size() - full, slots = DbUtil.bucketInSize(count);
+            PreparedStatement stmt = conn.prepareStatement(sql.apply(slots));
+            try {
+                bind(stmt, params, ids, full, count, slots);
+                int rows = stmt.executeUpdate();
+                updated = updated < 0 ? -1 : updated + rows;
+            } finally {
+                DbPool.closeStatement(stmt);
+            }
+        }
+        return updated;
+    }
+
+    /** Binds {@code count} ids, repeating the last one to fill all {@code slots} of the {@code IN} list. */
+    private static void bind(PreparedStatement stmt, Parameters params, List<Integer> ids, int offset, int count,
+            int slots) throws SQLException {
+        int pos = params.set(stmt, 1);
+        for (int i = 0; i < slots; i++) {
+            stmt.setInt(pos++, ids.get(offset + Math.min(i, count - 1)));
+        }
+    }
+}
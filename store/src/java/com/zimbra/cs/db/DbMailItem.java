@@ -128,6 +128,11 @@ public class DbMailItem {
         return nextPos;
     }
 
+    /** Binds just the mailbox id, for {@link DbBatch#executeIn} statements starting with {@link #IN_THIS_MAILBOX_AND}. */
+    static DbBatch.Parameters inMailbox(final Mailbox mbox) {
+        return (stmt, pos) -> setMailboxId(stmt, mbox, pos);
+    }
+
     public void create(UnderlyingData data) throws ServiceException {
         if (data.id <= 0 || data.folderId <= 0 || data.parentId == 0) {
             throw ServiceException.FAILURE("invalid data for DB item create", null);
@@ -648,7 +653,7 @@ public class DbMailItem {
         }
         Mailbox mbox = folder.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
+        DbBatch batch = null;
         try {
             // commented out because at present messages cannot have names (and thus can't have naming conflicts)
 //            if (!Db.supports(Db.Capability.UNIQUE_NAME_INDEX) || Db.supports(Db.Capability.CASE_SENSITIVE_COMPARISON)) {
@@ -671,12 +676,11 @@ public class DbMailItem {
 //                rs.close();
 //                stmt.close();
 //            }
-            int count = 0;
-            int batchSize = 500;
             String imapRenumber = mbox.isTrackingImap() ? ", imap_id = CASE WHEN imap_id IS NULL THEN NULL ELSE 0 END" : "";
-            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(folder) +
+            batch = new DbBatch(conn, "UPDATE " + getMailItemTableName(folder) +
                 " SET folder_id = ?, prev_folders=?, mod_metadata = ?, change_date = ?" + imapRenumber +
                 " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+            PreparedStatement stmt = batch.getStatement();
             int modseq = mbox.getOperationChangeID();
             for(int j = 0; j < msgs.size(); j++) {
                 int pos = 1;
@@ -709,14 +713,9 @@ public class DbMailItem {
                 stmt.setInt(pos++, mbox.getOperationTimestamp());
                 pos = setMailboxId(stmt, mbox, pos);
                 stmt.setInt(pos++, msgs.get(j).getId());
-                stmt.addBatch();
-                if (++count % batchSize == 0) {
-                    stmt.executeBatch();
-                }
+                batch.add();
             }
-            stmt.executeBatch();
-            stmt.close();
-            stmt = null;
+            batch.execute();
         } catch (SQLException e) {
             // catch item_id uniqueness constraint violation and return failure
 //            if (Db.errorMatches(e, Db.Error.DUPLICATE_ROW))
@@ -724,7 +723,9 @@ public class DbMailItem {
 //            else
             throw ServiceException.FAILURE("writing new folder data for messages", e);
         } finally {
-            DbPool.closeStatement(stmt);
+            if (batch != null) {
+                batch.close();
+            }
         }
     }
 
@@ -822,44 +823,26 @@ public class DbMailItem {
     }
 
 
-    public static void setIndexIds(DbConnection conn, Mailbox mbox, List<Integer> ids) throws ServiceException {
+    public static void setIndexIds(DbConnection conn, final Mailbox mbox, List<Integer> ids) throws ServiceException {
         if (ids.isEmpty()) {
             return;
         }
-        for (int i = 0; i < ids.size(); i += Db.getINClauseBatchSize()) {
-            int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
-            int updated;
-            PreparedStatement stmt = null;
-            try { // update MAIL_ITEM table
-                stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox, false) +
-                        " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
-                int pos = setMailboxId(stmt, mbox, 1);
-                for (int j = i; j < i + count; j++) {
-                    stmt.setInt(pos++, ids.get(j));
-                }
-                updated = stmt.executeUpdate();
+        long updated;
+        try { // update MAIL_ITEM table
+            updated = DbBatch.executeIn(conn, count -> "UPDATE " + getMailItemTableName(mbox, false) +
+                    " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count), inMailbox(mbox), ids);
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("Failed to set index_id", e);
+        }
+        if (updated == ids.size()) { // all updates were in MAIL_ITEM table, no need to update MAIL_ITEM_DUMPSTER table
+            return;
+        }
+        if (mbox.dumpsterEnabled()) {
+            try { // also update MAIL_ITEM_DUMPSTER table
+                DbBatch.executeIn(conn, count -> "UPDATE " + getMailItemTableName(mbox, true) +
+                        " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count), inMailbox(mbox), ids);
             } catch (SQLException e) {
-                throw ServiceException.FAILURE("Failed to set index_id", e);
-            } finally {
-                conn.closeQuietly(stmt);
-            }
-            if (updated == count) { // all updates were in MAIL_ITEM table, no need to update MAIL_ITEM_DUMPSTER table
-                continue;
-            }
-            if (mbox.dumpsterEnabled()) {
-                try { // also update MAIL_ITEM_DUMPSTER table
-                    stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox, true) +
-                            " SET index_id = id WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
-                    int pos = setMailboxId(stmt, mbox, 1);
-                    for (int j = i; j < i + count; j++) {
-                        stmt.setInt(pos++, ids.get(j));
-                    }
-                    stmt.executeUpdate();
-                } catch (SQLException e) {
-                    throw ServiceException.FAILURE("Failed to set index_id in dumpster", e);
-                } finally {
-                    conn.closeQuietly(stmt);
-                }
+                throw ServiceException.FAILURE("Failed to set index_id in dumpster", e);
             }
         }
     }
@@ -1355,46 +1338,36 @@ public class DbMailItem {
         }
     }
 
-    public static void alterUnread(Mailbox mbox, List<Integer> itemIDs, boolean unread)
+    public static void alterUnread(final Mailbox mbox, List<Integer> itemIDs, final boolean unread)
     throws ServiceException {
         if (itemIDs == null || itemIDs.isEmpty()) {
             return;
         }
 
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
-            for (int i = 0; i < itemIDs.size(); i += Db.getINClauseBatchSize()) {
-                int count = Math.min(Db.getINClauseBatchSize(), itemIDs.size() - i);
-                stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
-                            " SET unread = ?, mod_metadata = ?, change_date = ?" +
-                            " WHERE " + IN_THIS_MAILBOX_AND + "unread = ?" +
-                            "  AND " + DbUtil.whereIn("id", count) +
-                            "  AND " + typeIn(MailItem.Type.MESSAGE));
-                int pos = 1;
-                stmt.setInt(pos++, unread ? 1 : 0);
-                stmt.setInt(pos++, mbox.getOperationChangeID());
-                stmt.setInt(pos++, mbox.getOperationTimestamp());
-                pos = setMailboxId(stmt, mbox, pos);
-                stmt.setInt(pos++, unread ? 0 : 1);
-                for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, itemIDs.get(index));
-                }
-                stmt.executeUpdate();
-                stmt.close();
-                stmt = null;
-
-                if (unread) {
-                    DbTag.addTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs.subList(i, i + count));
-                } else {
-                    DbTag.removeTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs.subList(i, i + count));
-                }
-            }
+            DbBatch.executeIn(conn, count -> "UPDATE " + getMailItemTableName(mbox) +
+                        " SET unread = ?, mod_metadata = ?, change_date = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "unread = ?" +
+                        "  AND " + typeIn(MailItem.Type.MESSAGE) +
+                        "  AND " + DbUtil.whereIn("id", count),
+                (stmt, pos) -> {
+                    stmt.setInt(pos++, unread ? 1 : 0);
+                    stmt.setInt(pos++, mbox.getOperationChangeID());
+                    stmt.setInt(pos++, mbox.getOperationTimestamp());
+                    pos = setMailboxId(stmt, mbox, pos);
+                    stmt.setInt(pos++, unread ? 0 : 1);
+                    return pos;
+                }, itemIDs);
         } catch (SQLException e) {
             throw ServiceException.FAILURE("updating unread state for " +
                 itemIDs.size() + " items: " + getIdListForLogging(itemIDs), e);
-        } finally {
-            DbPool.closeStatement(stmt);
+        }
+
+        if (unread) {
+            DbTag.addTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs);
+        } else {
+            DbTag.removeTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs);
         }
     }
 
@@ -1657,7 +1630,7 @@ public class DbMailItem {
         delete(mbox, ids, fromDumpster, false);
      }
 
-     public static void delete(Mailbox mbox, Collection<Integer> ids, boolean fromDumpster, boolean unsetDeletedFlag) throws ServiceException {
+     public static void delete(final Mailbox mbox, Collection<Integer> ids, final boolean fromDumpster, boolean unsetDeletedFlag) throws ServiceException {
         // trim out any non-persisted items
         if (ids == null || ids.size() == 0) {
             return;
@@ -1673,26 +1646,18 @@ public class DbMailItem {
         }
 
         DbConnection conn = mbox.getOperationConnection();
-        for (int offset = 0; offset < targets.size(); offset += Db.getINClauseBatchSize()) {
-            PreparedStatement stmt = null;
-            try {
-                int count = Math.min(Db.getINClauseBatchSize(), targets.size() - offset);
-                if (!fromDumpster && mbox.dumpsterEnabled()) {
+        try {
+            // copy everything first: the rows are all still there until the batched DELETE below
+            if (!fromDumpster && mbox.dumpsterEnabled()) {
+                for (int offset = 0; offset < targets.size(); offset += Db.getINClauseBatchSize()) {
+                    int count = Math.min(Db.getINClauseBatchSize(), targets.size() - offset);
                     copyToDumpster(conn, mbox, targets, offset, count, unsetDeletedFlag);
                 }
-                stmt = conn.prepareStatement("DELETE FROM " + getMailItemTableName(mbox, fromDumpster) +
-                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
-                int pos = 1;
-                pos = setMailboxId(stmt, mbox, pos);
-                for (int i = offset; i < offset + count; ++i) {
-                    stmt.setInt(pos++, targets.get(i));
-                }
-                stmt.executeUpdate();
-            } catch (SQLException e) {
-                throw ServiceException.FAILURE("deleting " + ids.size() + " item(s): " + getIdListForLogging(ids), e);
-            } finally {
-                DbPool.closeStatement(stmt);
             }
+            DbBatch.executeIn(conn, count -> "DELETE FROM " + getMailItemTableName(mbox, fromDumpster) +
+                        " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count), inMailbox(mbox), targets);
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("deleting " + ids.size() + " item(s): " + getIdListForLogging(ids), e);
         }
     }
 
@@ -1792,57 +1757,61 @@ public class DbMailItem {
             return;
         }
 
-        for (Map.Entry<MailItem.Type, List<TypedIdList.ItemInfo>> entry : tombstones) {
-            MailItem.Type type = entry.getKey();
-            switch (type) {
-                case VIRTUAL_CONVERSATION:
-                    continue;
-            }
-
-            StringBuilder row = new StringBuilder();
-            for (TypedIdList.ItemInfo stone : entry.getValue()) {
-                // the list of tombstones is comma-delimited
-                row.append(row.length() == 0 ? "" : ",").append(stone.getId());
-                if (stone.getUuid() != null) {
-                    // a tombstone may either be ID or ID:UUID, so serialize accordingly
-                    row.append(':').append(stone.getUuid());
+        DbConnection conn = mbox.getOperationConnection();
+        DbBatch batch = null;
+        try {
+            String mailbox_id = DebugConfig.disableMailboxGroups ? "" : "mailbox_id, ";
+            batch = new DbBatch(conn, "INSERT INTO " + getTombstoneTableName(mbox) +
+                        "(" + mailbox_id + "sequence, date, type, ids)" +
+                        " VALUES (" + MAILBOX_ID_VALUE + "?, ?, ?, ?)");
+            for (Map.Entry<MailItem.Type, List<TypedIdList.ItemInfo>> entry : tombstones) {
+                MailItem.Type type = entry.getKey();
+                switch (type) {
+                    case VIRTUAL_CONVERSATION:
+                        continue;
                 }
 
-                // catch overflows of TEXT values; since all chars are ASCII, no need to convert to UTF-8 for length check beforehand
-                if (row.length() > MAX_TEXT_LENGTH - 128) {
-                    writeTombstone(mbox, type, row.toString());
-                    row.setLength(0);
+                StringBuilder row = new StringBuilder();
+                for (TypedIdList.ItemInfo stone : entry.getValue()) {
+                    // the list of tombstones is comma-delimited
+                    row.append(row.length() == 0 ? "" : ",").append(stone.getId());
+                    if (stone.getUuid() != null) {
+                        // a tombstone may either be ID or ID:UUID, so serialize accordingly
+                        row.append(':').append(stone.getUuid());
+                    }
+
+                    // catch overflows of TEXT values; since all chars are ASCII, no need to convert to UTF-8 for length check beforehand
+                    if (row.length() > MAX_TEXT_LENGTH - 128) {
+                        addTombstone(batch, mbox, type, row.toString());
+                        row.setLength(0);
+                    }
                 }
-            }
 
-            writeTombstone(mbox, type, row.toString());
+                addTombstone(batch, mbox, type, row.toString());
+            }
+            batch.execute();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("writing tombstones for " + tombstones.types(), e);
+        } finally {
+            if (batch != null) {
+                batch.close();
+            }
         }
     }
 
-    private static void writeTombstone(Mailbox mbox, MailItem.Type type, String row) throws ServiceException {
+    private static void addTombstone(DbBatch batch, Mailbox mbox, MailItem.Type type, String row) throws SQLException {
         if (Strings.isNullOrEmpty(row)) {
             return;
         }
 
-        DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
-        try {
-            String mailbox_id = DebugConfig.disableMailboxGroups ? "" : "mailbox_id, ";
-            stmt = conn.prepareStatement("INSERT INTO " + getTombstoneTableName(mbox) +
-                        "(" + mailbox_id + "sequence, date, type, ids)" +
-                        " VALUES (" + MAILBOX_ID_VALUE + "?, ?, ?, ?)");
-            int pos = 1;
-            pos = setMailboxId(stmt, mbox, pos);
-            stmt.setInt(pos++, mbox.getOperationChangeID());
-            stmt.setInt(pos++, mbox.getOperationTimestamp());
-            stmt.setByte(pos++, type.toByte());
-            stmt.setString(pos++, row);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            throw ServiceException.FAILURE("writing tombstones for " + type + "(s): " + row, e);
-        } finally {
-            DbPool.closeStatement(stmt);
-        }
+        PreparedStatement stmt = batch.getStatement();
+        int pos = 1;
+        pos = setMailboxId(stmt, mbox, pos);
+        stmt.setInt(pos++, mbox.getOperationChangeID());
+        stmt.setInt(pos++, mbox.getOperationTimestamp());
+        stmt.setByte(pos++, type.toByte());
+        stmt.setString(pos++, row);
+        batch.add();
     }
 
     public static List<Integer> readTombstones(Mailbox mbox, DbConnection conn, long lastSync, Set<MailItem.Type> types)
@@ -2604,13 +2573,20 @@ public class DbMailItem {
         for (int i = 0; i < ids.size(); i += Db.getINClauseBatchSize()) {
             try {
                 int count = Math.min(Db.getINClauseBatchSize(), ids.size() - i);
+                int slots = DbUtil.bucketInSize(count);
                 stmt = conn.prepareStatement("SELECT " + DB_FIELDS +
                             " FROM " + getMailItemTableName(mbox, "mi") +
-                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", count));
+                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("id", slots));
                 int pos = 1;
                 pos = setMailboxId(stmt, mbox, pos);
+                int id = 0;
                 for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, it.next());
+                    id = it.next();
+                    stmt.setInt(pos++, id);
+                }
+                // pad the IN list with the last id so that nearby batch sizes share one cached statement
+                for (int index = count; index < slots; index++) {
+                    stmt.setInt(pos++, id);
                 }
 
                 rs = stmt.executeQuery();
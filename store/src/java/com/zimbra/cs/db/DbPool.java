@@ -28,6 +28,9 @@ import java.util.Properties;
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPool;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
 import com.zimbra.common.localconfig.LC;
@@ -283,7 +286,7 @@ public class DbPool {
         ConnectionFactory cfac = ZimbraConnectionFactory.getConnectionFactory(pconfig);
 
         boolean defAutoCommit = false, defReadOnly = false;
-        new PoolableConnectionFactory(cfac, sConnectionPool, null, null, defReadOnly, defAutoCommit);
+        new PoolableConnectionFactory(cfac, sConnectionPool, getStatementPoolFactory(), null, defReadOnly, defAutoCommit);
 
         try {
             Class.forName(pconfig.mDriverClassName).newInstance(); //derby requires the .newInstance() call
@@ -311,6 +314,42 @@ public class DbPool {
         return sPoolingDataSource;
     }
 
+    /**
+     * Returns the factory for the per-connection prepared statement cache, or <tt>null</tt> if the cache is disabled.
+     * DBCP keeps the statements of each physical connection keyed by SQL text; closing one hands it back to the
+     * connection, and the next <tt>prepareStatement()</tt> with the same SQL reuses it without a round trip to the
+     * server.
+     */
+    private static KeyedObjectPoolFactory getStatementPoolFactory() {
+        final int size = LC.zimbra_db_statement_cache_size.intValue();
+        if (size <= 0)
+            return null;
+        return new KeyedObjectPoolFactory() {
+            @Override
+            public KeyedObjectPool createPool() {
+                return new StatementPool(size);
+            }
+        };
+    }
+
+    /** Prepared statement cache of a single connection, reporting its hit rate to {@link ZimbraPerf}. */
+    private static final class StatementPool extends GenericKeyedObjectPool {
+        StatementPool(int size) {
+            // never block or fail a prepare: the same SQL may be open more than once (nested iteration), and the
+            // least recently used idle statements are closed once more than "size" are kept
+            setMaxActive(-1);
+            setWhenExhaustedAction(WHEN_EXHAUSTED_GROW);
+            setMaxIdle(4);
+            setMaxTotal(size);
+        }
+
+        @Override
+        public Object borrowObject(Object key) throws Exception {
+            StatTrackingPreparedStatement.trackCacheLookup(getNumIdle(key) > 0);
+            return super.borrowObject(key);
+        }
+    }
+
     /**
      * return a connection to use for the zimbra database.
      * This must not be called while thread also owns an open connection to a mailbox db.
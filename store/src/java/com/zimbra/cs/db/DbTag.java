@@ -398,7 +398,6 @@ public final class DbTag {
         Mailbox mbox = tag.getMailbox();
 
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
             boolean isFlag = tag instanceof Flag;
             boolean altersModseq = !isFlag || !((Flag) tag).isSystemFlag();
@@ -419,12 +418,10 @@ public final class DbTag {
 
             String updateChangeID = altersModseq ? ", mod_metadata = ?, change_date = ?" : "";
 
-            for (int i = 0; i < itemIds.size(); i += Db.getINClauseBatchSize()) {
-                int count = Math.min(Db.getINClauseBatchSize(), itemIds.size() - i);
-                stmt = conn.prepareStatement("UPDATE " + DbMailItem.getMailItemTableName(mbox) +
-                        " SET " + primaryUpdate + updateChangeID +
-                        " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + sanityCheckAnd + DbUtil.whereIn("id", count));
-                int pos = 1;
+            final String update = "UPDATE " + DbMailItem.getMailItemTableName(mbox) +
+                    " SET " + primaryUpdate + updateChangeID +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + sanityCheckAnd;
+            DbBatch.executeIn(conn, count -> update + DbUtil.whereIn("id", count), (stmt, pos) -> {
                 // primary update
                 if (isFlag) {
                     stmt.setLong(pos++, ((Flag) tag).toBitmask());
@@ -444,24 +441,16 @@ public final class DbTag {
                 } else if (add) {
                     stmt.setString(pos++, tagLIKEPattern(tag.getName()));
                 }
-                // item IDs
-                for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, itemIds.get(index));
-                }
-                stmt.executeUpdate();
-                stmt.close();
-                stmt = null;
+                return pos;
+            }, itemIds);
 
-                if (add) {
-                    addTaggedItemEntries(mbox, tag.getId(), itemIds.subList(i, i + count));
-                } else {
-                    removeTaggedItemEntries(mbox, tag.getId(), itemIds.subList(i, i + count));
-                }
+            if (add) {
+                addTaggedItemEntries(mbox, tag.getId(), itemIds);
+            } else {
+                removeTaggedItemEntries(mbox, tag.getId(), itemIds);
             }
         } catch (SQLException e) {
             throw ServiceException.FAILURE("updating tag data for " + itemIds.size() + " items: " + DbMailItem.getIdListForLogging(itemIds), e);
-        } finally {
-            DbPool.closeStatement(stmt);
         }
     }
 
@@ -469,48 +458,51 @@ public final class DbTag {
     static void addTaggedItemEntries(Mailbox mbox, int tagId, List<Integer> itemIds) throws ServiceException {
         if (tagId < 0 && !Mailbox.REIFIED_FLAGS.contains(tagId))
             return;
+        if (itemIds.isEmpty())
+            return;
 
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
+        DbBatch batch = null;
 
         String command = Db.supports(Db.Capability.REPLACE_INTO) ? "REPLACE" : "INSERT";
-        for (int itemId : itemIds) {
-            try {
-                stmt = conn.prepareStatement(command + " INTO " + getTaggedItemTableName(mbox) +
-                        "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id) VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?)");
+        try {
+            batch = new DbBatch(conn, command + " INTO " + getTaggedItemTableName(mbox) +
+                    "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id) VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?)");
+            PreparedStatement stmt = batch.getStatement();
+            for (int itemId : itemIds) {
                 int pos = 1;
                 pos = DbMailItem.setMailboxId(stmt, mbox, pos);
                 stmt.setInt(pos++, tagId);
                 stmt.setInt(pos++, itemId);
-                stmt.executeUpdate();
-            } catch (SQLException e) {
-                throw ServiceException.FAILURE("adding TAGGED_ITEM entries for tag: " + tagId + ", item: " + itemId, e);
-            } finally {
-                DbPool.closeStatement(stmt);
+                batch.add();
+            }
+            batch.execute();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("adding TAGGED_ITEM entries for tag: " + tagId + ", items: " + DbMailItem.getIdListForLogging(itemIds), e);
+        } finally {
+            if (batch != null) {
+                batch.close();
             }
         }
     }
 
-    static void removeTaggedItemEntries(Mailbox mbox, int tagId, List<Integer> itemIds) throws ServiceException {
+    static void removeTaggedItemEntries(final Mailbox mbox, final int tagId, List<Integer> itemIds) throws ServiceException {
         if (tagId < 0 && !Mailbox.REIFIED_FLAGS.contains(tagId))
             return;
+        if (itemIds.isEmpty())
+            return;
 
         DbConnection conn = mbox.getOperationConnection();
-        PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("DELETE FROM " + getTaggedItemTableName(mbox) +
-                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "tag_id = ? AND " + DbUtil.whereIn("item_id", itemIds.size()));
-            int pos = 1;
-            pos = DbMailItem.setMailboxId(stmt, mbox, pos);
-            stmt.setInt(pos++, tagId);
-            for (int itemId : itemIds) {
-                stmt.setInt(pos++, itemId);
-            }
-            stmt.executeUpdate();
+            DbBatch.executeIn(conn, count -> "DELETE FROM " + getTaggedItemTableName(mbox) +
+                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "tag_id = ? AND " + DbUtil.whereIn("item_id", count),
+                (stmt, pos) -> {
+                    pos = DbMailItem.setMailboxId(stmt, mbox, pos);
+                    stmt.setInt(pos++, tagId);
+                    return pos;
+                }, itemIds);
         } catch (SQLException e) {
             throw ServiceException.FAILURE("removing TAGGED_ITEM entries for tag: " + tagId + ", items: " + DbMailItem.getIdListForLogging(itemIds), e);
-        } finally {
-            DbPool.closeStatement(stmt);
         }
     }
 
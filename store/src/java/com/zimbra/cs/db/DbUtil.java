@@ -427,6 +427,20 @@ public final class DbUtil {
         return column + (in ? " IN" : " NOT IN") + suitableNumberOfVariables(size);
     }
 
+    /**
+     * Returns the number of parameters to put in an IN list of <tt>size</tt> values, so that lists of similar length
+     * share their SQL text and therefore their cached prepared statement.  Lists of up to 3 values are rewritten by
+     * {@link #whereIn} and kept exact; longer ones are rounded up to the next power of two, but not past the IN clause
+     * batch size.  Callers fill the extra parameters by repeating the last value, which does not change the result.
+     */
+    public static int bucketInSize(int size) {
+        if (size <= 3) {
+            return size;
+        }
+        int bucket = Integer.highestOneBit(size - 1) << 1;
+        return Math.max(size, Math.min(bucket, Db.getINClauseBatchSize()));
+    }
+
     public static String whereIn(String column, int size) {
         return whereIn(column, true, size);
     }
@@ -38,6 +38,7 @@ import java.sql.SQLXML;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.cs.stats.ActivityTracker;
 import com.zimbra.cs.stats.ZimbraPerf;
@@ -56,6 +57,8 @@ import com.zimbra.cs.stats.ZimbraPerf;
 public class StatTrackingPreparedStatement implements PreparedStatement {
     private final PreparedStatement stmt;
     private String queryString;
+    private String queryType;
+    private boolean limitsModified = false;
     private ActivityTracker tracker = ZimbraPerf.SQL_TRACKER;
 
     public StatTrackingPreparedStatement(PreparedStatement stmt) {
@@ -81,23 +84,48 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
      */
     public void setQueryString(String sql) {
         this.queryString = sql;
+        this.queryType = sql == null ? null : getQueryType(sql);
+    }
+
+    private static final AtomicLong cacheLookups = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+
+    /**
+     * Records whether a statement came from the prepared-statement cache ({@code zimbra_db_statement_cache_size})
+     * rather than being prepared by the driver.
+     */
+    static void trackCacheLookup(boolean hit) {
+        cacheLookups.incrementAndGet();
+        if (hit) {
+            cacheHits.incrementAndGet();
+        }
+        ZimbraPerf.COUNTER_DB_STMT_CACHE.increment(hit ? 100 : 0);
+    }
+
+    static long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /** Returns the fraction of statements served from the prepared-statement cache since startup. */
+    public static double getCacheHitRatio() {
+        long lookups = cacheLookups.get();
+        return lookups == 0 ? 0 : (double) cacheHits.get() / lookups;
     }
 
     /* Not sure if the query types should be mutually exclusive like this.
      * Maybe should check for presence of all types and track all that apply?
      */
-    private String getQueryType(String sql) {
-        sql = sql.toLowerCase();
-        if (sql.startsWith("select")) {
+    private static String getQueryType(String sql) {
+        if (sql.regionMatches(true, 0, "select", 0, 6)) {
             return "SELECT";
         }
-        else if (sql.startsWith("insert")) {
+        else if (sql.regionMatches(true, 0, "insert", 0, 6)) {
             return "INSERT";
         }
-        else if (sql.startsWith("update")) {
+        else if (sql.regionMatches(true, 0, "update", 0, 6)) {
             return "UPDATE";
         }
-        else if (sql.startsWith("delete")) {
+        else if (sql.regionMatches(true, 0, "delete", 0, 6)) {
             return "DELETE";
         }
         else {
@@ -107,7 +135,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     private void trackQueryStats(String sql, long startTime) {
         if (sql != null) {
-            tracker.addStat(getQueryType(sql), startTime);
+            tracker.addStat(queryType, startTime);
         }
     }
     @Override
@@ -128,7 +156,17 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void close() throws SQLException {
-        stmt.close();
+        try {
+            if (limitsModified) {
+                // the statement may go back to the statement cache; don't let the next user inherit these
+                limitsModified = false;
+                stmt.setMaxRows(0);
+                stmt.setQueryTimeout(0);
+                stmt.setFetchSize(0);
+            }
+        } finally {
+            stmt.close();
+        }
     }
 
     @Override
@@ -148,6 +186,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setMaxRows(int max) throws SQLException {
+        limitsModified = true;
         stmt.setMaxRows(max);
     }
 
@@ -163,6 +202,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setQueryTimeout(int seconds) throws SQLException {
+        limitsModified = true;
         stmt.setQueryTimeout(seconds);
     }
 
@@ -223,6 +263,7 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public void setFetchSize(int rows) throws SQLException {
+        limitsModified = true;
         stmt.setFetchSize(rows);
     }
 
@@ -253,7 +294,10 @@ public class StatTrackingPreparedStatement implements PreparedStatement {
 
     @Override
     public int[] executeBatch() throws SQLException {
-        return stmt.executeBatch();
+        long startTime = System.currentTimeMillis();
+        int[] results = stmt.executeBatch();
+        trackQueryStats(queryString, startTime);
+        return results;
     }
 
     @Override
@@ -38,9 +38,12 @@ import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
 import com.zimbra.cs.mailbox.calendar.cache.CalSummaryCache.CalendarDataResult;
+import com.zimbra.cs.mailbox.calendar.cache.CalendarCacheManager;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
+import com.zimbra.cs.mailbox.calendar.cache.FreeBusyBitmapCache;
 import com.zimbra.cs.mailbox.calendar.cache.FullInstanceData;
 import com.zimbra.cs.mailbox.calendar.cache.InstanceData;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 public class LocalFreeBusyProvider {
 
@@ -64,18 +67,45 @@ public class LocalFreeBusyProvider {
 
         int exApptId = exAppt == null ? -1 : exAppt.getId();
 
-        IntervalList intervals = new IntervalList(start, end);
+        final IntervalList intervals = new IntervalList(start, end);
 
-        List<CalendarDataResult> calDataResultList;
-        if (folder == FreeBusyQuery.CALENDAR_FOLDER_ALL) {
-            calDataResultList = mbox.getAllCalendarsSummaryForRange(null, MailItem.Type.APPOINTMENT, start, end);
+        // The bitmap index only knows statuses per slot, so it can't leave out an appointment or report instances.
+        FreeBusyBitmapCache fbCache = CalendarCacheManager.getInstance().getFreeBusyCache();
+        boolean useIndex = exAppt == null && fbCache.canServe(start, end);
+
+        List<CalendarDataResult> calDataResultList = null;
+        List<Folder> folders;
+        if (useIndex) {
+            if (folder == FreeBusyQuery.CALENDAR_FOLDER_ALL) {
+                folders = mbox.getSummarizedCalendarFolders(null, MailItem.Type.APPOINTMENT);
+            } else {
+                folders = new ArrayList<Folder>(1);
+                folders.add(mbox.getFolderById(null, folder));
+            }
         } else {
-            calDataResultList = new ArrayList<CalendarDataResult>(1);
-            calDataResultList.add(mbox.getCalendarSummaryForRange(null, folder, MailItem.Type.APPOINTMENT, start, end));
+            if (folder == FreeBusyQuery.CALENDAR_FOLDER_ALL) {
+                calDataResultList = mbox.getAllCalendarsSummaryForRange(null, MailItem.Type.APPOINTMENT, start, end);
+            } else {
+                calDataResultList = new ArrayList<CalendarDataResult>(1);
+                calDataResultList.add(mbox.getCalendarSummaryForRange(null, folder, MailItem.Type.APPOINTMENT, start, end));
+            }
+            folders = new ArrayList<Folder>(calDataResultList.size());
+            for (CalendarDataResult result : calDataResultList) {
+                folders.add(mbox.getFolderById(null, result.data.getFolderId()));
+            }
+        }
+
+        long firstDay = FreeBusyBitmapCache.getDay(start);
+        long[][] bitmaps = null;
+        if (useIndex) {
+            bitmaps = new long[(int) (FreeBusyBitmapCache.getDay(end - 1) - firstDay + 1)][];
+            for (int i = 0; i < bitmaps.length; i++) {
+                bitmaps[i] = FreeBusyBitmapCache.newBitmap();
+            }
         }
-        for (CalendarDataResult result : calDataResultList) {
-            int folderId = result.data.getFolderId();
-            Folder f = mbox.getFolderById(null, folderId);
+        for (int i = 0; i < folders.size(); i++) {
+            Folder f = folders.get(i);
+            int folderId = f.getId();
             if ((f.getFlagBitmask() & Flag.BITMASK_EXCLUDE_FREEBUSY) != 0) {
                 ZimbraLog.fb.debug("Calendar '%s' id=%s ignored - has EXCLUDE_FREEBUSY flag set", f.getName(), folderId);
                 continue;
@@ -89,57 +119,22 @@ public class LocalFreeBusyProvider {
                         f.getName(), folderId, folderFBAllowed, accountAceAllowed);
                 continue;
             }
-            for (Iterator<CalendarItemData> iter = result.data.calendarItemIterator(); iter.hasNext(); ) {
-                CalendarItemData appt = iter.next();
-                int apptId = appt.getCalItemId();
-                if (apptId == exApptId)
-                    continue;
-                FullInstanceData defaultInstance = appt.getDefaultData();
-                if (defaultInstance == null)
-                    continue;
-                boolean isTransparent = false;
-                String transp = defaultInstance.getTransparency();
-                isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transp);
-                long defaultDuration = 0;
-                if (defaultInstance.getDuration() != null)
-                    defaultDuration = defaultInstance.getDuration().longValue();
-                String defaultFreeBusy = defaultInstance.getFreeBusyActual();
-                for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
-                    InstanceData instance = instIter.next();
-                    long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
-                    // Skip instances that are outside the time range but were returned due to alarm being in range.
-                    if (instStart >= end)
-                        continue;
-                    long dur = defaultDuration;
-                    if (instance.getDuration() != null)
-                        dur = instance.getDuration().longValue();
-                    if (dur <= 0)  // Only consider instances with non-zero, positive duration.
-                        continue;
-                    long instEnd = instStart + dur;
-
-                    long recurIdDt = 0;
-                    // Skip if instance is TRANSPARENT to free/busy searches.
-                    if (instance instanceof FullInstanceData) {
-                        FullInstanceData fullInst = (FullInstanceData) instance;
-                        String transpInst = fullInst.getTransparency();
-                        recurIdDt = fullInst.getRecurrenceId();
-                        if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transpInst))
-                            continue;
-                    } else if (isTransparent) {
-                        continue;
-                    }
-
-                    String freeBusy = instance.getFreeBusyActual();
-                    if (freeBusy == null)
-                        freeBusy = defaultFreeBusy;
-                    if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy)) {
+            if (useIndex) {
+                addFolderBitmaps(fbCache, mbox, folderId, f.getImapMODSEQ(), firstDay, bitmaps);
+            } else {
+                visitBusyInstances(calDataResultList.get(i), end, exApptId, new InstanceVisitor() {
+                    @Override
+                    public void visit(String freeBusy, long instStart, long instEnd, int apptId, long recurIdDt) {
                         FBInstance fbInst = new FBInstance(freeBusy, instStart, instEnd, apptId, recurIdDt);
                         Interval ival = new Interval(instStart, instEnd, freeBusy, fbInst);
                         intervals.addInterval(ival);
                     }
-                }
+                });
             }
         }
+        if (useIndex) {
+            addBitmapIntervals(intervals, bitmaps, firstDay, start, end);
+        }
         if (!accountAceAllowed && numAllowedFolders == 0 && !LC.freebusy_disable_nodata_status.booleanValue()) {
             Interval nodata = new Interval(start, end, IcalXmlStrMap.FBTYPE_NODATA);
             intervals.addInterval(nodata);
@@ -147,6 +142,148 @@ public class LocalFreeBusyProvider {
         return new FreeBusy(name, intervals, start, end);
     }
 
+    private interface InstanceVisitor {
+        void visit(String freeBusy, long instStart, long instEnd, int apptId, long recurIdDt);
+    }
+
+    /**
+     * Calls the visitor for each opaque, non-free instance in the calendar summary that starts before {@code end}.
+     */
+    private static void visitBusyInstances(CalendarDataResult result, long end, int exApptId, InstanceVisitor visitor) {
+        for (Iterator<CalendarItemData> iter = result.data.calendarItemIterator(); iter.hasNext(); ) {
+            CalendarItemData appt = iter.next();
+            int apptId = appt.getCalItemId();
+            if (apptId == exApptId)
+                continue;
+            FullInstanceData defaultInstance = appt.getDefaultData();
+            if (defaultInstance == null)
+                continue;
+            boolean isTransparent = false;
+            String transp = defaultInstance.getTransparency();
+            isTransparent = IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transp);
+            long defaultDuration = 0;
+            if (defaultInstance.getDuration() != null)
+                defaultDuration = defaultInstance.getDuration().longValue();
+            String defaultFreeBusy = defaultInstance.getFreeBusyActual();
+            for (Iterator<InstanceData> instIter = appt.instanceIterator(); instIter.hasNext(); ) {
+                InstanceData instance = instIter.next();
+                long instStart = instance.getDtStart() != null ? instance.getDtStart().longValue() : 0;
+                // Skip instances that are outside the time range but were returned due to alarm being in range.
+                if (instStart >= end)
+                    continue;
+                long dur = defaultDuration;
+                if (instance.getDuration() != null)
+                    dur = instance.getDuration().longValue();
+                if (dur <= 0)  // Only consider instances with non-zero, positive duration.
+                    continue;
+                long instEnd = instStart + dur;
+
+                long recurIdDt = 0;
+                // Skip if instance is TRANSPARENT to free/busy searches.
+                if (instance instanceof FullInstanceData) {
+                    FullInstanceData fullInst = (FullInstanceData) instance;
+                    String transpInst = fullInst.getTransparency();
+                    recurIdDt = fullInst.getRecurrenceId();
+                    if (IcalXmlStrMap.TRANSP_TRANSPARENT.equals(transpInst))
+                        continue;
+                } else if (isTransparent) {
+                    continue;
+                }
+
+                String freeBusy = instance.getFreeBusyActual();
+                if (freeBusy == null)
+                    freeBusy = defaultFreeBusy;
+                if (!IcalXmlStrMap.FBTYPE_FREE.equals(freeBusy))
+                    visitor.visit(freeBusy, instStart, instEnd, apptId, recurIdDt);
+            }
+        }
+    }
+
+    /**
+     * ORs the folder's day bitmaps into {@code bitmaps}, building the days missing from the index in one pass over
+     * the calendar summary.
+     */
+    private static void addFolderBitmaps(FreeBusyBitmapCache fbCache, Mailbox mbox, int folderId, int modSeq,
+            long firstDay, long[][] bitmaps) throws ServiceException {
+        String accountId = mbox.getAccountId();
+        long[][] days = new long[bitmaps.length][];
+        int firstMissing = -1;
+        int lastMissing = -1;
+        for (int i = 0; i < days.length; i++) {
+            days[i] = fbCache.get(accountId, folderId, modSeq, firstDay + i);
+            if (days[i] == null) {
+                if (firstMissing < 0)
+                    firstMissing = i;
+                lastMissing = i;
+            }
+        }
+        ZimbraPerf.COUNTER_CALENDAR_FB_INDEX_HIT.increment(firstMissing < 0 ? 1 : 0);
+        if (firstMissing >= 0) {
+            long[][] built = buildFolderBitmaps(fbCache, mbox, folderId, modSeq, firstDay + firstMissing,
+                    lastMissing - firstMissing + 1);
+            for (int i = 0; i < built.length; i++) {
+                if (days[firstMissing + i] == null)
+                    days[firstMissing + i] = built[i];
+            }
+        }
+        for (int i = 0; i < days.length; i++) {
+            FreeBusyBitmapCache.or(bitmaps[i], days[i]);
+        }
+    }
+
+    private static long[][] buildFolderBitmaps(FreeBusyBitmapCache fbCache, Mailbox mbox, int folderId, int modSeq,
+            final long firstDay, int numDays) throws ServiceException {
+        long sequence = fbCache.getSequence(mbox.getAccountId());
+        final long[][] days = new long[numDays][];
+        for (int i = 0; i < numDays; i++) {
+            days[i] = FreeBusyBitmapCache.newBitmap();
+        }
+        long rangeStart = FreeBusyBitmapCache.getDayStart(firstDay);
+        long rangeEnd = FreeBusyBitmapCache.getDayStart(firstDay + numDays);
+        CalendarDataResult result = mbox.getCalendarSummaryForRange(
+                null, folderId, MailItem.Type.APPOINTMENT, rangeStart, rangeEnd);
+        if (result != null) {
+            modSeq = result.data.getModSeq();  // what the bitmaps are actually built from
+            visitBusyInstances(result, rangeEnd, -1, new InstanceVisitor() {
+                @Override
+                public void visit(String freeBusy, long instStart, long instEnd, int apptId, long recurIdDt) {
+                    long from = Math.max(FreeBusyBitmapCache.getDay(instStart), firstDay);
+                    long to = Math.min(FreeBusyBitmapCache.getDay(instEnd - 1), firstDay + days.length - 1);
+                    for (long day = from; day <= to; day++) {
+                        FreeBusyBitmapCache.mark(days[(int) (day - firstDay)], day, freeBusy, instStart, instEnd);
+                    }
+                }
+            });
+        }
+        fbCache.put(mbox.getAccountId(), folderId, modSeq, firstDay, days, sequence);
+        return days;
+    }
+
+    /**
+     * Adds a busy interval for each run of slots with the same status, clipped to [start, end).
+     */
+    private static void addBitmapIntervals(IntervalList intervals, long[][] bitmaps, long firstDay, long start,
+            long end) {
+        long dayStart = FreeBusyBitmapCache.getDayStart(firstDay);
+        int firstSlot = (int) ((start - dayStart) / FreeBusyBitmapCache.SLOT_MSEC);
+        int endSlot = (int) ((end - dayStart + FreeBusyBitmapCache.SLOT_MSEC - 1) / FreeBusyBitmapCache.SLOT_MSEC);
+        String runStatus = null;
+        int runStart = firstSlot;
+        for (int slot = firstSlot; slot <= endSlot; slot++) {
+            String status = slot == endSlot ? null : FreeBusyBitmapCache.getStatus(
+                    bitmaps[slot / FreeBusyBitmapCache.SLOTS_PER_DAY], slot % FreeBusyBitmapCache.SLOTS_PER_DAY);
+            if (status == null ? runStatus == null : status.equals(runStatus))
+                continue;
+            if (runStatus != null) {
+                long ivalStart = Math.max(start, dayStart + runStart * FreeBusyBitmapCache.SLOT_MSEC);
+                long ivalEnd = Math.min(end, dayStart + slot * FreeBusyBitmapCache.SLOT_MSEC);
+                intervals.addInterval(new Interval(ivalStart, ivalEnd, runStatus));
+            }
+            runStatus = status;
+            runStart = slot;
+        }
+    }
+
     public static void main(String[] args) {
         IntervalList l = new IntervalList(0, 100);
         Interval toAdd;
@@ -16,12 +16,14 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 
@@ -90,12 +92,10 @@ final class DiskImapCache implements ImapSessionManager.Cache {
             return;
         }
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
+        OutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
-            synchronized (folder) {
-                oos.writeObject(folder);
-            }
+            oos = new BufferedOutputStream(fos = new FileOutputStream(pagefile));
+            ImapFolderCodec.write(folder, oos);
         } catch (IOException e) {
             ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
@@ -113,11 +113,11 @@ final class DiskImapCache implements ImapSessionManager.Cache {
             return null;
         }
         FileInputStream fis = null;
-        ObjectInputStream ois = null;
+        InputStream ois = null;
         try {
-            // read serialized ImapFolder from cache
-            ois = new ObjectInputStream(fis = new FileInputStream(pagefile));
-            return (ImapFolder) ois.readObject();
+            // read encoded (or serialized) ImapFolder from cache; entries older releases wrote fail and are dropped
+            ois = new BufferedInputStream(fis = new FileInputStream(pagefile));
+            return ImapFolderCodec.read(ois);
         } catch (Exception e) {
             ByteUtil.closeStream(ois);
             ByteUtil.closeStream(fis);
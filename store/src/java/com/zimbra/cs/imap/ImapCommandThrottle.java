@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.common.collect.ImmutableMap;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.util.ZimbraLog;
@@ -32,6 +33,12 @@ public class ImapCommandThrottle {
     private static final long REPEAT_TIME_THRESHOLD = 5 * Constants.MILLIS_PER_MINUTE;
     private static final Map<String, ReentrantLock> commandLock = MapUtil.newTimeoutMap(1 * Constants.MILLIS_PER_HOUR);
     private static final long LOCK_TIMEOUT = 10 * Constants.MILLIS_PER_MINUTE;
+    private static final Map<String, Integer> COMMAND_COSTS = ImmutableMap.<String, Integer>builder()
+            .put("FETCH", 8).put("SEARCH", 8).put("SORT", 8).put("THREAD", 8)
+            .put("SELECT", 4).put("EXAMINE", 4).put("APPEND", 4).put("COPY", 4).put("MOVE", 4).put("STORE", 4)
+            .put("EXPUNGE", 4)
+            .put("STATUS", 2).put("LIST", 2).put("LSUB", 2).put("XLIST", 2)
+            .build();
 
     public ImapCommandThrottle(int repeatLimit) {
         super();
@@ -71,6 +78,25 @@ public class ImapCommandThrottle {
         }
     }
 
+    /**
+     * Estimates the relative cost of the request starting with the given line, for scheduling requests fairly
+     * between accounts. Cheap commands such as NOOP or IDLE, continuation lines and anything unknown cost 1.
+     *
+     * @param line first line of the request, {@code tag SP [UID SP] command ...}
+     */
+    public static int estimateCost(String line) {
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 2) {
+            return 1;
+        }
+        String command = parts[1];
+        if ("UID".equalsIgnoreCase(command) && parts.length > 2) {
+            command = parts[2];
+        }
+        Integer cost = COMMAND_COSTS.get(command.toUpperCase());
+        return cost != null ? cost : 1;
+    }
+
     public void reset() {
         repeats = 0;
         lastCommand = null;
@@ -0,0 +1,161 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Loads the items of a FETCH in batches ahead of the response writer.
+ * <p>
+ * Each batch is read with a single {@link Mailbox#getItemById(OperationContext, int[], MailItem.Type)} call instead
+ * of one lookup per message.  When the FETCH needs parsed MIME content, the messages of a freshly loaded batch are
+ * also parsed into the message cache on a shared pool while the writer works its way through that same batch, so
+ * that it mostly finds all but the first few of them ready.  The next batch is not read ahead.  Messages whose
+ * BODY/BODYSTRUCTURE/ENVELOPE can be served from their {@link ImapMessageSummary} are not parsed.
+ * <p>
+ * Used by a single FETCH on the handler's thread; not thread-safe.
+ */
+final class ImapFetchPrefetcher {
+
+    // shared by all IMAP connections; a full queue means the writer is far enough behind to parse messages itself
+    private static final int PREFETCH_THREADS = LC.imap_fetch_prefetch_threads.intValue();
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = PREFETCH_THREADS <= 0 ? null : new ThreadPoolExecutor(
+            PREFETCH_THREADS, PREFETCH_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(PREFETCH_THREADS * 256),
+            new ThreadFactoryBuilder().setNameFormat("ImapFetchPrefetch-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.DiscardPolicy());
+    static {
+        if (PREFETCH_EXECUTOR != null) {
+            PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private final Mailbox mbox;
+    private final OperationContext octxt;
+    private final List<ImapMessage> messages;
+    private final int batchSize;
+    private final boolean parsesParts;
+    private final boolean parsesStructure;
+    private final Map<Integer, MailItem> loaded = new HashMap<Integer, MailItem>();
+    private int next = 0;
+
+    /**
+     * @param i4set           the messages being fetched, in the order the writer will ask for them
+     * @param parsesParts     whether the FETCH reads body sections that need the parsed message
+     * @param parsesStructure whether the FETCH asks for BODY, BODYSTRUCTURE or ENVELOPE
+     */
+    ImapFetchPrefetcher(Mailbox mbox, OperationContext octxt, Collection<ImapMessage> i4set, boolean parsesParts,
+            boolean parsesStructure) {
+        this.mbox = mbox;
+        this.octxt = octxt;
+        this.messages = new ArrayList<ImapMessage>(i4set.size());
+        for (ImapMessage i4msg : i4set) {
+            if (!i4msg.isExpunged()) {
+                messages.add(i4msg);
+            }
+        }
+        this.batchSize = Math.max(LC.imap_fetch_prefetch_batch_size.intValue(), 1);
+        this.parsesParts = parsesParts;
+        this.parsesStructure = parsesStructure;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the message's item from the batch that contains it, loading that batch first if needed.  Returns
+     * {@code null} if the item could not be loaded (e.g. it was deleted in the meantime); the caller then looks it up
+     * by itself and reports the error.
+     */
+    MailItem getItem(ImapMessage i4msg) {
+        if (!loaded.containsKey(i4msg.msgId) && next < messages.size()) {
+            // the writer is past the current batch
+            loaded.clear();
+            loadBatch();
+        }
+        return loaded.remove(i4msg.msgId);
+    }
+
+    private void loadBatch() {
+        int end = Math.min(next + batchSize, messages.size());
+        int[] ids = new int[end - next];
+        for (int i = next; i < end; i++) {
+            ids[i - next] = messages.get(i).msgId;
+        }
+        next = end;
+
+        MailItem[] items;
+        try {
+            items = mbox.getItemById(octxt, ids, MailItem.Type.UNKNOWN);
+        } catch (ServiceException e) {
+            // typically an item deleted since the FETCH started; don't let it cost the rest of the batch
+            ZimbraLog.imap.debug("could not prefetch %d items; loading them one by one", ids.length, e);
+            items = new MailItem[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                try {
+                    items[i] = mbox.getItemById(octxt, ids[i], MailItem.Type.UNKNOWN);
+                } catch (ServiceException se) {
+                    ZimbraLog.imap.debug("could not prefetch item %d", ids[i], se);
+                }
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            // a missing item keeps its (null) entry, so that it doesn't look like the end of the batch
+            MailItem item = items[i];
+            loaded.put(ids[i], item);
+            if (item != null && PREFETCH_EXECUTOR != null && item instanceof Message &&
+                    (parsesParts || (parsesStructure && ImapMessageSummary.of(item) == null))) {
+                PREFETCH_EXECUTOR.execute(new MimeLoader((Message) item));
+            }
+        }
+    }
+
+    private static final class MimeLoader implements Runnable {
+        private final Message msg;
+
+        MimeLoader(Message msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public void run() {
+            try {
+                msg.getMimeMessage(false);
+            } catch (Exception e) {
+                // the writer will hit (and report) the same problem when it gets to this message
+                ZimbraLog.imap.debug("could not prefetch message %d", msg.getId(), e);
+            }
+        }
+    }
+}
@@ -21,11 +21,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -57,7 +55,7 @@ import com.zimbra.cs.session.Session;
  */
 public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = -2178413924137406395L;
     static final byte SELECT_READONLY  = 0x01;
     static final byte SELECT_CONDSTORE = 0x02;
 
@@ -66,14 +64,13 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
     private transient ImapSession session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
     private transient ImapFlagCache flags;
 
     private final int folderId;
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    private final ImapMessageSequence sequence = new ImapMessageSequence();
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -123,6 +120,24 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         this.tags = new ImapFlagCache();
     }
 
+    /** Rebuilds a cached folder decoded by {@link ImapFolderCodec}.  As with a
+     *  deserialized folder, the session state is filled in by {@link #restore}. */
+    ImapFolder(int folderId, int uidValidity, String query, Set<MailItem.Type> typeConstraint, ImapFlagCache tags,
+            List<ImapMessage> messages) {
+        this.folderId = folderId;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+        sequence.addAll(messages);
+        for (int seq = 0; seq < sequence.size(); seq++) {
+            ImapMessage i4msg = sequence.get(seq);
+            if (i4msg != null) {
+                i4msg.sequence = seq + 1;
+            }
+        }
+    }
+
     void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -139,7 +154,7 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
             imap.addAttribute("writable", isWritable());
             imap.addAttribute("dirty", sdata.dirtyMessages.size()).addAttribute("expunged", sdata.expungedCount);
         }
-        imap.addAttribute("size", getSize());
+        imap.addAttribute("size", getSize()).addAttribute("footprint", getHeapFootprint());
         imap.addAttribute("folder", path.asImapPath()).addAttribute("query", query);
     }
 
@@ -264,17 +279,28 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
     }
 
     public synchronized void traverse(Function<ImapMessage, Void> func) {
-        int prevUid = -1;
-        for (Iterator<ImapMessage> it = sequence.iterator(); it.hasNext();) {
-            ImapMessage i4msg = it.next();
+        int prevUid = -1, kept = 0;
+        for (int idx = 0; idx < sequence.size(); idx++) {
+            ImapMessage i4msg = sequence.get(idx);
             if (i4msg.imapUid == prevUid) {
                 ZimbraLog.imap.warn("duplicate UID %d in cached folder %d", prevUid, folderId);
-                it.remove();
             } else {
+                if (kept != idx) {
+                    sequence.set(kept, i4msg);
+                    setIndex(i4msg, kept + 1);
+                }
+                kept++;
                 prevUid = i4msg.imapUid;
                 func.apply(i4msg);
             }
         }
+        sequence.truncate(kept);
+    }
+
+    /** Returns an estimate in bytes of the heap held by this folder's
+     *  message list, for budgeting the sessions kept in memory. */
+    synchronized long getHeapFootprint() {
+        return sequence.estimateHeapSize();
     }
 
     ImapPath getPath() {
@@ -318,19 +344,7 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
      *         and only if the key is found.
      * @see Collections#binarySearch(List, Object) */
     private int uidSearch(int uid) {
-        int low = 0, high = getSize() - 1;
-        while (low <= high) {
-            int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
-            if (targetUid < uid) {
-                low = mid + 1;
-            } else if (targetUid > uid) {
-                high = mid - 1;
-            } else {
-                return mid;  // key found
-            }
-        }
-        return -(low + 1);  // key not found
+        return sequence.uidSearch(uid);
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
@@ -351,17 +365,15 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
             }
         }
 
-        // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
-        if (messageIds == null) {
-            // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
-                    messageIds.put(i4msg.msgId, i4msg);
-                }
-            }
+        // if item id and IMAP uid differ, the message's UID is in the sequence's item id table
+        if (!sequence.hasIdIndex()) {
+            // lookup miss means we need to generate the item-id-to-imap-uid mapping
+            sequence.buildIdIndex();
         }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        int uid = sequence.getUidForId(id);
+        seq = uid > 0 ? uidSearch(uid) : -1;
+        ImapMessage i4msg = seq >= 0 ? sequence.get(seq) : null;
+        return i4msg != null && i4msg.msgId == id ? checkRemoved(i4msg) : null;
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
@@ -483,12 +495,10 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
 
     private void setIndex(ImapMessage i4msg, int position) {
         i4msg.sequence = position;
-        if (messageIds != null) {
-            if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
-            } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
-            }
+        if (i4msg.msgId != i4msg.imapUid) {
+            sequence.putId(i4msg.msgId, i4msg.imapUid);
+        } else {
+            sequence.removeId(i4msg.msgId);
         }
     }
 
@@ -496,9 +506,7 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
      *  structures other than {@link #sequence}.  The {@link #sequence}
      *  cleanup must be done separately. */
     private void uncache(ImapMessage i4msg) {
-        if (messageIds != null) {
-            messageIds.remove(i4msg.msgId);
-        }
+        sequence.removeId(i4msg.msgId);
         SessionData sdata = sessionData;
         if (sdata != null) {
             sdata.dirtyMessages.remove(Integer.valueOf(i4msg.imapUid));
@@ -576,6 +584,12 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         return tags;
     }
 
+    /** Returns the folder's {@link #sequence} message list itself; the caller
+     *  must hold this folder's monitor while using it. */
+    List<ImapMessage> getSequence() {
+        return sequence;
+    }
+
     void clearTagCache() {
         tags.clear();
     }
@@ -1050,28 +1064,30 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
-        int seq = 1;
+        // compact the surviving messages toward the front in a single pass
+        int kept = 0;
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
+        for (int idx = 0; idx < sequence.size(); idx++) {
+            ImapMessage i4msg = sequence.get(idx);
             if (i4msg.isExpunged()) {
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
-                // uncache() removes pointers to the message from mMessageIds;
+                // uncache() removes the message's item id from the sequence's id table;
                 //   if the message appears again in sequence, it *must* be later and the
-                //   subsequent call to setIndex() will correctly update the mMessageIds mapping
+                //   subsequent call to setIndex() will correctly update the mapping
                 uncache(i4msg);
-                lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
                 if (!i4msg.isAdded()) {
-                    removed.add(byUID ? i4msg.imapUid : seq);
+                    removed.add(byUID ? i4msg.imapUid : kept + 1);
+                }
+            } else {
+                if (kept != idx) {
+                    sequence.set(kept, i4msg);
+                    setIndex(i4msg, kept + 1);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+                kept++;
             }
         }
+        sequence.truncate(kept);
         return removed;
     }
 
@@ -0,0 +1,353 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary encoding of the cached state of an {@link ImapFolder}.
+ * <p>
+ * The message list is written column by column -- IMAP UIDs (delta-encoded), item ids (relative to their UID, which
+ * is nearly always zero), Zimbra flags, session flags and a per-message tag bitmap over a dictionary of the tag names
+ * used in the folder -- so that a folder of 100,000 untagged messages costs a few bytes per message instead of a
+ * serialized {@link ImapMessage} object each.  Every value is read straight off the stream, which lets a cache decode
+ * a folder without first buffering the whole entry.
+ * <p>
+ * Snapshots start with {@link #MAGIC} and a version byte; anything else is assumed to be a folder written with Java
+ * serialization ({@code imap_cache_compact_encoding} off) and is read back that way.  Folders serialized by earlier
+ * releases don't load, as the {@link ImapFolder} class has changed since; callers treat them as cache misses.
+ * <pre>
+ *   int     MAGIC
+ *   byte    VERSION
+ *   int     folder id
+ *   int     UIDVALIDITY
+ *   bool    has query, [UTF query]
+ *   varint  #types, UTF type name...
+ *   varint  #tags, tag...          (name, IMAP name, id, bitmask, positive/permanent/listed bits, modseq)
+ *   varint  #messages
+ *   varint  #tag names, UTF tag name...
+ *   varint  UID delta...           (zigzag)
+ *   varint  item id - UID...       (zigzag)
+ *   varint  flags...
+ *   varint  session flags...       (NULL_SLOT marks a null entry in the sequence)
+ *   varlong tag bitmap word...     (ceil(#tag names / 64) words per message)
+ * </pre>
+ *
+ * @see ImapSessionManager.Cache
+ */
+final class ImapFolderCodec {
+    static final int MAGIC = 0x49344643; // "I4FC"
+    static final byte VERSION = 1;
+
+    private static final int NULL_SLOT = 0x10000;
+    private static final String[] NO_TAGS = new String[0];
+
+    private ImapFolderCodec() {
+    }
+
+    /** Returns whether folders are written in this format rather than with Java serialization. */
+    static boolean isEnabled() {
+        return LC.imap_cache_compact_encoding.booleanValue();
+    }
+
+    /** Writes the folder in the format selected by {@link #isEnabled()}. */
+    static void write(ImapFolder folder, OutputStream os) throws IOException {
+        if (isEnabled()) {
+            encode(folder, os);
+        } else {
+            ObjectOutputStream oos = new ObjectOutputStream(os);
+            synchronized (folder) {
+                oos.writeObject(folder);
+            }
+            oos.flush();
+        }
+    }
+
+    static byte[] write(ImapFolder folder) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        write(folder, bout);
+        return bout.toByteArray();
+    }
+
+    /** Reads a folder written by {@link #write}, in either format. */
+    static ImapFolder read(InputStream is) throws IOException {
+        if (!is.markSupported()) {
+            is = new BufferedInputStream(is);
+        }
+        is.mark(4);
+        DataInputStream in = new DataInputStream(is);
+        int magic = in.readInt();
+        is.reset();
+        if (magic == MAGIC) {
+            return decode(is);
+        }
+        try {
+            return (ImapFolder) new ObjectInputStream(is).readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("not a cached ImapFolder: " + e);
+        }
+    }
+
+    static ImapFolder read(byte[] data) throws IOException {
+        return read(new ByteArrayInputStream(data));
+    }
+
+    static void encode(ImapFolder folder, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        synchronized (folder) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(folder.getId());
+            out.writeInt(folder.getUIDValidity());
+            out.writeBoolean(folder.isVirtual());
+            if (folder.isVirtual()) {
+                out.writeUTF(folder.getQuery());
+            }
+            Set<MailItem.Type> types = folder.getTypeConstraint();
+            writeVarint(out, types.size());
+            for (MailItem.Type type : types) {
+                out.writeUTF(type.name());
+            }
+
+            List<ImapFlag> tagset = new ArrayList<ImapFlag>();
+            for (ImapFlag i4flag : folder.getTagset()) {
+                tagset.add(i4flag);
+            }
+            writeVarint(out, tagset.size());
+            for (ImapFlag i4flag : tagset) {
+                out.writeUTF(i4flag.mName);
+                out.writeUTF(i4flag.mImapName);
+                out.writeInt(i4flag.mId);
+                out.writeLong(i4flag.mBitmask);
+                out.writeByte((i4flag.mPositive ? 0x01 : 0) | (i4flag.mPermanent ? 0x02 : 0) |
+                        (i4flag.mListed ? 0x04 : 0));
+                out.writeInt(i4flag.mModseq);
+            }
+
+            List<ImapMessage> sequence = folder.getSequence();
+            int count = sequence.size();
+            writeVarint(out, count);
+
+            Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+            for (ImapMessage i4msg : sequence) {
+                if (i4msg != null && i4msg.tags != null) {
+                    for (String tag : i4msg.tags) {
+                        if (!dictionary.containsKey(tag)) {
+                            dictionary.put(tag, dictionary.size());
+                        }
+                    }
+                }
+            }
+            writeVarint(out, dictionary.size());
+            for (String tag : dictionary.keySet()) {
+                out.writeUTF(tag);
+            }
+
+            int prevUid = 0;
+            for (ImapMessage i4msg : sequence) {
+                int uid = i4msg == null ? prevUid : i4msg.imapUid;
+                writeVarint(out, zigzag(uid - prevUid));
+                prevUid = uid;
+            }
+            for (ImapMessage i4msg : sequence) {
+                writeVarint(out, i4msg == null ? 0 : zigzag(i4msg.msgId - i4msg.imapUid));
+            }
+            for (ImapMessage i4msg : sequence) {
+                writeVarint(out, i4msg == null ? 0 : i4msg.flags);
+            }
+            for (ImapMessage i4msg : sequence) {
+                writeVarint(out, i4msg == null ? NULL_SLOT : i4msg.sflags & 0xFFFF);
+            }
+            int words = (dictionary.size() + 63) / 64;
+            if (words > 0) {
+                long[] bitmap = new long[words];
+                for (ImapMessage i4msg : sequence) {
+                    Arrays.fill(bitmap, 0L);
+                    if (i4msg != null && i4msg.tags != null) {
+                        for (String tag : i4msg.tags) {
+                            int bit = dictionary.get(tag);
+                            bitmap[bit >>> 6] |= 1L << (bit & 63);
+                        }
+                    }
+                    for (long word : bitmap) {
+                        writeVarlong(out, word);
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    static ImapFolder decode(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("bad ImapFolder snapshot header");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("unsupported ImapFolder snapshot version " + version);
+        }
+        int folderId = in.readInt();
+        int uidValidity = in.readInt();
+        String query = in.readBoolean() ? in.readUTF() : null;
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        for (int i = readVarint(in); i > 0; i--) {
+            try {
+                types.add(MailItem.Type.valueOf(in.readUTF()));
+            } catch (IllegalArgumentException e) {
+                throw new StreamCorruptedException("unknown item type in ImapFolder snapshot: " + e.getMessage());
+            }
+        }
+        if (types.equals(ImapHandler.ITEM_TYPES)) {
+            types = ImapHandler.ITEM_TYPES;
+        }
+
+        ImapFlagCache tagset = new ImapFlagCache();
+        for (int i = readVarint(in); i > 0; i--) {
+            String name = in.readUTF();
+            String imapName = in.readUTF();
+            int id = in.readInt();
+            long bitmask = in.readLong();
+            int bits = in.readByte();
+            int modseq = in.readInt();
+            tagset.cache(new ImapFlag(name, imapName, id, bitmask,
+                    (bits & 0x01) != 0, (bits & 0x02) != 0, (bits & 0x04) != 0, modseq));
+        }
+
+        int count = readVarint(in);
+        String[] dictionary = new String[readVarint(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readUTF();
+        }
+
+        int[] uids = new int[count];
+        int uid = 0;
+        for (int i = 0; i < count; i++) {
+            uid += unzigzag(readVarint(in));
+            uids[i] = uid;
+        }
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = uids[i] + unzigzag(readVarint(in));
+        }
+        int[] flags = new int[count];
+        for (int i = 0; i < count; i++) {
+            flags[i] = readVarint(in);
+        }
+        List<ImapMessage> sequence = new ArrayList<ImapMessage>(count);
+        for (int i = 0; i < count; i++) {
+            int sflags = readVarint(in);
+            ImapMessage i4msg = null;
+            if (sflags != NULL_SLOT) {
+                i4msg = new ImapMessage(ids[i], MailItem.Type.MESSAGE, uids[i], flags[i], NO_TAGS);
+                i4msg.sflags = (short) sflags;
+            }
+            sequence.add(i4msg);
+        }
+        int words = (dictionary.length + 63) / 64;
+        if (words > 0) {
+            List<String> tags = new ArrayList<String>();
+            for (ImapMessage i4msg : sequence) {
+                tags.clear();
+                for (int w = 0; w < words; w++) {
+                    long word = readVarlong(in);
+                    while (word != 0) {
+                        int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+                        if (bit >= dictionary.length) {
+                            throw new StreamCorruptedException("tag bitmap out of range in ImapFolder snapshot");
+                        }
+                        tags.add(dictionary[bit]);
+                        word &= word - 1;
+                    }
+                }
+                if (i4msg != null && !tags.isEmpty()) {
+                    i4msg.tags = tags.toArray(new String[tags.size()]);
+                }
+            }
+        }
+        return new ImapFolder(folderId, uidValidity, query, types, tagset, sequence);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeVarlong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed varint in ImapFolder snapshot");
+    }
+
+    private static long readVarlong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed varint in ImapFolder snapshot");
+    }
+}
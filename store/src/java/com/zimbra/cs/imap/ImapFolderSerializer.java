@@ -0,0 +1,72 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+/**
+ * Ehcache value serializer storing {@link ImapFolder}s in the {@link ImapFolderCodec} format.
+ *
+ * @see EhcacheImapCache
+ */
+public final class ImapFolderSerializer implements Serializer<ImapFolder> {
+
+    /**
+     * Identifies what {@link #read} accepts: the codec version, and the {@link ImapFolder} class version that
+     * serialized folders must match.  A persisted cache written under a different id can't be read back.
+     */
+    public static String getFormatId() {
+        return "I4FC-" + ImapFolderCodec.VERSION + '-' +
+                ObjectStreamClass.lookup(ImapFolder.class).getSerialVersionUID();
+    }
+
+    @Override
+    public ByteBuffer serialize(ImapFolder folder) throws SerializerException {
+        try {
+            return ByteBuffer.wrap(ImapFolderCodec.write(folder));
+        } catch (IOException e) {
+            throw new SerializerException("Failed to serialize ImapFolder", e);
+        }
+    }
+
+    @Override
+    public ImapFolder read(ByteBuffer binary) throws SerializerException {
+        try {
+            return ImapFolderCodec.read(new ByteArrayInputStream(toBytes(binary)));
+        } catch (IOException e) {
+            throw new SerializerException("Failed to deserialize ImapFolder", e);
+        }
+    }
+
+    @Override
+    public boolean equals(ImapFolder folder, ByteBuffer binary) throws SerializerException {
+        return Arrays.equals(serialize(folder).array(), toBytes(binary));
+    }
+
+    private static byte[] toBytes(ByteBuffer binary) {
+        byte[] data = new byte[binary.remaining()];
+        binary.duplicate().get(data);
+        return data;
+    }
+}
@@ -3721,9 +3721,14 @@ abstract class ImapHandler {
             mbox.lock.release();
         }
         ReentrantLock lock = null;
+        boolean parsesParts = parts != null && !parts.isEmpty();
+        ImapFetchPrefetcher prefetcher = null;
+        int flushInterval = Math.max(LC.imap_fetch_prefetch_batch_size.intValue(), 1), unflushed = 0;
         try {
+            // one PrintStream (and its encoder buffers) for all the untagged responses
+            PrintStream response = new PrintStream(output, false, Charsets.UTF_8.name());
             for (ImapMessage i4msg : i4set) {
-                PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
+                PrintStream result = response;
                 try {
                     result.print("* " + i4msg.sequence + " FETCH (");
 
@@ -3736,12 +3741,19 @@ abstract class ImapHandler {
                     boolean empty = true;
                     MailItem item = null;
                     MimeMessage mm;
-                    if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
+                    if (!fullMessage.isEmpty() || parsesParts || (attributes & ~FETCH_FROM_CACHE) != 0) {
                         if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
                         try {
-                            item = mbox.getItemById(getContext(), i4msg.msgId, i4msg.getType());
+                            if (prefetcher == null) {
+                                prefetcher = new ImapFetchPrefetcher(mbox, getContext(), i4set, parsesParts,
+                                        (attributes & FETCH_FROM_MIME) != 0);
+                            }
+                            item = prefetcher.getItem(i4msg);
+                            if (item == null) {
+                                item = mbox.getItemById(getContext(), i4msg.msgId, i4msg.getType());
+                            }
                         } catch (NoSuchItemException nsie) {
                             // just in case we're out of sync, force this message back into sync
                             i4folder.markMessageExpunged(i4msg);
@@ -3776,24 +3788,38 @@ abstract class ImapHandler {
                         }
                     }
 
-                    if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                    if (parsesParts || (attributes & FETCH_FROM_MIME) != 0) {
+                        // BODY, BODYSTRUCTURE and ENVELOPE come from the precomputed summary when there is one
+                        ImapMessageSummary summary = (attributes & FETCH_FROM_MIME) != 0 ? ImapMessageSummary.of(item) : null;
+                        mm = summary != null && !parsesParts ? null : ImapMessage.getMimeMessage(item);
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
-                            ImapMessage.serializeStructure(result, mm, false);
+                            if (summary != null) {
+                                result.print(summary.body);
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, false);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (summary != null) {
+                                result.print(summary.bodyStructure);
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (summary != null) {
+                                result.print(summary.envelope);
+                            } else {
+                                ImapMessage.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
@@ -3847,10 +3873,15 @@ abstract class ImapHandler {
                     if (result != null) {
                         result.write(')');
                         output.write(LINE_SEPARATOR_BYTES, 0, LINE_SEPARATOR_BYTES.length);
-                        output.flush();
+                        // flush once per prefetch batch rather than once per message
+                        if (++unflushed >= flushInterval) {
+                            output.flush();
+                            unflushed = 0;
+                        }
                     }
                 }
             }
+            output.flush();
         } finally {
             if (lock != null) {
                 lock.unlock();
@@ -0,0 +1,273 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The message list of an {@link ImapFolder}, in IMAP sequence order.
+ * <p>
+ * Messages are kept in a plain array alongside a parallel {@code int[]} column of their IMAP UIDs, so that resolving a
+ * UID or a UID range is a binary search over contiguous primitives rather than a walk through the message objects.
+ * Messages whose item id differs from their UID (typically ones that were moved or copied into the folder) are
+ * indexed by an open-addressing item-id-to-UID table that replaces the old {@code HashMap<Integer, ImapMessage>} and
+ * its boxed keys and entry objects.  The table is built lazily on the first lookup miss, as before.
+ * <p>
+ * Not thread-safe; the owning folder synchronizes access.
+ */
+final class ImapMessageSequence extends AbstractList<ImapMessage> implements RandomAccess, java.io.Serializable {
+    private static final long serialVersionUID = 8436451726376543021L;
+
+    private static final ImapMessage[] NO_MESSAGES = new ImapMessage[0];
+    private static final int[] NO_UIDS = new int[0];
+
+    /** Rough heap cost of an {@link ImapMessage} (header, five fields, tag array reference). */
+    static final int MESSAGE_BYTES = 40;
+    private static final int ARRAY_BYTES = 16;
+
+    private transient ImapMessage[] messages = NO_MESSAGES;
+    private transient int[] uids = NO_UIDS;
+    private transient int size;
+
+    // item id -> IMAP UID; 0 marks a free slot since item ids are always positive
+    private transient int[] idKeys;
+    private transient int[] idUids;
+    private transient int idCount;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public ImapMessage get(int index) {
+        checkIndex(index, size);
+        return messages[index];
+    }
+
+    /** Returns the IMAP UID of the message at the given 0-based index. */
+    int getUid(int index) {
+        checkIndex(index, size);
+        return uids[index];
+    }
+
+    @Override
+    public ImapMessage set(int index, ImapMessage i4msg) {
+        checkIndex(index, size);
+        ImapMessage old = messages[index];
+        messages[index] = i4msg;
+        uids[index] = i4msg == null ? 0 : i4msg.imapUid;
+        return old;
+    }
+
+    @Override
+    public void add(int index, ImapMessage i4msg) {
+        checkIndex(index, size + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(messages, index, messages, index + 1, size - index);
+        System.arraycopy(uids, index, uids, index + 1, size - index);
+        messages[index] = i4msg;
+        uids[index] = i4msg == null ? 0 : i4msg.imapUid;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public ImapMessage remove(int index) {
+        checkIndex(index, size);
+        ImapMessage old = messages[index];
+        System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+        System.arraycopy(uids, index + 1, uids, index, size - index - 1);
+        messages[--size] = null;
+        modCount++;
+        return old;
+    }
+
+    /** Drops every message at or after {@code newSize}.  Together with {@link #set}, this lets callers compact the
+     *  sequence in a single pass instead of removing messages one at a time. */
+    void truncate(int newSize) {
+        checkIndex(newSize, size + 1);
+        Arrays.fill(messages, newSize, size, null);
+        size = newSize;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        truncate(0);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > messages.length) {
+            int capacity = Math.max(Math.max(minCapacity, 16), messages.length + (messages.length >> 1));
+            messages = Arrays.copyOf(messages, capacity);
+            uids = Arrays.copyOf(uids, capacity);
+        }
+    }
+
+    private static void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+    }
+
+    /** Binary search for a UID, with the same contract as {@link Arrays#binarySearch(int[], int)}. */
+    int uidSearch(int uid) {
+        return Arrays.binarySearch(uids, 0, size, uid);
+    }
+
+    /** Returns whether the item id table has been built since the folder was created or loaded. */
+    boolean hasIdIndex() {
+        return idKeys != null;
+    }
+
+    /** Builds the item id table from every message whose item id differs from its UID. */
+    void buildIdIndex() {
+        idKeys = new int[16];
+        idUids = new int[16];
+        idCount = 0;
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = messages[i];
+            if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
+                putId(i4msg.msgId, i4msg.imapUid);
+            }
+        }
+    }
+
+    /** Returns the UID recorded for the item id, or 0 if there is none or the table has not been built. */
+    int getUidForId(int msgId) {
+        if (idKeys == null || msgId <= 0) {
+            return 0;
+        }
+        int mask = idKeys.length - 1;
+        for (int slot = mix(msgId) & mask; idKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (idKeys[slot] == msgId) {
+                return idUids[slot];
+            }
+        }
+        return 0;
+    }
+
+    /** Records the message's UID under its item id if the table has been built. */
+    void putId(int msgId, int uid) {
+        if (idKeys == null || msgId <= 0) {
+            return;
+        }
+        if ((idCount + 1) * 2 > idKeys.length) {
+            int[] oldKeys = idKeys, oldUids = idUids;
+            idKeys = new int[oldKeys.length * 2];
+            idUids = new int[oldKeys.length * 2];
+            idCount = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    putId(oldKeys[i], oldUids[i]);
+                }
+            }
+        }
+        int mask = idKeys.length - 1;
+        int slot = mix(msgId) & mask;
+        while (idKeys[slot] != 0 && idKeys[slot] != msgId) {
+            slot = (slot + 1) & mask;
+        }
+        if (idKeys[slot] == 0) {
+            idKeys[slot] = msgId;
+            idCount++;
+        }
+        idUids[slot] = uid;
+    }
+
+    /** Forgets the item id, if the table has been built. */
+    void removeId(int msgId) {
+        if (idKeys == null || msgId <= 0) {
+            return;
+        }
+        int mask = idKeys.length - 1;
+        int slot = mix(msgId) & mask;
+        while (idKeys[slot] != msgId) {
+            if (idKeys[slot] == 0) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // backward-shift the rest of the probe run so that lookups never need tombstones
+        int gap = slot;
+        for (slot = (slot + 1) & mask; idKeys[slot] != 0; slot = (slot + 1) & mask) {
+            int home = mix(idKeys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                idKeys[gap] = idKeys[slot];
+                idUids[gap] = idUids[slot];
+                gap = slot;
+            }
+        }
+        idKeys[gap] = 0;
+        idUids[gap] = 0;
+        idCount--;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns an estimate of the heap held by the messages and the structures indexing them, for weighing in-memory
+     * sessions against each other.  The estimate assumes compressed object pointers and counts tag name arrays but
+     * not the (shared) tag name strings.
+     */
+    long estimateHeapSize() {
+        long bytes = 2 * ARRAY_BYTES + messages.length * 4L + uids.length * 4L;
+        if (idKeys != null) {
+            bytes += 2 * ARRAY_BYTES + idKeys.length * 8L;
+        }
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = messages[i];
+            if (i4msg != null) {
+                bytes += MESSAGE_BYTES;
+                if (i4msg.tags != null && i4msg.tags.length > 0) {
+                    bytes += ARRAY_BYTES + ((i4msg.tags.length * 4 + 7) & ~7);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeObject(messages[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        messages = count == 0 ? NO_MESSAGES : new ImapMessage[count];
+        uids = count == 0 ? NO_UIDS : new int[count];
+        for (int i = 0; i < count; i++) {
+            ImapMessage i4msg = (ImapMessage) in.readObject();
+            messages[i] = i4msg;
+            uids[i] = i4msg == null ? 0 : i4msg.imapUid;
+        }
+        size = count;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.Metadata;
+import com.zimbra.cs.mime.Mime;
+
+/**
+ * The BODY, BODYSTRUCTURE and ENVELOPE FETCH items of a message, rendered once when the message is stored and kept in
+ * its metadata so that FETCHing them does not require reading and parsing the message blob.
+ * <p>
+ * The rendering is versioned; bump {@link #VERSION} whenever {@link ImapMessage#serializeStructure} or
+ * {@link ImapMessage#serializeEnvelope} change their output, and stored summaries from older releases are ignored in
+ * favor of the MIME path.
+ */
+public final class ImapMessageSummary {
+    static final int VERSION = 1;
+
+    private static final String FN_VERSION = "v";
+    private static final String FN_BODY = "b";
+    private static final String FN_BODYSTRUCTURE = "bs";
+    private static final String FN_ENVELOPE = "e";
+
+    final String body;
+    final String bodyStructure;
+    final String envelope;
+
+    private ImapMessageSummary(String body, String bodyStructure, String envelope) {
+        this.body = body;
+        this.bodyStructure = bodyStructure;
+        this.envelope = envelope;
+    }
+
+    /**
+     * Renders the FETCH items for a message about to be stored, or returns {@code null} if summaries are disabled,
+     * the message is encrypted or signed (those are rendered from their decoded form at FETCH time), or the rendering
+     * fails or exceeds {@code imap_fetch_summary_max_length} characters.
+     *
+     * @param mm the message as it will be stored, i.e. without TNEF or uuencode conversion
+     */
+    public static Metadata encode(MimeMessage mm) {
+        if (mm == null || !LC.imap_fetch_summary_enabled.booleanValue()) {
+            return null;
+        }
+        try {
+            String ctype = mm.getContentType();
+            if (ctype != null && (Mime.isEncrypted(ctype) || Mime.isPKCS7Signed(ctype))) {
+                return null;
+            }
+            ImapMessageSummary summary = new ImapMessageSummary(render(mm, FETCH_BODY), render(mm, FETCH_BODYSTRUCTURE),
+                    render(mm, FETCH_ENVELOPE));
+            int length = summary.body.length() + summary.bodyStructure.length() + summary.envelope.length();
+            if (length > LC.imap_fetch_summary_max_length.intValue()) {
+                return null;
+            }
+            Metadata meta = new Metadata();
+            meta.put(FN_VERSION, VERSION);
+            meta.put(FN_BODY, summary.body);
+            meta.put(FN_BODYSTRUCTURE, summary.bodyStructure);
+            meta.put(FN_ENVELOPE, summary.envelope);
+            return meta;
+        } catch (Exception e) {
+            ZimbraLog.imap.debug("could not precompute IMAP FETCH summary", e);
+            return null;
+        }
+    }
+
+    /** Returns the stored summary of the item, or {@code null} if it has none usable by this release. */
+    static ImapMessageSummary of(MailItem item) {
+        if (!(item instanceof Message)) {
+            return null;
+        }
+        Metadata meta = ((Message) item).getImapSummary();
+        if (meta == null) {
+            return null;
+        }
+        try {
+            if (meta.getLong(FN_VERSION, 0) != VERSION) {
+                return null;
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        String body = meta.get(FN_BODY, null);
+        String bodyStructure = meta.get(FN_BODYSTRUCTURE, null);
+        String envelope = meta.get(FN_ENVELOPE, null);
+        if (body == null || bodyStructure == null || envelope == null) {
+            return null;
+        }
+        return new ImapMessageSummary(body, bodyStructure, envelope);
+    }
+
+    static final int FETCH_BODY = 0, FETCH_BODYSTRUCTURE = 1, FETCH_ENVELOPE = 2;
+
+    static String render(MimeMessage mm, int item) throws IOException, MessagingException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        PrintStream ps = new PrintStream(baos, false, Charsets.UTF_8.name());
+        if (item == FETCH_ENVELOPE) {
+            ImapMessage.serializeEnvelope(ps, mm);
+        } else {
+            ImapMessage.serializeStructure(ps, mm, item == FETCH_BODYSTRUCTURE);
+        }
+        ps.flush();
+        return new String(baos.toByteArray(), Charsets.UTF_8);
+    }
+}
@@ -148,6 +148,13 @@ public class ImapSession extends Session {
         return mFolder.getSize();
     }
 
+    /** Returns an estimate in bytes of the heap held by the selected folder's
+     *  in-memory state; paged-out sessions report 0. */
+    long getHeapFootprint() {
+        ImapFolderData fdata = mFolder;
+        return fdata instanceof ImapFolder ? ((ImapFolder) fdata).getHeapFootprint() : 0;
+    }
+
     boolean requiresReload() {
         ImapFolderData fdata = mFolder;
         return fdata instanceof ImapFolder ? false : ((PagedFolderData) fdata).notificationsFull();
@@ -236,6 +243,13 @@ public class ImapSession extends Session {
         return true;
     }
 
+    /** The selected folder's state is read and paged out under the mailbox lock, so it has to be
+     *  up to date with every change committed while the lock was held. */
+    @Override
+    public boolean requiresSynchronousNotification() {
+        return true;
+    }
+
     @Override
     public void doEncodeState(Element parent) {
         mFolder.doEncodeState(parent.addNonUniqueElement("imap"));
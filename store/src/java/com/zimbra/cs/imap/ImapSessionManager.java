@@ -21,7 +21,6 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -62,6 +61,7 @@ final class ImapSessionManager {
     static final long SESSION_INACTIVITY_SERIALIZATION_TIME =
             DebugConfig.imapSessionInactivitySerializationTime * Constants.MILLIS_PER_SECOND;
     static final int TOTAL_SESSION_FOOTPRINT_LIMIT = DebugConfig.imapTotalNonserializedSessionFootprintLimit;
+    static final long TOTAL_SESSION_HEAP_LIMIT = LC.imap_total_session_heap_limit.longValue();
     static final boolean CONSISTENCY_CHECK = DebugConfig.imapCacheConsistencyCheck;
 
     private static final boolean TERMINATE_ON_CLOSE = DebugConfig.imapTerminateSessionOnClose;
@@ -87,7 +87,8 @@ final class ImapSessionManager {
 
     private ImapSessionManager() {
         if (SERIALIZER_INTERVAL_MSEC > 0) {
-            Zimbra.sTimer.schedule(new SessionSerializerTask(), SERIALIZER_INTERVAL_MSEC, SERIALIZER_INTERVAL_MSEC);
+            Zimbra.sTimingWheel.schedule("ImapSessionSerializer", new SessionSerializerTask(),
+                    SERIALIZER_INTERVAL_MSEC, SERIALIZER_INTERVAL_MSEC);
             ZimbraLog.imap.debug("initializing IMAP session serializer task");
         }
         if (LC.imap_use_ehcache.booleanValue()) {
@@ -130,7 +131,7 @@ final class ImapSessionManager {
      *  <li>maybe checkpoint a few "dirty" sessions if we're not doing anything else?
      * </ol>
      */
-    final class SessionSerializerTask extends TimerTask {
+    final class SessionSerializerTask implements Runnable {
 
         @Override
         public void run() {
@@ -160,6 +161,7 @@ final class ImapSessionManager {
                     }
                 }
                 int footprint = Math.min(maxOverflow, TOTAL_SESSION_FOOTPRINT_LIMIT - 1000);
+                long heap = 0;
 
                 // next, get the set of in-memory sessions that need to get serialized out or dropped.
 
@@ -169,6 +171,7 @@ final class ImapSessionManager {
                 while (mostRecentToLeastRecentIterator.hasNext()) {
                     ImapSession session = mostRecentToLeastRecentIterator.next();
                     int size = session.getEstimatedSize();
+                    long heapSize = TOTAL_SESSION_HEAP_LIMIT > 0 ? session.getHeapFootprint() : 0;
                     // want to serialize enough sessions to get below the memory threshold
                     // also going to serialize anything that's been idle for a while
                     if (!session.isInteractive() && session.getLastAccessTime() < nonInteractiveCutoff) {
@@ -177,10 +180,15 @@ final class ImapSessionManager {
                         pageable.add(session);
                     } else if (footprint + size > TOTAL_SESSION_FOOTPRINT_LIMIT) {
                         pageable.add(session);
+                    } else if (TOTAL_SESSION_HEAP_LIMIT > 0 && heap + heapSize > TOTAL_SESSION_HEAP_LIMIT) {
+                        pageable.add(session);
                     } else {
                         footprint += size;
+                        heap += heapSize;
                     }
                 }
+                ZimbraLog.imap.debug("IMAP sessions kept in memory: %d messages, ~%d bytes; paging out %d",
+                        footprint, heap, pageable.size());
 
                 for (ImapSession session : pageable) {
                     try {
@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.util.Map;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
 import org.apache.mina.filter.codec.ProtocolDecoder;
@@ -32,10 +33,12 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioServer;
+import com.zimbra.cs.server.NioUtil;
 import com.zimbra.cs.server.ServerThrottle;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 public final class NioImapServer extends NioServer implements ImapServer, RealtimeStatsCallback {
+    private static final int MAX_COST_PEEK = 64;  // bytes of a request looked at to estimate its cost
     private final NioImapDecoder decoder;
 
     public NioImapServer(ImapConfig config) throws ServiceException {
@@ -59,6 +62,26 @@ public final class NioImapServer extends NioServer implements ImapServer, Realti
         return new NioImapHandler(this, conn);
     }
 
+    @Override
+    protected Object getSchedulingGroup(IoSession session) {
+        NioHandler handler = getHandler(session);
+        if (handler instanceof ImapHandler) {
+            ImapCredentials creds = ((ImapHandler) handler).getCredentials();
+            if (creds != null) {
+                return creds.getAccountId();
+            }
+        }
+        return super.getSchedulingGroup(session);
+    }
+
+    @Override
+    protected int getRequestCost(IoSession session, Object msg) {
+        if (msg instanceof IoBuffer) {
+            return ImapCommandThrottle.estimateCost(NioUtil.peekLine((IoBuffer) msg, MAX_COST_PEEK));
+        }
+        return 1;
+    }
+
     @Override
     protected ProtocolCodecFactory getProtocolCodecFactory() {
         return new ProtocolCodecFactory() {
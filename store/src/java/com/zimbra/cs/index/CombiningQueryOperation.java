@@ -30,4 +30,12 @@ abstract class CombiningQueryOperation extends QueryOperation {
         return operations.size();
     }
 
+    @Override
+    void explain(StringBuilder out, int depth) {
+        explainLine(out, depth).append('\n');
+        for (QueryOperation op : operations) {
+            op.explain(out, depth + 1);
+        }
+    }
+
 }
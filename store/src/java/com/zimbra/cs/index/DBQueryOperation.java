@@ -33,6 +33,7 @@ import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -104,6 +105,13 @@ public class DBQueryOperation extends QueryOperation {
     private DbSearch.FetchMode fetch = null;
     private QueryExecuteMode executeMode = null;
 
+    /** Planner estimates for the DB constraints and the attached Lucene query, -1 until computed or if unknown. */
+    private long dbEstimate = -1;
+    private long indexEstimate = -1;
+    /** Rows actually fetched from the DB, and the time spent fetching them, for {@link #explain}. */
+    private long rowsFetched = 0;
+    private long fetchTime = 0;
+
     private static enum QueryExecuteMode {
         NO_RESULTS,
         NO_LUCENE,
@@ -441,6 +449,11 @@ public class DBQueryOperation extends QueryOperation {
 
     @Override
     public void close() {
+        if (fetchTime > LC.search_slow_query_threshold.longValue()) {
+            StringBuilder plan = new StringBuilder();
+            explain(plan, 0);
+            ZimbraLog.search.info("Slow search elapsed=%d plan: %s", fetchTime, plan.toString().trim());
+        }
         Closeables.closeQuietly(luceneOp);
     }
 
@@ -672,6 +685,13 @@ public class DBQueryOperation extends QueryOperation {
             return true;
         }
 
+        // drive from whichever side is estimated to match fewer rows: the folder/tag counts bound the DB side and
+        // the term document frequencies bound the index side, neither of which costs a query
+        if (luceneOp != null && estimateResultCount() >= 0 && dbEstimate >= 0 && indexEstimate >= 0) {
+            ZimbraLog.search.debug("EstimatedRows db=%d,index=%d", dbEstimate, indexEstimate);
+            return dbEstimate < indexEstimate;
+        }
+
         if (luceneOp != null && luceneOp.shouldExecuteDbFirst()) {
             return true;
         }
@@ -813,6 +833,15 @@ public class DBQueryOperation extends QueryOperation {
     private void getNextChunk() throws ServiceException {
         assert(!endOfHits);
         assert(dbHitsIter == null || !dbHitsIter.hasNext());
+        long start = System.currentTimeMillis();
+        try {
+            fetchNextChunk();
+        } finally {
+            fetchTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    private void fetchNextChunk() throws ServiceException {
 
         if (executeMode == QueryExecuteMode.NO_RESULTS) {
             ZimbraLog.search.debug("Returned **NO DB RESULTS (no-results-query-optimization)**");
@@ -842,6 +871,7 @@ public class DBQueryOperation extends QueryOperation {
                 endOfHits = true;
             } else {
                 hitsOffset += dbHits.size();
+                rowsFetched += dbHits.size();
                 dbHitsIter = dbHits.iterator();
             }
 
@@ -1220,6 +1250,39 @@ public class DBQueryOperation extends QueryOperation {
         cb.recurseCallback(this);
     }
 
+    /**
+     * Estimates the hits as the smaller of the DB and the index estimate. The DB estimate needs the mailbox, so
+     * nothing is known before {@link #begin(QueryContext)}.
+     */
+    @Override
+    long estimateResultCount() throws ServiceException {
+        if (hasNoResults() || executeMode == QueryExecuteMode.NO_RESULTS) {
+            return 0;
+        } else if (context == null) {
+            return -1;
+        }
+        if (dbEstimate < 0) {
+            dbEstimate = constraints.estimateRowCount(context.getMailbox());
+        }
+        if (indexEstimate < 0 && luceneOp != null) {
+            indexEstimate = luceneOp.estimateResultCount();
+        }
+        if (dbEstimate < 0 || indexEstimate < 0) {
+            return Math.max(dbEstimate, indexEstimate);
+        }
+        return Math.min(dbEstimate, indexEstimate);
+    }
+
+    @Override
+    void explain(StringBuilder out, int depth) {
+        explainLine(out, depth).append(executeMode == null ? "NOT_RUN" : executeMode)
+            .append(" db=").append(dbEstimate < 0 ? "?" : dbEstimate)
+            .append(" index=").append(luceneOp == null ? "-" : indexEstimate < 0 ? "?" : indexEstimate)
+            .append(" rows=").append(rowsFetched)
+            .append(" elapsed=").append(fetchTime)
+            .append(' ').append(this).append('\n');
+    }
+
     int getDbHitCount() throws ServiceException {
         if (dbHitCount < 0) {
             Mailbox mbox = context.getMailbox();
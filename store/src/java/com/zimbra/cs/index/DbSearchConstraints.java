@@ -100,6 +100,12 @@ public interface DbSearchConstraints extends Cloneable {
      */
     boolean tryDbFirst(Mailbox mbox) throws ServiceException;
 
+    /**
+     * Used during query planning: returns an upper bound on the number of rows these constraints match, worked out
+     * from the cached folder and tag counts without going to the DB, or -1 if there is no cheap estimate.
+     */
+    long estimateRowCount(Mailbox mbox) throws ServiceException;
+
 
     /**
      * The allowable query types are added to the constraints tree after it is generated.
@@ -461,6 +467,9 @@ public interface DbSearchConstraints extends Cloneable {
                 Joiner.on(' ').appendTo(out, indexIds);
                 out.append(") ");
             }
+            if (cursorRange != null) { // not in the query language
+                out.append("CURSOR:").append(cursorRange).append(' ');
+            }
             if (hasIndexId != null) { // not in the query language
                 out.append(hasIndexId ? "HAS_INDEXID" : "-HAS_INDEXID");
             }
@@ -686,6 +695,31 @@ public interface DbSearchConstraints extends Cloneable {
             return convId != 0 || tags.contains(mbox.getFlagById(Flag.ID_UNREAD));
         }
 
+        @Override
+        public long estimateRowCount(Mailbox mbox) throws ServiceException {
+            if (noResults) {
+                return 0;
+            } else if (!itemIds.isEmpty()) {
+                return itemIds.size();
+            }
+            long estimate = Long.MAX_VALUE;
+            boolean unread = false;
+            for (Tag tag : tags) {
+                if (tag.getId() == Flag.ID_UNREAD) {
+                    unread = true;
+                } else if (!(tag instanceof Flag)) { // flags other than \Unseen don't keep a count
+                    estimate = Math.min(estimate, tag.getItemCount());
+                }
+            }
+            long count = 0;
+            for (Folder folder : folders.isEmpty() ? mbox.getFolderList(null, SortBy.NONE) : folders) {
+                if (!excludeFolders.contains(folder)) {
+                    count += unread ? folder.getUnreadCount() : folder.getItemCount();
+                }
+            }
+            return Math.min(estimate, count);
+        }
+
         @Override
         public void setTypes(Set<MailItem.Type> set) {
             types.clear();
@@ -1062,6 +1096,18 @@ public interface DbSearchConstraints extends Cloneable {
             return false;
         }
 
+        @Override
+        public long estimateRowCount(Mailbox mbox) throws ServiceException {
+            long estimate = -1;
+            for (DbSearchConstraints child : children) {
+                long count = child.estimateRowCount(mbox);
+                if (count >= 0 && (estimate < 0 || count < estimate)) {
+                    estimate = count;
+                }
+            }
+            return estimate;
+        }
+
         @Override
         public void setTypes(Set<MailItem.Type> types) {
             for (DbSearchConstraints child : children) {
@@ -1309,6 +1355,19 @@ public interface DbSearchConstraints extends Cloneable {
             return false;
         }
 
+        @Override
+        public long estimateRowCount(Mailbox mbox) throws ServiceException {
+            long estimate = 0;
+            for (DbSearchConstraints child : children) {
+                long count = child.estimateRowCount(mbox);
+                if (count < 0) {
+                    return -1;
+                }
+                estimate += count;
+            }
+            return estimate;
+        }
+
         @Override
         public void setTypes(Set<MailItem.Type> types) {
             for (DbSearchConstraints child : children) {
@@ -1528,7 +1587,8 @@ public interface DbSearchConstraints extends Cloneable {
 
         @Override
         public String toString() {
-            return Objects.toStringHelper(this).add("min", min).add("max", max).add("sort", sortBy).toString();
+            return Objects.toStringHelper(this).add("min", min).add("minInclusive", minInclusive)
+                .add("max", max).add("maxInclusive", maxInclusive).add("sort", sortBy).toString();
         }
     }
 
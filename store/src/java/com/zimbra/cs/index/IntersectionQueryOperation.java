@@ -18,8 +18,11 @@ package com.zimbra.cs.index;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.Sets;
@@ -418,6 +421,18 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         return false;
     }
 
+    @Override
+    long estimateResultCount() throws ServiceException {
+        long estimate = -1;
+        for (QueryOperation op : operations) {
+            long count = op.estimateResultCount();
+            if (count >= 0 && (estimate < 0 || count < estimate)) {
+                estimate = count;
+            }
+        }
+        return estimate;
+    }
+
     @Override
     QueryOperation expandLocalRemotePart(Mailbox mbox) throws ServiceException {
         List<QueryOperation> newList = new ArrayList<QueryOperation>();
@@ -733,6 +748,26 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
                 return;
             }
         }
+        orderBySelectivity();
+    }
+
+    /**
+     * Makes the sub-operation with the fewest estimated hits drive the intersection: every hit of
+     * {@code messageGrouper[0]} is looked up in all the other groupers, so the fewer it returns the less work is spent
+     * on hits that don't match. Operations without an estimate go last, otherwise the parsed order is kept.
+     */
+    private void orderBySelectivity() throws ServiceException {
+        if (messageGrouper.length < 2) {
+            return;
+        }
+        final Map<HitGrouper, Long> estimates = new IdentityHashMap<HitGrouper, Long>();
+        for (HitGrouper grouper : messageGrouper) {
+            long estimate = grouper.subOp.estimateResultCount();
+            estimates.put(grouper, estimate < 0 ? Long.MAX_VALUE : estimate);
+        }
+        Arrays.sort(messageGrouper, (a, b) -> Long.compare(estimates.get(a), estimates.get(b)));
+        ZimbraLog.search.debug("Intersection driven by %s (est=%d)", messageGrouper[0].subOp,
+                estimates.get(messageGrouper[0]));
     }
 
     @Override
@@ -57,12 +57,11 @@ final class ItemPreloadingGrouper extends BufferingResultsGrouper {
 
         ArrayList<ZimbraHit>toLoad = new ArrayList<ZimbraHit>();
 
-        // FIXME: only preloading for the first mailbox right now
-        // ...if this were a cross-mailbox-search, we'd be more efficient
-        // if we broke things up into a hash of one load-list-per-mailbox and
-        // then did preloading there...but for now we won't worry about it
+        // Hits from the first mailbox are loaded here. For a cross-mailbox search, hits from the other mailboxes are
+        // announced to their mailbox instead, so that the first one accessed loads the rest of them in one query.
         ZimbraHit firstHit = hits.peekNext();
         Mailbox mbx = firstHit.getMailbox();
+        Map<Mailbox, List<Integer>> expected = null;
 
         int numLoaded = 0;
         do {
@@ -71,12 +70,26 @@ final class ItemPreloadingGrouper extends BufferingResultsGrouper {
 
             if (nextHit.getMailbox() == mbx && mbx != null) {
                 toLoad.add(nextHit);
+            } else if (nextHit.getMailbox() != null && !nextHit.itemIsLoaded()) {
+                if (expected == null) {
+                    expected = new HashMap<Mailbox, List<Integer>>();
+                }
+                List<Integer> ids = expected.get(nextHit.getMailbox());
+                if (ids == null) {
+                    expected.put(nextHit.getMailbox(), ids = new ArrayList<Integer>());
+                }
+                ids.add(nextHit.getItemId());
             }
 
             numLoaded++;
         } while (numLoaded < chunkSize && hits.hasNext());
 
         preload(mbx, toLoad);
+        if (expected != null) {
+            for (Map.Entry<Mailbox, List<Integer>> entry : expected.entrySet()) {
+                entry.getKey().expectItems(entry.getValue());
+            }
+        }
 
         return true;
     }
@@ -27,6 +27,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -67,6 +68,8 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -118,6 +121,11 @@ public final class LuceneIndex extends IndexStore {
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
     private final WriterInfo writerInfo = new WriterInfo();
+    // Serializes opening and reopening the cached searcher. Searches that find a current searcher don't take it.
+    private final Object searcherLock = new Object();
+    // Incremented by every commit; a cached searcher opened at an older generation is stale.
+    private final AtomicLong commitGeneration = new AtomicLong();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
 
     /**
      * Holds information related to writers to the index.
@@ -262,7 +270,7 @@ public final class LuceneIndex extends IndexStore {
      * file system cache.
      */
     @Override
-    public synchronized void warmup() {
+    public void warmup() {
         if (SEARCHER_CACHE.asMap().containsKey(mailbox.getId()) ||
                 GAL_SEARCHER_CACHE.containsKey(mailbox.getId())) {
             return; // already warmed up
@@ -370,54 +378,176 @@ public final class LuceneIndex extends IndexStore {
 
     /**
      * Caller is responsible for calling {@link IndexReader#close()} to release system resources associated with it.
+     * <p>
+     * The searcher is shared with other callers and stays cached until it is evicted. After a commit it is reopened
+     * incrementally, so that only new and changed segments need to be opened.
      *
      * @return A {@link IndexReader} for this index.
      * @throws IOException if opening an {@link IndexReader} failed
      */
     @Override
-    public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
-        }
-        if (searcher != null) {
+    public ZimbraIndexSearcher openSearcher() throws IOException {
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher != null && isCurrent(searcher) && searcher.tryInc()) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
-            searcher.inc();
+            ZimbraPerf.COUNTER_IDX_SEARCHER_AGE.increment(System.currentTimeMillis() - searcher.openedAt);
             return searcher;
         }
 
-        READER_THROTTLE.acquireUninterruptibly();
-        long start = System.currentTimeMillis();
-        try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
-        } catch (IOException e) {
-            // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
-            // closing. Index directory should get initialized as a result.
-            if (isEmptyDirectory(luceneDirectory.getDirectory())) {
-                // create an empty index
-                IndexWriter writer = new IndexWriter(luceneDirectory,
-                        getWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
-                Closeables.closeQuietly(writer);
-                searcher = new IndexSearcherImpl(openIndexReader(false));
-            } else {
-                throw e;
+        synchronized (searcherLock) {
+            searcher = getCachedSearcher();
+            if (searcher != null && !isCurrent(searcher)) {
+                searcher = refreshSearcher(searcher);
             }
-        } finally {
-            if (searcher == null) {
-                READER_THROTTLE.release();
+            if (searcher != null && searcher.tryInc()) {
+                ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
+                ZimbraPerf.COUNTER_IDX_SEARCHER_AGE.increment(System.currentTimeMillis() - searcher.openedAt);
+                return searcher;
+            }
+
+            READER_THROTTLE.acquireUninterruptibly();
+            long start = System.currentTimeMillis();
+            long generation = commitGeneration.get();
+            searcher = null;
+            try {
+                searcher = new IndexSearcherImpl(openIndexReader(true), this, generation, true);
+            } catch (IOException e) {
+                // Handle the special case of trying to open a not-yet-created index, by opening for write and
+                // immediately closing. Index directory should get initialized as a result.
+                synchronized (this) { // don't race with openIndexer() creating the index
+                    if (isEmptyDirectory(luceneDirectory.getDirectory())) {
+                        // create an empty index
+                        IndexWriter writer = new IndexWriter(luceneDirectory,
+                                getWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+                        Closeables.closeQuietly(writer);
+                    } else {
+                        throw e;
+                    }
+                }
+                searcher = new IndexSearcherImpl(openIndexReader(false), this, generation, true);
+            } finally {
+                if (searcher == null) {
+                    READER_THROTTLE.release();
+                }
             }
+
+            ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
+            searcher.inc();
+            cacheSearcher(searcher);
+            ZimbraPerf.COUNTER_IDX_SEARCHER_AGE.increment(0);
+            return searcher;
         }
+    }
 
-        ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
-        searcher.inc();
+    private IndexSearcherImpl getCachedSearcher() {
         if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
+        if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
             Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
         } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
             SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
-        return searcher;
+    }
+
+    /**
+     * Caches the reopened searcher in place of the stale one, unless the stale one is no longer cached.  Runs under
+     * {@code searcherLock} only, so {@link #evict()} and {@link #doDeleteIndex()} may have removed it meanwhile.
+     */
+    private boolean replaceCachedSearcher(IndexSearcherImpl stale, IndexSearcherImpl fresh) {
+        if (mailbox.isGalSyncMailbox()) {
+            if (!GAL_SEARCHER_CACHE.replace(mailbox.getId(), stale, fresh)) {
+                return false;
+            }
+            Closeables.closeQuietly(stale);
+            return true;
+        } else {
+            // the removal listener closes the stale searcher
+            return SEARCHER_CACHE.asMap().replace(mailbox.getId(), stale, fresh);
+        }
+    }
+
+    /**
+     * A searcher is current if it was opened, or last checked, by this index after its most recent commit.
+     */
+    private boolean isCurrent(IndexSearcherImpl searcher) {
+        return searcher.owner == this && searcher.generation == commitGeneration.get();
+    }
+
+    /**
+     * Reopens a stale cached searcher, sharing the segment readers that haven't changed, and caches the result.
+     *
+     * @return the refreshed searcher, or null if the stale searcher was closed or evicted before it could be reopened
+     */
+    private IndexSearcherImpl refreshSearcher(IndexSearcherImpl stale) throws IOException {
+        assert(Thread.holdsLock(searcherLock));
+        if (!stale.tryInc()) { // evicted and closed meanwhile
+            return null;
+        }
+        try {
+            long start = ZimbraPerf.STOPWATCH_IDX_SEARCHER_REOPEN.start();
+            long generation = commitGeneration.get();
+            IndexReader oldReader = ((ZimbraLuceneIndexReader) stale.getIndexReader()).getLuceneReader();
+            IndexReader newReader = IndexReader.openIfChanged(oldReader, true);
+            ZimbraPerf.STOPWATCH_IDX_SEARCHER_REOPEN.stop(start);
+            if (newReader == null) {
+                stale.owner = this;
+                stale.generation = generation;
+                return stale;
+            }
+            // The old searcher holds its permit until its last user closes it, so don't wait for one here.
+            IndexSearcherImpl searcher = new IndexSearcherImpl(newReader, this, generation,
+                    READER_THROTTLE.tryAcquire());
+            if (!replaceCachedSearcher(stale, searcher)) {
+                // evicted, or the index deleted, while we were reopening; don't bring it back
+                Closeables.closeQuietly(searcher);
+                return null;
+            }
+            ZimbraLog.search.debug("ReopenLuceneSearcher %s", searcher);
+            return searcher;
+        } finally {
+            stale.close();
+        }
+    }
+
+    /**
+     * Refreshes the cached searcher in the background after a commit, at most once per
+     * {@code zimbra_index_searcher_refresh_delay_ms}.
+     */
+    private void scheduleSearcherRefresh() {
+        if (getCachedSearcher() == null || !refreshScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Zimbra.sTimingWheel.schedule("IndexSearcherRefresh", new Runnable() {
+                @Override
+                public void run() {
+                    refreshScheduled.set(false);
+                    synchronized (searcherLock) {
+                        IndexSearcherImpl searcher = getCachedSearcher();
+                        if (searcher != null && !isCurrent(searcher)) {
+                            try {
+                                refreshSearcher(searcher);
+                            } catch (IOException e) {
+                                ZimbraLog.search.warn("Failed to refresh IndexSearcher %s", searcher, e);
+                            }
+                        }
+                    }
+                }
+            }, LC.zimbra_index_searcher_refresh_delay_ms.longValue());
+        } catch (IllegalStateException e) { // shutting down
+            refreshScheduled.set(false);
+        }
     }
 
     /**
@@ -502,6 +632,8 @@ public final class LuceneIndex extends IndexStore {
         try {
             try {
                 writerInfo.getWriterRef().get().commit();
+                commitGeneration.incrementAndGet();
+                scheduleSearcherRefresh();
             } catch (CorruptIndexException e) {
                 try {
                     writerInfo.getWriterRef().get().close(false);
@@ -798,31 +930,8 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void close() throws IOException {
+            // searchers pick up the commit when they are next opened, or when the scheduled refresh runs
             writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
-                }
-            }
         }
 
         @Override
@@ -945,16 +1054,40 @@ public final class LuceneIndex extends IndexStore {
         private final AtomicInteger count = new AtomicInteger(1);
         private final IndexSearcher luceneSearcher;
         private final ZimbraIndexReader luceneReader;
-
-        IndexSearcherImpl(IndexReader reader) {
+        // whether this searcher holds a READER_THROTTLE permit
+        private final boolean throttled;
+        final long openedAt = System.currentTimeMillis();
+        // the index and commit generation this searcher was last known to be current for
+        volatile LuceneIndex owner;
+        volatile long generation;
+
+        IndexSearcherImpl(IndexReader reader, LuceneIndex owner, long generation, boolean throttled) {
             luceneSearcher = new IndexSearcher(reader);
             luceneReader = new ZimbraLuceneIndexReader(luceneSearcher.getIndexReader());
+            this.owner = owner;
+            this.generation = generation;
+            this.throttled = throttled;
         }
 
         void inc() {
             count.incrementAndGet();
         }
 
+        /**
+         * Increments the reference count unless the searcher has already been closed.
+         */
+        boolean tryInc() {
+            while (true) {
+                int current = count.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
         @Override
         public void close() throws IOException {
             if (count.decrementAndGet() == 0) {
@@ -963,7 +1096,9 @@ public final class LuceneIndex extends IndexStore {
                     Closeables.closeQuietly(luceneSearcher);
                 } finally {
                     Closeables.closeQuietly(getIndexReader());
-                    READER_THROTTLE.release();
+                    if (throttled) {
+                        READER_THROTTLE.release();
+                    }
                 }
             }
         }
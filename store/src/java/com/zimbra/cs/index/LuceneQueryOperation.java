@@ -30,6 +30,7 @@ import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
@@ -273,6 +274,65 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Returns an upper bound on the number of documents matching the query, from the index term statistics: the
+     * document frequency of a term, the rarest term of a phrase or of the required clauses of a boolean query, or the
+     * sum of optional clauses. Once the search has run, its exact hit count is returned instead. Returns -1 if the
+     * query has no cheap estimate, e.g. wildcards.
+     */
+    @Override
+    long estimateResultCount() {
+        if (haveRunSearch) {
+            return getTotalHitCount();
+        } else if (searcher == null || luceneQuery == null) {
+            return -1;
+        }
+        try {
+            return estimateResultCount(luceneQuery);
+        } catch (IOException e) {
+            ZimbraLog.search.debug("Failed to estimate query=%s", luceneQuery, e);
+            return -1;
+        }
+    }
+
+    private long estimateResultCount(Query query) throws IOException {
+        if (query instanceof TermQuery) {
+            return searcher.docFreq(((TermQuery) query).getTerm());
+        } else if (query instanceof PhraseQuery) {
+            long estimate = -1;
+            for (Term term : ((PhraseQuery) query).getTerms()) {
+                long freq = searcher.docFreq(term);
+                estimate = estimate < 0 ? freq : Math.min(estimate, freq);
+            }
+            return estimate;
+        } else if (query instanceof BooleanQuery) {
+            long required = -1;
+            long optional = 0;
+            boolean hasOptional = false;
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                switch (clause.getOccur()) {
+                    case MUST: {
+                        long count = estimateResultCount(clause.getQuery());
+                        if (count >= 0 && (required < 0 || count < required)) {
+                            required = count;
+                        }
+                        break;
+                    }
+                    case SHOULD: {
+                        long count = estimateResultCount(clause.getQuery());
+                        optional = optional < 0 || count < 0 ? -1 : optional + count;
+                        hasOptional = true;
+                        break;
+                    }
+                    default: // MUST_NOT only narrows the result
+                        break;
+                }
+            }
+            return required >= 0 ? required : hasOptional ? optional : -1;
+        }
+        return -1;
+    }
+
     private long getTotalItemCount(Set<Folder> folders) {
         long total = 0;
         for (Folder f : folders)
@@ -81,6 +81,11 @@ public final class NoResultsQueryOperation extends QueryOperation {
         return false;
     }
 
+    @Override
+    long estimateResultCount() {
+        return 0;
+    }
+
     @Override
     String toQueryString() {
         return "";
@@ -195,6 +195,36 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
 
     abstract Set<QueryTarget> getQueryTargets();
 
+    /**
+     * Returns the planner's estimate of the number of hits this operation produces, or -1 if there is no cheap
+     * estimate. Estimates that rely on index statistics are only available once the operation has begun.
+     */
+    long estimateResultCount() throws ServiceException {
+        return -1;
+    }
+
+    /**
+     * Appends an EXPLAIN-style description of this operation to {@code out}: one line per operation, sub-operations
+     * indented below their parent.
+     */
+    void explain(StringBuilder out, int depth) {
+        explainLine(out, depth).append(toQueryString()).append('\n');
+    }
+
+    /** Starts an {@link #explain} line with the indentation and the estimated hit count of this operation. */
+    final StringBuilder explainLine(StringBuilder out, int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+        long estimate;
+        try {
+            estimate = estimateResultCount();
+        } catch (ServiceException e) {
+            estimate = -1;
+        }
+        return out.append(getClass().getSimpleName()).append(" est=").append(estimate < 0 ? "?" : estimate).append(' ');
+    }
+
     @Override
     public Object clone() {
         try {
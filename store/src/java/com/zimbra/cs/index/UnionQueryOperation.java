@@ -161,6 +161,19 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
         return false;
     }
 
+    @Override
+    long estimateResultCount() throws ServiceException {
+        long estimate = 0;
+        for (QueryOperation op : operations) {
+            long count = op.estimateResultCount();
+            if (count < 0) {
+                return -1;
+            }
+            estimate += count;
+        }
+        return estimate;
+    }
+
     @Override
     QueryOperation expandLocalRemotePart(Mailbox mbox) throws ServiceException {
         List<QueryOperation> newList = new ArrayList<QueryOperation>();
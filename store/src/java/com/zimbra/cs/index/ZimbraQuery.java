@@ -746,6 +746,19 @@ public final class ZimbraQuery {
         return params;
     }
 
+    /**
+     * Returns the execution plan of the query, one operation per line, with the estimated hits of each operation and,
+     * for the DB/index steps, the chosen execution order and the rows actually fetched so far. Empty until
+     * {@link #execute()} has been called.
+     */
+    public String explain() {
+        StringBuilder out = new StringBuilder();
+        if (operation != null) {
+            operation.explain(out, 0);
+        }
+        return out.toString();
+    }
+
     /**
      * Runs the search and gets an open result set.
      *
@@ -28,6 +28,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -39,6 +43,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -74,6 +79,7 @@ import com.zimbra.cs.mailbox.QuotaWarning;
 import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.mime.ParsedMessageOptions;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.MailboxBlob;
@@ -86,6 +92,17 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final Map<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
 
+    // Shared by all LMTP connections; fans a multi-recipient message out to the local mailboxes.
+    private static final int DELIVERY_THREADS = Math.max(LC.zimbra_lmtp_delivery_threads.intValue(), 1);
+    private static final ThreadPoolExecutor DELIVERY_EXECUTOR = new ThreadPoolExecutor(
+            DELIVERY_THREADS, DELIVERY_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(Math.max(LC.zimbra_lmtp_delivery_queue_size.intValue(), 1)),
+            new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    static {
+        DELIVERY_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private final LmtpConfig config;
 
     public ZimbraLmtpBackend(LmtpConfig lmtpConfig) {
@@ -111,6 +128,13 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         addCallback(QuotaWarning.getInstance());
     }
 
+    /**
+     * Returns the number of delivery lanes waiting for a thread in the delivery executor.
+     */
+    public static int getDeliveryQueueSize() {
+        return DELIVERY_EXECUTOR.getQueue().size();
+    }
+
     private static Map<Integer, ReentrantLock> createMailboxDeliveryLocks() {
         Function<Integer, ReentrantLock> lockCreator = new Function<Integer,  ReentrantLock>() {
             @Override
@@ -417,7 +441,6 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         throws ServiceException, IOException {
 
         List<LmtpAddress> recipients = env.getLocalRecipients();
-        String envSender = env.getSender().getEmailAddress();
 
         boolean shared = recipients.size() > 1;
         List<Integer> targetMailboxIds = new ArrayList<Integer>(recipients.size());
@@ -530,177 +553,21 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             sharedDeliveryCtxt.setIncomingBlob(blob);
 
             // We now know which addresses are valid and which ParsedMessage
-            // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd.account != null)
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                if (rd.mbox != null)
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-
-                boolean success = false;
-                try {
-                    if (rd != null) {
-                        switch (rd.action) {
-                        case discard:
-                            ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                    envSender, rcptEmail);
-                            if (rd.account.getPrefMailForwardingAddress() != null) {
-                                // mail forwarding is set up
-                                for (LmtpCallback callback : callbacks) {
-                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                    callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case deliver:
-                            Account account = rd.account;
-                            Mailbox mbox = rd.mbox;
-                            ParsedMessage pm = rd.pm;
-                            List<ItemId> addedMessageIds = null;
-                            ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                            boolean acquiredLock;
-                            try {
-                                // Wait for the lock, up to the timeout
-                                acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                            } catch (InterruptedException e) {
-                                acquiredLock = false;
-                            }
-                            if (!acquiredLock) {
-                                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                        envSender, rcptEmail);
-                                reply = LmtpReply.TEMPORARY_FAILURE;
-                                break;
-                            }
-                            try {
-                                if (dedupe(pm, mbox)) {
-                                    // message was already delivered to this mailbox
-                                    ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                                } else if (mbox.dedupeForSelfMsg(pm)) {
-                                    ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                                } else if (recipient.getSkipFilters()) {
-                                    msgId = pm.getMessageID();
-                                    int folderId = Mailbox.ID_FOLDER_INBOX;
-                                    if (recipient.getFolder() != null) {
-                                        try {
-                                            Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                            folderId = folder.getId();
-                                        } catch (ServiceException se) {
-                                            if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                                Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                        new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                                folderId = folder.getId();
-                                            } else {
-                                                throw se;
-                                            }
-                                        }
-                                    }
-                                    int flags = Flag.BITMASK_UNREAD;
-                                    if (recipient.getFlags() != null) {
-                                        flags = Flag.toBitmask(recipient.getFlags());
-                                    }
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                    dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                } else if (!DebugConfig.disableIncomingFilter) {
-                                    // Get msgid first, to avoid having to reopen and reparse the blob
-                                    // file if Mailbox.addMessageInternal() closes it.
-                                    pm.getMessageID();
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                            null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                            Mailbox.ID_FOLDER_INBOX, false, true);
-                                } else {
-                                    pm.getMessageID();
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                    dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                }
-                                success = true;
-                                if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                    addToDedupeCache(pm, mbox);
-                                }
-                            } finally {
-                                lock.unlock();
-                            }
-
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                // Execute callbacks
-                                for (LmtpCallback callback : callbacks) {
-                                    for (ItemId id : addedMessageIds) {
-                                        if (id.belongsTo(mbox)) {
-                                            // Message was added to the local mailbox, as opposed to a mountpoint.
-                                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                            try {
-                                                Message msg = mbox.getMessageById(null, id.getId());
-                                                callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                            } catch (Throwable t) {
-                                                if (t instanceof OutOfMemoryError) {
-                                                    Zimbra.halt("LMTP callback failed", t);
-                                                } else {
-                                                    ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case defer:
-                            // Delivery to mailbox skipped.  Let MTA retry again later.
-                            // This case happens for shared delivery to a mailbox in
-                            // backup mode.
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                    } else {
-                        // Account or mailbox not found.
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
-                    }
+            // version each recipient needs.  Deliver in order until the incoming
+            // blob has been stored in the first target mailbox.  Every later
+            // recipient only links to that blob, so the rest can be fanned out.
+            int next = 0;
+            for (; next < recipients.size(); next++) {
+                if (!sharedDeliveryCtxt.isFirst() && canDeliverInParallel(recipients.size() - next)) {
+                    break;
                 }
+                LmtpAddress recipient = recipients.get(next);
+                RecipientDetail rd = rcptMap.get(recipient);
+                deliverToRecipient(recipient, rd, rd == null ? null : rd.pm, msgId, blob, env, sharedDeliveryCtxt);
+            }
+            if (next < recipients.size()) {
+                deliverInParallel(recipients.subList(next, recipients.size()), rcptMap, pmAttachIndex, pmNoAttachIndex,
+                        msgId, blob, data, env, sharedDeliveryCtxt);
             }
 
             // If this message is being streamed from disk, cache it
@@ -735,6 +602,292 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    private static boolean canDeliverInParallel(int numRecipients) {
+        return DELIVERY_THREADS > 1 && numRecipients > 1;
+    }
+
+    /**
+     * Delivers to the given recipients on the delivery executor.  The recipients are split into
+     * lanes that are delivered concurrently, in order within each lane.  {@link ParsedMessage}
+     * is not thread-safe, so every lane but the one running on the calling thread parses its
+     * own copy of the incoming blob.
+     */
+    private void deliverInParallel(List<LmtpAddress> recipients, Map<LmtpAddress, RecipientDetail> rcptMap,
+            ParsedMessage pmAttachIndex, ParsedMessage pmNoAttachIndex, String msgId, Blob blob, byte[] data,
+            LmtpEnvelope env, DeliveryContext dctxt) {
+        int numLanes = Math.min(DELIVERY_THREADS, recipients.size());
+        List<List<LmtpAddress>> lanes = new ArrayList<List<LmtpAddress>>(numLanes);
+        for (int i = 0; i < numLanes; i++) {
+            lanes.add(new ArrayList<LmtpAddress>(recipients.size() / numLanes + 1));
+        }
+        for (int i = 0; i < recipients.size(); i++) {
+            lanes.get(i % numLanes).add(recipients.get(i));
+        }
+
+        ZimbraLog.lmtp.debug("Delivering to %d recipients in %d lanes", recipients.size(), numLanes);
+        List<Future<?>> futures = new ArrayList<Future<?>>(numLanes - 1);
+        for (int i = 1; i < numLanes; i++) {
+            DeliveryLane lane = new DeliveryLane(lanes.get(i), rcptMap, pmAttachIndex, pmNoAttachIndex,
+                    msgId, blob, data, env, dctxt, true);
+            futures.add(DELIVERY_EXECUTOR.submit(lane));
+        }
+        new DeliveryLane(lanes.get(0), rcptMap, pmAttachIndex, pmNoAttachIndex, msgId, blob, data, env, dctxt,
+                false).run();
+
+        // Wait for every lane, even if interrupted, so that the caller does not end shared
+        // delivery or delete the incoming blob while a lane is still using it.
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--;
+            } catch (ExecutionException e) {
+                ZimbraLog.lmtp.warn("Exception in LMTP delivery lane", e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class DeliveryLane implements Runnable {
+        private final List<LmtpAddress> recipients;
+        private final Map<LmtpAddress, RecipientDetail> rcptMap;
+        private final ParsedMessage pmAttachIndex;
+        private final ParsedMessage pmNoAttachIndex;
+        private final String msgId;
+        private final Blob blob;
+        private final byte[] data;
+        private final LmtpEnvelope env;
+        private final DeliveryContext dctxt;
+        private final boolean async;
+
+        DeliveryLane(List<LmtpAddress> recipients, Map<LmtpAddress, RecipientDetail> rcptMap,
+                ParsedMessage pmAttachIndex, ParsedMessage pmNoAttachIndex, String msgId, Blob blob, byte[] data,
+                LmtpEnvelope env, DeliveryContext dctxt, boolean async) {
+            this.recipients = recipients;
+            this.rcptMap = rcptMap;
+            this.pmAttachIndex = pmAttachIndex;
+            this.pmNoAttachIndex = pmNoAttachIndex;
+            this.msgId = msgId;
+            this.blob = blob;
+            this.data = data;
+            this.env = env;
+            this.dctxt = dctxt;
+            this.async = async;
+        }
+
+        @Override
+        public void run() {
+            ParsedMessage laneAttachIndex = null;
+            ParsedMessage laneNoAttachIndex = null;
+            try {
+                for (LmtpAddress recipient : recipients) {
+                    RecipientDetail rd = rcptMap.get(recipient);
+                    ParsedMessage pm = rd == null ? null : rd.pm;
+                    if (async && pm != null) {
+                        if (pm == pmAttachIndex) {
+                            if (laneAttachIndex == null) {
+                                laneAttachIndex = new ParsedMessage(new ParsedMessageOptions(blob, data)
+                                        .setAttachmentIndexing(true));
+                            }
+                            pm = laneAttachIndex;
+                        } else if (pm == pmNoAttachIndex) {
+                            if (laneNoAttachIndex == null) {
+                                laneNoAttachIndex = new ParsedMessage(new ParsedMessageOptions(blob, data)
+                                        .setAttachmentIndexing(false));
+                            }
+                            pm = laneNoAttachIndex;
+                        }
+                    }
+                    deliverToRecipient(recipient, rd, pm, msgId, blob, env, dctxt);
+                }
+            } catch (ServiceException | IOException e) {
+                // Recipients not yet delivered to keep their default temporary failure status.
+                ZimbraLog.lmtp.warn("Unable to parse message for delivery (temporary failure)", e);
+            } finally {
+                if (async) {
+                    ZimbraLog.clearContext();
+                }
+            }
+        }
+    }
+
+    private void deliverToRecipient(LmtpAddress recipient, RecipientDetail rd, ParsedMessage pm, String msgId,
+            Blob blob, LmtpEnvelope env, DeliveryContext sharedDeliveryCtxt) {
+        String envSender = env.getSender().getEmailAddress();
+        String rcptEmail = recipient.getEmailAddress();
+        LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+        if (rd != null && rd.account != null)
+            ZimbraLog.addAccountNameToContext(rd.account.getName());
+        if (rd != null && rd.mbox != null)
+            ZimbraLog.addMboxToContext(rd.mbox.getId());
+
+        long start = ZimbraPerf.STOPWATCH_LMTP_RCPT_DLVR.start();
+        boolean success = false;
+        try {
+            if (rd != null) {
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        // mail forwarding is set up
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (dedupe(pm, mbox)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
+                                    Mailbox.ID_FOLDER_INBOX, false, true);
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            addToDedupeCache(pm, mbox);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (Throwable t) {
+                                        if (t instanceof OutOfMemoryError) {
+                                            Zimbra.halt("LMTP callback failed", t);
+                                        } else {
+                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } else {
+                // Account or mailbox not found.
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (DeliveryServiceException e) {
+            ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+            reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+        } catch (ServiceException e) {
+            if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                if (config.isPermanentFailureWhenOverQuota()) {
+                    reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                } else {
+                    reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                }
+            } else if (e.isReceiversFault()) {
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            } else {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (Exception e) {
+            reply = LmtpReply.TEMPORARY_FAILURE;
+            ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+        } finally {
+            if (rd != null && rd.action == DeliveryAction.deliver && !success) {
+                // Message was not delivered.  Remove it from the dedupe
+                // cache so we don't dedupe it on LMTP retry.
+                removeFromDedupeCache(msgId, rd.mbox);
+            }
+            recipient.setDeliveryStatus(reply);
+            if (sharedDeliveryCtxt.getShared() && rd != null && rd.esd) {
+                rd.mbox.endSharedDelivery();
+                rd.esd = false;
+            }
+            ZimbraPerf.STOPWATCH_LMTP_RCPT_DLVR.stop(start);
+        }
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
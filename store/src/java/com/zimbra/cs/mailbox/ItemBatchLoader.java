@@ -0,0 +1,153 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.Db;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
+
+/**
+ * Coalesces single-item cache misses into batched {@code IN (...)} queries.
+ * <p>
+ * Callers that are about to resolve a set of items one at a time announce their ids with
+ * {@link Mailbox#expectItems(Collection)}. The first cache miss on any announced id then loads it together with up to
+ * {@code zimbra_mailbox_item_batch_load_size} other announced, uncached ids and puts them all in the item cache, so
+ * the following lookups are cache hits. Announcements are shared by all threads working on the mailbox, so concurrent
+ * requests resolving overlapping or neighboring ids share round trips as well. Ids served from the cache are dropped
+ * as they are looked up, and ids that are never looked up are dropped when the pending set overflows, so stale
+ * announcements can't crowd out new ones.
+ */
+final class ItemBatchLoader {
+    private static final int BATCH_SIZE = Math.min(LC.zimbra_mailbox_item_batch_load_size.intValue(),
+            Db.getINClauseBatchSize());
+    @VisibleForTesting
+    static final int MAX_PENDING = BATCH_SIZE * 16;
+
+    private final Mailbox mbox;
+    private final Set<Integer> pending = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong itemsLoaded = new AtomicLong();
+
+    ItemBatchLoader(Mailbox mbox) {
+        this.mbox = mbox;
+    }
+
+    static boolean isEnabled() {
+        return BATCH_SIZE > 1;
+    }
+
+    void expect(Collection<Integer> ids) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (pending.size() + ids.size() > MAX_PENDING) {
+            // what is still pending was announced and then never looked up; the new ids are likelier to be needed
+            ZimbraLog.cache.debug("dropping %d stale pending item loads in mailbox %d", pending.size(), mbox.getId());
+            pending.clear();
+        }
+        for (Integer id : ids) {
+            if (pending.size() >= MAX_PENDING) {
+                return;
+            }
+            // negative ids are flags and virtual conversations, neither of which is in MAIL_ITEM under that id
+            if (id != null && id >= Mailbox.FIRST_USER_ID) {
+                pending.add(id);
+            }
+        }
+    }
+
+    /**
+     * Forgets an announced id that was served from the item cache, so that it doesn't take up a pending slot.
+     */
+    void cacheHit(int id) {
+        if (!pending.isEmpty()) {
+            pending.remove(id);
+        }
+    }
+
+    /**
+     * Loads the item after a cache miss, along with other announced items.
+     *
+     * @param limit the most items to load, so that the batch is not evicted from the item cache before it is used
+     * @return the item, or {@code null} if it was not announced or was not found (the caller then falls back to the
+     *         regular lookup and its error handling)
+     */
+    MailItem load(int id, MailItem.Type type, int limit) throws ServiceException {
+        // a folder or tag looked up under the wrong type must not end up in the query; let the caller reject it
+        if (!pending.remove(id) || mbox.isCached(id)) {
+            return null;
+        }
+        int max = Math.max(Math.min(BATCH_SIZE, limit), 1);
+        List<Integer> batch = new ArrayList<Integer>(Math.min(max, pending.size() + 1));
+        batch.add(id);
+        for (Iterator<Integer> it = pending.iterator(); it.hasNext() && batch.size() < max; ) {
+            Integer other = it.next();
+            // whoever removes the id owns loading it
+            if (pending.remove(other) && !mbox.isCached(other)) {
+                batch.add(other);
+            }
+        }
+
+        MailItem item = null;
+        List<UnderlyingData> found = DbMailItem.getById(mbox, batch, MailItem.Type.UNKNOWN);
+        for (UnderlyingData data : found) {
+            MailItem loaded = mbox.getItem(data);
+            if (loaded.getId() == id) {
+                item = loaded;
+            }
+        }
+        queries.incrementAndGet();
+        itemsLoaded.addAndGet(found.size());
+        if (item != null && !MailItem.isAcceptableType(type, item.getType())) {
+            throw MailItem.noSuchItem(id, type);
+        }
+        return item;
+    }
+
+    /** Returns the number of announced ids not looked up yet. */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Returns the number of batched queries issued. */
+    long getQueryCount() {
+        return queries.get();
+    }
+
+    /** Returns the number of items loaded by batched queries. */
+    long getLoadedCount() {
+        return itemsLoaded.get();
+    }
+
+    /** Returns the number of single-item queries the batches replaced. */
+    long getSavedRoundTrips() {
+        return Math.max(itemsLoaded.get() - queries.get(), 0);
+    }
+}
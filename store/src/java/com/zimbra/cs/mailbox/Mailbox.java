@@ -53,6 +53,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
@@ -116,9 +117,6 @@ import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.SearchParams;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraQuery;
-import com.zimbra.cs.iochannel.MailboxNotification;
-import com.zimbra.cs.iochannel.MessageChannel;
-import com.zimbra.cs.iochannel.MessageChannelException;
 import com.zimbra.cs.ldap.LdapConstants;
 import com.zimbra.cs.mailbox.CalendarItem.AlarmData;
 import com.zimbra.cs.mailbox.CalendarItem.Callback;
@@ -711,17 +709,20 @@ public class Mailbox {
      * concurrently
      */
     private final ReentrantLock emptyFolderOpLock = new ReentrantLock();
+    private final ItemBatchLoader itemLoader = new ItemBatchLoader(this);
 
     // TODO: figure out correct caching strategy
     private static final int MAX_ITEM_CACHE_WITH_LISTENERS = LC.zimbra_mailbox_active_cache.intValue();
     private static final int MAX_ITEM_CACHE_WITHOUT_LISTENERS = LC.zimbra_mailbox_inactive_cache.intValue();
     private static final int MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX = LC.zimbra_mailbox_galsync_cache.intValue();
     private static final int MAX_MSGID_CACHE = 10;
+    private static final long SOURCE_NOTIFICATION_WAIT_MS = LC.zimbra_mailbox_notify_source_wait_ms.longValue();
 
     private final int mId;
     private MailboxData mData;
     private final ThreadLocal<MailboxChange> threadChange = new ThreadLocal<MailboxChange>();
     private final List<Session> mListeners = new CopyOnWriteArrayList<Session>();
+    final MailboxNotifier notifier;
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
@@ -744,6 +745,7 @@ public class Mailbox {
         // version init done in open()
         // index init done in open()
         lock = new MailboxLock(data.accountId, this);
+        notifier = new MailboxNotifier(this);
     }
 
     public void setGalSyncMailbox(boolean galSyncMailbox) {
@@ -1025,6 +1027,10 @@ public class Mailbox {
         return false;
     }
 
+    boolean hasListener(Session session) {
+        return mListeners.contains(session);
+    }
+
     /** Loookup a {@link Session} in the set of listeners on this mailbox. */
     public Session getListener(String sessionId) {
         if (sessionId != null) {
@@ -2861,6 +2867,7 @@ public class Mailbox {
         // try the cache first
         MailItem item = getCachedItem(Integer.valueOf(id), type);
         if (item != null) {
+            itemLoader.cacheHit(id);
             return item;
         }
 
@@ -2897,8 +2904,11 @@ public class Mailbox {
                 item = new VirtualConversation(this, msg);
             }
         } else {
-            // cache miss, so fetch from the database
-            item = MailItem.getById(this, id, type);
+            // cache miss, so fetch from the database (along with any other items callers said they'd need)
+            item = itemLoader.load(id, type, getItemCacheTarget());
+            if (item == null) {
+                item = MailItem.getById(this, id, type);
+            }
         }
         if (item == null) {
             ZimbraLog.mailbox.warn("item is null for id [%d] in mailbox [%d]. Virtual conv? [%s] cachedMsg? [%s] sameId? [%s]", id, this.mId, virtualConv, cachedMsg, sameId);
@@ -3127,6 +3137,33 @@ public class Mailbox {
         return items;
     }
 
+    /**
+     * Announces that the caller is about to look up these items one at a time. The first cache miss among them
+     * fetches the others in the same query; see {@link ItemBatchLoader}. Ids that turn out not to be needed, not to
+     * exist or to be already cached are harmless.
+     */
+    public void expectItems(Collection<Integer> ids) {
+        if (ids != null && ids.size() > 1) {
+            itemLoader.expect(ids);
+        }
+    }
+
+    void expectItems(int[] ids) {
+        if (ids != null && ids.length > 1 && ItemBatchLoader.isEnabled()) {
+            itemLoader.expect(Ints.asList(ids));
+        }
+    }
+
+    ItemBatchLoader getItemLoader() {
+        return itemLoader;
+    }
+
+    /** Returns whether the item is in one of the Mailbox's caches, without counting it as a cache access. */
+    boolean isCached(int id) throws ServiceException {
+        return (mTagCache != null && mTagCache.containsKey(id)) || (mFolderCache != null && mFolderCache.get(id) != null) ||
+                getItemCache().get(id) != null;
+    }
+
     /** retrieve an item from the Mailbox's caches; return null if no item found */
     MailItem getCachedItem(Integer key) throws ServiceException {
         MailItem item = null;
@@ -4826,20 +4863,8 @@ public class Mailbox {
             beginReadTransaction("getAllCalendarsSummaryForRange", octxt);
             success = true;
             List<CalendarDataResult> list = new ArrayList<CalendarDataResult>();
-            for (Folder folder : listAllFolders()) {
-                if (folder.inTrash() || folder.inSpam()) {
-                    continue;
-                }
-                // Only look at folders of right view type.  We might have to relax this to allow appointments/tasks
-                // in any folder, but that requires scanning too many folders each time, most of which don't contain
-                // any calendar items.
-                if (folder.getDefaultView() != type) {
-                    continue;
-                }
+            for (Folder folder : listSummarizedCalendarFolders(type)) {
                 try {
-                    if (!folder.canAccess(ACL.RIGHT_READ)) {
-                        continue;
-                    }
                     CalendarDataResult result = CalendarCacheManager.getInstance().getSummaryCache().
                         getCalendarSummary(octxt, getAccountId(), folder.getId(), type, start, end, true);
                     if (result != null) {
@@ -4857,6 +4882,40 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Returns the folders {@link #getAllCalendarsSummaryForRange} summarizes for the given calendar item type.
+     */
+    public List<Folder> getSummarizedCalendarFolders(OperationContext octxt, MailItem.Type type)
+            throws ServiceException {
+        boolean success = false;
+        try {
+            beginReadTransaction("getSummarizedCalendarFolders", octxt);
+            success = true;
+            return listSummarizedCalendarFolders(type);
+        } finally {
+            endTransaction(success);
+        }
+    }
+
+    private List<Folder> listSummarizedCalendarFolders(MailItem.Type type) throws ServiceException {
+        List<Folder> list = new ArrayList<Folder>();
+        for (Folder folder : listAllFolders()) {
+            if (folder.inTrash() || folder.inSpam()) {
+                continue;
+            }
+            // Only look at folders of right view type.  We might have to relax this to allow appointments/tasks
+            // in any folder, but that requires scanning too many folders each time, most of which don't contain
+            // any calendar items.
+            if (folder.getDefaultView() != type) {
+                continue;
+            }
+            if (folder.canAccess(ACL.RIGHT_READ)) {
+                list.add(folder);
+            }
+        }
+        return list;
+    }
+
     /**
      * @param octxt
      * @param params
@@ -6437,6 +6496,7 @@ public class Mailbox {
             beginTransaction("resetImapUid", octxt, redoRecorder);
             SetImapUid redoPlayer = (SetImapUid) currentChange().getRedoPlayer();
 
+            expectItems(itemIds);
             for (int id : itemIds) {
                 MailItem item = getItemById(id, MailItem.Type.UNKNOWN);
                 int imapId = redoPlayer == null ? ID_AUTO_INCREMENT : redoPlayer.getImapUid(id);
@@ -6461,6 +6521,7 @@ public class Mailbox {
         try {
             beginTransaction("resetIndex", null);
             DbMailItem.resetIndexId(getOperationConnection(), this);
+            index.clearCachedResults();
             success = true;
         } finally {
             endTransaction(success);
@@ -7219,6 +7280,7 @@ public class Mailbox {
             beginTransaction("delete", octxt, redoRecorder);
             setOperationTargetConstraint(tcon);
 
+            expectItems(itemIds);
             for (int id : itemIds) {
                 if (id == ID_AUTO_INCREMENT) {
                     continue;
@@ -9230,6 +9292,7 @@ public class Mailbox {
         }
         PendingDelete deletes = null; // blob and index to delete
         List<Object> rollbackDeletes = null; // blob to delete for failure cases
+        long awaitNotification = 0; // change notification to wait for after unlocking
         try {
             if (!currentChange().isActive()) {
                 // would like to throw here, but it might cover another
@@ -9342,7 +9405,7 @@ public class Mailbox {
                                                // deletes outside the lock
             // We are finally done with database and redo commits. Cache update
             // comes last.
-            commitCache(currentChange());
+            awaitNotification = commitCache(currentChange());
 
             // Do deferred index check after commitCache to avoid nested db connection acquisitions.  commitCache()
             // will release the transaction's db connection before index.maybeIndexDeferredItems() acquires a new one
@@ -9353,6 +9416,15 @@ public class Mailbox {
         } finally {
             lock.release();
 
+            // the session that made the change expects to see it in its own response, so deliver it here
+            // rather than wait for the executor; this only blocks if another thread is mid-delivery
+            if (awaitNotification > 0 && lock.isUnlocked()) {
+                if (!notifier.flush(awaitNotification, SOURCE_NOTIFICATION_WAIT_MS)) {
+                    ZimbraLog.mailbox.debug("change notification still pending after %dms",
+                            SOURCE_NOTIFICATION_WAIT_MS);
+                }
+            }
+
             // process cleanup deletes outside the lock as we support alternative blob stores for which a delete may
             // entail a blocking network operation
             if (deletes != null) {
@@ -9531,11 +9603,16 @@ public class Mailbox {
         }
     }
 
-    private void commitCache(MailboxChange change) {
+    /**
+     * @return the notification sequence number the committing thread should deliver once it has
+     *         released the mailbox lock, or 0
+     */
+    private long commitCache(MailboxChange change) {
         if (change == null) {
-            return;
+            return 0;
         }
         ChangeNotification notification = null;
+        boolean live = false; // notifying with the live item set, which must happen under the lock
 
         // save for notifications (below)
         PendingModifications dirty = null;
@@ -9567,6 +9644,9 @@ public class Mailbox {
                 mData.contacts = change.contacts;
             }
             if (change.changeId != MailboxChange.NO_CHANGE && change.changeId > mData.lastChangeId) {
+                if (dirty != null) {
+                    index.invalidateCachedResults(dirty, mData.lastChangeId, change.changeId);
+                }
                 mData.lastChangeId = change.changeId;
                 mData.lastChangeDate = change.timestamp;
             }
@@ -9603,6 +9683,7 @@ public class Mailbox {
                     dirty = snapshotModifications(dirty);
                 } catch (ServiceException e) {
                     ZimbraLog.mailbox.warn("error copying notifications; will notify with live set", e);
+                    live = true;
                 }
                 try {
                     notification = new ChangeNotification(
@@ -9620,45 +9701,40 @@ public class Mailbox {
             change.reset();
         }
 
-        if (notification != null) {
-            for (Session session : mListeners) {
-                try {
-                    session.notifyPendingChanges(notification.mods, notification.lastChangeId, source);
-                } catch (RuntimeException e) {
-                    ZimbraLog.mailbox.error("ignoring error during notification", e);
-                }
+        if (notification == null) {
+            return 0;
+        }
+        // sessions that track mailbox state under the lock are notified right away; the rest and the
+        // other servers are notified in order once the lock is released
+        List<Session> deferred = new ArrayList<Session>(mListeners.size());
+        for (Session session : mListeners) {
+            if (!session.requiresSynchronousNotification()) {
+                deferred.add(session);
+                continue;
             }
-
-            // send to the message channel
-            DbConnection conn = null;
             try {
-                if (Zimbra.isAlwaysOn()) {
-                    conn = DbPool.getConnection();
-                    List<String> serverids = DbSession.get(conn, getId());
-                    for (String serverid : serverids) {
-                        Server server = Provisioning.getInstance().getServerById(serverid);
-                        if (server.isLocalServer()) {
-                            continue;
-                        }
-                        MailboxNotification ntfn = MailboxNotification.create(getAccountId(), mData.lastChangeId, dirty.getSerializedBytes());
-                        MessageChannel.getInstance().sendMessage(server, ntfn);
-                    }
-                }
-            } catch (ServiceException e) {
-                ZimbraLog.session.warn("unable to get target server", e);
-            } catch (MessageChannelException e) {
-                ZimbraLog.session.warn("unable to create MailboxNotification", e);
-                return;
-            } catch (IOException e) {
-                ZimbraLog.session.warn("unable to create MailboxNotification", e);
-                return;
-            } finally {
-                if (conn != null) {
-                    conn.closeQuietly();
-                }
+                session.notifyPendingChanges(notification.mods, notification.lastChangeId, source);
+            } catch (RuntimeException e) {
+                ZimbraLog.mailbox.error("ignoring error during notification", e);
             }
-            MailboxListener.notifyListeners(notification);
         }
+        // MailboxListeners invalidate caches (ACLs, calendar summaries, free/busy) that the next
+        // request may read, so they must have seen the change before the lock is released
+        MailboxListener.notifyListeners(notification);
+
+        long sequence = notifier.enqueue(notification, deferred, source);
+        if (live) {
+            // the live items can't be read once the lock is released
+            if (!notifier.flush(sequence, SOURCE_NOTIFICATION_WAIT_MS)) {
+                ZimbraLog.mailbox.warn("live change notification still pending after %dms",
+                        SOURCE_NOTIFICATION_WAIT_MS);
+            }
+            return 0;
+        }
+        if (source != null && !source.requiresSynchronousNotification() && !deferred.isEmpty()) {
+            return sequence;
+        }
+        return 0;
     }
 
     private List<Object> rollbackCache(MailboxChange change) {
@@ -9706,12 +9782,16 @@ public class Mailbox {
         }
     }
 
+    private int getItemCacheTarget() {
+        if (galSyncMailbox) {
+            return MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX;
+        }
+        return mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
+    }
+
     private void trimItemCache() {
         try {
-            int sizeTarget = mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
-            if (galSyncMailbox) {
-                sizeTarget = MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX;
-            }
+            int sizeTarget = getItemCacheTarget();
 
             ItemCache cache = currentChange().itemCache;
             if (cache == null) {
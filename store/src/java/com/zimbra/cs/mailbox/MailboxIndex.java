@@ -18,15 +18,21 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
@@ -39,11 +45,13 @@ import org.apache.lucene.analysis.Analyzer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.io.Closeables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
@@ -75,6 +83,8 @@ import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
 import com.zimbra.cs.mailbox.Mailbox.IndexItemEntry;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -96,6 +106,9 @@ public final class MailboxIndex {
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
             new ThreadFactoryBuilder().setNameFormat("ReIndex-%d").setDaemon(true).build());
+    // Text extraction threads shared by all mailboxes, or null to extract on the indexing thread.
+    private static final ThreadPoolExecutor EXTRACT_EXECUTOR = newExtractExecutor();
+    private static final int MAX_PENDING_EXTRACTIONS = Math.max(1, LC.zimbra_index_extract_max_pending.intValue());
 
     private volatile long lastFailedTime = -1;
     // Only one thread may run index at a time.
@@ -110,6 +123,9 @@ public final class MailboxIndex {
     private volatile SetMultimap<MailItem.Type, Integer> deferredIds; // guarded by IndexHelper
     boolean indexingSuspended = false;
     int numMaybeIndexDeferredItemsCalls = 0;
+    // DB search results of this mailbox, or null if disabled
+    private final SearchResultCache resultCache = LC.search_result_cache_max_rows.intValue() > 0 ?
+            new SearchResultCache(LC.search_result_cache_max_rows.intValue()) : null;
 
     MailboxIndex(Mailbox mbox) {
         mailbox = mbox;
@@ -122,6 +138,18 @@ public final class MailboxIndex {
         analyzer = ZimbraAnalyzer.getAnalyzer(analyzerName);
     }
 
+    private static ThreadPoolExecutor newExtractExecutor() {
+        int threads = LC.zimbra_index_extract_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("IndexExtract-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Starts all index threads.
      */
@@ -712,8 +740,9 @@ public final class MailboxIndex {
 
     /**
      * Index a potentially very large list of {@link MailItem}s. Iterate through the list of items, fetch each one and
-     * call generateIndexData(). Buffer the items, IndexData into a chunk and when the chunk gets sufficiently large,
-     * run a Mailbox transaction to actually do the indexing
+     * hand it to {@link IndexPipeline}, which runs generateIndexData() on {@link #EXTRACT_EXECUTOR}, buffers the
+     * items and their IndexData into a chunk and, when the chunk gets sufficiently large, runs a Mailbox transaction
+     * to actually do the indexing.
      *
      * @param ids item IDs to index
      * @param status progress will be written to the status
@@ -727,84 +756,177 @@ public final class MailboxIndex {
             return;
         }
 
-        // we re-index 'chunks' of items -- up to a certain size or count
-        List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
-        long chunkByteSize = 0;
-        int i = 0;
-        for (int id : ids) {
-            i++;
-            status.addProcessed(1);
-
-            // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
-            // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
-            // index.
-            ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+        IndexPipeline pipeline = new IndexPipeline(status, ids.size());
+        try {
+            for (int id : ids) {
+                status.addProcessed(1);
+
+                // Fetch the item without holding the Mailbox lock. Text extraction runs in the background; once we've
+                // accumulated a "chunk" of extracted items, do a mailbox transaction to actually add them to the index.
+                ZimbraLog.index.debug("Tokenizing id=%d", id);
+                long start = ZimbraPerf.STOPWATCH_IDX_FETCH.start();
+                MailItem item = null;
                 try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
+                    mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+                } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+                    try {
+                        item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+                    } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                        ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                        removeDeferredId(id);
+                        continue;
+                    }
+                } catch (MailServiceException e) {
+                    // fetch without metadata because reindex will regenerate metadata
+                    if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                        UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                        ud.metadata = null; // ignore corrupted metadata
+                        item = mailbox.getItem(ud);
+                    } else {
+                        throw e;
+                    }
+                } catch (Exception e) {
+                    ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+                    status.addFailed(1);
                     continue;
+                } finally {
+                    mailbox.endTransaction(item != null);
+                    ZimbraPerf.STOPWATCH_IDX_FETCH.stop(start);
                 }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
-                } else {
-                    throw e;
+                pipeline.add(item);
+            }
+            pipeline.finish();
+        } finally {
+            pipeline.cancel();
+        }
+    }
+
+    /**
+     * Runs generateIndexData() for a single item.
+     */
+    private static final class ExtractTask extends FutureTask<Mailbox.IndexItemEntry> {
+        final MailItem item;
+
+        ExtractTask(final MailItem item) {
+            super(new Callable<Mailbox.IndexItemEntry>() {
+                @Override
+                public Mailbox.IndexItemEntry call() throws MailItem.TemporaryIndexingException {
+                    long start = ZimbraPerf.STOPWATCH_IDX_EXTRACT.start();
+                    try {
+                        return new Mailbox.IndexItemEntry(item, item.generateIndexData());
+                    } finally {
+                        ZimbraPerf.STOPWATCH_IDX_EXTRACT.stop(start);
+                    }
                 }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
-                continue;
-            } finally {
-                mailbox.endTransaction(item != null);
+            });
+            this.item = item;
+        }
+    }
+
+    /**
+     * Extracts index data for fetched items in parallel and commits it, in fetch order, in chunks of up to a certain
+     * size or count. At most {@link #MAX_PENDING_EXTRACTIONS} items are waiting for extraction at once, so the fetch
+     * loop blocks rather than running ahead of the extraction threads or the commit.
+     */
+    private final class IndexPipeline {
+        private final BatchStatus status;
+        private final int total;
+        private final Deque<ExtractTask> pending = new ArrayDeque<ExtractTask>();
+        private final List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
+        private long chunkByteSize = 0;
+        private int done = 0;
+
+        IndexPipeline(BatchStatus status, int total) {
+            this.status = status;
+            this.total = total;
+        }
+
+        void add(MailItem item) throws ServiceException {
+            ExtractTask task = new ExtractTask(item);
+            if (EXTRACT_EXECUTOR != null) {
+                EXTRACT_EXECUTOR.execute(task);
+            } else {
+                task.run();
+            }
+            pending.add(task);
+            while (pending.size() >= MAX_PENDING_EXTRACTIONS) {
+                completeNext();
+            }
+        }
+
+        /** Waits for all pending extractions and commits whatever is left. */
+        void finish() throws ServiceException {
+            while (!pending.isEmpty()) {
+                completeNext();
+            }
+            if (!chunk.isEmpty()) {
+                commit();
+            }
+        }
+
+        /** Abandons any extractions that haven't been collected, e.g. when the batch was cancelled. */
+        void cancel() {
+            for (ExtractTask task : pending) {
+                task.cancel(false);
             }
+            pending.clear();
+        }
+
+        private void completeNext() throws ServiceException {
+            ExtractTask task = pending.remove();
+            Mailbox.IndexItemEntry entry;
+            done++;
             try {
-                chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
-            } catch (MailItem.TemporaryIndexingException e) {
-                ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
-                lastFailedTime = System.currentTimeMillis();
-                status.addFailed(1);
-                continue;
+                entry = Uninterruptibles.getUninterruptibly(task);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof MailItem.TemporaryIndexingException) {
+                    ZimbraLog.index.warn("Temporary index failure id=%d", task.item.getId(), cause);
+                    lastFailedTime = System.currentTimeMillis();
+                    status.addFailed(1);
+                    return;
+                }
+                Throwables.propagateIfPossible(cause, ServiceException.class);
+                throw ServiceException.FAILURE("Failed to generate index data for id=" + task.item.getId(), cause);
+            }
+            chunk.add(entry);
+            chunkByteSize += entry.item.getSize();
+            if (chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
+                commit();
             }
-            chunkByteSize += item.getSize();
+        }
 
-            if (i == ids.size() || chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
-                // we have a chunk of items and their corresponding index data -- add them to the index
-                try {
-                    ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+        // we have a chunk of items and their corresponding index data -- add them to the index
+        private void commit() throws ServiceException {
+            try {
+                ZimbraLog.index.debug("Batch progress %d/%d", done, total);
 
-                    if (status.isCancelled()) {
-                        throw ServiceException.INTERRUPTED("cancelled");
-                    }
+                if (status.isCancelled()) {
+                    throw ServiceException.INTERRUPTED("cancelled");
+                }
 
+                long start = ZimbraPerf.STOPWATCH_IDX_COMMIT.start();
+                try {
+                    boolean success = false;
                     try {
-                        boolean success = false;
-                        try {
-                            mailbox.beginTransaction("IndexItemList-Commit", null);
-                            for (Mailbox.IndexItemEntry entry : chunk) {
-                                mailbox.addIndexItemToCurrentChange(entry);
-                            }
-                            success = true;
-                        } finally {
-                            mailbox.endTransaction(success);
+                        mailbox.beginTransaction("IndexItemList-Commit", null);
+                        for (Mailbox.IndexItemEntry entry : chunk) {
+                            mailbox.addIndexItemToCurrentChange(entry);
                         }
-                    } catch (ServiceException e) {
-                        ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
-                        status.addFailed(chunk.size());
+                        success = true;
+                    } finally {
+                        mailbox.endTransaction(success);
                     }
+                } catch (ServiceException e) {
+                    ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
+                    status.addFailed(chunk.size());
                 } finally {
-                    chunk.clear();
-                    chunkByteSize = 0;
+                    ZimbraPerf.STOPWATCH_IDX_COMMIT.stop(start);
                 }
+            } finally {
+                chunk.clear();
+                chunkByteSize = 0;
             }
         }
     }
@@ -961,6 +1083,8 @@ public final class MailboxIndex {
             ids.add(item.getId());
         }
         DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox, ids);
+        // cached rows carry the old index_id, and setting it doesn't bump the change ID
+        clearCachedResults();
         for (MailItem item : indexed) {
             item.mData.indexId = item.getId();
             removeDeferredId(item.getId());
@@ -1063,7 +1187,8 @@ public final class MailboxIndex {
     }
 
     /**
-     * Executes a DB search in a mailbox transaction.
+     * Executes a DB search in a mailbox transaction. Results are served from the search result cache when the same
+     * search already ran since the last change that may affect it.
      */
     public List<DbSearch.Result> search(DbSearchConstraints constraints,
             DbSearch.FetchMode fetch, SortBy sort, int offset, int size, boolean inDumpster) throws ServiceException {
@@ -1071,15 +1196,29 @@ public final class MailboxIndex {
         boolean success = false;
         try {
             mailbox.beginReadTransaction("search", null);
-            result = new DbSearch(mailbox, inDumpster).search(mailbox.getOperationConnection(),
-                    constraints, sort, offset, size, fetch);
+            // a write transaction may have uncommitted changes the cache doesn't know about
+            String cacheKey = resultCache == null || mailbox.lock.isWriteLockedByCurrentThread() ? null :
+                SearchResultCache.getKey(constraints, fetch, sort, offset, size, inDumpster);
+            List<DbSearch.Result> cached = cacheKey == null ? null :
+                resultCache.get(cacheKey, mailbox.getLastChangeID());
+            if (cached != null) {
+                result = new ArrayList<DbSearch.Result>(cached);
+            } else {
+                result = new DbSearch(mailbox, inDumpster).search(mailbox.getOperationConnection(),
+                        constraints, sort, offset, size, fetch);
+                if (cacheKey != null) {
+                    resultCache.put(cacheKey, constraints, new ArrayList<DbSearch.Result>(result),
+                            mailbox.getLastChangeID());
+                }
+            }
             if (fetch == DbSearch.FetchMode.MAIL_ITEM) {
                 // Convert UnderlyingData to MailItem
                 ListIterator<DbSearch.Result> itr = result.listIterator();
                 while (itr.hasNext()) {
                     DbSearch.Result sr = itr.next();
                     try {
-                        MailItem item = mailbox.getItem(sr.getItemData());
+                        // a new MailItem takes ownership of its UnderlyingData, so leave the cached one untouched
+                        MailItem item = mailbox.getItem(cacheKey == null ? sr.getItemData() : sr.getItemData().clone());
                         itr.set(new ItemSearchResult(item, sr.getSortValue()));
                     } catch (ServiceException se) {
                         ZimbraLog.index.info(String.format(
@@ -1096,6 +1235,30 @@ public final class MailboxIndex {
         return result;
     }
 
+    /**
+     * Drops the cached search results that a change committed on top of {@code lastChangeId} may affect.
+     */
+    void invalidateCachedResults(PendingModifications dirty, int lastChangeId, int changeId) {
+        if (resultCache != null) {
+            resultCache.invalidate(dirty, lastChangeId, changeId);
+        }
+    }
+
+    /**
+     * Drops all cached search results.  Used when the index IDs in MAIL_ITEM change, which doesn't take a new change
+     * ID.
+     */
+    void clearCachedResults() {
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+    }
+
+    @VisibleForTesting
+    int getCachedResultCount() {
+        return resultCache == null ? 0 : resultCache.size();
+    }
+
     /* These regexes really shouldn't be complicated - so this value should be way more than enough.
      * Leaving hard coded.  This is the number of accesses allowed to the underlying CharSequence before
      * deciding that too much resource has been used.
@@ -31,6 +31,7 @@ import com.zimbra.cs.mailbox.lock.DebugZLock;
 import com.zimbra.cs.mailbox.lock.ZLock;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
+import com.zimbra.cs.zookeeper.DistributedReadWriteLock;
 
 /**
  * {@link MailboxLock} is a replacement of the implicit monitor lock using {@code synchronized} methods or statements on
@@ -44,13 +45,18 @@ import com.zimbra.cs.zookeeper.CuratorManager;
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
     private InterProcessSemaphoreMutex dLock = null;
+    private DistributedReadWriteLock rwLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
             try {
-                dLock = CuratorManager.getInstance().createLock(id);
+                if (LC.zimbra_mailbox_distributed_lock_readwrite.booleanValue()) {
+                    rwLock = CuratorManager.getInstance().createReadWriteLock(id);
+                } else {
+                    dLock = CuratorManager.getInstance().createLock(id);
+                }
             } catch (ServiceException se) {
                 ZimbraLog.mailbox.error("could not initialize distributed lock", se);
             }
@@ -59,19 +65,32 @@ public final class MailboxLock {
     }
 
     private void acquireDistributedLock(boolean write) throws ServiceException {
-        //TODO: consider read/write distributed lock
-        if (dLock != null && getHoldCount() == 1) {
-            try {
-                dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-            } catch (Exception e) {
-                throw new LockFailedException("could not acquire distributed lock", e);
+        if (getHoldCount() != 1) {
+            return;
+        }
+        boolean acquired = true;
+        try {
+            if (rwLock != null) {
+                acquired = rwLock.acquire(write, LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+            } else if (dLock != null) {
+                acquired = dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
             }
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("could not acquire distributed lock", e);
+        }
+        if (!acquired) {
+            throw ServiceException.FAILURE("timeout acquiring distributed lock", null);
         }
     }
 
     private void releaseDistributedLock(boolean write) {
-        //TODO: consider read/write distributed lock
-        if (dLock != null && getHoldCount() == 1) {
+        if (rwLock != null && getHoldCount() == 1) {
+            try {
+                rwLock.release();
+            } catch (Exception e) {
+                ZimbraLog.mailbox.warn("error while releasing distributed lock", e);
+            }
+        } else if (dLock != null && getHoldCount() == 1) {
             try {
                 dLock.release();
             } catch (Exception e) {
@@ -172,8 +191,8 @@ public final class MailboxLock {
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
-                    release();
-                    LockFailedException lfe = new LockFailedException("lockdb");
+                    releaseLocal();
+                    LockFailedException lfe = new LockFailedException("lockdb", e);
                     lfe.logStackTrace();
                     throw lfe;
                 }
@@ -201,8 +220,8 @@ public final class MailboxLock {
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
-                    release();
-                    LockFailedException lfe = new LockFailedException("lockdb");
+                    releaseLocal();
+                    LockFailedException lfe = new LockFailedException("lockdb", e);
                     lfe.logStackTrace();
                     throw lfe;
                 }
@@ -234,6 +253,20 @@ public final class MailboxLock {
         ZimbraLog.mailbox.trace("RELEASE %s", (write ? "WRITE" : "READ"));
 
         releaseDistributedLock(write);
+        unlock(write);
+    }
+
+    /**
+     * Gives up the local hold after the distributed lock could not be acquired.  The distributed lock is left
+     * alone, since this thread doesn't hold it and its hold count belongs to the other local holders.
+     */
+    private void releaseLocal() {
+        Boolean write = lockStack.pop();
+        ZimbraLog.mailbox.trace("RELEASE %s (distributed lock not acquired)", (write ? "WRITE" : "READ"));
+        unlock(write);
+    }
+
+    private void unlock(boolean write) {
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
             zLock.writeLock().unlock();
@@ -25,11 +25,16 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -123,7 +128,8 @@ public class MailboxManager {
 
     /** Maps account IDs (<code>String</code>s) to mailbox IDs
      *  (<code>Integer</code>s).  <i>Every</i> mailbox in existence on the
-     *  server appears in this mapping. */
+     *  server appears in this mapping.  Reads don't need the
+     *  <code>MailboxManager</code> lock. */
     private Map<String, Integer> mailboxIds;
 
     /**
@@ -136,15 +142,22 @@ public class MailboxManager {
      * Mailboxes are faulted into memory as needed, but may drop from memory when the SoftReference expires due to
      * memory pressure combined with a lack of outstanding references to the {@link Mailbox}.  Only one {@link Mailbox}
      * per user is cached, and only that {@link Mailbox} can process user requests.
+     * <p>
+     * The map is thread-safe.  Code that needs to look at and then change the entry for a mailbox atomically holds
+     * {@link MailboxMap#lockFor} for that mailbox.
      */
     private MailboxMap cache;
 
+    /** Mailboxes that are being loaded from the database, so that concurrent lookups share one load. */
+    private final ConcurrentMap<Integer, FutureTask<Mailbox>> mailboxLoads =
+        new ConcurrentHashMap<Integer, FutureTask<Mailbox>>();
+
     public MailboxManager() throws ServiceException {
         DbConnection conn = null;
         synchronized (this) {
             try {
                 conn = DbPool.getConnection();
-                mailboxIds = DbMailbox.listMailboxes(conn, this);
+                mailboxIds = new ConcurrentHashMap<String, Integer>(DbMailbox.listMailboxes(conn, this));
                 cache = createCache();
             } finally {
                 DbPool.quietClose(conn);
@@ -336,10 +349,7 @@ public class MailboxManager {
         if (accountId == null)
             throw new IllegalArgumentException();
 
-        Integer mailboxKey;
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        Integer mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null) {
             if (DebugConfig.mockMultiserverInstall)
                 lookupAccountWithHostCheck(accountId, skipMailHostCheck);
@@ -350,9 +360,7 @@ public class MailboxManager {
 
         // auto-create the mailbox if this is the right host...
         Account account = lookupAccountWithHostCheck(accountId, skipMailHostCheck);
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null)
             return getMailboxById(mailboxKey, fetchMode, skipMailHostCheck);
         else
@@ -430,14 +438,12 @@ public class MailboxManager {
 
         long startTime = ZimbraPerf.STOPWATCH_MBOX_GET.start();
 
+        // check to see if the mailbox has already been cached
         Mailbox mbox = null;
-        synchronized (this) {
-            // check to see if the mailbox has already been cached
-            Object cached = retrieveFromCache(mailboxId, true);
-            if (cached instanceof Mailbox) {
-                ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
-                mbox = (Mailbox) cached;
-            }
+        Object cached = retrieveFromCache(mailboxId, true);
+        if (cached instanceof Mailbox) {
+            ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
+            mbox = (Mailbox) cached;
         }
 
         if (fetchMode == FetchMode.ONLY_IF_CACHED && (mbox == null || !mbox.isOpen())) {
@@ -447,47 +453,49 @@ public class MailboxManager {
 
         if (mbox == null) { // not found in cache
             ZimbraPerf.COUNTER_MBOX_CACHE.increment(0);
-            MailboxData data;
-            DbConnection conn = DbPool.getConnection();
+            // Load the mailbox, or wait for the thread that is already loading it.  The load stays registered
+            // until the loading thread has cached the mailbox, so that concurrent lookups all get one instance.
+            FutureTask<Mailbox> load = new FutureTask<Mailbox>(new MailboxLoader(mailboxId));
+            FutureTask<Mailbox> pending = mailboxLoads.putIfAbsent(mailboxId, load);
             try {
-                // fetch the Mailbox data from the database
-                data = DbMailbox.getMailboxStats(conn, mailboxId);
-                if (data == null) {
-                    throw MailServiceException.NO_SUCH_MBOX(mailboxId);
+                if (pending == null) {
+                    pending = load;
+                    load.run();
+                } else {
+                    ZimbraPerf.COUNTER_MBOX_LOAD_WAIT.increment();
+                }
+                mbox = getLoadedMailbox(mailboxId, pending);
+
+                if (!skipMailHostCheck) {
+                    // The host check here makes sure that sessions that were
+                    // already connected at the time of mailbox move are not
+                    // allowed to continue working with this mailbox which is
+                    // essentially a soft-deleted copy.  The WRONG_HOST
+                    // exception forces the clients to reconnect to the new
+                    // server.
+                    Account account = mbox.getAccount();
+                    if (!Provisioning.onLocalServer(account))
+                        throw ServiceException.WRONG_HOST(account.getMailHost(), null);
                 }
-            } finally {
-                conn.closeQuietly();
-            }
-
-            mbox = instantiateMailbox(data);
-            Account account = mbox.getAccount();
-            boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
-            mbox.setGalSyncMailbox(isGalSyncAccount);
-
-            if (!skipMailHostCheck) {
-                // The host check here makes sure that sessions that were
-                // already connected at the time of mailbox move are not
-                // allowed to continue working with this mailbox which is
-                // essentially a soft-deleted copy.  The WRONG_HOST
-                // exception forces the clients to reconnect to the new
-                // server.
-                if (!Provisioning.onLocalServer(account))
-                    throw ServiceException.WRONG_HOST(account.getMailHost(), null);
-            }
 
-            synchronized (this) {
-                // avoid the race condition by re-checking the cache and using that data (if any)
-                Object cached = retrieveFromCache(mailboxId, false);
-                if (cached instanceof Mailbox) {
-                    mbox = (Mailbox) cached;
-                } else {
-                    // cache the newly-created Mailbox object
-                    if (cached instanceof MailboxMaintenance) {
-                        ((MailboxMaintenance) cached).setMailbox(mbox);
+                synchronized (cache.lockFor(mailboxId)) {
+                    // avoid the race condition by re-checking the cache and using that data (if any)
+                    cached = retrieveFromCache(mailboxId, false);
+                    if (cached instanceof Mailbox) {
+                        mbox = (Mailbox) cached;
                     } else {
-                        cacheMailbox(mbox);
+                        // cache the newly-created Mailbox object
+                        if (cached instanceof MailboxMaintenance) {
+                            ((MailboxMaintenance) cached).setMailbox(mbox);
+                        } else {
+                            cacheMailbox(mbox);
+                        }
                     }
                 }
+            } finally {
+                if (pending == load) {
+                    mailboxLoads.remove(mailboxId, load);
+                }
             }
         }
 
@@ -507,7 +515,7 @@ public class MailboxManager {
             MailboxMaintenance maint = null;
             synchronized (mbox) {
                 maint = mbox.beginMaintenance();
-                synchronized (this) {
+                synchronized (cache.lockFor(mailboxId)) {
                     cache.put(mailboxId, maint);
                 }
             }
@@ -520,10 +528,60 @@ public class MailboxManager {
         return mbox;
     }
 
+    /**
+     * Fetches the mailbox data from the database and instantiates the {@link Mailbox}.
+     */
+    private class MailboxLoader implements Callable<Mailbox> {
+        private final int mailboxId;
+
+        MailboxLoader(int mailboxId) {
+            this.mailboxId = mailboxId;
+        }
+
+        @Override
+        public Mailbox call() throws ServiceException {
+            long startTime = ZimbraPerf.STOPWATCH_MBOX_LOAD.start();
+            MailboxData data;
+            DbConnection conn = DbPool.getConnection();
+            try {
+                // fetch the Mailbox data from the database
+                data = DbMailbox.getMailboxStats(conn, mailboxId);
+                if (data == null) {
+                    throw MailServiceException.NO_SUCH_MBOX(mailboxId);
+                }
+            } finally {
+                conn.closeQuietly();
+            }
+
+            Mailbox mbox = instantiateMailbox(data);
+            Account account = mbox.getAccount();
+            boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
+            mbox.setGalSyncMailbox(isGalSyncAccount);
+            ZimbraPerf.STOPWATCH_MBOX_LOAD.stop(startTime);
+            return mbox;
+        }
+    }
+
+    private static Mailbox getLoadedMailbox(int mailboxId, FutureTask<Mailbox> load) throws ServiceException {
+        try {
+            return Uninterruptibles.getUninterruptibly(load);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ServiceException.FAILURE("error loading mailbox " + mailboxId, cause);
+        }
+    }
+
     /** @return A list of *hard references* to all currently-loaded mailboxes which are not
      *     .   in MAINTENANCE mode.  Caller must be careful to not hang onto this list for
      *         very long or else mailboxes will not be purged. */
-    public synchronized List<Mailbox> getAllLoadedMailboxes() {
+    public List<Mailbox> getAllLoadedMailboxes() {
         List<Mailbox> mboxes = new ArrayList<Mailbox>(cache.size());
         for (Object o : cache.values()) {
             if (o instanceof Mailbox) {
@@ -541,7 +599,7 @@ public class MailboxManager {
     /**
      * Returns the number of hard references to currently-loaded mailboxes, either in MAINTENANCE mode or not.
      */
-    public synchronized int getCacheSize() {
+    public int getCacheSize() {
         int count = 0;
         for (Object o : cache.values()) {
             if (o instanceof Mailbox || o instanceof MailboxMaintenance) {
@@ -556,7 +614,7 @@ public class MailboxManager {
      * that one of the {@link Listener} APIs be called for this mailbox at some point in the future, if this mailbox is
      * ever accessed.
      */
-    public synchronized boolean isMailboxLoadedAndAvailable(int mailboxId) {
+    public boolean isMailboxLoadedAndAvailable(int mailboxId) {
         Object cached = cache.get(mailboxId);
         if (cached == null) {
             return false;
@@ -569,24 +627,22 @@ public class MailboxManager {
     }
 
     private Object retrieveFromCache(int mailboxId, boolean trackGC) throws MailServiceException {
-        synchronized (this) {
-            Object cached = cache.get(mailboxId, trackGC);
-            if (cached instanceof MailboxMaintenance) {
-                MailboxMaintenance maintenance = (MailboxMaintenance) cached;
-                if (!maintenance.canAccess()) {
-                    if (isMailboxLockedOut(maintenance.getAccountId())) {
-                        throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
-                    } else {
-                        throw MailServiceException.MAINTENANCE(mailboxId);
-                    }
-                }
-                if (maintenance.getMailbox() != null) {
-                    return maintenance.getMailbox();
+        Object cached = cache.get(mailboxId, trackGC);
+        if (cached instanceof MailboxMaintenance) {
+            MailboxMaintenance maintenance = (MailboxMaintenance) cached;
+            if (!maintenance.canAccess()) {
+                if (isMailboxLockedOut(maintenance.getAccountId())) {
+                    throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
+                } else {
+                    throw MailServiceException.MAINTENANCE(mailboxId);
                 }
             }
-            // if we've retrieved NULL or a Mailbox or an accessible lock, return it
-            return cached;
+            if (maintenance.getMailbox() != null) {
+                return maintenance.getMailbox();
+            }
         }
+        // if we've retrieved NULL or a Mailbox or an accessible lock, return it
+        return cached;
     }
 
     /**
@@ -600,7 +656,7 @@ public class MailboxManager {
         return new ExternalVirtualMailbox(data);
     }
 
-    protected synchronized void cacheAccount(String accountId, int mailboxId) {
+    protected void cacheAccount(String accountId, int mailboxId) {
         mailboxIds.put(accountId.toLowerCase(), Integer.valueOf(mailboxId));
     }
 
@@ -615,7 +671,9 @@ public class MailboxManager {
             synchronized (this) {
                 if (mailboxIds.get(accountId.toLowerCase()) == null) {
                     MailboxMaintenance maintenance = new MailboxMaintenance(accountId, mailboxId);
-                    cache.put(mailboxId, maintenance);
+                    synchronized (cache.lockFor(mailboxId)) {
+                        cache.put(mailboxId, maintenance);
+                    }
                     return maintenance;
                 }
             }
@@ -626,7 +684,7 @@ public class MailboxManager {
         mbox.lock.lock();
         try {
             MailboxMaintenance maintenance = mbox.beginMaintenance();
-            synchronized (this) {
+            synchronized (cache.lockFor(mailboxId)) {
                 cache.put(mailboxId, maintenance);
             }
             return maintenance;
@@ -642,48 +700,50 @@ public class MailboxManager {
         Mailbox availableMailbox = null;
 
         synchronized (this) {
-            Object obj = cache.get(maintenance.getMailboxId());
-            if (obj != maintenance) {
-                ZimbraLog.mailbox.debug("maintenance ended with wrong object. passed %s; expected %s", maintenance, obj);
-                throw MailServiceException.MAINTENANCE(maintenance.getMailboxId(), "attempting to end maintenance with wrong object");
-            }
-            // start by removing the lock from the Mailbox object cache
-            cache.remove(maintenance.getMailboxId());
-
-            Mailbox mbox = maintenance.getMailbox();
-            if (success) {
-                // XXX: don't recall the rationale for re-setting this...
-                cacheAccount(maintenance.getAccountId(), maintenance.getMailboxId());
-
-                if (mbox != null) {
-                    assert(maintenance == mbox.getMaintenance() || mbox.getMaintenance() == null); // restore case
-
-                    if (removeFromCache) {
-                        mbox.purge(MailItem.Type.UNKNOWN);
-                        // We're going to let the Mailbox drop out of the cache and eventually get GC'd.
-                        // Some immediate cleanup is necessary though.
-                        IndexStore index = mbox.index.getIndexStore();
-                        if (index != null) {
-                            index.evict();
-                        }
-                        // Note: mbox is left in maintenance mode.
-                    } else {
-                        if (mbox.endMaintenance(success)) {
-                            ZimbraLog.mailbox.debug("no longer in maintenace; caching mailbox");
-                            cacheMailbox(maintenance.getMailbox());
+            synchronized (cache.lockFor(maintenance.getMailboxId())) {
+                Object obj = cache.get(maintenance.getMailboxId());
+                if (obj != maintenance) {
+                    ZimbraLog.mailbox.debug("maintenance ended with wrong object. passed %s; expected %s", maintenance, obj);
+                    throw MailServiceException.MAINTENANCE(maintenance.getMailboxId(), "attempting to end maintenance with wrong object");
+                }
+                // start by removing the lock from the Mailbox object cache
+                cache.remove(maintenance.getMailboxId());
+
+                Mailbox mbox = maintenance.getMailbox();
+                if (success) {
+                    // XXX: don't recall the rationale for re-setting this...
+                    cacheAccount(maintenance.getAccountId(), maintenance.getMailboxId());
+
+                    if (mbox != null) {
+                        assert(maintenance == mbox.getMaintenance() || mbox.getMaintenance() == null); // restore case
+
+                        if (removeFromCache) {
+                            mbox.purge(MailItem.Type.UNKNOWN);
+                            // We're going to let the Mailbox drop out of the cache and eventually get GC'd.
+                            // Some immediate cleanup is necessary though.
+                            IndexStore index = mbox.index.getIndexStore();
+                            if (index != null) {
+                                index.evict();
+                            }
+                            // Note: mbox is left in maintenance mode.
                         } else {
-                            ZimbraLog.mailbox.debug("still in maintenance; caching lock");
-                            cache.put(mbox.getId(), mbox.getMaintenance());
+                            if (mbox.endMaintenance(success)) {
+                                ZimbraLog.mailbox.debug("no longer in maintenace; caching mailbox");
+                                cacheMailbox(maintenance.getMailbox());
+                            } else {
+                                ZimbraLog.mailbox.debug("still in maintenance; caching lock");
+                                cache.put(mbox.getId(), mbox.getMaintenance());
+                            }
                         }
+                        availableMailbox = mbox;
                     }
-                    availableMailbox = mbox;
-                }
-            } else {
-                // on failed maintenance, mark the Mailbox object as off-limits to everyone
-                if (mbox != null) {
-                    mbox.endMaintenance(success);
+                } else {
+                    // on failed maintenance, mark the Mailbox object as off-limits to everyone
+                    if (mbox != null) {
+                        mbox.endMaintenance(success);
+                    }
+                    maintenance.markUnavailable();
                 }
-                maintenance.markUnavailable();
             }
         }
 
@@ -697,9 +757,7 @@ public class MailboxManager {
      * @return
      */
     public int getMailboxCount() {
-        synchronized (this) {
-            return mailboxIds.size();
-        }
+        return mailboxIds.size();
     }
 
 
@@ -709,13 +767,11 @@ public class MailboxManager {
      *  <code>zimbraMailHost</code> LDAP attribute points to this server. */
     public int[] getMailboxIds() {
         int i = 0;
-        synchronized (this) {
-            Collection<Integer> col = mailboxIds.values();
-            int[] mailboxIds = new int[col.size()];
-            for (int id : col)
-                mailboxIds[i++] = id;
-            return mailboxIds;
-        }
+        Collection<Integer> col = new ArrayList<Integer>(mailboxIds.values());
+        int[] mailboxIds = new int[col.size()];
+        for (int id : col)
+            mailboxIds[i++] = id;
+        return mailboxIds;
     }
 
     public Set<Integer> getPurgePendingMailboxes(long time) throws ServiceException {
@@ -734,14 +790,8 @@ public class MailboxManager {
      *  the same as the set of accounts whose <code>zimbraMailHost</code> LDAP
      *  attribute points to this server.*/
     public String[] getAccountIds() {
-        int i = 0;
-        synchronized (this) {
-            Set<String> set = mailboxIds.keySet();
-            String[] accountIds = new String[set.size()];
-            for (String o : set)
-                accountIds[i++] = o;
-            return accountIds;
-        }
+        Set<String> set = mailboxIds.keySet();
+        return set.toArray(new String[set.size()]);
     }
 
 
@@ -751,10 +801,7 @@ public class MailboxManager {
      * @return
      */
     public int lookupMailboxId(String accountId) {
-        Integer v;
-        synchronized (this) {
-            v = mailboxIds.get(accountId);
-        }
+        Integer v = mailboxIds.get(accountId);
         return v != null ? v.intValue() : -1;
     }
 
@@ -769,16 +816,14 @@ public class MailboxManager {
      *        the database; a SQLException is encapsulated</ul> */
     public Map<String, Long> getMailboxSizes(List<NamedEntry> accounts) throws ServiceException {
         List<Integer> requested;
-        synchronized (this) {
-            if (accounts == null) {
-                requested = new ArrayList<Integer>(mailboxIds.values());
-            } else {
-                requested = new ArrayList<Integer>(accounts.size());
-                for (NamedEntry account : accounts) {
-                    Integer mailboxId = mailboxIds.get(account.getId());
-                    if (mailboxId != null)
-                        requested.add(mailboxId);
-                }
+        if (accounts == null) {
+            requested = new ArrayList<Integer>(mailboxIds.values());
+        } else {
+            requested = new ArrayList<Integer>(accounts.size());
+            for (NamedEntry account : accounts) {
+                Integer mailboxId = mailboxIds.get(account.getId());
+                if (mailboxId != null)
+                    requested.add(mailboxId);
             }
         }
 
@@ -933,7 +978,9 @@ public class MailboxManager {
         synchronized (this) {
             maintenanceLocks.remove(accountId);
             mailboxIds.remove(accountId);
-            cache.remove(mailbox.getId());
+            synchronized (cache.lockFor(mailbox.getId())) {
+                cache.remove(mailbox.getId());
+            }
         }
         notifyMailboxDeleted(accountId);
     }
@@ -942,12 +989,10 @@ public class MailboxManager {
         StringBuilder sb = new StringBuilder();
         sb.append("MAILBOX CACHE DUMPS\n");
         sb.append("----------------------------------------------------------------------\n");
-        synchronized (this) {
-            for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
-                sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
-            for (Map.Entry<Integer, Object> entry : cache.entrySet())
-                sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
-        }
+        for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
+            sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
+        for (Map.Entry<Integer, Object> entry : cache.entrySet())
+            sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
         sb.append("----------------------------------------------------------------------\n");
         ZimbraLog.mailbox.debug(sb.toString());
     }
@@ -1000,54 +1045,64 @@ public class MailboxManager {
         }
     }
 
+    /**
+     * Mailbox cache, split into stripes by mailbox ID so that lookups of different mailboxes don't contend on one
+     * lock.  Each stripe keeps its share of the hard reference limit in LRU order and demotes the least recently
+     * used entries to {@link SoftReference}s.  All methods are thread-safe; hold {@link #lockFor} to make several
+     * calls for one mailbox atomic.
+     */
     protected static class MailboxMap implements Map<Integer, Object> {
+        static final int STRIPES = 16;
+
         final int mHardSize;
-        final LinkedHashMap<Integer, Object> mHardMap;
-        final HashMap<Integer, Object> mSoftMap;
+        final Stripe[] mStripes;
 
-        @SuppressWarnings("serial") MailboxMap(int hardSize) {
+        MailboxMap(int hardSize) {
             hardSize = Math.max(hardSize, 0);
             mHardSize = hardSize;
-            mSoftMap = new HashMap<Integer, Object>();
-            mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
-                @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
-                    if (size() <= mHardSize)
-                        return false;
-
-                    Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
-                        obj = new SoftReference<Mailbox>((Mailbox) obj);
-                    mSoftMap.put(eldest.getKey(), obj);
-                    return true;
-                }
-            };
+            mStripes = new Stripe[STRIPES];
+            int stripeHardSize = (hardSize + STRIPES - 1) / STRIPES;
+            for (int i = 0; i < STRIPES; i++) {
+                mStripes[i] = new Stripe(stripeHardSize);
+            }
         }
 
         protected MailboxMap() {
             mHardSize = 0;
-            mHardMap = null;
-            mSoftMap = null;
+            mStripes = null;
+        }
+
+        private Stripe stripe(Object key) {
+            return mStripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+        }
+
+        /** Returns the object to synchronize on to change the entry for a mailbox atomically. */
+        public Object lockFor(int mailboxId) {
+            return stripe(mailboxId);
         }
 
         @Override public void clear() {
-            mHardMap.clear();
-            mSoftMap.clear();
+            for (Stripe stripe : mStripes)
+                stripe.clear();
         }
 
         @Override public boolean containsKey(Object key) {
-            return mHardMap.containsKey(key) || mSoftMap.containsKey(key);
+            return stripe(key).containsKey(key);
         }
 
         @Override public boolean containsValue(Object value) {
-            return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            for (Stripe stripe : mStripes) {
+                if (stripe.containsValue(value))
+                    return true;
+            }
+            return false;
         }
 
         @Override public Set<Entry<Integer, Object>> entrySet() {
-            Set<Entry<Integer, Object>> entries = new HashSet<Entry<Integer, Object>>(size());
-            if (mHardSize > 0)
-                entries.addAll(mHardMap.entrySet());
-            entries.addAll(mSoftMap.entrySet());
-            return entries;
+            Map<Integer, Object> snapshot = new HashMap<Integer, Object>(size());
+            for (Stripe stripe : mStripes)
+                stripe.copyTo(snapshot);
+            return snapshot.entrySet();
         }
 
         @Override public Object get(Object key) {
@@ -1055,44 +1110,26 @@ public class MailboxManager {
         }
 
         public Object get(Object key, boolean trackGC) {
-            Object obj = mHardSize > 0 ? mHardMap.get(key) : null;
-            if (obj == null) {
-                obj = mSoftMap.get(key);
-                if (obj instanceof SoftReference) {
-                    obj = ((SoftReference<?>) obj).get();
-                    if (trackGC && obj == null)
-                        ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
-                }
-            }
-            return obj;
+            return stripe(key).get(key, trackGC);
         }
 
         @Override public boolean isEmpty() {
-            return mHardMap.isEmpty() && mSoftMap.isEmpty();
+            for (Stripe stripe : mStripes) {
+                if (!stripe.isEmpty())
+                    return false;
+            }
+            return true;
         }
 
         @Override public Set<Integer> keySet() {
             Set<Integer> keys = new HashSet<Integer>(size());
-            if (mHardSize > 0)
-                keys.addAll(mHardMap.keySet());
-            keys.addAll(mSoftMap.keySet());
+            for (Stripe stripe : mStripes)
+                stripe.addKeysTo(keys);
             return keys;
         }
 
         @Override public Object put(Integer key, Object value) {
-            Object removed;
-            if (mHardSize > 0) {
-                removed = mHardMap.put(key, value);
-                if (removed == null)
-                    removed = mSoftMap.remove(key);
-            } else {
-                if (value instanceof Mailbox)
-                    value = new SoftReference<Object>(value);
-                removed = mSoftMap.put(key, value);
-            }
-            if (removed instanceof SoftReference)
-                removed = ((SoftReference<?>) removed).get();
-            return removed;
+            return stripe(key).put(key, value);
         }
 
         @Override public void putAll(Map<? extends Integer, ? extends Object> t) {
@@ -1101,33 +1138,135 @@ public class MailboxManager {
         }
 
         @Override public Object remove(Object key) {
-            Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
-            if (removed == null) {
-                removed = mSoftMap.remove(key);
-                if (removed instanceof SoftReference)
-                    removed = ((SoftReference<?>) removed).get();
-            }
-            return removed;
+            return stripe(key).remove(key);
         }
 
         @Override public int size() {
-            return mHardMap.size() + mSoftMap.size();
+            int size = 0;
+            for (Stripe stripe : mStripes)
+                size += stripe.size();
+            return size;
         }
 
         @Override public Collection<Object> values() {
             List<Object> values = new ArrayList<Object>(size());
-            if (mHardSize > 0)
-                values.addAll(mHardMap.values());
-            for (Object o : mSoftMap.values()) {
-                if (o instanceof SoftReference)
-                    o = ((SoftReference<?>) o).get();
-                values.add(o);
-            }
+            for (Stripe stripe : mStripes)
+                stripe.addValuesTo(values);
             return values;
         }
 
         @Override public String toString() {
-            return "<" + mHardMap.toString() + ", " + mSoftMap.toString() + ">";
+            StringBuilder sb = new StringBuilder("<");
+            for (Stripe stripe : mStripes)
+                sb.append(stripe);
+            return sb.append(">").toString();
+        }
+
+        /** One stripe of the cache: an LRU map of hard references backed by a map of soft references. */
+        private static final class Stripe {
+            final int mHardSize;
+            final LinkedHashMap<Integer, Object> mHardMap;
+            final HashMap<Integer, Object> mSoftMap;
+
+            @SuppressWarnings("serial") Stripe(int hardSize) {
+                mHardSize = hardSize;
+                mSoftMap = new HashMap<Integer, Object>();
+                mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
+                    @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
+                        if (size() <= mHardSize)
+                            return false;
+
+                        Object obj = eldest.getValue();
+                        if (obj instanceof Mailbox)
+                            obj = new SoftReference<Mailbox>((Mailbox) obj);
+                        mSoftMap.put(eldest.getKey(), obj);
+                        return true;
+                    }
+                };
+            }
+
+            synchronized void clear() {
+                mHardMap.clear();
+                mSoftMap.clear();
+            }
+
+            synchronized boolean containsKey(Object key) {
+                return mHardMap.containsKey(key) || mSoftMap.containsKey(key);
+            }
+
+            synchronized boolean containsValue(Object value) {
+                return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            }
+
+            synchronized void copyTo(Map<Integer, Object> map) {
+                map.putAll(mSoftMap);
+                map.putAll(mHardMap);
+            }
+
+            synchronized Object get(Object key, boolean trackGC) {
+                Object obj = mHardSize > 0 ? mHardMap.get(key) : null;
+                if (obj == null) {
+                    obj = mSoftMap.get(key);
+                    if (obj instanceof SoftReference) {
+                        obj = ((SoftReference<?>) obj).get();
+                        if (trackGC && obj == null)
+                            ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
+                    }
+                }
+                return obj;
+            }
+
+            synchronized boolean isEmpty() {
+                return mHardMap.isEmpty() && mSoftMap.isEmpty();
+            }
+
+            synchronized void addKeysTo(Set<Integer> keys) {
+                keys.addAll(mHardMap.keySet());
+                keys.addAll(mSoftMap.keySet());
+            }
+
+            synchronized Object put(Integer key, Object value) {
+                Object removed;
+                if (mHardSize > 0) {
+                    removed = mHardMap.put(key, value);
+                    if (removed == null)
+                        removed = mSoftMap.remove(key);
+                } else {
+                    if (value instanceof Mailbox)
+                        value = new SoftReference<Object>(value);
+                    removed = mSoftMap.put(key, value);
+                }
+                if (removed instanceof SoftReference)
+                    removed = ((SoftReference<?>) removed).get();
+                return removed;
+            }
+
+            synchronized Object remove(Object key) {
+                Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
+                if (removed == null) {
+                    removed = mSoftMap.remove(key);
+                    if (removed instanceof SoftReference)
+                        removed = ((SoftReference<?>) removed).get();
+                }
+                return removed;
+            }
+
+            synchronized int size() {
+                return mHardMap.size() + mSoftMap.size();
+            }
+
+            synchronized void addValuesTo(List<Object> values) {
+                values.addAll(mHardMap.values());
+                for (Object o : mSoftMap.values()) {
+                    if (o instanceof SoftReference)
+                        o = ((SoftReference<?>) o).get();
+                    values.add(o);
+                }
+            }
+
+            @Override public synchronized String toString() {
+                return "<" + mHardMap.toString() + ", " + mSoftMap.toString() + ">";
+            }
         }
     }
 }
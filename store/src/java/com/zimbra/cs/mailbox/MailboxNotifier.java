@@ -0,0 +1,336 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.db.DbSession;
+import com.zimbra.cs.iochannel.MailboxNotification;
+import com.zimbra.cs.iochannel.MessageChannel;
+import com.zimbra.cs.iochannel.MessageChannelException;
+import com.zimbra.cs.mailbox.MailboxListener.ChangeNotification;
+import com.zimbra.cs.session.Session;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Delivers a mailbox's change notifications to its sessions and to the other servers after the
+ * committing thread has let go of the mailbox lock.  Notifications are queued in change order while
+ * the lock is still held, and at most one thread per mailbox drains the queue, so every session sees
+ * the changes in the order they were committed.  A drain delivers everything that has queued up by the
+ * time it runs, which coalesces a burst of small transactions into one pass (and one {@link DbSession}
+ * lookup).  Drains normally run on a shared executor; a committing thread that needs its own change
+ * delivered before it returns drains the queue itself with {@link #flush} instead of waiting for one.
+ * <p>
+ * Sessions that return true from {@link Session#requiresSynchronousNotification()} and the
+ * {@link MailboxListener}s are still notified by {@link Mailbox} on the committing thread and never
+ * reach this class.
+ */
+public final class MailboxNotifier {
+
+    private static final int THREADS = LC.zimbra_mailbox_notify_threads.intValue();
+    private static final ThreadPoolExecutor EXECUTOR;
+    static {
+        if (THREADS > 0) {
+            EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("MailboxNotifier-%d").setDaemon(true).build());
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        } else {
+            EXECUTOR = null;
+        }
+    }
+
+    /** Notifications queued on all mailboxes but not yet delivered. */
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    private static final class Pending {
+        final ChangeNotification notification;
+        final List<Session> sessions;
+        final Session source;
+        final long sequence;
+        final long queued = System.currentTimeMillis();
+
+        Pending(ChangeNotification notification, List<Session> sessions, Session source, long sequence) {
+            this.notification = notification;
+            this.sessions = sessions;
+            this.source = source;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Mailbox mbox;
+    private volatile Executor executor;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>(); // guarded by this
+    private boolean scheduled; // drain task handed to the executor but not started; guarded by this
+    private Thread drainer; // the thread that is delivering, if any; guarded by this
+    private long lastQueued; // guarded by this
+    private long lastDelivered; // guarded by this
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    MailboxNotifier(Mailbox mbox) {
+        this(mbox, EXECUTOR);
+    }
+
+    /**
+     * @param executor runs the delivery tasks; null delivers on the calling thread
+     */
+    @VisibleForTesting
+    MailboxNotifier(Mailbox mbox, Executor executor) {
+        this.mbox = mbox;
+        this.executor = executor;
+    }
+
+    @VisibleForTesting
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the number of change notifications waiting for delivery, across all mailboxes.
+     */
+    public static int getPendingCount() {
+        return PENDING.get();
+    }
+
+    /**
+     * Queues a committed change for delivery.  Must be called in change order, i.e. while the
+     * mailbox is still write-locked by the committing thread.
+     *
+     * @param sessions the listeners to notify, as of the commit
+     * @return a sequence number to hand to {@link #flush} or {@link #awaitDelivery}
+     */
+    long enqueue(ChangeNotification notification, List<Session> sessions, Session source) {
+        Executor executor = this.executor;
+        Pending pending;
+        boolean schedule;
+        synchronized (this) {
+            pending = new Pending(notification, sessions, source, ++lastQueued);
+            if (executor == null) {
+                schedule = false;
+            } else {
+                queue.add(pending);
+                PENDING.incrementAndGet();
+                // a running drain either picks this up or reschedules it when it stops
+                schedule = !scheduled && drainer == null;
+                scheduled |= schedule;
+            }
+        }
+        if (executor == null) {
+            List<Pending> batch = new ArrayList<Pending>(1);
+            batch.add(pending);
+            deliver(batch);
+        } else if (schedule) {
+            executor.execute(drain);
+        }
+        return pending.sequence;
+    }
+
+    /**
+     * Waits until the notification with the given sequence number has been delivered.
+     *
+     * @return false if it was still pending after {@code timeoutMillis}
+     */
+    synchronized boolean awaitDelivery(long sequence, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean interrupted = false;
+        try {
+            while (lastDelivered < sequence) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Delivers the notification with the given sequence number, and everything queued before it, on
+     * the calling thread.  If another thread is already delivering, waits for it instead.
+     *
+     * @return false if it was still pending after {@code timeoutMillis}
+     */
+    boolean flush(long sequence, long timeoutMillis) {
+        synchronized (this) {
+            if (lastDelivered >= sequence) {
+                return true;
+            }
+            if (drainer == Thread.currentThread()) {
+                return false; // committed from a listener; delivered once the outer pass gets to it
+            } else if (drainer != null) {
+                return awaitDelivery(sequence, timeoutMillis);
+            }
+            drainer = Thread.currentThread();
+        }
+        deliverQueued(sequence);
+        return true;
+    }
+
+    private void drain() {
+        synchronized (this) {
+            scheduled = false;
+            if (drainer != null) {
+                return;
+            }
+            drainer = Thread.currentThread();
+        }
+        deliverQueued(Long.MAX_VALUE);
+    }
+
+    /**
+     * Delivers queued notifications until the queue is empty or {@code sequence} has been delivered.
+     * The caller must have set itself as the {@link #drainer}; whatever is left queued is handed to the executor.
+     */
+    private void deliverQueued(long sequence) {
+        boolean schedule;
+        while (true) {
+            List<Pending> batch;
+            synchronized (this) {
+                if (queue.isEmpty() || lastDelivered >= sequence) {
+                    drainer = null;
+                    schedule = !queue.isEmpty() && !scheduled;
+                    scheduled |= schedule;
+                    break;
+                }
+                batch = new ArrayList<Pending>(queue);
+                queue.clear();
+            }
+            try {
+                deliver(batch);
+            } catch (Throwable t) {
+                ZimbraLog.mailbox.error("ignoring error during notification", t);
+            } finally {
+                PENDING.addAndGet(-batch.size());
+                delivered(batch.get(batch.size() - 1).sequence);
+            }
+        }
+        if (schedule) {
+            executor.execute(drain);
+        }
+    }
+
+    private void deliver(List<Pending> batch) {
+        ZimbraPerf.COUNTER_MBOX_NOTIFY_BATCH.increment(batch.size());
+        List<String> serverIds = null;
+        if (Zimbra.isAlwaysOn()) {
+            serverIds = getRemoteSessionServers();
+        }
+
+        for (Pending pending : batch) {
+            ChangeNotification notification = pending.notification;
+            for (Session session : pending.sessions) {
+                if (!mbox.hasListener(session)) {
+                    continue; // unregistered since the commit
+                }
+                try {
+                    session.notifyPendingChanges(notification.mods, notification.lastChangeId, pending.source);
+                } catch (RuntimeException e) {
+                    ZimbraLog.mailbox.error("ignoring error during notification", e);
+                }
+            }
+
+            sendToRemoteSessions(notification, serverIds);
+
+            delivered(pending.sequence);
+            ZimbraPerf.STOPWATCH_MBOX_NOTIFY_LAG.stop(pending.queued);
+        }
+    }
+
+    private synchronized void delivered(long sequence) {
+        if (sequence > lastDelivered) {
+            lastDelivered = sequence;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the servers that have sessions on the mailbox, or null if they can't be looked up.
+     */
+    private List<String> getRemoteSessionServers() {
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            return DbSession.get(conn, mbox.getId());
+        } catch (ServiceException e) {
+            ZimbraLog.session.warn("unable to get target server", e);
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Sends the change to the other servers that have sessions on the mailbox.
+     */
+    private void sendToRemoteSessions(ChangeNotification notification, List<String> serverIds) {
+        if (serverIds == null) {
+            return;
+        }
+        try {
+            for (String serverid : serverIds) {
+                Server server = Provisioning.getInstance().getServerById(serverid);
+                if (server.isLocalServer()) {
+                    continue;
+                }
+                MailboxNotification ntfn = MailboxNotification.create(mbox.getAccountId(), notification.lastChangeId,
+                        notification.mods.getSerializedBytes());
+                MessageChannel.getInstance().sendMessage(server, ntfn);
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.session.warn("unable to get target server", e);
+        } catch (MessageChannelException e) {
+            ZimbraLog.session.warn("unable to create MailboxNotification", e);
+        } catch (IOException e) {
+            ZimbraLog.session.warn("unable to create MailboxNotification", e);
+        }
+    }
+}
@@ -51,6 +51,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessageSummary;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -212,6 +213,7 @@ public class Message extends MailItem {
     private DraftInfo draftInfo;
     private ArrayList<CalendarItemInfo> calendarItemInfos;
     private String calendarIntendedFor;
+    private Metadata imapSummary;
 
     Message(Mailbox mbox, UnderlyingData ud) throws ServiceException {
         this(mbox, ud, false);
@@ -253,6 +255,18 @@ public class Message extends MailItem {
         return Strings.nullToEmpty(fragment);
     }
 
+    /** Returns the IMAP FETCH items precomputed when the message content was
+     *  stored, or <tt>null</tt> if there are none.
+     *
+     * @see ImapMessageSummary */
+    public Metadata getImapSummary() {
+        return imapSummary;
+    }
+
+    private static Metadata summarize(ParsedMessage pm) {
+        return pm.isParsedFromRawData() ? ImapMessageSummary.encode(pm.getOriginalMessage()) : null;
+    }
+
     /**
      * Returns the normalized subject of the message.  This is done by taking the {@code Subject:} header and removing
      * prefixes (e.g. {@code "Re:"}) and suffixes (e.g. {@code "(fwd)"}) and the like.
@@ -592,7 +606,8 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null,
+                summarize(pm)).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1435,6 +1450,9 @@ public class Message extends MailItem {
         // the fragment may have changed
         fragment = pm.getFragment(acct.getLocale());
 
+        // and so may the precomputed IMAP FETCH items
+        imapSummary = summarize(pm);
+
         // make sure the "attachments" FLAG is correct
         boolean hadAttachment = mData.isSet(Flag.FlagInfo.ATTACHED);
         mData.unsetFlag(Flag.FlagInfo.ATTACHED);
@@ -1472,7 +1490,7 @@ public class Message extends MailItem {
 
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                draftInfo, calendarItemInfos, calendarIntendedFor, imapSummary));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1526,6 +1544,7 @@ public class Message extends MailItem {
             }
         }
         calendarIntendedFor = meta.get(Metadata.FN_CAL_INTENDED_FOR, null);
+        imapSummary = meta.getMap(Metadata.FN_IMAP_SUMMARY, true);
 
         Metadata draftMeta = meta.getMap(Metadata.FN_DRAFT, true);
         if (draftMeta != null) {
@@ -1547,19 +1566,20 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor, imapSummary);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
-            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor,
+            Metadata imapSummary) {
         return encodeMetadata(new Metadata(), color, metaVersion, version, extended, pm.getSender(), pm.getRecipients(),
                 fragment, pm.getNormalizedSubject(), pm.getSubject(), dinfo,
-                calItemInfos, calIntendedFor);
+                calItemInfos, calIntendedFor, imapSummary);
     }
 
     static Metadata encodeMetadata(Metadata meta, Color color, int metaVersion, int version, CustomMetadataList extended, String sender,
             String recipients, String fragment, String subject, String rawSubj, DraftInfo dinfo,
-            List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            List<CalendarItemInfo> calItemInfos, String calIntendedFor, Metadata imapSummary) {
         // try to figure out a simple way to make the raw subject from the normalized one
         String prefix = null;
         if (rawSubj == null || rawSubj.equals(subject)) {
@@ -1583,6 +1603,7 @@ public class Message extends MailItem {
             meta.put(Metadata.FN_CALITEM_IDS, mdList);
         }
         meta.put(Metadata.FN_CAL_INTENDED_FOR, calIntendedFor);
+        meta.put(Metadata.FN_IMAP_SUMMARY, imapSummary);
 
         if (dinfo != null) {
             Metadata dmeta = new Metadata();
@@ -18,14 +18,18 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -48,19 +52,151 @@ public class MessageCache {
 
     private static final class CacheNode {
         CacheNode()  { }
-        MimeMessage message;
-        MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
+        volatile MimeMessage message;
+        volatile MimeMessage expanded;
+        final Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
+        /** Guarded by the owning {@link Segment} while the node is cached. */
         long size = 0;
+        /** The segment currently holding this node, or <tt>null</tt> if it is not cached. */
+        Segment segment;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
+    /**
+     * One stripe of the cache.  Each segment is a small segmented LRU: new
+     * entries land in the probationary list and are promoted to the protected
+     * list on their second access, so a burst of one-off reads (e.g. a full
+     * mailbox reindex) cannot flush out messages that are read repeatedly.
+     * Eviction always prefers the least recently used probationary entry.
+     */
+    private static final class Segment {
+        private final LinkedHashMap<String, CacheNode> probation = new LinkedHashMap<String, CacheNode>(16, 0.75f, true);
+        private final LinkedHashMap<String, CacheNode> protectd = new LinkedHashMap<String, CacheNode>(16, 0.75f, true);
+
+        synchronized CacheNode get(String digest) {
+            CacheNode node = protectd.get(digest);
+            if (node == null) {
+                node = probation.remove(digest);
+                if (node != null) {
+                    protectd.put(digest, node);
+                    demote();
+                }
+            }
+            return node;
+        }
+
+        /** Looks up a node without affecting its recency. */
+        synchronized CacheNode peek(String digest) {
+            CacheNode node = protectd.get(digest);
+            return node != null ? node : probation.get(digest);
+        }
+
+        synchronized int size(boolean isProtected) {
+            return isProtected ? protectd.size() : probation.size();
+        }
+
+        synchronized boolean contains(String digest) {
+            return protectd.containsKey(digest) || probation.containsKey(digest);
+        }
+
+        synchronized void put(String digest, CacheNode node) {
+            remove(digest);
+            node.segment = this;
+            probation.put(digest, node);
+            sEntryCount.incrementAndGet();
+            sDataSize.addAndGet(node.size);
+        }
+
+        synchronized CacheNode remove(String digest) {
+            CacheNode node = protectd.remove(digest);
+            if (node == null) {
+                node = probation.remove(digest);
+            }
+            if (node != null) {
+                detach(node);
+            }
+            return node;
+        }
+
+        /** Sets the node's weight, adjusting the cache totals if the node is held by this segment. */
+        synchronized void resize(CacheNode node, long size) {
+            if (node.segment == this) {
+                sDataSize.addAndGet(size - node.size);
+            }
+            node.size = size;
+        }
+
+        /** Evicts the least recently used probationary entry, or protected entry if
+         *  <tt>includeProtected</tt> is set and probation is empty. */
+        synchronized void evictOne(boolean includeProtected) {
+            Map<String, CacheNode> victims = probation.isEmpty() && includeProtected ? protectd : probation;
+            Iterator<Map.Entry<String, CacheNode>> it = victims.entrySet().iterator();
+            if (!it.hasNext()) {
+                return;
+            }
+            Map.Entry<String, CacheNode> entry = it.next();
+            sLog.debug("Pruning digest %s from the cache.", entry.getKey());
+            it.remove();
+            detach(entry.getValue());
+            ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICT.increment();
+        }
+
+        synchronized void removeDecryptedMessages(int mboxId) {
+            removeDecryptedMessages(probation, mboxId);
+            removeDecryptedMessages(protectd, mboxId);
+        }
+
+        private static void removeDecryptedMessages(Map<String, CacheNode> nodes, int mboxId) {
+            for (Map.Entry<String, CacheNode> entry : nodes.entrySet()) {
+                CacheNode cacheNode = entry.getValue();
+                try {
+                    if (Mime.isEncrypted(cacheNode.message.getContentType())
+                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                        cacheNode.smimeAccessInfo.remove(mboxId);
+                    }
+                } catch (MessagingException e) {
+                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                        entry.getKey(), e);
+                }
+            }
+        }
+
+        /** Moves the least recently used protected entries back to probation once the protected list is full. */
+        private void demote() {
+            Iterator<Map.Entry<String, CacheNode>> it = protectd.entrySet().iterator();
+            while (protectd.size() > sMaxProtectedPerSegment && it.hasNext()) {
+                Map.Entry<String, CacheNode> entry = it.next();
+                it.remove();
+                probation.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private void detach(CacheNode node) {
+            node.segment = null;
+            sEntryCount.decrementAndGet();
+            sDataSize.addAndGet(-node.size);
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+
+    /** Cache mapping message digest to the corresponding message structure, striped by digest. */
+    private static final Segment[] sSegments = new Segment[SEGMENTS];
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            sSegments[i] = new Segment();
+        }
+    }
+    /** Maximum number of items in the cache. */
+    private static volatile int sMaxCacheSize;
+    /** Maximum number of bytes of message data in the cache. */
+    private static volatile long sMaxDataSize;
+    /** Maximum number of protected entries in each segment. */
+    private static volatile int sMaxProtectedPerSegment;
+    /** Number of items in the cache. */
+    private static final AtomicInteger sEntryCount = new AtomicInteger();
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
 
     static {
         try {
@@ -72,24 +208,29 @@ public class MessageCache {
 
     public static void loadSettings() throws ServiceException {
         sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        sMaxDataSize = LC.zimbra_message_cache_max_bytes.longValue();
+        sMaxProtectedPerSegment = Math.max(1, sMaxCacheSize * 4 / 5 / SEGMENTS);
+        ZimbraLog.cache.info("setting message cache size to %d (%d bytes)", sMaxCacheSize, sMaxDataSize);
+        trim(null);
+    }
+
+    private static Segment segmentFor(String digest) {
+        int h = digest.hashCode();
+        h ^= (h >>> 16);
+        return sSegments[h & (SEGMENTS - 1)];
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return sEntryCount.get();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return segmentFor(digest).contains(digest);
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +265,8 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            if (segmentFor(digest).remove(digest) != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -157,12 +294,10 @@ public class MessageCache {
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        cnode = segmentFor(digest).get(digest);
+        if (cnode == null) {
+            newNode = true;
+            cnode = new CacheNode();
         }
 
         try {
@@ -173,11 +308,9 @@ public class MessageCache {
                     in = fetchFromStore(item);
                     cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
                     if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
+                        // Goes through the segment so that the data size stays right
+                        // when we're loading a message for an existing node.
+                        segmentFor(digest).resize(cnode, item.getSize());
                     }
                 } finally {
                     ByteUtil.closeStream(in);
@@ -286,8 +419,10 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
+            Segment segment = segmentFor(item.getDigest());
+            synchronized (segment) {
+                segment.resize(cnode, cnode.size * 2);
+            }
         }
     }
 
@@ -362,51 +497,60 @@ public class MessageCache {
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
+        Segment segment = segmentFor(digest);
+        segment.put(digest, cnode);
+        trim(segment);
+    }
+
+    /** Evicts entries until the cache is back within its limits.  Probationary entries
+     *  are evicted before protected ones, taken from whichever segment holds the most
+     *  of them, and the segment that was just inserted into is spared if possible so
+     *  that a new entry is not immediately dropped. */
+    private static void trim(Segment inserted) {
+        while (sEntryCount.get() > sMaxCacheSize || sDataSize.get() > sMaxDataSize) {
+            Segment victim = largestSegment(false, inserted);
+            if (victim == null) {
+                victim = largestSegment(false, null);
+            }
+            boolean includeProtected = victim == null;
+            if (includeProtected) {
+                victim = largestSegment(true, null);
+            }
+            if (victim == null) {
+                break;
+            }
+            victim.evictOne(includeProtected);
+        }
+    }
+
+    private static Segment largestSegment(boolean isProtected, Segment skip) {
+        Segment largest = null;
+        int largestSize = 0;
+        for (Segment segment : sSegments) {
+            if (segment != skip) {
+                int size = segment.size(isProtected);
+                if (size > largestSize) {
+                    largest = segment;
+                    largestSize = size;
                 }
             }
         }
+        return largest;
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
-                    }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
-                }
-            }
+        for (Segment segment : sSegments) {
+            segment.removeDecryptedMessages(mboxId);
         }
         sLog.debug("Removed decrypted messages for mboxId=%d", mboxId);
     }
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            CacheNode node = segmentFor(digest).peek(digest);
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -0,0 +1,215 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.cs.db.DbSearch;
+import com.zimbra.cs.index.DbSearchConstraints;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Per-mailbox cache of DB search results, so that a client repeating a search between changes (the web client
+ * refreshing {@code in:inbox}, ActiveSync, IMAP SEARCH) doesn't go back to the DB for it.
+ * <p>
+ * Entries are keyed by the search constraints, fetch mode, sort and page, and are only valid at the mailbox change ID
+ * they were stored at. When a change is committed, {@link #invalidate} drops the entries it may affect -- those
+ * searching the changed item's type, in its old or new folder -- and carries the rest forward to the new change ID.
+ */
+final class SearchResultCache {
+
+    private static final class Entry {
+        final List<DbSearch.Result> results;
+        /** DB item types searched, or null for any type. */
+        final Set<MailItem.Type> types;
+        /** Folders searched, or null for any folder. */
+        final Set<Integer> folderIds;
+        int changeId;
+
+        Entry(List<DbSearch.Result> results, Set<MailItem.Type> types, Set<Integer> folderIds, int changeId) {
+            this.results = results;
+            this.types = types;
+            this.folderIds = folderIds;
+            this.changeId = changeId;
+        }
+    }
+
+    private final int maxRows;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int rows = 0;
+
+    SearchResultCache(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Returns the cache key for a DB search, or null if its results can't be cached: IMAP results hold mutable
+     * {@code ImapMessage}s, and unpaged searches are the Lucene-first joins, whose keys list every index ID.
+     */
+    static String getKey(DbSearchConstraints constraints, DbSearch.FetchMode fetch, SortBy sort, int offset, int size,
+            boolean inDumpster) {
+        if (fetch == DbSearch.FetchMode.IMAP_MSG || offset < 0 || size < 0) {
+            return null;
+        }
+        return new StringBuilder().append(fetch).append('|').append(sort).append('|').append(offset).append('|')
+            .append(size).append('|').append(inDumpster).append('|').append(constraints).toString();
+    }
+
+    /**
+     * Returns the results cached for {@code key} if they are still valid at {@code changeId}, or null. The returned
+     * list is shared and must not be modified.
+     */
+    synchronized List<DbSearch.Result> get(String key, int changeId) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.changeId != changeId) {
+            remove(key);
+            entry = null;
+        }
+        ZimbraPerf.COUNTER_MBOX_SEARCH_CACHE.increment(entry != null ? 100 : 0);
+        return entry != null ? entry.results : null;
+    }
+
+    synchronized void put(String key, DbSearchConstraints constraints, List<DbSearch.Result> results, int changeId) {
+        if (results.size() > maxRows) {
+            return;
+        }
+        remove(key);
+        for (Iterator<Entry> it = entries.values().iterator(); rows + results.size() > maxRows && it.hasNext(); ) {
+            rows -= it.next().results.size(); // least recently used first
+            it.remove();
+        }
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        Set<Integer> folderIds = new HashSet<Integer>();
+        boolean anyFolder = collectScope(constraints, types, folderIds);
+        entries.put(key, new Entry(results, types.isEmpty() || types.contains(MailItem.Type.UNKNOWN) ? null : types,
+                anyFolder ? null : folderIds, changeId));
+        rows += results.size();
+    }
+
+    /**
+     * Adds the item types and folders searched by {@code constraints} to the given sets, and returns true if some
+     * branch searches all folders.
+     */
+    private static boolean collectScope(DbSearchConstraints constraints, Set<MailItem.Type> types,
+            Set<Integer> folderIds) {
+        DbSearchConstraints.Leaf leaf = constraints.toLeaf();
+        if (leaf == null) {
+            boolean anyFolder = false;
+            for (DbSearchConstraints child : constraints.getChildren()) {
+                anyFolder |= collectScope(child, types, folderIds);
+            }
+            return anyFolder;
+        }
+        types.addAll(leaf.types);
+        for (Folder folder : leaf.folders) {
+            folderIds.add(folder.getId());
+        }
+        return leaf.folders.isEmpty();
+    }
+
+    /**
+     * Drops the entries that the change committed on top of {@code lastChangeId} may affect and revalidates the others
+     * at {@code changeId}. Must be called with the mailbox write lock held.
+     */
+    synchronized void invalidate(PendingModifications dirty, int lastChangeId, int changeId) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        Set<Integer> folderIds = new HashSet<Integer>();
+        boolean anyFolder = false;
+        if (dirty.created != null) {
+            for (MailItem item : dirty.created.values()) {
+                types.add(item.getType());
+                folderIds.add(item.getFolderId());
+            }
+        }
+        for (Map<?, Change> changes : new Map[] {dirty.modified, dirty.deleted}) {
+            if (changes == null) {
+                continue;
+            }
+            for (Change chg : changes.values()) {
+                MailItem item = chg.what instanceof MailItem ? (MailItem) chg.what : null;
+                MailItem before = chg.preModifyObj instanceof MailItem ? (MailItem) chg.preModifyObj : null;
+                if (item != null) {
+                    types.add(item.getType());
+                    folderIds.add(item.getFolderId());
+                } else if (chg.what instanceof MailItem.Type) {
+                    types.add((MailItem.Type) chg.what);
+                }
+                if (before != null) {
+                    types.add(before.getType());
+                    folderIds.add(before.getFolderId());
+                } else if (item == null || (chg.why & Change.FOLDER) != 0) {
+                    anyFolder = true; // deleted or moved from a folder we don't know
+                }
+            }
+        }
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.changeId != lastChangeId || isAffected(entry, types, folderIds, anyFolder)) {
+                rows -= entry.results.size();
+                it.remove();
+            } else {
+                entry.changeId = changeId;
+            }
+        }
+    }
+
+    private static boolean isAffected(Entry entry, Set<MailItem.Type> types, Set<Integer> folderIds,
+            boolean anyFolder) {
+        if (entry.types != null && !overlaps(entry.types, types)) {
+            return false;
+        }
+        return anyFolder || entry.folderIds == null || overlaps(entry.folderIds, folderIds);
+    }
+
+    private static <T> boolean overlaps(Set<T> a, Set<T> b) {
+        for (T t : a) {
+            if (b.contains(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        rows = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            rows -= entry.results.size();
+        }
+    }
+}
@@ -20,7 +20,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
 
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -32,6 +32,9 @@ public class ShareStartStopListener extends MailboxListener {
 
     private static final Set<MailItem.Type> registeredTypes = Collections.singleton(MailItem.Type.FOLDER);
 
+    // A start followed by a stop for the same folder must not run the other way around.
+    private static final Executor LOCATOR_UPDATES = Zimbra.sTimingWheel.newSerialExecutor("ShareLocatorUpdate");
+
     @Override
     public Set<MailItem.Type> registerForItemTypes() {
         return registeredTypes;
@@ -90,7 +93,7 @@ public class ShareStartStopListener extends MailboxListener {
     private void startShare(Folder folder) {
         final String me = folder.getMailbox().getAccountId();
         final String uuid = folder.getUuid();
-        TimerTask t = new TimerTask() {
+        Runnable t = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -114,14 +117,15 @@ public class ShareStartStopListener extends MailboxListener {
                 }
             }
         };
-        Zimbra.sTimer.schedule(t, 0);  // run in separate thread to avoid ldap communication inside mailbox lock
+        // run in separate thread to avoid ldap communication inside mailbox lock
+        LOCATOR_UPDATES.execute(t);
     }
 
     // Remove the share locator entry for this folder.
     private void stopShare(Folder folder) {
         final String me = folder.getMailbox().getAccountId();
         final String uuid = folder.getUuid();
-        TimerTask t = new TimerTask() {
+        Runnable t = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -140,6 +144,7 @@ public class ShareStartStopListener extends MailboxListener {
                 }
             }
         };
-        Zimbra.sTimer.schedule(t, 0);  // run in separate thread to avoid ldap communication inside mailbox lock
+        // run in separate thread to avoid ldap communication inside mailbox lock
+        LOCATOR_UPDATES.execute(t);
     }
 }
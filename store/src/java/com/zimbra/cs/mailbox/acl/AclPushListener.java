@@ -76,7 +76,7 @@ public class AclPushListener extends MailboxListener {
         }
         if (runAclPushTask) {
             // run in separate thread to avoid ldap communication inside mailbox lock
-            Zimbra.sTimer.schedule(new AclPushTask(), 0);
+            Zimbra.sTimingWheel.schedule("AclPush", new AclPushTask(), 0);
         }
     }
 }
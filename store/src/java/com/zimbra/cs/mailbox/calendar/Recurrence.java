@@ -23,7 +23,6 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -42,6 +41,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.util.ListUtil;
+import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.CalendarItem;
@@ -554,7 +554,8 @@ public class Recurrence
      *
      */
     public static class SimpleRepeatingRule implements IInstanceGeneratingRule {
-        Map<String, List<Instance>> expandMap = new HashMap<String, List<Instance>>();
+        // recent expansions; older ranges are cheap to redo since ZRecur resumes from its checkpoints
+        Map<String, List<Instance>> expandMap = Collections.synchronizedMap(MapUtil.<String, List<Instance>>newLruMap(8));
         public SimpleRepeatingRule(ParsedDateTime dtstart, ParsedDuration duration,
                 ZRecur recur, InviteInfo invId)
         {
@@ -27,7 +27,9 @@ import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.httpclient.util.DateUtil;
 
@@ -36,6 +38,7 @@ import com.zimbra.common.calendar.ParsedDateTime;
 import com.zimbra.common.calendar.TimeZoneMap;
 import com.zimbra.common.calendar.ZWeekDay;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
@@ -442,6 +445,8 @@ public class ZRecur implements Cloneable {
     private ParsedDateTime mUntil = null;
     private ZWeekDay mWkSt = null;
 
+    private Checkpoints mCheckpoints;
+
 
     public ZRecur(String str, TimeZoneMap tzmap) throws ServiceException {
         parse(str, tzmap);
@@ -655,12 +660,25 @@ public class ZRecur implements Cloneable {
         if (!dtStartDate.before(earliestDate) && !dtStartDate.after(rangeEndDate))
             toRet.add(dtStartDate);
 
+        // Iterations that end before the range only matter for counting instances.  Resume from the last checkpoint
+        // of an earlier expansion that is safely before the range, then skip whole intervals where the rule allows.
+        Checkpoints checkpoints = getCheckpoints(dtStart);
+        Checkpoint resumeAt = checkpoints.floor(earliestDate.getTime() - getPeriodMillis());
+        if (resumeAt != null && resumeAt.time > cur.getTimeInMillis()) {
+            cur.setTimeInMillis(resumeAt.time);
+            numInstancesExpanded = resumeAt.numInstancesExpanded;
+        }
+        if (maxInstancesExpanded <= 0 && canSkipIntervals(baseIsLeapDay))
+            skipIntervals(cur, earliestDate.getTime(), interval, baseMonthDay);
+
         int numConsecutiveIterationsWithoutMatchingInstance = 0;
         boolean pastHardEndTime = false;
         long numIterations = 0;  // track how many times we looped
         while (!pastHardEndTime && (maxInstancesExpanded <= 0 || numInstancesExpanded < maxInstancesExpanded)) {
             numIterations++;
             boolean curIsAtOrAfterEarliestDate = !cur.getTime().before(earliestDate);
+            if (!curIsAtOrAfterEarliestDate && numIterations % CHECKPOINT_ITERATIONS == 0)
+                checkpoints.add(cur.getTimeInMillis(), numInstancesExpanded);
             boolean curIsAfterEndDate = cur.getTime().after(rangeEndDate);
             List<Calendar> addList = new LinkedList<Calendar>();
 
@@ -926,6 +944,141 @@ public class ZRecur implements Cloneable {
         return toRet;
     }
 
+    private static final int CHECKPOINT_ITERATIONS = 32;
+    private static final int MAX_CHECKPOINTS = 64;
+
+    /**
+     * Loop state at the start of an expansion iteration.  It doesn't depend on the range being expanded.
+     */
+    private static final class Checkpoint {
+        final long time;
+        final int numInstancesExpanded;
+
+        Checkpoint(long time, int numInstancesExpanded) {
+            this.time = time;
+            this.numInstancesExpanded = numInstancesExpanded;
+        }
+    }
+
+    /**
+     * Checkpoints of expanding this rule from a given DTSTART.  Only the latest {@link #MAX_CHECKPOINTS} are kept.
+     */
+    private static final class Checkpoints {
+        final String key;
+        private final TreeMap<Long, Checkpoint> map = new TreeMap<Long, Checkpoint>();
+
+        Checkpoints(String key) {
+            this.key = key;
+        }
+
+        synchronized Checkpoint floor(long time) {
+            Map.Entry<Long, Checkpoint> entry = map.floorEntry(time);
+            return entry == null ? null : entry.getValue();
+        }
+
+        synchronized void add(long time, int numInstancesExpanded) {
+            if (map.size() >= MAX_CHECKPOINTS) {
+                if (time < map.firstKey())
+                    return;
+                map.pollFirstEntry();
+            }
+            map.put(time, new Checkpoint(time, numInstancesExpanded));
+        }
+    }
+
+    private Checkpoints getCheckpoints(ParsedDateTime dtStart) {
+        ICalTimeZone tz = dtStart.getTimeZone();
+        String key = toString() + '/' + dtStart.getUtcTime() + '/' + (tz == null ? "" : tz.getID());
+        synchronized (this) {
+            if (mCheckpoints == null || !mCheckpoints.key.equals(key))
+                mCheckpoints = new Checkpoints(key);
+            return mCheckpoints;
+        }
+    }
+
+    /**
+     * Returns a bound on how far past the start of its iteration an expanded instance can be.
+     */
+    private long getPeriodMillis() {
+        switch (mFreq) {
+        case HOURLY:
+            return 2 * Constants.MILLIS_PER_HOUR;
+        case DAILY:
+            return 2 * Constants.MILLIS_PER_DAY;
+        case WEEKLY:
+            return 2 * Constants.MILLIS_PER_WEEK;
+        case MONTHLY:
+            return 2 * Constants.MILLIS_PER_MONTH;
+        default:
+            return 2 * 366 * Constants.MILLIS_PER_DAY;
+        }
+    }
+
+    /**
+     * Returns true if each iteration advances the start by exactly one interval, so that whole intervals can be
+     * skipped arithmetically.  The BYxxx checks that move the start within an iteration rule that out.
+     */
+    private boolean canSkipIntervals(boolean baseIsLeapDay) {
+        switch (mFreq) {
+        case DAILY:
+            if (!mByDayList.isEmpty() || !mByMonthDayList.isEmpty())
+                return false;
+            // fall through
+        case WEEKLY:
+            if (!mByMonthDayList.isEmpty())
+                return false;
+            // fall through
+        case MONTHLY:
+            return mByMonthList.isEmpty() && mByYearDayList.isEmpty();
+        case YEARLY:
+            return !baseIsLeapDay;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Advances {@code cur} by whole intervals, stopping at least one interval before {@code target}.
+     */
+    private void skipIntervals(GregorianCalendar cur, long target, int interval, int baseMonthDay) {
+        long gap = target - cur.getTimeInMillis();
+        if (gap <= 0)
+            return;
+        long periods;
+        switch (mFreq) {
+        case DAILY:
+            periods = gap / Constants.MILLIS_PER_DAY;
+            break;
+        case WEEKLY:
+            periods = gap / Constants.MILLIS_PER_WEEK;
+            break;
+        default:
+            GregorianCalendar targetCal = (GregorianCalendar) cur.clone();
+            targetCal.setTimeInMillis(target);
+            periods = targetCal.get(Calendar.YEAR) - cur.get(Calendar.YEAR);
+            if (mFreq == Frequency.MONTHLY)
+                periods = periods * 12 + targetCal.get(Calendar.MONTH) - cur.get(Calendar.MONTH);
+        }
+        int skip = (int) Math.min((periods / interval - 1) * interval, Integer.MAX_VALUE);
+        if (skip <= 0)
+            return;
+        switch (mFreq) {
+        case DAILY:
+            cur.add(Calendar.DAY_OF_YEAR, skip);
+            break;
+        case WEEKLY:
+            cur.add(Calendar.WEEK_OF_YEAR, skip);
+            break;
+        case MONTHLY:
+            cur.set(Calendar.DAY_OF_MONTH, 1);
+            cur.add(Calendar.MONTH, skip);
+            cur.set(Calendar.DAY_OF_MONTH, Math.min(baseMonthDay, cur.getActualMaximum(Calendar.DAY_OF_MONTH)));
+            break;
+        default:
+            cur.add(Calendar.YEAR, skip);
+        }
+    }
+
     @Override
     public String toString() {
         StringBuffer toRet = new StringBuffer("FREQ=").append(mFreq);
@@ -345,11 +345,34 @@ public class CalSummaryCache {
     }
 
 
+    /**
+     * Returns {@code calData}, which must be current, extended to also cover [rangeStart, rangeEnd) by summarizing
+     * only the part of the range it doesn't cover yet.  Returns null if the result would span more than the maximum
+     * search range.
+     */
+    private static CalendarData extendCalendarOverRange(OperationContext octxt, Mailbox mbox, int folderId,
+            MailItem.Type type, CalendarData calData, long rangeStart, long rangeEnd) throws ServiceException {
+        long start = Math.min(rangeStart, calData.getRangeStart());
+        long end = Math.max(rangeEnd, calData.getRangeEnd());
+        if ((end - start) / MSEC_PER_DAY > sMaxSearchDays)
+            return null;
+        if (start < calData.getRangeStart()) {
+            calData = calData.merge(reloadCalendarOverRangeWithFolderScan(
+                    octxt, mbox, folderId, type, start, calData.getRangeStart(), null));
+        }
+        if (end > calData.getRangeEnd()) {
+            calData = calData.merge(reloadCalendarOverRangeWithFolderScan(
+                    octxt, mbox, folderId, type, calData.getRangeEnd(), end, null));
+        }
+        return calData;
+    }
+
     private static final int sRangeMonthFrom;
     private static final int sRangeNumMonths;
     private static final int sMaxStaleItems;
     private static final int sMaxStaleItemsBeforeInvalidatingCalendar;
     private static final int sMaxSearchDays;
+    private static final long sRepublishMillis;
 
     private static final long MSEC_PER_DAY = 1000 * 60 * 60 * 24;
 
@@ -359,20 +382,24 @@ public class CalSummaryCache {
         sMaxStaleItems = LC.calendar_cache_max_stale_items.intValue();
         sMaxStaleItemsBeforeInvalidatingCalendar = 100;
         sMaxSearchDays = LC.calendar_search_max_days.intValueWithinRange(0, 3660);
+        sRepublishMillis = LC.calendar_cache_memcached_republish_ms.longValue();
     }
 
     @SuppressWarnings("serial")
     private static class SummaryLRU extends LinkedHashMap<CalSummaryKey, CalendarData> {
         private final int mMaxAllowed;
+        private final long mMaxWeight;  // total items and instances; 0 for no limit
+        private long mWeight;
 
         // map that keeps track of which calendar folders are cached for each account
         // This map is updated every time a calendar folder is added, removed, or aged out
         // of the LRU.
         private final Map<String /* account id */, Set<Integer> /* folder ids */> mAccountFolders;
 
-        private SummaryLRU(int capacity) {
+        private SummaryLRU(int capacity, long maxWeight) {
             super(capacity + 1, 1.0f, true);
             mMaxAllowed = Math.max(capacity, 1);
+            mMaxWeight = maxWeight;
             mAccountFolders = new HashMap<String, Set<Integer>>();
         }
 
@@ -380,21 +407,25 @@ public class CalSummaryCache {
         public void clear() {
             super.clear();
             mAccountFolders.clear();
+            mWeight = 0;
         }
 
         @Override
         public CalendarData put(CalSummaryKey key, CalendarData value) {
             CalendarData prevVal = super.put(key, value);
+            mWeight += value.getWeight();
             if (prevVal == null)
                 registerWithAccount(key);
+            else
+                mWeight -= prevVal.getWeight();
+            trimToWeight();
             return prevVal;
         }
 
         @Override
         public void putAll(Map<? extends CalSummaryKey, ? extends CalendarData> t) {
-            super.putAll(t);
-            for (CalSummaryKey key : t.keySet()) {
-                registerWithAccount(key);
+            for (Map.Entry<? extends CalSummaryKey, ? extends CalendarData> entry : t.entrySet()) {
+                put(entry.getKey(), entry.getValue());
             }
         }
 
@@ -404,6 +435,7 @@ public class CalSummaryCache {
             if (prevVal != null && key instanceof CalSummaryKey) {
                 CalSummaryKey k = (CalSummaryKey) key;
                 deregisterFromAccount(k);
+                mWeight -= prevVal.getWeight();
             }
             return prevVal;
         }
@@ -411,11 +443,28 @@ public class CalSummaryCache {
         @Override
         protected boolean removeEldestEntry(Map.Entry<CalSummaryKey, CalendarData> eldest) {
             boolean remove = size() > mMaxAllowed;
-            if (remove)
+            if (remove) {
                 deregisterFromAccount(eldest.getKey());
+                mWeight -= eldest.getValue().getWeight();
+            }
             return remove;
         }
 
+        // Evict least recently used calendars until the total weight is within the limit, always keeping the newest.
+        private void trimToWeight() {
+            if (mMaxWeight <= 0)
+                return;
+            Iterator<Map.Entry<CalSummaryKey, CalendarData>> iter = entrySet().iterator();
+            while (mWeight > mMaxWeight && size() > 1 && iter.hasNext()) {
+                Map.Entry<CalSummaryKey, CalendarData> eldest = iter.next();
+                CalSummaryKey eldestKey = eldest.getKey();
+                int eldestWeight = eldest.getValue().getWeight();
+                iter.remove();
+                deregisterFromAccount(eldestKey);
+                mWeight -= eldestWeight;
+            }
+        }
+
         private void registerWithAccount(CalSummaryKey key) {
             String accountId = key.getAccountId();
             int folderId = key.getFolderId();
@@ -484,7 +533,7 @@ public class CalSummaryCache {
 
     CalSummaryCache(final int capacity) {
         mLRUCapacity = capacity;
-        mSummaryCache = new SummaryLRU(capacity);
+        mSummaryCache = new SummaryLRU(capacity, LC.calendar_cache_lru_max_weight.longValue());
         mMemcachedCache = new CalSummaryMemcachedCache();
     }
 
@@ -518,7 +567,9 @@ public class CalSummaryCache {
             Account authAcct = octxt != null ? octxt.getAuthenticatedUser() : null;
             boolean asAdmin = octxt != null ? octxt.isUsingAdminPrivileges() : false;
             result.allowPrivateAccess = CalendarItem.allowPrivateAccess(folder, authAcct, asAdmin);
+            long reloadStart = ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.start();
             result.data = reloadCalendarOverRangeWithFolderScan(octxt, mbox, folderId, type, rangeStart, rangeEnd, null);
+            ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.stop(reloadStart);
             if (ZimbraLog.calendar.isDebugEnabled()) {
                 ZimbraLog.calendar.debug("Calendar Summary for %s reloaded (no cache) - %s items private=%s",
                         folder.getName(), result.data.getNumItems(), result.allowPrivateAccess);
@@ -542,21 +593,12 @@ public class CalSummaryCache {
                     "you do not have sufficient permissions on folder " + targetAcctId + ":" + folderId);
         result.allowPrivateAccess = (short) (perms & ACL.RIGHT_PRIVATE) == ACL.RIGHT_PRIVATE;
 
-        // Look up from memcached.
         CalSummaryKey key = new CalSummaryKey(targetAcctId, folderId);
-        CalendarData calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
-        if (calData != null) {
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
-            ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
-            result.data = calData;
-            if (ZimbraLog.calendar.isDebugEnabled()) {
-                ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (memcached) - %s items private=%s",
-                        targetAcctId, folderId, result.data.getNumItems(), result.allowPrivateAccess);
-            }
-            return result;
-        }
-        // If not found in memcached and account is not on local server, we're done.
+        CalendarData calData = null;
+        // Memcached is the only source for an account on another server.
         if (!targetAcctOnLocalServer) {
+            if (getFromMemcached(key, rangeStart, rangeEnd, result))
+                return result;
             if (ZimbraLog.calendar.isDebugEnabled()) {
                 ZimbraLog.calendar.debug("Calendar Summary - ignoring non-local %s:%s",
                         targetAcctId, folderId);
@@ -574,23 +616,27 @@ public class CalSummaryCache {
         OperationContext ownerOctxt = new OperationContext(targetAcct);
         int currentModSeq = folder.getImapMODSEQ();
 
-        // Lookup from heap LRU.
-            synchronized (mSummaryCache) {
-                if (mLRUCapacity > 0) {
-                    calData = mSummaryCache.get(key);
-                    lruSize = mSummaryCache.size();
-                }
+        // Lookup from heap LRU.  It is checked against the folder modseq, so it is preferred over memcached.
+        synchronized (mSummaryCache) {
+            if (mLRUCapacity > 0) {
+                calData = mSummaryCache.get(key);
+                lruSize = mSummaryCache.size();
             }
-            if (calData != null) {
-                // Sanity check: Cached data can't be newer than the backend data.
-                if (calData.getModSeq() > currentModSeq) {
-                    calData = null;
-                } else {
-                    dataFrom = CacheLevel.Memory;
-                    // Data loaded from heap LRU supports incremental update for stale items.
-                    incrementalUpdate = sMaxStaleItems > 0;
-                }
+        }
+        if (calData != null) {
+            // Sanity check: Cached data can't be newer than the backend data.
+            if (calData.getModSeq() > currentModSeq) {
+                calData = null;
+            } else {
+                dataFrom = CacheLevel.Memory;
+                // Data loaded from heap LRU supports incremental update for stale items.
+                incrementalUpdate = sMaxStaleItems > 0;
             }
+        }
+
+        // Look up from memcached.
+        if (calData == null && getFromMemcached(key, rangeStart, rangeEnd, result))
+            return result;
 
         if (calData == null) {
             // Load from file.
@@ -629,13 +675,25 @@ public class CalSummaryCache {
                     reusableCalData = calData;
                 calData = null;  // force recompute further down
             } else if (rangeStart < calData.getRangeStart() || rangeEnd > calData.getRangeEnd()) {
-                // Requested range is not within cached range.  Recompute cached range in the hope
-                // that the new range will cover the requested range.
-                defaultRange = Util.getMonthsRange(System.currentTimeMillis(),
-                                                   sRangeMonthFrom, sRangeNumMonths);
-                if (calData.getRangeStart() != defaultRange.getFirst() ||
-                    calData.getRangeEnd() != defaultRange.getSecond()) {
-                    calData = null;
+                // Requested range is not within cached range.  Extend the cached range to cover it, typically
+                // when the client moves on to the next week or month, summarizing only the part not cached yet.
+                long reloadStart = ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.start();
+                CalendarData extended = extendCalendarOverRange(ownerOctxt, mbox, folderId, type, calData,
+                        rangeStart, rangeEnd);
+                if (extended != null) {
+                    ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.stop(reloadStart);
+                    calData = extended;
+                    lruSize = cacheCalendarData(key, mbox, calData, lruSize);
+                    dataFrom = CacheLevel.Miss;
+                } else {
+                    // Too large to extend.  Recompute cached range in the hope that the new range will cover
+                    // the requested range.
+                    defaultRange = Util.getMonthsRange(System.currentTimeMillis(),
+                                                       sRangeMonthFrom, sRangeNumMonths);
+                    if (calData.getRangeStart() != defaultRange.getFirst() ||
+                        calData.getRangeEnd() != defaultRange.getSecond()) {
+                        calData = null;
+                    }
                 }
             }
         }
@@ -645,28 +703,23 @@ public class CalSummaryCache {
             if (defaultRange == null)
                 defaultRange = Util.getMonthsRange(System.currentTimeMillis(),
                                                    sRangeMonthFrom, sRangeNumMonths);
+            long reloadStart = ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.start();
             calData = reloadCalendarOverRange(ownerOctxt, mbox, folderId, type,
                     defaultRange.getFirst(), defaultRange.getSecond(), reusableCalData, incrementalUpdate);
-            synchronized (mSummaryCache) {
-                if (mLRUCapacity > 0) {
-                    mSummaryCache.put(key, calData);
-                    lruSize = mSummaryCache.size();
-                }
-            }
+            ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.stop(reloadStart);
+            lruSize = cacheCalendarData(key, mbox, calData, lruSize);
             dataFrom = CacheLevel.Miss;
-
-            try {
-                FileStore.saveCalendarData(mbox.getId(), calData);  // persist it
-            } catch (ServiceException e) {
-                ZimbraLog.calendar.warn("Error persisting calendar summary cache", e);
-            }
         }
 
         assert(calData != null);
 
-        // Put data in memcached if it didn't come from memcached.
-        if (!CacheLevel.Memcached.equals(dataFrom))
-                mMemcachedCache.put(key, calData);
+        // Share the data with other servers through memcached.  A copy is put again after memcached drops it on a
+        // folder change that doesn't bump the modseq, and every sRepublishMillis in case memcached evicted it.
+        long now = System.currentTimeMillis();
+        if (calData.needsPublishing(now, sRepublishMillis)) {
+            mMemcachedCache.put(key, calData);
+            calData.setPublished(now);
+        }
 
         if (rangeStart >= calData.getRangeStart() && rangeEnd <= calData.getRangeEnd()) {
             // Requested range is within cached range.
@@ -678,8 +731,10 @@ public class CalSummaryCache {
         } else {
             // Requested range is outside the currently cached range.
             dataFrom = CacheLevel.Miss;
+            long reloadStart = ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.start();
             result.data = reloadCalendarOverRange(ownerOctxt, mbox, folderId, type, rangeStart, rangeEnd,
                     reusableCalData, incrementalUpdate);
+            ZimbraPerf.STOPWATCH_CALENDAR_CACHE_RELOAD.stop(reloadStart);
         }
 
         // hit/miss tracking
@@ -711,6 +766,37 @@ public class CalSummaryCache {
         return result;
     }
 
+    private boolean getFromMemcached(CalSummaryKey key, long rangeStart, long rangeEnd, CalendarDataResult result)
+    throws ServiceException {
+        CalendarData calData = mMemcachedCache.getForRange(key, rangeStart, rangeEnd);
+        if (calData == null)
+            return false;
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_HIT.increment(1);
+        ZimbraPerf.COUNTER_CALENDAR_CACHE_MEM_HIT.increment(1);
+        result.data = calData;
+        if (ZimbraLog.calendar.isDebugEnabled()) {
+            ZimbraLog.calendar.debug("Calendar Summary for %s:%s reloaded (memcached) - %s items private=%s",
+                    key.getAccountId(), key.getFolderId(), result.data.getNumItems(), result.allowPrivateAccess);
+        }
+        return true;
+    }
+
+    // Adds freshly computed data to the heap LRU and persists it.  Returns the LRU size.
+    private int cacheCalendarData(CalSummaryKey key, Mailbox mbox, CalendarData calData, int lruSize) {
+        synchronized (mSummaryCache) {
+            if (mLRUCapacity > 0) {
+                mSummaryCache.put(key, calData);
+                lruSize = mSummaryCache.size();
+            }
+        }
+        try {
+            FileStore.saveCalendarData(mbox.getId(), calData);  // persist it
+        } catch (ServiceException e) {
+            ZimbraLog.calendar.warn("Error persisting calendar summary cache", e);
+        }
+        return lruSize;
+    }
+
     private void invalidateSummary(Mailbox mbox, int folderId) {
         if (!LC.calendar_cache_enabled.booleanValue())
             return;
@@ -821,7 +907,18 @@ public class CalSummaryCache {
         }
 
         if (MemcachedConnector.isConnected()) {
-            mMemcachedCache.notifyCommittedChanges(mods, changeId);
+            Set<CalSummaryKey> dropped = mMemcachedCache.notifyCommittedChanges(mods, changeId);
+            if (!dropped.isEmpty()) {
+                // Heap copies that are still current (e.g. after a folder rename or ACL change) must be published again.
+                synchronized (mSummaryCache) {
+                    for (CalSummaryKey key : dropped) {
+                        CalendarData calData = mSummaryCache.get(key);
+                        if (calData != null) {
+                            calData.clearPublished();
+                        }
+                    }
+                }
+            }
         }
     }
 
@@ -104,7 +104,12 @@ public class CalSummaryMemcachedCache {
         mMemcachedLookup.removeMulti(keys);
     }
 
-    void notifyCommittedChanges(PendingModifications mods, int changeId) {
+    /**
+     * Removes the summaries of the changed calendar folders.
+     *
+     * @return the keys removed
+     */
+    Set<CalSummaryKey> notifyCommittedChanges(PendingModifications mods, int changeId) {
         Set<CalSummaryKey> keysToInvalidate = new HashSet<CalSummaryKey>();
         if (mods.modified != null) {
             for (Map.Entry<ModificationKey, Change> entry : mods.modified.entrySet()) {
@@ -139,5 +144,6 @@ public class CalSummaryMemcachedCache {
         } catch (ServiceException e) {
             ZimbraLog.calendar.warn("Unable to notify ctag info cache.  Some cached data may become stale.", e);
         }
+        return keysToInvalidate;
     }
 }
@@ -34,6 +34,9 @@ public class CalendarCacheManager {
     private boolean mSummaryCacheEnabled;
     private CalSummaryCache mSummaryCache;
 
+    // for free/busy lookups
+    private FreeBusyBitmapCache mFreeBusyCache;
+
     // for CalDAV ctag caching
     private CalListCache mCalListCache;
     private CtagInfoCache mCtagCache;
@@ -53,11 +56,14 @@ public class CalendarCacheManager {
         if (mSummaryCacheEnabled)
             summaryLRUSize = LC.calendar_cache_lru_size.intValue();
         mSummaryCache = new CalSummaryCache(summaryLRUSize);
+        mFreeBusyCache = new FreeBusyBitmapCache(LC.calendar_freebusy_index_lru_size.intValue(),
+                LC.calendar_freebusy_index_max_days.intValue());
     }
 
     public void notifyCommittedChanges(PendingModifications mods, int changeId) {
         if (mSummaryCacheEnabled)
             mSummaryCache.notifyCommittedChanges(mods, changeId);
+        mFreeBusyCache.notifyCommittedChanges(mods, changeId);
         if (MemcachedConnector.isConnected()) {
             mCalListCache.notifyCommittedChanges(mods, changeId);
             mCtagCache.notifyCommittedChanges(mods, changeId);
@@ -66,6 +72,7 @@ public class CalendarCacheManager {
 
     public void purgeMailbox(Mailbox mbox) throws ServiceException {
         mSummaryCache.purgeMailbox(mbox);
+        mFreeBusyCache.purgeMailbox(mbox);
         if (MemcachedConnector.isConnected()) {
             mCalListCache.purgeMailbox(mbox);
             mCtagCache.purgeMailbox(mbox);
@@ -74,6 +81,7 @@ public class CalendarCacheManager {
 
     CtagInfoCache getCtagCache() { return mCtagCache; }
     public CalSummaryCache getSummaryCache() { return mSummaryCache; }
+    public FreeBusyBitmapCache getFreeBusyCache() { return mFreeBusyCache; }
     public CtagResponseCache getCtagResponseCache() { return mCtagResponseCache; }
 
     public AccountCtags getCtags(AccountKey key) throws ServiceException {
@@ -36,6 +36,8 @@ public class CalendarData {
     private List<CalendarItemData> mCalendarItems;
     private Map<Integer, CalendarItemData> mCalendarItemsMap;
     private Set<Integer> mStaleItemIds;
+    private int mWeight = -1;
+    private volatile long mPublishedAt;  // when this copy was last put in memcached, or 0
 
     CalendarData(int folderId, int modSeq, long rangeStart, long rangeEnd) {
         mFolderId = folderId;
@@ -80,6 +82,51 @@ public class CalendarData {
         return calData;
     }
 
+    /**
+     * Returns the union of this data and {@code other}, the same folder at the same modseq summarized over an
+     * adjacent range.
+     */
+    CalendarData merge(CalendarData other) {
+        CalendarData earlier = mRangeStart <= other.mRangeStart ? this : other;
+        CalendarData later = earlier == this ? other : this;
+        CalendarData calData = new CalendarData(mFolderId, mModSeq, earlier.mRangeStart,
+                Math.max(earlier.mRangeEnd, later.mRangeEnd));
+        for (CalendarItemData calItemData : earlier.mCalendarItems) {
+            CalendarItemData laterData = later.getCalendarItemData(calItemData.getCalItemId());
+            calData.addCalendarItem(laterData == null ? calItemData : calItemData.merge(laterData));
+        }
+        for (CalendarItemData calItemData : later.mCalendarItems) {
+            if (earlier.getCalendarItemData(calItemData.getCalItemId()) == null)
+                calData.addCalendarItem(calItemData);
+        }
+        copyStaleItemIdsTo(calData.mStaleItemIds);
+        other.copyStaleItemIdsTo(calData.mStaleItemIds);
+        return calData;
+    }
+
+    /**
+     * Returns the number of items and instances, as a measure of the memory this data takes.
+     */
+    int getWeight() {
+        if (mWeight < 0) {
+            int weight = mCalendarItems.size();
+            for (CalendarItemData calItemData : mCalendarItems) {
+                weight += calItemData.getNumInstances();
+            }
+            mWeight = weight;
+        }
+        return mWeight;
+    }
+
+    // Whether this copy is to be put in memcached (again): it never was, memcached dropped it since, or it may have
+    // been evicted there after the given interval.
+    boolean needsPublishing(long now, long interval) {
+        long publishedAt = mPublishedAt;
+        return publishedAt == 0 || now - publishedAt >= interval;
+    }
+    void setPublished(long now)  { mPublishedAt = now; }
+    void clearPublished()        { mPublishedAt = 0; }
+
     synchronized int getNumStaleItems() {
         return mStaleItemIds.size();
     }
@@ -18,8 +18,12 @@
 package com.zimbra.cs.mailbox.calendar.cache;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.db.DbTag;
@@ -160,6 +164,37 @@ public class CalendarItemData {
             return null;
     }
 
+    /**
+     * Returns the union of this item's instances and those of {@code other}, the same item expanded over an adjacent
+     * range.  Instances found in both, because they span the boundary or were included for their alarm, are kept once.
+     */
+    CalendarItemData merge(CalendarItemData other) {
+        CalendarItemData calItemData = new CalendarItemData(type, mFolderId, mCalItemId, mFlags, mTags, mTagIds, mModMetadata,
+                mModContent, mDate, mChangeDate, mSize, mUid, mIsRecurring, mHasExceptions, mIsPublic, mAlarm, mDefaultData);
+        Set<Long> starts = new HashSet<Long>();
+        for (InstanceData inst : mInstances) {
+            starts.add(inst.getDtStart());
+            calItemData.addInstance(inst);
+        }
+        for (InstanceData inst : other.mInstances) {
+            if (starts.add(inst.getDtStart()))
+                calItemData.addInstance(inst);
+        }
+        Collections.sort(calItemData.mInstances, new Comparator<InstanceData>() {
+            @Override
+            public int compare(InstanceData a, InstanceData b) {
+                long startA = a.getDtStart() != null ? a.getDtStart().longValue() : Long.MIN_VALUE;
+                long startB = b.getDtStart() != null ? b.getDtStart().longValue() : Long.MIN_VALUE;
+                return startA < startB ? -1 : (startA == startB ? 0 : 1);
+            }
+        });
+        long start = mActualRangeStart;
+        if (start == 0 || (other.mActualRangeStart != 0 && other.mActualRangeStart < start))
+            start = other.mActualRangeStart;
+        calItemData.setActualRange(start, Math.max(mActualRangeEnd, other.mActualRangeEnd));
+        return calItemData;
+    }
+
     private static final String FN_TYPE = "type";
     private static final String FN_FOLDER_ID = "fid";
     private static final String FN_CALITEM_ID = "ciid";
@@ -0,0 +1,271 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox.calendar.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.mailbox.CalendarItem;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * Per-mailbox free/busy index at a fixed 15-minute granularity.  Each calendar folder keeps a packed bitmap per UTC
+ * day with one bit per slot and busy status.  Days are filled lazily from the calendar summary data by
+ * {@link com.zimbra.cs.fb.LocalFreeBusyProvider} and dropped again as calendar items overlapping them change, so a
+ * free/busy lookup over indexed days is an OR of the folders' bitmaps.
+ * <p>
+ * Change notifications only narrow down what to drop.  Like the heap layer of {@link CalSummaryCache}, each folder's
+ * bitmaps are tagged with the folder modseq they were built at, and are rebuilt when the folder's current modseq
+ * differs, so a missed notification (e.g. after a restore or redo replay) can't leave stale busy data behind.
+ */
+public class FreeBusyBitmapCache {
+
+    public static final long SLOT_MSEC = 15 * Constants.MILLIS_PER_MINUTE;
+    public static final int SLOTS_PER_DAY = (int) (Constants.MILLIS_PER_DAY / SLOT_MSEC);
+
+    // busy statuses tracked in a day bitmap, busiest first
+    private static final String[] STATUSES = {
+        IcalXmlStrMap.FBTYPE_BUSY_UNAVAILABLE, IcalXmlStrMap.FBTYPE_BUSY, IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE };
+    private static final int WORDS_PER_STATUS = (SLOTS_PER_DAY + 63) / 64;
+
+    private final int lruSize;
+    private final int maxDays;
+    private final LinkedHashMap<String, MailboxBitmaps> mailboxes;
+
+    private static final class MailboxBitmaps {
+        // bumped on every invalidation, so that bitmaps built from data read before it are not cached
+        long sequence;
+        final Map<Integer, FolderBitmaps> folders = new HashMap<Integer, FolderBitmaps>();
+    }
+
+    private static final class FolderBitmaps {
+        final int modSeq;  // folder modseq the bitmaps were built at
+        final TreeMap<Long, long[]> days = new TreeMap<Long, long[]>();
+
+        FolderBitmaps(int modSeq) {
+            this.modSeq = modSeq;
+        }
+    }
+
+    FreeBusyBitmapCache(final int lruSize, int maxDays) {
+        this.lruSize = lruSize;
+        this.maxDays = maxDays;
+        mailboxes = new LinkedHashMap<String, MailboxBitmaps>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MailboxBitmaps> eldest) {
+                return size() > lruSize;
+            }
+        };
+    }
+
+    /**
+     * Returns true if free/busy over [start, end) can be answered from the index.
+     */
+    public boolean canServe(long start, long end) {
+        return lruSize > 0 && start < end && getDay(end - 1) - getDay(start) < maxDays;
+    }
+
+    public static long getDay(long time) {
+        return Math.floorDiv(time, Constants.MILLIS_PER_DAY);
+    }
+
+    public static long getDayStart(long day) {
+        return day * Constants.MILLIS_PER_DAY;
+    }
+
+    public static long[] newBitmap() {
+        return new long[STATUSES.length * WORDS_PER_STATUS];
+    }
+
+    /**
+     * Marks the slots of {@code day} overlapping [start, end) with {@code status}.  A slot only partially covered is
+     * marked as a whole.  Statuses other than the busy ones are ignored.
+     */
+    public static void mark(long[] bitmap, long day, String status, long start, long end) {
+        int offset = -1;
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i].equals(status)) {
+                offset = i * WORDS_PER_STATUS;
+                break;
+            }
+        }
+        long dayStart = getDayStart(day);
+        if (offset < 0 || end <= dayStart || start >= dayStart + Constants.MILLIS_PER_DAY) {
+            return;
+        }
+        int from = start <= dayStart ? 0 : (int) ((start - dayStart) / SLOT_MSEC);
+        int to = (int) Math.min(SLOTS_PER_DAY, (end - dayStart + SLOT_MSEC - 1) / SLOT_MSEC);
+        for (int slot = from; slot < to; slot++) {
+            bitmap[offset + slot / 64] |= 1L << (slot % 64);
+        }
+    }
+
+    /**
+     * Returns the busiest status marked in {@code slot}, or null if it is free.
+     */
+    public static String getStatus(long[] bitmap, int slot) {
+        for (int i = 0; i < STATUSES.length; i++) {
+            if ((bitmap[i * WORDS_PER_STATUS + slot / 64] & (1L << (slot % 64))) != 0) {
+                return STATUSES[i];
+            }
+        }
+        return null;
+    }
+
+    public static void or(long[] bitmap, long[] other) {
+        for (int i = 0; i < bitmap.length; i++) {
+            bitmap[i] |= other[i];
+        }
+    }
+
+    /**
+     * Returns a token for {@link #put}.  Call it before reading the calendar data the bitmaps are built from.
+     */
+    public synchronized long getSequence(String accountId) {
+        MailboxBitmaps mb = mailboxes.get(accountId);
+        if (mb == null) {
+            mb = new MailboxBitmaps();
+            mailboxes.put(accountId, mb);
+        }
+        return mb.sequence;
+    }
+
+    /**
+     * Returns the bitmap of a day in a calendar folder, or null if it isn't indexed or was indexed at another modseq
+     * than the folder's current {@code modSeq}.  The caller must not modify it.
+     */
+    public synchronized long[] get(String accountId, int folderId, int modSeq, long day) {
+        MailboxBitmaps mb = mailboxes.get(accountId);
+        if (mb == null) {
+            return null;
+        }
+        FolderBitmaps fb = mb.folders.get(folderId);
+        if (fb == null) {
+            return null;
+        } else if (fb.modSeq != modSeq) {
+            mb.folders.remove(folderId);
+            return null;
+        }
+        return fb.days.get(day);
+    }
+
+    /**
+     * Indexes the bitmaps of consecutive days starting at {@code firstDay}, built from the folder's data at
+     * {@code modSeq}, unless the mailbox was invalidated since {@code sequence} was obtained.  Days indexed at another
+     * modseq are dropped.
+     */
+    public synchronized void put(String accountId, int folderId, int modSeq, long firstDay, long[][] bitmaps,
+            long sequence) {
+        MailboxBitmaps mb = mailboxes.get(accountId);
+        if (mb == null || mb.sequence != sequence) {
+            return;
+        }
+        FolderBitmaps fb = mb.folders.get(folderId);
+        if (fb == null || fb.modSeq != modSeq) {
+            fb = new FolderBitmaps(modSeq);
+            mb.folders.put(folderId, fb);
+        } else if (fb.days.size() + bitmaps.length > maxDays * 2) {
+            fb.days.clear();
+        }
+        for (int i = 0; i < bitmaps.length; i++) {
+            fb.days.put(firstDay + i, bitmaps[i]);
+        }
+    }
+
+    synchronized void notifyCommittedChanges(PendingModifications mods, int changeId) {
+        if (mailboxes.isEmpty()) {
+            return;
+        }
+        if (mods.created != null) {
+            for (MailItem item : mods.created.values()) {
+                if (item instanceof CalendarItem) {
+                    invalidate(item.getMailbox().getAccountId(), (CalendarItem) item);
+                }
+            }
+        }
+        if (mods.modified != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.modified.entrySet()) {
+                Change change = entry.getValue();
+                if (change.what instanceof CalendarItem) {
+                    String accountId = entry.getKey().getAccountId();
+                    invalidate(accountId, (CalendarItem) change.what);
+                    if (change.preModifyObj instanceof CalendarItem) {
+                        invalidate(accountId, (CalendarItem) change.preModifyObj);
+                    } else if ((change.why & Change.FOLDER) != 0) {
+                        // moved from a folder we don't know
+                        invalidate(accountId, -1, 0, 0);
+                    } else {
+                        invalidate(accountId, ((CalendarItem) change.what).getFolderId(), 0, 0);
+                    }
+                }
+            }
+        }
+        if (mods.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.deleted.entrySet()) {
+                Change change = entry.getValue();
+                String accountId = entry.getKey().getAccountId();
+                if (change.preModifyObj instanceof CalendarItem) {
+                    invalidate(accountId, (CalendarItem) change.preModifyObj);
+                } else if (change.what == MailItem.Type.APPOINTMENT || change.what == MailItem.Type.TASK) {
+                    invalidate(accountId, -1, 0, 0);
+                } else if (change.what == MailItem.Type.FOLDER) {
+                    invalidate(accountId, entry.getKey().getItemId(), 0, 0);
+                }
+            }
+        }
+    }
+
+    private void invalidate(String accountId, CalendarItem item) {
+        invalidate(accountId, item.getFolderId(), item.getStartTime(), item.getEndTime());
+    }
+
+    /**
+     * Drops the indexed days of a folder overlapping [start, end], or all of them if the range isn't known.  A
+     * negative folder id drops every folder of the mailbox.
+     */
+    private void invalidate(String accountId, int folderId, long start, long end) {
+        MailboxBitmaps mb = accountId == null ? null : mailboxes.get(accountId);
+        if (mb == null) {
+            return;
+        }
+        mb.sequence++;
+        if (folderId < 0) {
+            mb.folders.clear();
+            return;
+        }
+        FolderBitmaps fb = mb.folders.get(folderId);
+        if (fb == null) {
+            return;
+        } else if (start <= 0 || end < start) {
+            mb.folders.remove(folderId);
+        } else {
+            fb.days.subMap(getDay(start), true, getDay(end), true).clear();
+        }
+    }
+
+    synchronized void purgeMailbox(Mailbox mbox) {
+        mailboxes.remove(mbox.getAccountId());
+    }
+}
@@ -308,6 +308,14 @@ public final class ParsedMessage {
         return wasMutated;
     }
 
+    /**
+     * Returns whether {@link #getOriginalMessage()} was parsed from the raw MIME data, as opposed to being the
+     * {@link MimeMessage} the caller passed in, and so reflects exactly what gets stored.
+     */
+    public boolean isParsedFromRawData() {
+        return sharedStream != null;
+    }
+
     public ParsedMessage setDefaultCharset(String charset) {
         defaultCharset = charset;
         if (mimeMessage instanceof ZMimeMessage) {
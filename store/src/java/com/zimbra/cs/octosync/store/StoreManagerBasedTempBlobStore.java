@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.UUID;
 
@@ -153,7 +152,7 @@ public class StoreManagerBasedTempBlobStore extends BlobStore
         this.incomingExpiration = incomingExpiration;
         this.storedExpiration = storedExpiration;
         this.storedCached = storedCached;
-        Zimbra.sTimer.schedule(new ReaperTask(), REAPER_INTERVAL_MSEC, REAPER_INTERVAL_MSEC);
+        Zimbra.sTimingWheel.schedule("TempBlobReaper", new ReaperTask(), REAPER_INTERVAL_MSEC, REAPER_INTERVAL_MSEC);
     }
 
     // BlobStore API
@@ -316,7 +315,7 @@ public class StoreManagerBasedTempBlobStore extends BlobStore
         }
     }
 
-    private final class ReaperTask extends TimerTask
+    private final class ReaperTask implements Runnable
     {
         @Override
         public void run()
@@ -18,9 +18,12 @@ package com.zimbra.cs.redolog;
 
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import com.zimbra.common.util.ByteUtil;
 
@@ -46,6 +49,15 @@ public class RedoLogInput {
         mIN = raf;
     }
 
+    /**
+     * Reads from a buffer holding the redo log file, such as a memory-mapped file.  The
+     * buffer position must be the file offset, so that ops can refer to their data by offset.
+     */
+    public RedoLogInput(ByteBuffer buf, String path) {
+        mPath = path;
+        mIN = new ByteBufferInput(buf);
+    }
+
     /**
      * Returns the path to the redo log file, or <tt>null</tt> if this object
      * reads from an <tt>InputStream</tt>. 
@@ -64,6 +76,9 @@ public class RedoLogInput {
             RandomAccessFile file = (RandomAccessFile) mIN;
             return file.getFilePointer();
         }
+        if (mIN instanceof ByteBufferInput) {
+            return ((ByteBufferInput) mIN).mBuf.position();
+        }
         return -1;
     }
 
@@ -102,4 +117,110 @@ public class RedoLogInput {
     //public String readLine() throws IOException { return mIN.readLine(); }
     //public char readChar(int v) throws IOException { return mIN.readChar(); }
     //public float readFloat() throws IOException { return mIN.readFloat(); }
+
+    /**
+     * <tt>DataInput</tt> over a <tt>ByteBuffer</tt>.  Reading past the limit throws
+     * <tt>EOFException</tt>, as with a file.
+     */
+    private static class ByteBufferInput implements DataInput {
+        final ByteBuffer mBuf;
+
+        ByteBufferInput(ByteBuffer buf) {
+            mBuf = buf;
+        }
+
+        private void require(int n) throws EOFException {
+            if (mBuf.remaining() < n)
+                throw new EOFException();
+        }
+
+        @Override public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override public void readFully(byte[] b, int off, int len) throws IOException {
+            require(len);
+            mBuf.get(b, off, len);
+        }
+
+        @Override public int skipBytes(int n) {
+            int skip = Math.max(Math.min(n, mBuf.remaining()), 0);
+            mBuf.position(mBuf.position() + skip);
+            return skip;
+        }
+
+        @Override public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override public byte readByte() throws IOException {
+            try {
+                return mBuf.get();
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override public short readShort() throws IOException {
+            require(2);
+            return mBuf.getShort();
+        }
+
+        @Override public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override public char readChar() throws IOException {
+            require(2);
+            return mBuf.getChar();
+        }
+
+        @Override public int readInt() throws IOException {
+            require(4);
+            return mBuf.getInt();
+        }
+
+        @Override public long readLong() throws IOException {
+            require(8);
+            return mBuf.getLong();
+        }
+
+        @Override public float readFloat() throws IOException {
+            require(4);
+            return mBuf.getFloat();
+        }
+
+        @Override public double readDouble() throws IOException {
+            require(8);
+            return mBuf.getDouble();
+        }
+
+        // Same as DataInputStream: bytes up to \n, \r or \r\n, each byte taken as a Latin-1 char.
+        @Override public String readLine() {
+            if (!mBuf.hasRemaining())
+                return null;
+            StringBuilder sb = new StringBuilder();
+            while (mBuf.hasRemaining()) {
+                int c = mBuf.get() & 0xff;
+                if (c == '\n')
+                    break;
+                if (c == '\r') {
+                    if (mBuf.hasRemaining() && mBuf.get(mBuf.position()) == '\n')
+                        mBuf.get();
+                    break;
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        // Modified UTF-8 with a 2-byte length, as in DataInput; RedoLogInput.readUTF() doesn't use it.
+        @Override public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
 }
@@ -26,14 +26,20 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.logger.FileLogReader;
 import com.zimbra.cs.redolog.logger.LogWriter;
+import com.zimbra.cs.redolog.logger.MappedLogReader;
 import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
@@ -114,7 +120,8 @@ public class RedoPlayer {
     private void scanLog(File logfile, boolean redoCommitted, Map<Integer, Integer> mboxIDsMap,
             long startTime, long endTime, long ignoreCommitsAtOrAfter)
     throws IOException, ServiceException {
-        FileLogReader logReader = new FileLogReader(logfile, mWritable);
+        FileLogReader logReader = MappedLogReader.newReader(logfile, mWritable,
+                LC.redolog_mmap_replay_enabled.booleanValue());
         logReader.open();
         long lastPosition = 0;
 
@@ -419,11 +426,9 @@ public class RedoPlayer {
         }
 
         synchronized (mOpsMapGuard) {
-            Set entrySet = mOpsMap.entrySet();
             ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
-            for (Iterator it = entrySet.iterator(); it.hasNext(); ) {
-                Map.Entry entry = (Entry) it.next();
-                RedoableOp op = (RedoableOp) entry.getValue();
+            List<RedoableOp> ops = new ArrayList<RedoableOp>(numOps);
+            for (RedoableOp op : mOpsMap.values()) {
                 if (op == null)
                     continue;
 
@@ -432,26 +437,15 @@ public class RedoPlayer {
                     postStartupRecoveryOps.add(op);
                     continue;
                 }
+                ops.add(op);
+            }
 
-                if (ZimbraLog.redolog.isInfoEnabled())
-                    ZimbraLog.redolog.info("REDOING: " + op);
-
-                boolean success = false;
-                try {
-                    op.redo();
-                    success = true;
-                } catch (Exception e) {
-                    ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
-                            "  Backend state of affected item is indeterminate." +
-                            "  Marking operation as aborted and moving on.", e);
-                } finally {
-                    if (success) {
-                        CommitTxn commit = new CommitTxn(op);
-                        redoLogMgr.logOnly(commit, true);
-                    } else {
-                        AbortTxn abort = new AbortTxn(op);
-                        redoLogMgr.logOnly(abort, true);
-                    }
+            int numThreads = LC.redolog_crash_recovery_threads.intValue();
+            if (numThreads > 1 && ops.size() > 1) {
+                redoInParallel(redoLogMgr, ops, numThreads);
+            } else {
+                for (RedoableOp op : ops) {
+                    redoUncommittedOp(redoLogMgr, op);
                 }
             }
             mOpsMap.clear();
@@ -460,6 +454,97 @@ public class RedoPlayer {
         return numOps;
     }
 
+    /**
+     * Redoes an uncommitted op and logs its commit or abort record.
+     */
+    private static void redoUncommittedOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (ZimbraLog.redolog.isInfoEnabled())
+            ZimbraLog.redolog.info("REDOING: " + op);
+
+        boolean success = false;
+        try {
+            op.redo();
+            success = true;
+        } catch (Exception e) {
+            ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
+                    "  Backend state of affected item is indeterminate." +
+                    "  Marking operation as aborted and moving on.", e);
+        } finally {
+            if (success) {
+                CommitTxn commit = new CommitTxn(op);
+                redoLogMgr.logOnly(commit, true);
+            } else {
+                AbortTxn abort = new AbortTxn(op);
+                redoLogMgr.logOnly(abort, true);
+            }
+        }
+    }
+
+    /**
+     * Redoes uncommitted ops of different mailboxes in parallel.  Ops of the same mailbox are
+     * redone in log order by a single thread.  An op that isn't tied to one mailbox, such as
+     * StoreIncomingBlob, is redone by itself after all ops logged before it have been redone,
+     * and before any op logged after it.
+     */
+    private static void redoInParallel(RedoLogManager redoLogMgr, List<RedoableOp> ops, int numThreads)
+    throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("RedoCrashRecovery-%d").setDaemon(true).build());
+        try {
+            Map<Integer, List<RedoableOp>> opsByMailbox = new LinkedHashMap<Integer, List<RedoableOp>>();
+            for (RedoableOp op : ops) {
+                int mboxId = op.getMailboxId();
+                if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
+                    redoMailboxOps(executor, redoLogMgr, opsByMailbox);
+                    opsByMailbox.clear();
+                    redoUncommittedOp(redoLogMgr, op);
+                } else {
+                    List<RedoableOp> mboxOps = opsByMailbox.get(mboxId);
+                    if (mboxOps == null) {
+                        mboxOps = new ArrayList<RedoableOp>();
+                        opsByMailbox.put(mboxId, mboxOps);
+                    }
+                    mboxOps.add(op);
+                }
+            }
+            redoMailboxOps(executor, redoLogMgr, opsByMailbox);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Redoes each mailbox's ops as one task, and waits for all of them to finish.
+    private static void redoMailboxOps(ExecutorService executor, final RedoLogManager redoLogMgr,
+            Map<Integer, List<RedoableOp>> opsByMailbox)
+    throws Exception {
+        if (opsByMailbox.isEmpty())
+            return;
+        List<Future<?>> futures = new ArrayList<Future<?>>(opsByMailbox.size());
+        for (final List<RedoableOp> mboxOps : opsByMailbox.values()) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (RedoableOp op : mboxOps) {
+                        redoUncommittedOp(redoLogMgr, op);
+                    }
+                }
+            }));
+        }
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw ServiceException.FAILURE("Error during crash recovery", failure);
+    }
+
     /**
      * Returns a copy of the pending ops map.
      * @return
@@ -0,0 +1,101 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.util.ArrayDeque;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Commit callbacks waiting for their commit record to reach the disk.  Callbacks are queued in
+ * log order as commit records are logged, and are made in the same order once the log writer
+ * has fsynced the records.
+ */
+class CommitNotifyQueue {
+
+    static final class Notif {
+        private final RedoCommitCallback mCallback;
+        private final CommitId mCommitId;
+        private final long mLogSeq;
+
+        Notif(RedoCommitCallback callback, CommitId cid, long logSeq) {
+            mCallback = callback;
+            mCommitId = cid;
+            mLogSeq = logSeq;
+        }
+
+        RedoCommitCallback getCallback() { return mCallback; }
+        CommitId getCommitId() { return mCommitId; }
+        long getLogSeq() { return mLogSeq; }
+    }
+
+    private final ArrayDeque<Notif> mQueue;
+    private final int mCapacity;
+
+    /**
+     * @param capacity number of queued callbacks at which {@link #isFull()} returns true;
+     *                 the queue itself never rejects a push
+     */
+    CommitNotifyQueue(int capacity) {
+        mCapacity = capacity;
+        mQueue = new ArrayDeque<Notif>(capacity);
+    }
+
+    synchronized void push(Notif notif) {
+        if (notif != null) {
+            mQueue.addLast(notif);
+        }
+    }
+
+    synchronized boolean isFull() {
+        return mQueue.size() >= mCapacity;
+    }
+
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Makes all queued callbacks.
+     */
+    synchronized void flush() {
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Makes the queued callbacks for the commit records logged at or before the given log
+     * sequence, in log order.
+     */
+    synchronized void flush(long upToLogSeq) {
+        Notif notif;
+        while ((notif = mQueue.peekFirst()) != null && notif.getLogSeq() <= upToLogSeq) {
+            mQueue.removeFirst();
+            RedoCommitCallback cb = notif.getCallback();
+            assert(cb != null);
+            try {
+                cb.callback(notif.getCommitId());
+            } catch (OutOfMemoryError e) {
+                Zimbra.halt("out of memory", e);
+            } catch (Throwable t) {
+                ZimbraLog.misc.error("Error while making commit callback", t);
+            }
+        }
+    }
+}
@@ -65,16 +65,34 @@ public class FileLogReader {
     public synchronized void open() throws IOException {
         try {
             mRAF = new RandomAccessFile(mFile, mReadOnly ? "r" : "rw");
-            mIN = new RedoLogInput(mRAF, mFile.getPath());
             mHeader.read(mRAF);
             mHeaderRead = true;
             mFileSizeAtOpen = mRAF.length();
+            mIN = newInput(mRAF, mFile.getPath(), mFileSizeAtOpen);
         } catch (IOException e) {
+            if (mRAF != null) {
+                try {
+                    mRAF.close();
+                } catch (IOException x) {
+                }
+                mRAF = null;
+            }
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Returns the input ops are read from, positioned just past the file header.
+     * @param raf the open log file
+     * @param path the path of the log file
+     * @param size the file size at open time
+     */
+    protected RedoLogInput newInput(RandomAccessFile raf, String path, long size) throws IOException {
+        return new RedoLogInput(raf, path);
+    }
+
     public synchronized void close() throws IOException {
+        mIN = null;
         try {
             mRAF.close();
         } catch (IOException e) {
@@ -92,8 +110,8 @@ public class FileLogReader {
     }
 
     public synchronized RedoableOp getNextOp() throws IOException {
-        long pos = mRAF.getFilePointer();
-        if (pos == mFileSizeAtOpen) {
+        long pos = mIN.getFilePointer();
+        if (pos >= mFileSizeAtOpen) {
             // EOF reached.
             return null;
         }
@@ -123,10 +141,11 @@ public class FileLogReader {
             }
             first = false;
             // Skip over bad bytes by looking for the next occurrence of "ZMREDO" redo op marker.
-            mRAF.seek(currPos + 1);
-            if (searchInRAF(RedoableOp.REDO_MAGIC.getBytes()))  {
-                currPos = mRAF.getFilePointer();
+            long matchAt = search(currPos + 1, RedoableOp.REDO_MAGIC.getBytes());
+            if (matchAt != -1) {
+                currPos = matchAt;
             } else {
+                seek(pos);
                 String msg = String.format(
                         "Found %d junk bytes from offset 0x%08x to end of file, in redolog %s",
                         mFileSizeAtOpen - pos, pos, mFile.getAbsolutePath());
@@ -140,7 +159,7 @@ public class FileLogReader {
     }
 
     public synchronized long position() throws IOException {
-        return mRAF.getFilePointer();
+        return mIN.getFilePointer();
     }
 
     public synchronized long getLastOpStartOffset() throws IOException {
@@ -160,9 +179,28 @@ public class FileLogReader {
             hdr.setFileSize(size);
             hdr.write(mRAF);
             mRAF.seek(size);
+            mFileSizeAtOpen = Math.min(mFileSizeAtOpen, size);
         }
     }
 
+    /**
+     * Moves the input to the given file offset.
+     */
+    protected void seek(long pos) throws IOException {
+        mRAF.seek(pos);
+    }
+
+    /**
+     * Looks for the pattern at or after offset {@code start}, up to the file size at open time.
+     * @return the offset of the match, with the input positioned there, or -1 if not found
+     */
+    protected long search(long start, byte[] pattern) throws IOException {
+        mRAF.seek(start);
+        if (searchInRAF(pattern))
+            return mRAF.getFilePointer();
+        return -1;
+    }
+
     /**
      * Search the pattern in mRAF, positioning the pointer at the beginning of the pattern.
      * @param pattern
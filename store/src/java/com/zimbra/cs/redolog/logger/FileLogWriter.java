@@ -309,7 +309,12 @@ public class FileLogWriter implements LogWriter {
                 if (cb != null) {
                     long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
                     CommitId cid = new CommitId(redoSeq, (CommitTxn) op);
-                    Notif notif = new Notif(cb, cid);
+                    CommitNotifyQueue.Notif notif = new CommitNotifyQueue.Notif(cb, cid, seq);
+                    if (mCommitNotifyQueue.isFull()) {
+                        // queue is full
+                        fsync();
+                        mCommitNotifyQueue.flush();
+                    }
                     // We queue it instead making the callback right away.
                     // Call it only after the commit record has been fsynced.
                     mCommitNotifyQueue.push(notif);
@@ -471,7 +476,7 @@ public class FileLogWriter implements LogWriter {
                         mRAF.getChannel().force(false);
                     else
                         throw new IOException("Redolog file closed");
-                    mCommitNotifyQueue.flush(false);
+                    mCommitNotifyQueue.flush();
                 }
             }
             synchronized (mLock) {
@@ -563,70 +568,4 @@ public class FileLogWriter implements LogWriter {
             }
         }
     }
-
-
-    // Commit callback handling
-
-    private static class Notif {
-        private RedoCommitCallback mCallback;
-        private CommitId mCommitId;
-
-        public Notif(RedoCommitCallback callback, CommitId cid) {
-            mCallback = callback;
-            mCommitId = cid;
-        }
-        public RedoCommitCallback getCallback() { return mCallback; }
-        public CommitId getCommitId() { return mCommitId; }
-    }
-
-    private class CommitNotifyQueue {
-        private Notif[] mQueue = new Notif[100];
-        private int mHead;  // points to first entry
-        private int mTail;  // points to just after last entry (first empty slot)
-        private boolean mFull;
-
-        public CommitNotifyQueue(int size) {
-            mQueue = new Notif[size];
-            mHead = mTail = 0;
-            mFull = false;
-        }
-
-        public synchronized void push(Notif notif) throws IOException {
-            if (notif != null) {
-                if (mFull) flush(true);  // queue is full
-                assert(!mFull);
-                mQueue[mTail] = notif;
-                mTail++;
-                mTail %= mQueue.length;
-                mFull = mTail == mHead;
-            }
-        }
-
-        private synchronized Notif pop() {
-            if (mHead == mTail && !mFull) return null;  // queue is empty
-            Notif n = mQueue[mHead];
-            mQueue[mHead] = null;  // help with GC
-            mHead++;
-            mHead %= mQueue.length;
-            mFull = false;
-            return n;
-        }
-
-        public synchronized void flush(boolean fsync) throws IOException {
-            if (fsync)
-                fsync();
-            Notif notif;
-            while ((notif = pop()) != null) {
-                RedoCommitCallback cb = notif.getCallback();
-                assert(cb != null);
-                try {
-                    cb.callback(notif.getCommitId());
-                } catch (OutOfMemoryError e) {
-                    Zimbra.halt("out of memory", e);
-                } catch (Throwable t) {
-                    ZimbraLog.misc.error("Error while making commit callback", t);
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,548 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoConfig;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * File-based {@link LogWriter} that commits log entries in groups.
+ * <p>
+ * Logging threads append their entries to a shared in-memory buffer.  A thread that needs its
+ * entry on disk either becomes the flusher, if no other thread is flushing, or waits for the
+ * current flush to finish.  The flusher takes everything that has been appended so far, writes
+ * it to the log file and issues a single {@code FileChannel.force()} for the whole batch, then
+ * makes the commit callbacks for the batch and wakes up the waiters.  Threads that appended
+ * while a batch was being forced are committed together by the next flusher, so the number of
+ * fsyncs adapts to the load instead of being driven by a polling interval.
+ * <p>
+ * Asynchronous entries, such as commit records, ride along with the next batch.  If no batch
+ * comes along within the fsync interval, a background thread flushes them, so that they don't
+ * sit in memory, and their commit callbacks don't stay pending, while the server is idle.
+ * <p>
+ * The on-disk format is the same as {@link FileLogWriter}'s.
+ */
+public class GroupCommitLogWriter implements LogWriter {
+
+    private static String sServerId;
+    static {
+        try {
+            sServerId = Provisioning.getInstance().getLocalServer().getId();
+        } catch (ServiceException e) {
+            ZimbraLog.redolog.error("Unable to get local server ID", e);
+            sServerId = "unknown";
+        }
+    }
+
+    protected RedoLogManager mRedoLogMgr;
+
+    // Synchronizes access to all fields below except mRAF contents, and is used to wait for
+    // flushes.  The file itself is only written by the thread that set mFlushing.
+    private final Object mLock = new Object();
+
+    private final FileHeader mHeader;
+    private long mFirstOpTstamp;
+    private long mLastOpTstamp;
+    private long mCreateTime;
+    private boolean mHeaderDirty;
+
+    private File mFile;
+    private RandomAccessFile mRAF;
+    private long mFileSize;         // includes buffered entries not yet written
+    private long mLastLogTime;
+
+    private final boolean mFsyncDisabled;
+    private final int mMaxBufferBytes;
+
+    private ByteArrayOutputStream mBuffer;
+    private boolean mFlushing;      // whether a thread is writing a batch
+
+    private long mLogSeq;           // last item logged
+    private long mWriteSeq;         // last item written to the file
+    private long mFsyncSeq;         // last item fsynced
+
+    private IOException mFailure;   // error from the last failed batch
+    private long mFailedSeq;        // last item of the last failed batch
+    private long mFailureCount;     // how many batches have failed
+
+    private final long mLingerMS;   // how long asynchronous entries may wait for a batch
+    private Thread mLingerThread;
+    private boolean mAsyncPending;  // whether the linger thread has been signaled
+    private boolean mStopLinger;
+
+    // for gathering some stats; nonessential for functionality
+    private long mLogCount;         // how many times log was called
+    private long mFsyncCount;       // how many times fsync was called
+    private boolean mNoStat;
+
+    private final CommitNotifyQueue mCommitNotifyQueue;
+
+    public GroupCommitLogWriter(RedoLogManager redoLogMgr, File logfile, long fsyncIntervalMS) {
+        mRedoLogMgr = redoLogMgr;
+
+        mHeader = new FileHeader(sServerId);
+        mFile = logfile;
+        mFileSize = mFile.length();
+        mLastLogTime = mFile.lastModified();
+
+        mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+        mMaxBufferBytes = Math.max(LC.redolog_group_commit_max_buffer_bytes.intValue(), 1024);
+        mBuffer = new ByteArrayOutputStream(8192);
+        mLingerMS = Math.min(Math.max(fsyncIntervalMS, 1), 1000);
+
+        mCommitNotifyQueue = new CommitNotifyQueue(100);
+    }
+
+    @Override public long getSequence() {
+        synchronized (mLock) {
+            return mHeader.getSequence();
+        }
+    }
+
+    @Override public long getSize() {
+        synchronized (mLock) {
+            return mFileSize;
+        }
+    }
+
+    @Override public long getCreateTime() {
+        synchronized (mLock) {
+            return mCreateTime;
+        }
+    }
+
+    @Override public long getLastLogTime() {
+        synchronized (mLock) {
+            return mLastLogTime;
+        }
+    }
+
+    @Override public boolean isEmpty() throws IOException {
+        return getSize() <= FileHeader.HEADER_LEN;
+    }
+
+    @Override public boolean exists() {
+        return mFile.exists();
+    }
+
+    @Override public String getAbsolutePath() {
+        return mFile.getAbsolutePath();
+    }
+
+    @Override public boolean renameTo(File dest) {
+        return mFile.renameTo(dest);
+    }
+
+    @Override public boolean delete() {
+        return mFile.delete();
+    }
+
+    @Override public synchronized void open() throws IOException {
+        synchronized (mLock) {
+            if (mRAF != null) return;  // already open
+
+            mRAF = new RandomAccessFile(mFile, "rw");
+
+            if (mRAF.length() >= FileHeader.HEADER_LEN) {
+                mHeader.read(mRAF);
+                mCreateTime = mHeader.getCreateTime();
+                if (mCreateTime == 0) {
+                    mCreateTime = System.currentTimeMillis();
+                    mHeader.setCreateTime(mCreateTime);
+                }
+                mFirstOpTstamp = mHeader.getFirstOpTstamp();
+                mLastOpTstamp = mHeader.getLastOpTstamp();
+            } else {
+                mCreateTime = System.currentTimeMillis();
+                mHeader.setCreateTime(mCreateTime);
+                mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
+            }
+            mHeader.setOpen(true);
+            mHeader.write(mRAF);
+            mHeaderDirty = false;
+
+            // go to the end of file, so we can append
+            long len = mRAF.length();
+            mRAF.seek(len);
+            mFileSize = len;
+
+            mBuffer.reset();
+            mLogSeq = mWriteSeq = mFsyncSeq = 0;
+
+            mAsyncPending = false;
+            mStopLinger = false;
+            mLingerThread = new Thread("GroupCommitLogWriter.LingerThread-" + System.currentTimeMillis()) {
+                @Override public void run() {
+                    lingerLoop();
+                }
+            };
+            mLingerThread.setDaemon(true);
+            mLingerThread.start();
+        }
+    }
+
+    /**
+     * Flushes asynchronous entries that haven't been picked up by a batch within the linger
+     * interval.  Sleeps on {@code mLock} while there is nothing to flush.
+     */
+    private void lingerLoop() {
+        while (true) {
+            synchronized (mLock) {
+                while (!mStopLinger && !mAsyncPending) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (mStopLinger)
+                    return;
+                mAsyncPending = false;
+            }
+            try {
+                Thread.sleep(mLingerMS);
+            } catch (InterruptedException e) {
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                Zimbra.halt("Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.", e);
+            }
+        }
+    }
+
+    // Stops the linger thread and waits until it exits.  Must not be called with mLock held.
+    private void stopLingerThread() {
+        Thread t;
+        synchronized (mLock) {
+            t = mLingerThread;
+            mLingerThread = null;
+            mStopLinger = true;
+            mLock.notifyAll();
+        }
+        if (t == null)
+            return;
+        t.interrupt();
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override public synchronized void close() throws IOException {
+        long seq;
+        synchronized (mLock) {
+            if (mRAF == null)
+                return;
+            seq = mLogSeq;
+        }
+        stopLingerThread();
+        commit(seq, true);
+
+        synchronized (mLock) {
+            waitForFlusher();
+            if (mRAF == null)
+                return;
+            // Entries logged after the final commit above are still in the buffer.
+            if (mBuffer.size() > 0) {
+                mRAF.write(mBuffer.toByteArray());
+                mBuffer.reset();
+            }
+            if (mLastOpTstamp != 0)
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+            mHeader.setOpen(false);
+            mHeader.setFileSize(mRAF.length());
+            mHeader.write(mRAF);
+
+            mRAF.getChannel().force(true);
+            mRAF.close();
+            mRAF = null;
+            mWriteSeq = mFsyncSeq = mLogSeq;
+            mCommitNotifyQueue.flush();
+            mLock.notifyAll();
+        }
+
+        // Write some stats, so we can see how many log calls shared an fsync.
+        if (!mNoStat && mLogCount > 0 && ZimbraLog.redolog.isDebugEnabled())
+            ZimbraLog.redolog.debug("Logged: " + mLogCount + " items, " + mFsyncCount + " fsyncs");
+    }
+
+    /**
+     * Appends the entry to the shared buffer.  If synchronous, the method returns only after
+     * the batch containing the entry has been written and fsynced.  Otherwise the entry is
+     * written with the next batch, or right away if the buffer has grown too large.
+     */
+    @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        long seq;
+        boolean writeNow;
+
+        synchronized (mLock) {
+            if (mRAF == null)
+                throw new IOException("Redolog file closed");
+
+            // Record first transaction in header.
+            long tstamp = op.getTimestamp();
+            mLastOpTstamp = Math.max(tstamp, mLastOpTstamp);
+            if (mFirstOpTstamp == 0) {
+                mFirstOpTstamp = tstamp;
+                mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+                mHeaderDirty = true;
+            }
+
+            mLogSeq++;
+            mLogCount++;
+            seq = mLogSeq;
+            int numRead;
+            byte[] buf = new byte[1024];
+            while ((numRead = data.read(buf)) >= 0) {
+                mBuffer.write(buf, 0, numRead);
+                mFileSize += numRead;
+            }
+            data.close();
+
+            // Commit callbacks are queued in log order and made only after the
+            // batch containing the commit record has been fsynced.
+            if (op instanceof CommitTxn) {
+                CommitTxn cmt = (CommitTxn) op;
+                RedoCommitCallback cb = cmt.getCallback();
+                if (cb != null) {
+                    long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
+                    CommitId cid = new CommitId(redoSeq, cmt);
+                    mCommitNotifyQueue.push(new CommitNotifyQueue.Notif(cb, cid, seq));
+                }
+            }
+
+            mLastLogTime = System.currentTimeMillis();
+            // Don't let asynchronous entries pile up in memory, or their callbacks in the queue.
+            writeNow = mBuffer.size() >= mMaxBufferBytes || mCommitNotifyQueue.isFull();
+            if (!synchronous && !writeNow && !mAsyncPending) {
+                mAsyncPending = true;
+                mLock.notifyAll();
+            }
+        }
+
+        if (synchronous || writeNow) {
+            commit(seq, true);
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        long seq;
+        synchronized (mLock) {
+            if (mFsyncSeq >= mLogSeq)
+                return;
+            seq = mLogSeq;
+        }
+        commit(seq, true);
+    }
+
+    /**
+     * Returns once all entries up to {@code seq} have been written, and fsynced if requested.
+     * The calling thread flushes the buffer itself unless another thread is already flushing,
+     * in which case it waits for that batch and checks again.  If the batch covering
+     * {@code seq} fails, every thread waiting on it gets the error; the entries stay in the
+     * buffer and are written again by the next flusher.
+     */
+    private void commit(long seq, boolean fsync) throws IOException {
+        while (true) {
+            byte[] batch;
+            long batchSeq;
+            long pos;
+
+            synchronized (mLock) {
+                long failures = mFailureCount;
+                waitForFlusher();
+                if (fsync ? mFsyncSeq >= seq : mWriteSeq >= seq)
+                    return;
+                if (mFailureCount != failures && seq <= mFailedSeq)
+                    throw new IOException("Error while writing " + mFile.getAbsolutePath(), mFailure);
+                if (mRAF == null)
+                    throw new IOException("Redolog file closed");
+
+                // The header is updated by log(), so write it before anyone can change it again.
+                if (mHeaderDirty) {
+                    pos = mRAF.getFilePointer();
+                    mHeader.write(mRAF);
+                    mRAF.seek(pos);
+                    mHeaderDirty = false;
+                }
+
+                // Become the flusher for everything appended so far.  The entries stay in the
+                // buffer until they are on disk.
+                mFlushing = true;
+                batch = mBuffer.toByteArray();
+                batchSeq = mLogSeq;
+                pos = mRAF.getFilePointer();
+            }
+
+            boolean synced = false;
+            IOException failure = null;
+            try {
+                if (batch.length > 0)
+                    mRAF.write(batch);
+                if (fsync && !mFsyncDisabled) {
+                    mRAF.getChannel().force(false);
+                    synced = true;
+                }
+            } catch (IOException e) {
+                failure = e;
+                // Drop whatever made it to the file, so that the retry doesn't write it twice.
+                try {
+                    mRAF.setLength(pos);
+                    mRAF.seek(pos);
+                } catch (IOException e2) {
+                    ZimbraLog.redolog.warn("Unable to truncate " + mFile.getAbsolutePath() + " after failed write", e2);
+                }
+            }
+
+            try {
+                // Make the callbacks before letting the next flusher in, so they stay in log order.
+                if (failure == null && fsync)
+                    mCommitNotifyQueue.flush(batchSeq);
+            } finally {
+                synchronized (mLock) {
+                    mFlushing = false;
+                    if (failure == null) {
+                        dropFromBuffer(batch.length);
+                        mWriteSeq = batchSeq;
+                        if (fsync)
+                            mFsyncSeq = batchSeq;
+                        if (synced)
+                            mFsyncCount++;
+                    } else {
+                        mFailure = failure;
+                        mFailedSeq = batchSeq;
+                        mFailureCount++;
+                    }
+                    mLock.notifyAll();
+                }
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    // Removes the first len bytes, which have been written, from the buffer.  Must be called
+    // with mLock held.
+    private void dropFromBuffer(int len) {
+        if (len == 0)
+            return;
+        byte[] pending = mBuffer.toByteArray();
+        mBuffer.reset();
+        mBuffer.write(pending, len, pending.length - len);
+    }
+
+    // Must be called with mLock held.
+    private void waitForFlusher() {
+        boolean interrupted = false;
+        while (mFlushing) {
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void noStat(boolean b) {
+        mNoStat = b;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public synchronized File rollover(LinkedHashMap /*<TxnId, RedoableOp>*/ activeOps)
+    throws IOException {
+        RolloverManager romgr = mRedoLogMgr.getRolloverManager();
+
+        long lastSeq = getSequence();
+
+        // Close current log, so it's impossible for its content to change.
+        noStat(true);
+        close();
+
+        romgr.incrementSequence();
+
+        String currentPath = mFile.getAbsolutePath();
+
+        // Rewrite change entries for all active operations into a temporary log,
+        // maintaining their order of occurrence.  (LinkedHashMap ensures ordering.)
+        File tempLogfile = new File(mFile.getParentFile(), romgr.getTempFilename(lastSeq + 1));
+        FileLogWriter tempLogger = new FileLogWriter(mRedoLogMgr, tempLogfile, 0);
+        tempLogger.open();
+        tempLogger.noStat(true);
+        for (Iterator<Map.Entry> it = activeOps.entrySet().iterator(); it.hasNext(); ) {
+            RedoableOp op = (RedoableOp) it.next().getValue();
+            tempLogger.log(op, op.getInputStream(), false);
+        }
+        tempLogger.close();
+
+        // Rename the current log to rolled-over name.
+        File rolloverFile = romgr.getRolloverFile(lastSeq);
+        if (RedoConfig.redoLogDeleteOnRollover()) {
+            // Delete the current log.  We don't need to hold on to the
+            // indexing-only log files after rollover.
+            if (!mFile.delete())
+                throw new IOException("Unable to delete current redo log " + mFile.getAbsolutePath());
+        } else {
+            File destDir = rolloverFile.getParentFile();
+            if (destDir != null && !destDir.exists())
+                destDir.mkdirs();
+            if (!mFile.renameTo(rolloverFile))
+                throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
+        }
+
+        // Rename the temporary logger to current logfile name.
+        String tempPath = tempLogfile.getAbsolutePath();
+        mFile = new File(currentPath);
+        if (!tempLogfile.renameTo(mFile))
+            throw new IOException("Unable to rename " + tempPath + " to " + currentPath);
+
+        // Reopen current log.
+        open();
+        noStat(false);
+
+        return rolloverFile;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.zimbra.cs.redolog.RedoLogInput;
+
+/**
+ * {@link FileLogReader} that memory-maps the log file instead of reading it through
+ * <tt>RandomAccessFile</tt>.  Ops are deserialized straight from the mapped pages, so scanning
+ * a log doesn't make a system call per field.  Ops that store large blobs in the log only
+ * remember the blob's file offset, as they do with <tt>FileLogReader</tt>.
+ * <p>
+ * A mapping is limited to 2GB, so {@link #newReader} falls back to <tt>FileLogReader</tt>
+ * for larger files.
+ */
+public class MappedLogReader extends FileLogReader {
+
+    private ByteBuffer mBuf;
+
+    public MappedLogReader(File logfile) {
+        this(logfile, false);
+    }
+
+    public MappedLogReader(File logfile, boolean writable) {
+        super(logfile, writable);
+    }
+
+    /**
+     * Returns a <tt>MappedLogReader</tt> if {@code mmap} is true and the file can be mapped,
+     * and a <tt>FileLogReader</tt> otherwise.
+     */
+    public static FileLogReader newReader(File logfile, boolean writable, boolean mmap) {
+        if (mmap && logfile.length() <= Integer.MAX_VALUE)
+            return new MappedLogReader(logfile, writable);
+        return new FileLogReader(logfile, writable);
+    }
+
+    @Override protected RedoLogInput newInput(RandomAccessFile raf, String path, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("File too large to map: " + size + " bytes");
+        mBuf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        mBuf.position(FileHeader.HEADER_LEN);
+        return new RedoLogInput(mBuf, path);
+    }
+
+    @Override public synchronized void close() throws IOException {
+        // The mapping goes away when the buffer is garbage collected.
+        mBuf = null;
+        super.close();
+    }
+
+    @Override public synchronized void truncate(long size) throws IOException {
+        super.truncate(size);
+        if (mBuf != null && size < mBuf.limit())
+            mBuf.limit((int) size);
+    }
+
+    @Override protected void seek(long pos) {
+        mBuf.position((int) pos);
+    }
+
+    @Override protected long search(long start, byte[] pattern) throws IOException {
+        int last = mBuf.limit() - pattern.length;
+        for (int i = (int) start; i <= last; i++) {
+            if (mBuf.get(i) != pattern[0])
+                continue;
+            boolean matches = true;
+            for (int j = 1; j < pattern.length; j++) {
+                if (mBuf.get(i + j) != pattern[j]) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                mBuf.position(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.zimbra.common.stats.StopWatch;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Executes the requests of many connections on a bounded thread pool, sharing the threads fairly between groups of
+ * connections (typically accounts) instead of first come, first served.
+ * <p>
+ * Requests of the same lane (connection) run one at a time, in submission order. Among the groups with requests
+ * ready to run, the next one is taken from the group that has consumed the least estimated cost so far (start-time
+ * fair queuing), so that a few accounts issuing expensive FETCH or SEARCH commands can't starve the cheap requests of
+ * everybody else. A group that was idle starts at the current virtual time; it can't bank credit while idle.
+ */
+public final class FairRequestExecutor extends AbstractExecutorService {
+
+    /**
+     * Tells the executor how to schedule a task.
+     */
+    public interface Classifier {
+        /**
+         * Returns the key of the connection the task belongs to. Tasks of the same lane run sequentially.
+         */
+        Object getLane(Runnable task);
+
+        /**
+         * Returns the key of the group (e.g. account or client address) the lane is scheduled fairly against.
+         */
+        Object getGroup(Runnable task);
+
+        /**
+         * Returns the estimated relative cost of the task, 1 for the cheapest.
+         */
+        int getCost(Runnable task);
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final int maxThreads;
+    private final Classifier classifier;
+    private final StopWatch queueTime;
+    private final Runnable worker = new Worker();
+
+    // guarded by this
+    private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+    private final Map<Object, Group> groups = new HashMap<Object, Group>();
+    private final PriorityQueue<Group> readyGroups = new PriorityQueue<Group>();
+    private long virtualTime;
+    private long groupSeq;
+    private int activeWorkers;
+    private int queued;
+    private boolean shutdown;
+
+    /**
+     * @param maxThreads maximum number of requests running concurrently
+     * @param keepAlive seconds before an idle thread is released
+     * @param threadFactory factory for the pool threads
+     * @param queueTime records how long requests waited for a thread
+     * @param classifier tells lane, group and cost of each request
+     */
+    public FairRequestExecutor(int maxThreads, int keepAlive, ThreadFactory threadFactory, StopWatch queueTime,
+            Classifier classifier) {
+        this.maxThreads = maxThreads;
+        this.queueTime = queueTime;
+        this.classifier = classifier;
+        // Workers are only submitted while fewer than maxThreads are active, so the queue never really grows.
+        pool = new ThreadPoolExecutor(maxThreads, maxThreads, keepAlive, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Object laneKey = classifier.getLane(command);
+        Object groupKey = classifier.getGroup(command);
+        Task task = new Task(command, Math.max(classifier.getCost(command), 1), queueTime.start());
+        boolean startWorker = false;
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+            Lane lane = lanes.get(laneKey);
+            if (lane == null) {
+                Group group = groups.get(groupKey);
+                if (group == null) {
+                    group = new Group(groupSeq++);
+                    groups.put(groupKey, group);
+                }
+                group.numLanes++;
+                lane = new Lane(laneKey, groupKey, group);
+                lanes.put(laneKey, lane);
+            }
+            task.lane = lane;
+            lane.tasks.add(task);
+            queued++;
+            if (!lane.running && lane.tasks.size() == 1) {
+                makeReady(lane);
+                if (activeWorkers < maxThreads) {
+                    activeWorkers++;
+                    startWorker = true;
+                }
+            }
+        }
+        if (startWorker) {
+            pool.execute(worker);
+        }
+    }
+
+    // caller must hold the lock
+    private void makeReady(Lane lane) {
+        Group group = lane.group;
+        if (group.ready.isEmpty()) {
+            group.virtualStart = Math.max(group.virtualStart, virtualTime);
+            readyGroups.add(group);
+        }
+        group.ready.add(lane);
+    }
+
+    private synchronized Task next() {
+        Group group = readyGroups.poll();
+        if (group == null) {
+            activeWorkers--;
+            return null;
+        }
+        Lane lane = group.ready.poll();
+        Task task = lane.tasks.poll();
+        queued--;
+        lane.running = true;
+        virtualTime = group.virtualStart;
+        group.virtualStart += task.cost;
+        if (!group.ready.isEmpty()) {
+            readyGroups.add(group);
+        }
+        return task;
+    }
+
+    private synchronized void done(Lane lane) {
+        lane.running = false;
+        if (!lane.tasks.isEmpty()) {
+            makeReady(lane);
+        } else {
+            lanes.remove(lane.key);
+            if (--lane.group.numLanes == 0) {
+                groups.remove(lane.groupKey);
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            Task task;
+            while ((task = next()) != null) {
+                queueTime.stop(task.enqueued);
+                boolean completed = false;
+                try {
+                    task.command.run();
+                    completed = true;
+                } catch (RuntimeException e) {
+                    ZimbraLog.misc.warn("uncaught exception running request", e);
+                    completed = true;
+                } finally {
+                    done(task.lane);
+                    if (!completed) {
+                        // an Error is killing this thread; let another one take over
+                        synchronized (FairRequestExecutor.this) {
+                            activeWorkers--;
+                        }
+                        restartWorker();
+                    }
+                }
+            }
+        }
+    }
+
+    private void restartWorker() {
+        synchronized (this) {
+            if (shutdown || readyGroups.isEmpty() || activeWorkers >= maxThreads) {
+                return;
+            }
+            activeWorkers++;
+        }
+        pool.execute(worker);
+    }
+
+    /**
+     * Returns the number of requests waiting for a thread.
+     */
+    public synchronized int getQueueSize() {
+        return queued;
+    }
+
+    /**
+     * Returns the number of threads in the pool.
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public int getMaximumPoolSize() {
+        return maxThreads;
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        // running workers drain what is already queued
+        pool.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = new ArrayList<Runnable>();
+        synchronized (this) {
+            shutdown = true;
+            for (Lane lane : lanes.values()) {
+                for (Task task : lane.tasks) {
+                    pending.add(task.command);
+                }
+                lane.tasks.clear();
+            }
+            readyGroups.clear();
+            for (Group group : groups.values()) {
+                group.ready.clear();
+            }
+            queued = 0;
+        }
+        pool.shutdownNow();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return isShutdown() && pool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private static final class Task {
+        final Runnable command;
+        final int cost;
+        final long enqueued;
+        Lane lane;
+
+        Task(Runnable command, int cost, long enqueued) {
+            this.command = command;
+            this.cost = cost;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private static final class Lane {
+        final Object key;
+        final Object groupKey;
+        final Group group;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        boolean running;
+
+        Lane(Object key, Object groupKey, Group group) {
+            this.key = key;
+            this.groupKey = groupKey;
+            this.group = group;
+        }
+    }
+
+    private static final class Group implements Comparable<Group> {
+        final long seq;  // breaks ties in arrival order
+        final ArrayDeque<Lane> ready = new ArrayDeque<Lane>();
+        long virtualStart;
+        int numLanes;
+
+        Group(long seq) {
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Group other) {
+            if (virtualStart != other.virtualStart) {
+                return virtualStart < other.virtualStart ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+}
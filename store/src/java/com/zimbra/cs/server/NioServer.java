@@ -20,6 +20,8 @@ package com.zimbra.cs.server;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.security.KeyStore;
 import java.util.HashSet;
 import java.util.Map;
@@ -27,6 +29,7 @@ import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -42,6 +45,7 @@ import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
 import org.apache.mina.core.filterchain.IoFilter;
 import org.apache.mina.core.service.IoProcessor;
 import org.apache.mina.core.service.SimpleIoProcessorPool;
+import org.apache.mina.core.session.IoEvent;
 import org.apache.mina.core.session.IoEventType;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
@@ -65,6 +69,7 @@ import com.zimbra.common.util.Log;
 import com.zimbra.common.util.NetUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -74,6 +79,10 @@ import com.zimbra.cs.util.Zimbra;
 public abstract class NioServer implements Server {
     private static final Multimap<Class<? extends NioServer>, IoFilter> FILTERS = ArrayListMultimap.create();
     protected static final ProtocolEncoder DEFAULT_ENCODER = new DefaultEncoder();
+    private static final IoEventType[] EXECUTOR_EVENTS = {
+        IoEventType.EXCEPTION_CAUGHT, IoEventType.MESSAGE_RECEIVED, IoEventType.SESSION_CLOSED,
+        IoEventType.SESSION_IDLE, IoEventType.SESSION_OPENED
+    };
     protected final ExecutorFilter executorFilter;
     protected final ZimbraSocketAcceptor acceptor;
     protected final ServerConfig config;
@@ -206,12 +215,67 @@ public abstract class NioServer implements Server {
     protected NioServer(ServerConfig config) throws ServiceException {
         this.config = config;
         acceptor = new ZimbraSocketAcceptor(config.getServerSocketChannel(), IO_PROCESSOR_POOL);
-        executorFilter = new ExecutorFilter(1, config.getMaxThreads(),
-                config.getThreadKeepAliveTime(), TimeUnit.SECONDS,
-                new ThreadFactoryBuilder().setNameFormat(getName() + "-%d").build(), IoEventType.EXCEPTION_CAUGHT,
-                IoEventType.MESSAGE_RECEIVED, IoEventType.SESSION_CLOSED,
-                IoEventType.SESSION_IDLE, IoEventType.SESSION_OPENED);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(getName() + "-%d").build();
+        if (LC.nio_fair_scheduling_enabled.booleanValue()) {
+            executorFilter = new ExecutorFilter(new FairRequestExecutor(config.getMaxThreads(),
+                    config.getThreadKeepAliveTime(), threadFactory, ZimbraPerf.STOPWATCH_NIO_QUEUE,
+                    new SessionClassifier()), EXECUTOR_EVENTS);
+        } else {
+            executorFilter = new ExecutorFilter(1, config.getMaxThreads(),
+                    config.getThreadKeepAliveTime(), TimeUnit.SECONDS, threadFactory, EXECUTOR_EVENTS);
+        }
+    }
+
+    /**
+     * Schedules the events of a session on its own lane of the {@link FairRequestExecutor}, so they keep their
+     * order, fairly against the other sessions of its {@link #getSchedulingGroup(IoSession)}.
+     */
+    private final class SessionClassifier implements FairRequestExecutor.Classifier {
+        @Override
+        public Object getLane(Runnable task) {
+            return ((IoEvent) task).getSession();
+        }
+
+        @Override
+        public Object getGroup(Runnable task) {
+            return getSchedulingGroup(((IoEvent) task).getSession());
+        }
+
+        @Override
+        public int getCost(Runnable task) {
+            IoEvent event = (IoEvent) task;
+            if (event.getType() == IoEventType.MESSAGE_RECEIVED) {
+                return getRequestCost(event.getSession(), event.getParameter());
+            }
+            return 1;
+        }
+    }
 
+    /**
+     * Returns the key the requests of the session are scheduled fairly against when fair scheduling is enabled.
+     * Defaults to the client address; protocols override it to return the authenticated account.
+     *
+     * @param session the I/O session (connection)
+     * @return the scheduling group of the session
+     */
+    protected Object getSchedulingGroup(IoSession session) {
+        SocketAddress addr = session.getRemoteAddress();
+        return addr instanceof InetSocketAddress ? ((InetSocketAddress) addr).getAddress() : addr;
+    }
+
+    /**
+     * Returns the estimated relative cost of handling the received data, 1 for the cheapest requests.
+     *
+     * @param session the I/O session (connection)
+     * @param msg the received data, usually an undecoded {@link IoBuffer}
+     * @return estimated cost, 1 by default
+     */
+    protected int getRequestCost(IoSession session, Object msg) {
+        return 1;
+    }
+
+    protected static NioHandler getHandler(IoSession session) {
+        return NioHandlerDispatcher.getHandler(session);
     }
 
     /**
@@ -339,11 +403,22 @@ public abstract class NioServer implements Server {
         return acceptor.getManagedSessionCount();
     }
 
+    /**
+     * Returns the number of requests waiting for a thread, if requests are scheduled fairly.
+     */
+    protected int getNumQueuedRequests() {
+        Executor ex = executorFilter.getExecutor();
+        return ex instanceof FairRequestExecutor ? ((FairRequestExecutor) ex).getQueueSize() : 0;
+    }
+
     /**
      * Returns the number of threads in the thread pool.
      */
     protected int getNumThreads() {
         Executor ex = executorFilter.getExecutor();
+        if (ex instanceof FairRequestExecutor) {
+            return ((FairRequestExecutor) ex).getPoolSize();
+        }
         if (!(ex instanceof ThreadPoolExecutor)) {
             ZimbraLog.perf.debug("Unexpected Executor type %s.  NioServer.getNumThreads() returning 0.",
                 ex.getClass().getName());
@@ -25,10 +25,12 @@ import org.apache.mina.core.service.IoServiceStatistics;
  * @author ysasaki
  */
 final class NioServerStats implements NioServerStatsMBean {
+    private final NioServer server;
     private final IoAcceptor acceptor;
     private final IoServiceStatistics stats;
 
     NioServerStats(NioServer server) {
+        this.server = server;
         acceptor = server.acceptor;
         stats = acceptor.getStatistics();
     }
@@ -72,4 +74,9 @@ final class NioServerStats implements NioServerStatsMBean {
     public long getScheduledWriteMessages() {
         return stats.getScheduledWriteMessages();
     }
+
+    @Override
+    public long getQueuedRequests() {
+        return server.getNumQueuedRequests();
+    }
 }
@@ -25,4 +25,5 @@ public interface NioServerStatsMBean {
     long getWrittenMessages();
     long getScheduledWriteBytes();
     long getScheduledWriteMessages();
+    long getQueuedRequests();
 }
@@ -96,6 +96,23 @@ public final class NioUtil {
         return IoBuffer.wrap(bb);
     }
 
+    /**
+     * Returns the ASCII text from the buffer position up to the first CR or LF, reading at most 'maxLength' bytes,
+     * without changing the buffer position.
+     */
+    public static String peekLine(IoBuffer buf, int maxLength) {
+        int limit = Math.min(buf.limit(), buf.position() + maxLength);
+        StringBuilder sb = new StringBuilder();
+        for (int i = buf.position(); i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == CR || b == LF) {
+                break;
+            }
+            sb.append((char) (b & 0xff));
+        }
+        return sb.toString();
+    }
+
     public static String toHexString(ByteBuffer bb) {
         return appendHex(new StringBuilder(), bb).toString();
     }
@@ -31,7 +31,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.regex.Pattern;
 
 import javax.mail.util.SharedByteArrayInputStream;
@@ -853,7 +852,7 @@ public class FileUploadServlet extends ZimbraServlet {
         }
         cleanupLeftoverTempFiles();
 
-        Zimbra.sTimer.schedule(new MapReaperTask(), REAPER_INTERVAL_MSEC, REAPER_INTERVAL_MSEC);
+        Zimbra.sTimingWheel.schedule("UploadReaper", new MapReaperTask(), REAPER_INTERVAL_MSEC, REAPER_INTERVAL_MSEC);
     }
 
     @Override
@@ -863,7 +862,7 @@ public class FileUploadServlet extends ZimbraServlet {
         super.destroy();
     }
 
-    private final class MapReaperTask extends TimerTask {
+    private final class MapReaperTask implements Runnable {
         MapReaperTask()  { }
 
         @Override
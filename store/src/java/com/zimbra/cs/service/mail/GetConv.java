@@ -45,6 +45,11 @@ public class GetConv extends MailDocumentHandler  {
     @Override
     protected String[] getProxiedIdPath(Element request)  { return TARGET_CONV_PATH; }
 
+    @Override
+    public boolean isParallelBatchSafe(Element request) {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -56,6 +56,11 @@ public class GetFolder extends MailDocumentHandler {
         return false;
     }
 
+    @Override
+    public boolean isParallelBatchSafe(Element request) {
+        return true;
+    }
+
     @Override
     protected String[] getResponseItemPath() {
         return RESPONSE_ITEM_PATH;
@@ -125,6 +125,12 @@ public class GetMsg extends MailDocumentHandler {
         return RedoLogProvider.getInstance().isSlave();
     }
 
+    @Override
+    public boolean isParallelBatchSafe(Element request) throws ServiceException {
+        Element eMsg = request.getOptionalElement(MailConstants.E_MSG);
+        return eMsg != null && !eMsg.getAttributeBool(MailConstants.A_MARK_READ, false);
+    }
+
     public static CalendarItem getCalendarItem(OperationContext octxt, Mailbox mbox, ItemId iid) throws ServiceException {
         assert(iid.hasSubpart());
         return mbox.getCalendarItemById(octxt, iid.getId());
@@ -72,6 +72,12 @@ import com.zimbra.soap.mail.message.SearchRequest;
  */
 public class Search extends MailDocumentHandler  {
 
+    @Override
+    public boolean isParallelBatchSafe(Element request) throws ServiceException {
+        // marking the first hit read is a change
+        return !request.getAttributeBool(MailConstants.A_MARK_READ, false);
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
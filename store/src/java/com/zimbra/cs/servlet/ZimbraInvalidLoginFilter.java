@@ -20,7 +20,6 @@ package com.zimbra.cs.servlet;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.FilterChain;
@@ -36,6 +35,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.RemoteIP;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.util.TimingWheel;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.soap.SoapEngine;
 
@@ -50,6 +50,7 @@ public class ZimbraInvalidLoginFilter extends DoSFilter {
     private int delayInMinBetwnReqBeforeReinstating;
     private final int DEFAULT_REINSTATE_IP_TASK_INTERVAL_IN_MIN = 5;
     private int reinstateIpTaskIntervalInMin;
+    private TimingWheel.Timeout reinstateIpTask;
     private static final int MIN_TO_MS = 60 * 1000;
     public static final String AUTH_FAILED = "auth.failed";
     public int maxSizeOfFailedIpDb;
@@ -96,7 +97,7 @@ public class ZimbraInvalidLoginFilter extends DoSFilter {
             .maximumWeightedCapacity(maxSizeOfFailedIpDb)
             .build();
 
-        Zimbra.sTimer.schedule(new ReInStateIpTask(), 1000,
+        reinstateIpTask = Zimbra.sTimingWheel.schedule("InvalidLoginReinstateIp", new ReInStateIpTask(), 1000,
             this.reinstateIpTaskIntervalInMin * MIN_TO_MS);
         ZimbraLog.misc.info("ZimbraInvalidLoginFilter initialized");
     }
@@ -167,18 +168,21 @@ public class ZimbraInvalidLoginFilter extends DoSFilter {
     @Override
     public void destroy() {
         super.destroy();
+        if (reinstateIpTask != null) {
+            reinstateIpTask.cancel();
+        }
         this.numberOfFailedOccurence.clear();
         this.suspiciousIpAddrLastAttempt.clear();
         ZimbraLog.misc.info("ZimbraInvalidLoginFilter destroyed");
     }
 
-    public  final class ReInStateIpTask extends TimerTask {
+    public  final class ReInStateIpTask implements Runnable {
 
         public ReInStateIpTask() {
 
         }
         /* (non-Javadoc)
-         * @see java.util.TimerTask#run()
+         * @see java.lang.Runnable#run()
          */
         @Override
         public void run() {
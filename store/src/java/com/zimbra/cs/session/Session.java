@@ -188,6 +188,13 @@ public abstract class Session {
      *  when a session is added to the cache. */
     abstract protected boolean isRegisteredInCache();
 
+    /** Whether {@link #notifyPendingChanges} must be called on the committing
+     *  thread while it still holds the mailbox lock.  Other sessions are
+     *  notified asynchronously, in change order, once the lock is released. */
+    public boolean requiresSynchronousNotification() {
+        return false;
+    }
+
     public static final int OPERATION_HISTORY_LENGTH = 6;
     public static final int OPERATION_HISTORY_TIME = 10 * 1000;
 
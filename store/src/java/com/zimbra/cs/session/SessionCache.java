@@ -25,7 +25,6 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
 
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.util.Constants;
@@ -147,7 +146,7 @@ public final class SessionCache {
 
     /** Initializes the session cache and starts the sweeper timer. */
     public static void startup() {
-        Zimbra.sTimer.schedule(new SweepMapTimerTask(), 30000, SESSION_SWEEP_INTERVAL_MSEC);
+        Zimbra.sTimingWheel.schedule("SessionSweep", new SweepMapTimerTask(), 30000, SESSION_SWEEP_INTERVAL_MSEC);
         ZimbraPerf.addStatsCallback(new StatsCallback());
     }
 
@@ -299,7 +298,7 @@ public final class SessionCache {
         }
     }
 
-    private static final class SweepMapTimerTask extends TimerTask {
+    private static final class SweepMapTimerTask implements Runnable {
         SweepMapTimerTask()  { }
 
         @Override public void run() {
@@ -22,7 +22,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimerTask;
 
 import com.zimbra.common.account.Key;
 import com.zimbra.common.localconfig.LC;
@@ -40,6 +39,7 @@ import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.service.admin.AdminDocumentHandler;
 import com.zimbra.soap.ZimbraSoapContext;
+import com.zimbra.cs.util.TimingWheel;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -49,7 +49,7 @@ public class WaitSetMgr {
     public static final String ALL_ACCOUNTS_ID_PREFIX = "AllWaitSet-";
 
     private static final int MAX_WAITSETS_PER_NONADMIN_ACCOUNT = LC.zimbra_waitset_max_per_account.intValueWithinRange(1,Integer.MAX_VALUE);
-    private static final TimerTask sSweeper = new TimerTask() {
+    private static final Runnable sSweeper = new Runnable() {
         @Override
         public void run() {
             try {
@@ -245,13 +245,19 @@ public class WaitSetMgr {
         }
     }
 
-    public static void shutdown() {
-        sSweeper.cancel();
+    private static TimingWheel.Timeout sSweeperTimeout;
+
+    public static synchronized void shutdown() {
+        if (sSweeperTimeout != null) {
+            sSweeperTimeout.cancel();
+            sSweeperTimeout = null;
+        }
     }
 
 
-    public static void startup() {
-        Zimbra.sTimer.schedule(sSweeper, WAITSET_SWEEP_DELAY, WAITSET_SWEEP_DELAY);
+    public static synchronized void startup() {
+        sSweeperTimeout = Zimbra.sTimingWheel.schedule("WaitSetSweep", sSweeper, WAITSET_SWEEP_DELAY,
+                WAITSET_SWEEP_DELAY);
     }
 
     public static List<IWaitSet> getAll() {
@@ -24,6 +24,8 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.lmtpserver.ZimbraLmtpBackend;
+import com.zimbra.cs.mailbox.MailboxNotifier;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -34,10 +36,14 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
     public Map<String, Object> getStatData() {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
+        data.put(ZimbraPerf.RTS_MBOX_NOTIFY_QUEUE_SIZE, MailboxNotifier.getPendingCount());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_BYTES, MessageCache.getDataSize());
+        data.put(ZimbraPerf.RTS_LMTP_DLVR_QUEUE_SIZE, ZimbraLmtpBackend.getDeliveryQueueSize());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
+        data.put(ZimbraPerf.RTS_FD_CACHE_OPEN_FILES, fdc.getOpenCount());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
         
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
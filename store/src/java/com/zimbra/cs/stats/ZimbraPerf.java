@@ -53,6 +53,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.util.MemoryStats;
+import com.zimbra.cs.util.Zimbra;
 
 /**
  * A collection of methods for keeping track of server performance statistics.
@@ -79,6 +80,9 @@ public class ZimbraPerf {
     @Description("Number of LMTP handler threads")
     public static final String RTS_LMTP_THREADS = "lmtp_threads";
 
+    @Description("Number of multi-recipient LMTP delivery lanes waiting for a delivery thread")
+    public static final String RTS_LMTP_DLVR_QUEUE_SIZE = "lmtp_dlvr_queue_size";
+
     @Description("Number of cleartext POP3 connections")
     public static final String RTS_POP_CONN = "pop_conn";
 
@@ -118,9 +122,18 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Number of bytes of message data cached in memory")
+    public static final String RTS_MSG_CACHE_BYTES = "msg_cache_bytes";
+
+    @Description("Number of mailbox change notifications waiting for asynchronous delivery")
+    public static final String RTS_MBOX_NOTIFY_QUEUE_SIZE = "mbox_notify_queue_size";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
+    @Description("Number of open message file descriptors, including evicted ones that are still being read")
+    public static final String RTS_FD_CACHE_OPEN_FILES = "fd_cache_open_files";
+
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
@@ -183,26 +196,47 @@ public class ZimbraPerf {
     public static final Counter COUNTER_LMTP_RCVD_RCPT = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_MSGS = new Counter();
     public static final Counter COUNTER_LMTP_DLVD_BYTES = new Counter();
+    public static final StopWatch STOPWATCH_LMTP_RCPT_DLVR = new StopWatch();
     public static final StopWatch STOPWATCH_DB_CONN = new StopWatch();
+    public static final Counter COUNTER_DB_STMT_CACHE = new Counter();        // prepared statement cache hit rate
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
+    public static final StopWatch STOPWATCH_MBOX_LOAD = new StopWatch();        // Mailbox load time on cache miss
+    public static final Counter COUNTER_MBOX_LOAD_WAIT = new Counter();       // lookups that waited for another thread's load
+    public static final Counter COUNTER_MBOX_DLOCK_LEASE = new Counter();     // distributed mailbox lock lease hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_EVICT = new Counter(); // message cache evictions
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_SEARCH_CACHE = new Counter();    // search result cache hit rate
+    public static final StopWatch STOPWATCH_MBOX_NOTIFY_LAG = new StopWatch();  // commit to async notification delivery
+    public static final Counter COUNTER_MBOX_NOTIFY_BATCH = new Counter();      // notifications delivered per pass
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
+    public static final StopWatch STOPWATCH_SOAP_BATCH_SUB = new StopWatch();      // BatchRequest sub-requests
+    public static final StopWatch STOPWATCH_SOAP_BATCH_PARALLEL = new StopWatch(); // parallel runs within a BatchRequest
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
+    public static final StopWatch STOPWATCH_NIO_QUEUE = new StopWatch();  // wait for a thread under fair scheduling
     public static final StopWatch STOPWATCH_POP = new StopWatch();
     public static final Counter COUNTER_IDX_WRT = new Counter();
+    public static final StopWatch STOPWATCH_IDX_FETCH = new StopWatch();      // batch index: item fetch
+    public static final StopWatch STOPWATCH_IDX_EXTRACT = new StopWatch();    // batch index: text extraction
+    public static final StopWatch STOPWATCH_IDX_COMMIT = new StopWatch();     // batch index: chunk commit
+    public static final StopWatch STOPWATCH_IDX_SEARCHER_REOPEN = new StopWatch();
+    public static final Counter COUNTER_IDX_SEARCHER_AGE = new Counter();     // age (ms) of searchers handed out
     public static final Counter COUNTER_IDX_WRT_OPENED = new Counter();
     public static final Counter COUNTER_IDX_WRT_OPENED_CACHE_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_MEM_HIT = new Counter();
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
+    public static final Counter COUNTER_CALENDAR_FB_INDEX_HIT = new Counter();
+    public static final StopWatch STOPWATCH_CALENDAR_CACHE_RELOAD = new StopWatch();  // summary rebuild on cache miss
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_TIMER_LAG = new Counter();            // ms a timer task started late
+    public static final StopWatch STOPWATCH_TIMER_TASK = new StopWatch();     // timer task run time
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
@@ -224,12 +258,12 @@ public class ZimbraPerf {
     private static RealtimeStats realtimeStats =
         new RealtimeStats(new String[] {
             RTS_DB_POOL_SIZE, RTS_INNODB_BP_HIT_RATE,
-            RTS_LMTP_CONN, RTS_LMTP_THREADS,
+            RTS_LMTP_CONN, RTS_LMTP_THREADS, RTS_LMTP_DLVR_QUEUE_SIZE,
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MBOX_NOTIFY_QUEUE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_BYTES,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_OPEN_FILES, RTS_FD_CACHE_HIT_RATE,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -257,12 +291,21 @@ public class ZimbraPerf {
     @Description("Number of bytes of data delivered to mailboxes as a result of LMTP delivery")
     private static final String DC_LMTP_DLVD_BYTES = "lmtp_dlvd_bytes";
 
+    @Description("Number of local LMTP recipients that a delivery was attempted for")
+    private static final String DC_LMTP_RCPT_DLVR_COUNT = "lmtp_rcpt_dlvr_count";
+
+    @Description("Average latency (ms) of delivering a message to one local LMTP recipient")
+    private static final String DC_LMTP_RCPT_DLVR_MS_AVG = "lmtp_rcpt_dlvr_ms_avg";
+
     @Description("Number of times that the server got a database connection from the pool")
     private static final String DC_DB_CONN_COUNT = "db_conn_count";
 
     @Description("Average latency (ms) of getting a database connection from the pool")
     private static final String DC_DB_CONN_MS_AVG = "db_conn_ms_avg";
 
+    @Description("Prepared statement cache hit rate")
+    private static final String DC_DB_STMT_CACHE = "db_stmt_cache";
+
     @Description("Number of times that the server got an LDAP directory context")
     private static final String DC_LDAP_DC_COUNT = "ldap_dc_count";
 
@@ -284,24 +327,78 @@ public class ZimbraPerf {
     @Description("Mailbox cache hit rate")
     private static final String DC_MBOX_CACHE = "mbox_cache";
 
+    @Description("Number of times that the server loaded a mailbox that wasn't in the cache")
+    private static final String DC_MBOX_LOAD_COUNT = "mbox_load_count";
+
+    @Description("Average latency (ms) of loading a mailbox that wasn't in the cache")
+    private static final String DC_MBOX_LOAD_MS_AVG = "mbox_load_ms_avg";
+
+    @Description("Number of times that a thread waited for another thread to load the same mailbox")
+    private static final String DC_MBOX_LOAD_WAIT = "mbox_load_wait";
+
+    @Description("Rate of distributed mailbox lock acquisitions served by a lease this server already held")
+    private static final String DC_MBOX_DLOCK_LEASE = "mbox_dlock_lease";
+
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of messages evicted from the message cache")
+    private static final String DC_MBOX_MSG_CACHE_EVICT = "mbox_msg_cache_evict";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Search result cache hit rate")
+    private static final String DC_MBOX_SEARCH_CACHE = "mbox_search_cache";
+
+    @Description("Number of mailbox change notifications delivered asynchronously")
+    private static final String DC_MBOX_NOTIFY_LAG_COUNT = "mbox_notify_lag_count";
+
+    @Description("Average time (ms) from commit to asynchronous delivery of a mailbox change notification")
+    private static final String DC_MBOX_NOTIFY_LAG_MS_AVG = "mbox_notify_lag_ms_avg";
+
+    @Description("Average number of change notifications coalesced into one delivery pass")
+    private static final String DC_MBOX_NOTIFY_BATCH = "mbox_notify_batch";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
     @Description("Average processing time (ms) of SOAP requests")
     private static final String DC_SOAP_MS_AVG = "soap_ms_avg";
 
+    @Description("Number of BatchRequest sub-requests handled")
+    private static final String DC_SOAP_BATCH_SUB_COUNT = "soap_batch_sub_count";
+
+    @Description("Average processing time (ms) of BatchRequest sub-requests")
+    private static final String DC_SOAP_BATCH_SUB_MS_AVG = "soap_batch_sub_ms_avg";
+
+    @Description("Number of sub-request runs handled in parallel within a BatchRequest")
+    private static final String DC_SOAP_BATCH_PARALLEL_COUNT = "soap_batch_parallel_count";
+
+    @Description("Average wall-clock time (ms) of a parallel run within a BatchRequest")
+    private static final String DC_SOAP_BATCH_PARALLEL_MS_AVG = "soap_batch_parallel_ms_avg";
+
     @Description("Number of IMAP requests received")
     private static final String DC_IMAP_COUNT = "imap_count";
 
     @Description("Average processing time (ms) of IMAP requests")
     private static final String DC_IMAP_MS_AVG = "imap_ms_avg";
 
+    @Description("Number of IMAP/POP3/LMTP requests that waited for a thread under fair scheduling")
+    private static final String DC_NIO_QUEUE_COUNT = "nio_queue_count";
+
+    @Description("Average time (ms) IMAP/POP3/LMTP requests waited for a thread under fair scheduling")
+    private static final String DC_NIO_QUEUE_MS_AVG = "nio_queue_ms_avg";
+
+    @Description("Average time (ms) timer tasks started after their scheduled time")
+    private static final String DC_TIMER_LAG_MS_AVG = "timer_lag_ms_avg";
+
+    @Description("Number of timer task runs")
+    private static final String DC_TIMER_TASK_COUNT = "timer_task_count";
+
+    @Description("Average run time (ms) of timer tasks")
+    private static final String DC_TIMER_TASK_MS_AVG = "timer_task_ms_avg";
+
     @Description("Number of POP3 requests received")
     private static final String DC_POP_COUNT = "pop_count";
 
@@ -317,6 +414,33 @@ public class ZimbraPerf {
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
+    @Description("Number of times a cached index searcher was reopened after a commit")
+    private static final String DC_IDX_SEARCHER_REOPEN_COUNT = "idx_searcher_reopen_count";
+
+    @Description("Average time (ms) to reopen a cached index searcher after a commit")
+    private static final String DC_IDX_SEARCHER_REOPEN_MS_AVG = "idx_searcher_reopen_ms_avg";
+
+    @Description("Average age (ms) of the index searchers used by searches")
+    private static final String DC_IDX_SEARCHER_AGE_MS_AVG = "idx_searcher_age_ms_avg";
+
+    @Description("Number of items fetched for batch indexing")
+    private static final String DC_IDX_FETCH_COUNT = "idx_fetch_count";
+
+    @Description("Average time (ms) to fetch an item for batch indexing")
+    private static final String DC_IDX_FETCH_MS_AVG = "idx_fetch_ms_avg";
+
+    @Description("Number of items whose text was extracted for batch indexing")
+    private static final String DC_IDX_EXTRACT_COUNT = "idx_extract_count";
+
+    @Description("Average time (ms) to extract an item's text for batch indexing")
+    private static final String DC_IDX_EXTRACT_MS_AVG = "idx_extract_ms_avg";
+
+    @Description("Number of chunks committed to the index by batch indexing")
+    private static final String DC_IDX_COMMIT_COUNT = "idx_commit_count";
+
+    @Description("Average time (ms) to commit a chunk of items to the index")
+    private static final String DC_IDX_COMMIT_MS_AVG = "idx_commit_ms_avg";
+
     @Description("Accumulated number of index writers opened")
     private static final String DC_IDX_WRT_OPENED = "idx_wrt_opened";
 
@@ -344,6 +468,15 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    @Description("Hit rate of the free/busy bitmap index, counting each calendar looked up by a free/busy request")
+    private static final String DC_CALCACHE_FB_INDEX_HIT = "calcache_fb_index_hit";
+
+    @Description("Number of calendar summaries computed or extended on a calendar summary cache miss")
+    private static final String DC_CALCACHE_RELOAD_COUNT = "calcache_reload_count";
+
+    @Description("Average time (ms) to compute or extend a calendar summary on a cache miss")
+    private static final String DC_CALCACHE_RELOAD_MS_AVG = "calcache_reload_ms_avg";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators =
         new CopyOnWriteArrayList<Accumulator>(
                     new Accumulator[] {
@@ -352,22 +485,43 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_LMTP_RCVD_RCPT).setTotalName(DC_LMTP_RCVD_RCPT),
                         new DeltaCalculator(COUNTER_LMTP_DLVD_MSGS).setTotalName(DC_LMTP_DLVD_MSGS),
                         new DeltaCalculator(COUNTER_LMTP_DLVD_BYTES).setTotalName(DC_LMTP_DLVD_BYTES),
+                        new DeltaCalculator(STOPWATCH_LMTP_RCPT_DLVR).setCountName(DC_LMTP_RCPT_DLVR_COUNT).setAverageName(DC_LMTP_RCPT_DLVR_MS_AVG),
                         new DeltaCalculator(STOPWATCH_DB_CONN).setCountName(DC_DB_CONN_COUNT).setAverageName(DC_DB_CONN_MS_AVG),
+                        new DeltaCalculator(COUNTER_DB_STMT_CACHE).setAverageName(DC_DB_STMT_CACHE),
                         new DeltaCalculator(STOPWATCH_LDAP_DC).setCountName(DC_LDAP_DC_COUNT).setAverageName(DC_LDAP_DC_MS_AVG),
                         new DeltaCalculator(STOPWATCH_MBOX_ADD_MSG).setCountName(DC_MBOX_ADD_MSG_COUNT).setAverageName(DC_MBOX_ADD_MSG_MS_AVG),
                         new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT).setAverageName(DC_MBOX_GET_MS_AVG),
                         new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
+                        new DeltaCalculator(STOPWATCH_MBOX_LOAD).setCountName(DC_MBOX_LOAD_COUNT).setAverageName(DC_MBOX_LOAD_MS_AVG),
+                        new DeltaCalculator(COUNTER_MBOX_LOAD_WAIT).setTotalName(DC_MBOX_LOAD_WAIT),
+                        new DeltaCalculator(COUNTER_MBOX_DLOCK_LEASE).setAverageName(DC_MBOX_DLOCK_LEASE),
                         new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_EVICT).setTotalName(DC_MBOX_MSG_CACHE_EVICT),
                         new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_SEARCH_CACHE).setAverageName(DC_MBOX_SEARCH_CACHE),
+                        new DeltaCalculator(STOPWATCH_MBOX_NOTIFY_LAG).setCountName(DC_MBOX_NOTIFY_LAG_COUNT).setAverageName(DC_MBOX_NOTIFY_LAG_MS_AVG),
+                        new DeltaCalculator(COUNTER_MBOX_NOTIFY_BATCH).setAverageName(DC_MBOX_NOTIFY_BATCH),
                         new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT).setAverageName(DC_SOAP_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_SOAP_BATCH_SUB).setCountName(DC_SOAP_BATCH_SUB_COUNT).setAverageName(DC_SOAP_BATCH_SUB_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_SOAP_BATCH_PARALLEL).setCountName(DC_SOAP_BATCH_PARALLEL_COUNT).setAverageName(DC_SOAP_BATCH_PARALLEL_MS_AVG),
                         new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_NIO_QUEUE).setCountName(DC_NIO_QUEUE_COUNT).setAverageName(DC_NIO_QUEUE_MS_AVG),
+                        new DeltaCalculator(COUNTER_TIMER_LAG).setAverageName(DC_TIMER_LAG_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_TIMER_TASK).setCountName(DC_TIMER_TASK_COUNT).setAverageName(DC_TIMER_TASK_MS_AVG),
                         new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT).setAverageName(DC_POP_MS_AVG),
                         new DeltaCalculator(COUNTER_IDX_WRT).setAverageName(DC_IDX_WRT_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_SEARCHER_REOPEN).setCountName(DC_IDX_SEARCHER_REOPEN_COUNT).setAverageName(DC_IDX_SEARCHER_REOPEN_MS_AVG),
+                        new DeltaCalculator(COUNTER_IDX_SEARCHER_AGE).setAverageName(DC_IDX_SEARCHER_AGE_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_FETCH).setCountName(DC_IDX_FETCH_COUNT).setAverageName(DC_IDX_FETCH_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_EXTRACT).setCountName(DC_IDX_EXTRACT_COUNT).setAverageName(DC_IDX_EXTRACT_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_COMMIT).setCountName(DC_IDX_COMMIT_COUNT).setAverageName(DC_IDX_COMMIT_MS_AVG),
                         new DeltaCalculator(COUNTER_IDX_WRT_OPENED).setTotalName(DC_IDX_WRT_OPENED),
                         new DeltaCalculator(COUNTER_IDX_WRT_OPENED_CACHE_HIT).setTotalName(DC_IDX_WRT_OPENED_CACHE_HIT),
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_HIT).setAverageName(DC_CALCACHE_HIT),
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_MEM_HIT).setAverageName(DC_CALCACHE_MEM_HIT),
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_SIZE).setAverageName(DC_CALCACHE_LRU_SIZE),
+                        new DeltaCalculator(COUNTER_CALENDAR_FB_INDEX_HIT).setAverageName(DC_CALCACHE_FB_INDEX_HIT),
+                        new DeltaCalculator(STOPWATCH_CALENDAR_CACHE_RELOAD).setCountName(DC_CALCACHE_RELOAD_COUNT).setAverageName(DC_CALCACHE_RELOAD_MS_AVG),
                         new DeltaCalculator(COUNTER_IDX_BYTES_WRITTEN).setTotalName(DC_IDX_BYTES_WRITTEN).setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
                         new DeltaCalculator(COUNTER_IDX_BYTES_READ).setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
@@ -479,6 +633,8 @@ public class ZimbraPerf {
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
 
+        StatsDumper.schedule(Zimbra.sTimingWheel.getStatsDumperDataSource("timers.csv"), CSV_DUMP_FREQUENCY);
+
         // Initialize JMX
         MBeanServer jmxServer = ManagementFactory.getPlatformMBeanServer();
         jmxServerStats = new JmxServerStats();
@@ -22,13 +22,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
@@ -44,34 +50,50 @@ import com.zimbra.cs.account.Server;
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * The cache is striped by path so that readers of different blobs don't contend
+ * on a single lock.  Each {@link SharedFile} is reference counted; a file that is
+ * evicted or removed while still being read is closed by its last reader, and the
+ * actual close happens on a background thread.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
-    private final FileCache<String> mUncompressedFileCache;
-    private final Counter mHitRate = new Counter();
+    private static final int STRIPES = 16;
 
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
+    /** Closes evicted file descriptors off the read path.  Shared by all caches. */
+    private static final ExecutorService sCloser = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("FileDescriptorCache-Closer-%d").setDaemon(true).build());
 
-        public SharedFileInfo(String path, SharedFile file) {
-            this.path = path;
-            this.file = file;
+    /** One stripe of the cache, with its entries sorted by last access time. */
+    private static final class Stripe {
+        final LinkedHashMap<String, SharedFile> files = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
+
+        /** Returns the last access tick of the least recently used entry, or <tt>Long.MAX_VALUE</tt> if empty. */
+        synchronized long eldestAccess() {
+            Iterator<SharedFile> it = files.values().iterator();
+            return it.hasNext() ? it.next().mLastAccess : Long.MAX_VALUE;
         }
     }
 
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+    private final AtomicInteger mSize = new AtomicInteger();
+    /** Number of file descriptors currently open, including evicted ones that are still being read. */
+    private final AtomicInteger mOpenCount = new AtomicInteger();
+    private final AtomicLong mAccessClock = new AtomicLong();
+    private volatile int mMaxSize = 1000;
+    private final FileCache<String> mUncompressedFileCache;
+    private final Counter mHitRate = new Counter();
+
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe();
+        }
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
@@ -93,23 +115,34 @@ public class FileDescriptorCache
         return this;
     }
 
+    private Stripe stripeFor(String path) {
+        int h = path.hashCode();
+        h ^= (h >>> 16);
+        return mStripes[h & (STRIPES - 1)];
+    }
+
     /**
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
-            String path = entry.getKey();
-            SharedFile file = entry.getValue();
-            iEntries.remove();
-            try {
-                boolean success = close(file, path);
-                if (!success)
+    public void shutdown() {
+        for (Stripe stripe : mStripes) {
+            List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
+            synchronized (stripe) {
+                Iterator<Map.Entry<String, SharedFile>> iEntries = stripe.files.entrySet().iterator();
+                while (iEntries.hasNext()) {
+                    removeList.add(iEntries.next());
+                    iEntries.remove();
+                    mSize.decrementAndGet();
+                }
+            }
+            for (Map.Entry<String, SharedFile> entry : removeList) {
+                SharedFile file = entry.getValue();
+                if (file.retire()) {
+                    close(file, entry.getKey());
+                } else {
                     sLog.warn("Unable to close %s. File is in use.", file);
-            } catch (IOException e) {
-                sLog.warn("Unable to close %s", file, e);
+                }
             }
         }
     }
@@ -127,8 +160,8 @@ public class FileDescriptorCache
             file = getSharedFile(path, rawSize);
             numRead = file.read(fileOffset, buf, bufferOffset, len);
         } finally {
-            if (file != null) {
-               file.doneReading();
+            if (file != null && file.doneReading()) {
+                closeAsync(file, path);
             }
         }
 
@@ -136,8 +169,24 @@ public class FileDescriptorCache
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
+        Stripe stripe = stripeFor(path);
+        synchronized (stripe) {
+            return stripe.files.containsKey(path);
+        }
+    }
+
+    /**
+     * Returns the cache entry for <tt>path</tt> and increments its number of readers,
+     * or returns <tt>null</tt> if the path is not cached.
+     */
+    private SharedFile acquire(Stripe stripe, String path) {
+        synchronized (stripe) {
+            SharedFile sharedFile = stripe.files.get(path);
+            if (sharedFile != null) {
+                sharedFile.mLastAccess = mAccessClock.incrementAndGet();
+                sharedFile.aboutToRead();
+            }
+            return sharedFile;
         }
     }
 
@@ -146,14 +195,10 @@ public class FileDescriptorCache
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
+        Stripe stripe = stripeFor(path);
+        SharedFile sharedFile = acquire(stripe, path);
         if (sharedFile != null) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
             mHitRate.increment(100);
             return sharedFile;
         }
@@ -181,18 +226,25 @@ public class FileDescriptorCache
             sLog.debug("Opening new file descriptor for %s.", path);
             sharedFile = new SharedFile(file);
         }
+        mOpenCount.incrementAndGet();
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
-                sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
+        SharedFile existing;
+        synchronized (stripe) {
+            existing = acquire(stripe, path);
+            if (existing == null) {
                 sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
+                sharedFile.mLastAccess = mAccessClock.incrementAndGet();
+                sharedFile.aboutToRead();
+                stripe.files.put(path, sharedFile);
+                mSize.incrementAndGet();
             }
         }
-        sharedFile.aboutToRead();
+        if (existing != null) {
+            sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
+            sharedFile.close();
+            mOpenCount.decrementAndGet();
+            return existing;
+        }
         pruneIfNecessary();
 
         return sharedFile;
@@ -200,107 +252,126 @@ public class FileDescriptorCache
 
     /**
      * Closes the file descriptor and removes it from the cache.  Does nothing if the file
-     * descriptor is not in the cache.
+     * descriptor is not in the cache.  If the file is still being read, it is closed
+     * when the last reader is done.
      */
     public void remove(String path) throws IOException {
+        Stripe stripe = stripeFor(path);
         SharedFile file = null;
 
-        synchronized (this) {
-            file = mCache.remove(path);
+        synchronized (stripe) {
+            file = stripe.files.remove(path);
+            if (file != null) {
+                mSize.decrementAndGet();
+            }
         }
 
         if (file != null) {
-            boolean success = close(file, path);
-            if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+            if (file.retire()) {
+                close(file, path);
+            }
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
+    }
 
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    private void closeAsync(final SharedFile file, final String path) {
+        sCloser.execute(new Runnable() {
+            @Override
+            public void run() {
+                close(file, path);
+            }
+        });
     }
 
     /**
-     * Close the file if it is not in use.
-     * @return true if the file is closed, false otherwise.
-     * @throws IOException if there is an error closing the file.
+     * Closes a retired file and removes its uncompressed copy, unless another
+     * thread has cached the path again.
      */
-    private boolean close(SharedFile file, String path) throws IOException {
-        if (file != null) {
-            sLog.debug("Closing file descriptor for %s, %s", path, file);
-
-            if (file.getNumReaders() == 0) {
-                file.close();
-                if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
-                    }
+    private void close(SharedFile file, String path) {
+        sLog.debug("Closing file descriptor for %s, %s", path, file);
+        try {
+            file.close();
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
+        }
+        mOpenCount.decrementAndGet();
+        if (mUncompressedFileCache != null) {
+            Stripe stripe = stripeFor(path);
+            synchronized (stripe) {
+                if (!stripe.files.containsKey(path)) {
+                    mUncompressedFileCache.remove(path);
+                } else {
+                    sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
                 }
-                return true;
             }
-            return false;
         }
-        return true;
     }
 
-    private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
+    /**
+     * Waits until every file descriptor that has been handed to the background
+     * closer so far has been closed.
+     */
+    @VisibleForTesting
+    void waitForPendingCloses() throws InterruptedException {
+        try {
+            sCloser.submit(new Runnable() {
+                @Override
+                public void run() {
                 }
-            }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
         }
     }
 
-    public synchronized int getSize() {
-        return mCache.size();
+    public int getSize() {
+        return mSize.get();
+    }
+
+    /**
+     * Returns the number of open file descriptors, including those that have
+     * been evicted but are still being read.
+     */
+    public int getOpenCount() {
+        return mOpenCount.get();
     }
 
     public double getHitRate() {
         return mHitRate.getAverage();
     }
 
+    /**
+     * Evicts least recently used entries until the cache is within its maximum
+     * size.  Evicted files that nobody is reading are closed in the background.
+     */
     private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
+        while (mSize.get() > mMaxSize) {
+            Stripe victim = null;
+            long oldest = Long.MAX_VALUE;
+            for (Stripe stripe : mStripes) {
+                long access = stripe.eldestAccess();
+                if (access < oldest) {
+                    victim = stripe;
+                    oldest = access;
+                }
             }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
+            if (victim == null) {
+                return;
+            }
+
+            Map.Entry<String, SharedFile> evicted = null;
+            synchronized (victim) {
+                Iterator<Map.Entry<String, SharedFile>> iEntries = victim.files.entrySet().iterator();
+                if (iEntries.hasNext() && mSize.get() > mMaxSize) {
+                    evicted = iEntries.next();
+                    iEntries.remove();
+                    mSize.decrementAndGet();
                 }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
+            }
+            if (evicted != null && evicted.getValue().retire()) {
+                closeAsync(evicted.getValue(), evicted.getKey());
             }
         }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
     }
 }
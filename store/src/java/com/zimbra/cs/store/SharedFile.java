@@ -22,26 +22,41 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
+ * Reference-counted container for a file descriptor.  Used by multiple
  * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Reads are positional, so concurrent readers don't serialize on a shared
+ * file pointer.
  */
 public class SharedFile {
 
     private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    private FileChannel mChannel;
+    private boolean mClosed;
+
+    /** Offset just past the last read, used to report the seek rate. */
+    private volatile long mPos = 0;
+
     /**
      * Keep track of the number of threads that are reading from this file.
      * We do this so that we don't delete a file that's being read on
      * Windows (bug 43497).
      */
     private int mNumReaders;
-    
+
+    /** Set once the file has been dropped from the cache; it is closed when the last reader is done. */
+    private boolean mRetired;
+
+    /** Cache access tick of the most recent lookup, used for LRU eviction. */
+    volatile long mLastAccess;
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
@@ -62,70 +77,99 @@ public class SharedFile {
         }
         mFile = file;
         mLength = file.length();
-        openIfNecessary();
+        getChannel();
     }
 
     synchronized long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        FileChannel channel = getChannel();
+        int numRead;
+        try {
+            numRead = channel.read(ByteBuffer.wrap(b, off, len), fileOffset);
+        } catch (ClosedByInterruptException e) {
+            resetChannel(channel);
+            throw e;
+        } catch (ClosedChannelException e) {
+            // Another reader was interrupted, which closes the channel for every reader.
+            resetChannel(channel);
+            numRead = getChannel().read(ByteBuffer.wrap(b, off, len), fileOffset);
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
+
+        if (mPos != fileOffset) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
         }
+        if (numRead > 0) {
+            mPos = fileOffset + numRead;
+        }
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
+
     synchronized void aboutToRead() {
         mNumReaders++;
     }
-    
-    synchronized void doneReading() {
+
+    /**
+     * @return <tt>true</tt> if the file has been retired and this was the
+     * last reader, in which case the caller is responsible for closing it
+     */
+    synchronized boolean doneReading() {
         if (mNumReaders > 0) {
             mNumReaders--;
         }
+        return mRetired && mNumReaders == 0 && !mClosed;
     }
-    
+
     synchronized int getNumReaders() {
         return mNumReaders;
     }
-    
-    private synchronized void openIfNecessary()
+
+    /**
+     * Marks the file as no longer cached.
+     * @return <tt>true</tt> if there are no readers, in which case the caller
+     * is responsible for closing the file
+     */
+    synchronized boolean retire() {
+        mRetired = true;
+        return mNumReaders == 0 && !mClosed;
+    }
+
+    private synchronized FileChannel getChannel()
     throws IOException {
-        if (mRAF == null) {
+        if (mClosed) {
+            throw new IOException(mFile.getPath() + " has been closed.");
+        }
+        if (mChannel == null) {
             if (!mFile.exists()) {
                 throw new IOException(mFile.getPath() + " does not exist.");
             }
-            mRAF = new RandomAccessFile(mFile, "r");
-            mPos = 0;
+            mChannel = new RandomAccessFile(mFile, "r").getChannel();
+        }
+        return mChannel;
+    }
+
+    private synchronized void resetChannel(FileChannel channel) {
+        if (mChannel == channel) {
+            mChannel = null;
         }
     }
-    
+
     synchronized void close()
     throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
-            mPos = 0;
-            mRAF = null;
+        mClosed = true;
+        if (mChannel != null) {
+            FileChannel channel = mChannel;
+            mChannel = null;
+            channel.close();
         }
     }
-    
+
     public String toString() {
         return mFile.toString();
     }
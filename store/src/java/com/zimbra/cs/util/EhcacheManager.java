@@ -17,10 +17,12 @@
 package com.zimbra.cs.util;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import org.ehcache.Cache;
-import org.ehcache.CacheManager;
+import org.ehcache.CachePersistenceException;
+import org.ehcache.PersistentCacheManager;
 import org.ehcache.config.CacheConfiguration;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
 import org.ehcache.config.builders.CacheManagerBuilder;
@@ -31,10 +33,13 @@ import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expirations;
 
 import com.zimbra.common.localconfig.LC;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.imap.ImapFolder;
+import com.zimbra.cs.imap.ImapFolderSerializer;
 import com.zimbra.cs.memcached.MemcachedConnector;
 
 /**
@@ -48,7 +53,12 @@ import com.zimbra.cs.memcached.MemcachedConnector;
 public final class EhcacheManager {
     private static final EhcacheManager SINGLETON = new EhcacheManager();
 
-    private CacheManager cacheManager;
+    private static final String PERSISTENCE_DIR = LC.zimbra_home.value() + File.separator + "data" + File.separator +
+            "mailboxd";
+    /** Records the {@link ImapFolderSerializer#getFormatId format} of the persisted IMAP folders. */
+    private static final File IMAP_FORMAT_FILE = new File(PERSISTENCE_DIR, "imap-cache.format");
+
+    private PersistentCacheManager cacheManager;
 
     public static final String IMAP_ACTIVE_SESSION_CACHE = "imap-active-session-cache";
     public static final String IMAP_INACTIVE_SESSION_CACHE = "imap-inactive-session-cache";
@@ -56,18 +66,43 @@ public final class EhcacheManager {
 
     private EhcacheManager() {
         cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
-                .with(CacheManagerBuilder.persistence(LC.zimbra_home.value() + File.separator + "data" + File.separator + "mailboxd"))
+                .with(CacheManagerBuilder.persistence(PERSISTENCE_DIR))
                 .withCache(IMAP_ACTIVE_SESSION_CACHE, createImapActiveSessionCache())
                 .build(true);
 
         if (MemcachedConnector.isConnected()) {
             ZimbraLog.imap.info("Using Memcached for inactive session cache");
         } else {
+            destroyStaleImapCache();
             cacheManager.createCache(IMAP_INACTIVE_SESSION_CACHE, createImapInactiveSessionCache());
             cacheManager.createCache(SYNC_STATE_ITEM_CACHE, createActiveSyncStateItemCache());
         }
     }
 
+    /**
+     * Drops the persisted inactive session cache if it was written in a different format than this release reads,
+     * e.g. by Ehcache's default Java serializer or with an older {@link ImapFolder} class.
+     */
+    private void destroyStaleImapCache() {
+        String format = ImapFolderSerializer.getFormatId();
+        try {
+            if (IMAP_FORMAT_FILE.exists() && format.equals(Files.toString(IMAP_FORMAT_FILE, Charsets.UTF_8).trim())) {
+                return;
+            }
+        } catch (IOException e) {
+            ZimbraLog.imap.warn("unable to read %s", IMAP_FORMAT_FILE, e);
+        }
+        ZimbraLog.imap.info("IMAP folder format changed to %s; clearing %s", format, IMAP_INACTIVE_SESSION_CACHE);
+        try {
+            cacheManager.destroyCache(IMAP_INACTIVE_SESSION_CACHE);
+            Files.write(format, IMAP_FORMAT_FILE, Charsets.UTF_8);
+        } catch (CachePersistenceException e) {
+            ZimbraLog.imap.warn("unable to clear %s", IMAP_INACTIVE_SESSION_CACHE, e);
+        } catch (IOException e) {
+            ZimbraLog.imap.warn("unable to write %s", IMAP_FORMAT_FILE, e);
+        }
+    }
+
     public static EhcacheManager getInstance() {
         return SINGLETON;
     }
@@ -88,6 +123,7 @@ public final class EhcacheManager {
                 ResourcePoolsBuilder.newResourcePoolsBuilder()
                 .heap(1, EntryUnit.ENTRIES)
                 .disk(maxBytesOnLocalDisk, MemoryUnit.B, false))  // disk backed not persistent
+                .withValueSerializer(new ImapFolderSerializer())
                 .build();
     }
 
@@ -113,6 +149,7 @@ public final class EhcacheManager {
                 .heap(1, EntryUnit.ENTRIES)
                 .offheap(inactiveSessionCache, MemoryUnit.B)
                 .disk(maxBytesOnLocalDisk, MemoryUnit.B, true)) // disk backed persistent store
+                .withValueSerializer(new ImapFolderSerializer())
                 .build();
     }
 
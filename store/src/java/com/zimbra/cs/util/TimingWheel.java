@@ -0,0 +1,538 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Schedules one-shot and periodic tasks on a hashed timing wheel and runs them on a pool of threads, so that a slow
+ * task doesn't hold up the others as it does on a single {@link java.util.Timer} thread.
+ * <p>
+ * Scheduling, cancelling and rescheduling are O(1) and allocate a single {@link Timeout}, which makes the wheel
+ * suitable for many per-session timeouts that are pushed back on every access. Deadlines are rounded up to the next
+ * tick. A periodic task is scheduled again {@code period} after its last run started, and never runs concurrently
+ * with itself. Lag (start behind deadline), run time and overruns (runs longer than the period) are tracked per task
+ * name, and can be written to a stats file with {@link #getStatsDumperDataSource(String)}.
+ */
+public final class TimingWheel {
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] wheel;  // head of each bucket's list
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final ThreadPoolExecutor dispatcher;
+    private final ConcurrentMap<String, TaskStats> stats = new ConcurrentHashMap<String, TaskStats>();
+
+    // guarded by this
+    private long tick;  // last tick processed
+    private int pending;
+    private Thread ticker;
+    private boolean shutdown;
+
+    /**
+     * @param name name of the threads
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of 2
+     * @param dispatchThreads maximum number of tasks running at the same time, at least 1
+     */
+    public TimingWheel(String name, long tickMillis, int wheelSize, int dispatchThreads) {
+        this.name = name;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMillis, 1));
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        wheel = new Timeout[size];
+        mask = size - 1;
+        int threads = Math.max(dispatchThreads, 1);
+        dispatcher = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        dispatcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules a one-shot task. A task with no delay runs right away on a dispatch thread.
+     *
+     * @param taskName name the task's metrics are recorded under
+     * @param task the task
+     * @param delayMillis delay before the task runs
+     * @return handle to cancel or reschedule the task
+     */
+    public Timeout schedule(String taskName, Runnable task, long delayMillis) {
+        return schedule(taskName, task, delayMillis, 0);
+    }
+
+    /**
+     * Schedules a task to run after a delay, then repeatedly {@code periodMillis} after each run started.
+     *
+     * @param taskName name the task's metrics are recorded under
+     * @param task the task
+     * @param delayMillis delay before the first run
+     * @param periodMillis time between the start of runs, or 0 to run once
+     * @return handle to cancel or reschedule the task
+     */
+    public Timeout schedule(String taskName, Runnable task, long delayMillis, long periodMillis) {
+        TaskStats taskStats = stats.get(taskName);
+        if (taskStats == null) {
+            stats.putIfAbsent(taskName, new TaskStats());
+            taskStats = stats.get(taskName);
+        }
+        Timeout timeout = new Timeout(task, taskStats, TimeUnit.MILLISECONDS.toNanos(periodMillis));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+        synchronized (this) {
+            if (shutdown) {
+                throw new IllegalStateException(name + " has been shut down");
+            }
+            timeout.deadline = deadline;
+            if (delayMillis > 0) {
+                insert(timeout);
+                return timeout;
+            }
+            timeout.state = Timeout.DISPATCHED;
+        }
+        dispatch(timeout);
+        return timeout;
+    }
+
+    // caller must hold the lock
+    private void insert(Timeout timeout) {
+        long deadlineTick = (timeout.deadline - startNanos + tickNanos - 1) / tickNanos;
+        timeout.deadlineTick = Math.max(deadlineTick, tick + 1);
+        int index = (int) (timeout.deadlineTick & mask);
+        timeout.prev = null;
+        timeout.next = wheel[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        wheel[index] = timeout;
+        timeout.state = Timeout.PENDING;
+        if (pending++ == 0) {
+            if (ticker == null) {
+                ticker = new Thread(new Ticker(), name + "-tick");
+                ticker.setDaemon(true);
+                ticker.start();
+            } else {
+                notifyAll();
+            }
+        }
+    }
+
+    // caller must hold the lock
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        pending--;
+    }
+
+    /**
+     * Advances the wheel to the current time and returns the timeouts that are due.
+     */
+    private synchronized List<Timeout> expire() throws InterruptedException {
+        while (!shutdown) {
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            if (now > tick) {
+                List<Timeout> expired = Collections.emptyList();
+                // Each bucket holds the timeouts whose deadline tick maps to it, so visiting the buckets of the
+                // elapsed ticks, at most the whole wheel once, finds everything that is due.
+                long last = Math.min(now, tick + wheel.length);
+                for (long t = tick + 1; t <= last; t++) {
+                    Timeout timeout = wheel[(int) (t & mask)];
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        if (timeout.deadlineTick <= now) {
+                            unlink(timeout);
+                            timeout.state = Timeout.DISPATCHED;
+                            if (expired.isEmpty()) {
+                                expired = new ArrayList<Timeout>();
+                            }
+                            expired.add(timeout);
+                        }
+                        timeout = next;
+                    }
+                }
+                tick = now;
+                if (!expired.isEmpty()) {
+                    return expired;
+                }
+            }
+            if (pending == 0) {
+                wait();  // until something is scheduled
+            } else {
+                long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, sleepNanos);
+                }
+            }
+        }
+        return null;
+    }
+
+    private final class Ticker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                List<Timeout> expired;
+                while ((expired = expire()) != null) {
+                    for (Timeout timeout : expired) {
+                        dispatch(timeout);
+                    }
+                }
+            } catch (InterruptedException e) {
+                ZimbraLog.misc.info("%s interrupted", Thread.currentThread().getName());
+            }
+        }
+    }
+
+    private void dispatch(final Timeout timeout) {
+        try {
+            dispatcher.execute(timeout);
+        } catch (RuntimeException e) {
+            // shut down while the task was being dispatched
+            ZimbraLog.misc.debug("%s: dropping task on shutdown", name, e);
+        }
+    }
+
+    // called on the dispatch thread before a run; false if the task was cancelled while it was queued
+    private synchronized boolean startRun(Timeout timeout) {
+        if (timeout.state != Timeout.DISPATCHED) {
+            return false;
+        }
+        timeout.state = Timeout.RUNNING;
+        return true;
+    }
+
+    // called on the dispatch thread after a run
+    private synchronized void rescheduleAfterRun(Timeout timeout, long runStart) {
+        if (timeout.state != Timeout.RUNNING) {
+            return;  // cancelled while running
+        }
+        if (timeout.period > 0 && !shutdown) {
+            timeout.deadline = runStart + timeout.period;
+            insert(timeout);
+        } else {
+            timeout.state = Timeout.DONE;
+        }
+    }
+
+    /**
+     * Returns an executor that runs its tasks on the dispatch threads one at a time, in the order they were submitted.
+     * For tasks that depend on running in order, as they did on a single {@link java.util.Timer} thread.
+     *
+     * @param taskName name the tasks' metrics are recorded under
+     */
+    public Executor newSerialExecutor(String taskName) {
+        return new SerialExecutor(taskName);
+    }
+
+    private final class SerialExecutor implements Executor {
+        private final String taskName;
+        // guarded by this
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+        private boolean active;
+
+        SerialExecutor(String taskName) {
+            this.taskName = taskName;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                queue.add(task);
+                if (active) {
+                    return;
+                }
+                active = true;
+            }
+            scheduleNext();
+        }
+
+        private void scheduleNext() {
+            final Runnable task;
+            synchronized (this) {
+                task = queue.poll();
+                if (task == null) {
+                    active = false;
+                    return;
+                }
+            }
+            schedule(taskName, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            }, 0);
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for their deadline.
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Returns the metrics of each task name scheduled so far.
+     */
+    public Map<String, TaskStats> getTaskStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Returns a stats source that writes the metrics of each task name, for the last period, to {@code filename}.
+     */
+    public StatsDumperDataSource getStatsDumperDataSource(String filename) {
+        return new TaskStatsDumper(filename);
+    }
+
+    private final class TaskStatsDumper implements StatsDumperDataSource {
+        private final String filename;
+        private final Map<String, long[]> last = new HashMap<String, long[]>();  // runs, lag, run time, overruns
+
+        TaskStatsDumper(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public String getHeader() {
+            return "task,runs,lag_ms_avg,lag_ms_max,run_ms_avg,run_ms_max,overruns";
+        }
+
+        @Override
+        public boolean hasTimestampColumn() {
+            return true;
+        }
+
+        @Override
+        public synchronized Collection<String> getDataLines() {
+            List<String> lines = new ArrayList<String>(stats.size());
+            for (Map.Entry<String, TaskStats> entry : stats.entrySet()) {
+                TaskStats taskStats = entry.getValue();
+                long[] current = new long[] { taskStats.getRuns(), taskStats.getTotalLagMillis(),
+                        taskStats.getTotalRunMillis(), taskStats.getOverruns() };
+                long[] previous = last.put(entry.getKey(), current);
+                if (previous == null) {
+                    previous = new long[current.length];
+                }
+                long maxLag = taskStats.periodMaxLag.getAndSet(0);
+                long maxRunTime = taskStats.periodMaxRunTime.getAndSet(0);
+                long runs = current[0] - previous[0];
+                if (runs > 0) {
+                    lines.add(String.format("%s,%d,%d,%d,%d,%d,%d", entry.getKey(), runs,
+                            (current[1] - previous[1]) / runs, maxLag, (current[2] - previous[2]) / runs, maxRunTime,
+                            current[3] - previous[3]));
+                }
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Cancels all pending tasks and lets running ones finish.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            for (int i = 0; i < wheel.length; i++) {
+                for (Timeout timeout = wheel[i]; timeout != null; timeout = timeout.next) {
+                    timeout.state = Timeout.CANCELLED;
+                }
+                wheel[i] = null;
+            }
+            pending = 0;
+            notifyAll();
+        }
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public final class Timeout implements Runnable {
+        static final int PENDING = 0;
+        static final int DISPATCHED = 1;  // due, and waiting for a dispatch thread
+        static final int RUNNING = 2;
+        static final int DONE = 3;
+        static final int CANCELLED = 4;
+
+        private final Runnable task;
+        private final TaskStats taskStats;
+        private final long period;
+        // guarded by TimingWheel.this
+        private int state;
+        private long deadline;
+        private long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task, TaskStats taskStats, long period) {
+            this.task = task;
+            this.taskStats = taskStats;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task. A running task finishes, but a periodic task doesn't run again.
+         *
+         * @return true if this prevented a run
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                switch (state) {
+                case PENDING:
+                    unlink(this);
+                    state = CANCELLED;
+                    return true;
+                case DISPATCHED:
+                    state = CANCELLED;
+                    return true;
+                case RUNNING:
+                    state = CANCELLED;
+                    return period > 0;
+                default:
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Moves the next run of a pending task to {@code delayMillis} from now, e.g. to push back an idle timeout.
+         *
+         * @return false if the task is not pending any more (it already ran, is running, or was cancelled)
+         */
+        public boolean reschedule(long delayMillis) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+            synchronized (TimingWheel.this) {
+                if (state != PENDING) {
+                    return false;
+                }
+                unlink(this);
+                this.deadline = deadline;
+                insert(this);
+                return true;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (TimingWheel.this) {
+                return state == CANCELLED;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!startRun(this)) {
+                return;  // cancelled after it was handed to the dispatcher
+            }
+            long runStart = System.nanoTime();
+            long watch = ZimbraPerf.STOPWATCH_TIMER_TASK.start();
+            long lag = TimeUnit.NANOSECONDS.toMillis(Math.max(runStart - deadline, 0));
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ZimbraLog.misc.warn("uncaught exception in scheduled task", e);
+            } finally {
+                long runMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStart);
+                boolean overrun = period > 0 && runMillis > TimeUnit.NANOSECONDS.toMillis(period);
+                taskStats.record(lag, runMillis, overrun);
+                ZimbraPerf.COUNTER_TIMER_LAG.increment(lag);
+                ZimbraPerf.STOPWATCH_TIMER_TASK.stop(watch);
+                rescheduleAfterRun(this, runStart);
+            }
+        }
+    }
+
+    /**
+     * Metrics of the runs of tasks scheduled under the same name.
+     */
+    public static final class TaskStats {
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong totalLag = new AtomicLong();
+        private final AtomicLong maxLag = new AtomicLong();
+        private final AtomicLong totalRunTime = new AtomicLong();
+        private final AtomicLong maxRunTime = new AtomicLong();
+        private final AtomicLong overruns = new AtomicLong();
+        // since the stats were last written out
+        private final AtomicLong periodMaxLag = new AtomicLong();
+        private final AtomicLong periodMaxRunTime = new AtomicLong();
+
+        void record(long lag, long runTime, boolean overrun) {
+            runs.incrementAndGet();
+            totalLag.addAndGet(lag);
+            totalRunTime.addAndGet(runTime);
+            updateMax(maxLag, lag);
+            updateMax(maxRunTime, runTime);
+            updateMax(periodMaxLag, lag);
+            updateMax(periodMaxRunTime, runTime);
+            if (overrun) {
+                overruns.incrementAndGet();
+            }
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        public long getRuns()            { return runs.get(); }
+        public long getTotalLagMillis()  { return totalLag.get(); }
+        public long getMaxLagMillis()    { return maxLag.get(); }
+        public long getTotalRunMillis()  { return totalRunTime.get(); }
+        public long getMaxRunMillis()    { return maxRunTime.get(); }
+        public long getOverruns()        { return overruns.get(); }
+
+        @Override
+        public String toString() {
+            return String.format("runs=%d, lag(total/max)=%d/%dms, run(total/max)=%d/%dms, overruns=%d",
+                    getRuns(), getTotalLagMillis(), getMaxLagMillis(), getTotalRunMillis(), getMaxRunMillis(),
+                    getOverruns());
+        }
+    }
+}
@@ -341,12 +341,12 @@ public final class Zimbra {
 
             if (app.supports(AclPushTask.class)) {
                 long pushInterval = server.getSharingUpdatePublishInterval();
-                sTimer.schedule(new AclPushTask(), pushInterval, pushInterval);
+                sTimingWheel.schedule("AclPush", new AclPushTask(), pushInterval, pushInterval);
             }
 
             if (app.supports(ExternalAccountManagerTask.class)) {
                 long interval = server.getExternalAccountStatusCheckInterval();
-                sTimer.schedule(new ExternalAccountManagerTask(), interval, interval);
+                sTimingWheel.schedule("ExternalAccountManager", new ExternalAccountManagerTask(), interval, interval);
             }
 
             if (prov.getLocalServer().isMessageChannelEnabled()) {
@@ -463,6 +463,7 @@ public final class Zimbra {
         ZimbraHttpConnectionManager.shutdownReaperThread();
 
         sTimer.cancel();
+        sTimingWheel.shutdown();
 
         try {
             DbPool.shutdown();
@@ -476,8 +477,18 @@ public final class Zimbra {
         return sInited;
     }
 
+    /**
+     * @deprecated kept for extensions; schedule on {@link #sTimingWheel}, where a slow task doesn't delay the others
+     */
+    @Deprecated
     public static Timer sTimer = new Timer("Timer-Zimbra", true);
 
+    /**
+     * Shared scheduler for background and timeout tasks.
+     */
+    public static final TimingWheel sTimingWheel = new TimingWheel("Timer-Zimbra-Wheel",
+            LC.zimbra_timer_tick_ms.longValue(), 512, LC.zimbra_timer_threads.intValue());
+
     /**
      * Logs the given message and shuts down the server.
      *
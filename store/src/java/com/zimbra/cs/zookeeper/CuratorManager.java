@@ -36,6 +36,7 @@ import org.apache.curator.x.discovery.ServiceInstance;
 import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
 
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
@@ -113,6 +114,11 @@ public class CuratorManager {
         return new InterProcessSemaphoreMutex(client, LOCKS + id);
     }
 
+    public DistributedReadWriteLock createReadWriteLock(String id) {
+        return new DistributedReadWriteLock(client, LOCKS + "rw/" + id,
+                LC.zimbra_mailbox_distributed_lock_lease_ms.longValue());
+    }
+
     public void setData(String key, String value) throws Exception {
         byte[] data;
         try {
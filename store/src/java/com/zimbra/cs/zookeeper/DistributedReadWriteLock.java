@@ -0,0 +1,379 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.zookeeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.TimingWheel;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Read/write lock shared by the servers of an AlwaysOn cluster, using the standard ZooKeeper recipe: each
+ * acquisition creates an ephemeral sequential node under the lock path, a reader waits for all lower write nodes
+ * to go away, and a writer waits for all lower nodes to go away.
+ * <p>
+ * One node is held on behalf of the whole server.  Threads on this server that acquire the lock in a mode the node
+ * already covers share it without going to ZooKeeper; a write node covers readers too.  Callers are expected to
+ * exclude concurrent writers locally, as {@code MailboxLock} does; a local acquisition the node doesn't cover waits
+ * for the local holders to finish.  When the last local holder releases, the node is kept for the lease period, so that repeated
+ * acquisitions from this server skip ZooKeeper.  As soon as another server queues behind the node, it is no longer
+ * shared with new local acquisitions, and it is deleted when the current holders are done, so a busy server can't
+ * keep the lock to itself.
+ * <p>
+ * Unlike Curator's {@code InterProcessReadWriteLock}, the node isn't owned by a thread, so the lease can be
+ * released by the timer.
+ */
+public class DistributedReadWriteLock {
+
+    private static final String READ_PREFIX = "read-";
+    private static final String WRITE_PREFIX = "write-";
+    private static final int SEQUENCE_LENGTH = 10;
+
+    private final CuratorFramework client;
+    private final String basePath;
+    private final long leaseMillis;
+
+    // ZooKeeper is never called with stateLock held, so that local threads the held node already covers, and the
+    // lease timer, aren't stuck behind a thread that is waiting for another server.
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+
+    // guarded by stateLock
+    private String nodePath;    // our lock node, or null
+    private boolean nodeWrite;  // whether nodePath is a write node
+    private int holders;        // local holders of nodePath
+    private boolean contended;  // another server is queued behind nodePath
+    private boolean acquiring;  // a local thread is creating a node in ZooKeeper
+    private TimingWheel.Timeout expiry;  // releases nodePath at the end of the lease
+
+    public DistributedReadWriteLock(CuratorFramework client, String basePath, long leaseMillis) {
+        this.client = client;
+        this.basePath = basePath;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Acquires the lock for this server, waiting up to the given time.  The node we already hold is shared only as
+     * long as no other server is queued behind it; after that, local threads wait for it to be released and queue up
+     * again like everyone else.
+     *
+     * @return false if the lock couldn't be acquired in time
+     */
+    public boolean acquire(boolean write, long time, TimeUnit unit) throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        String stale = null;
+        stateLock.lock();
+        try {
+            while (true) {
+                if (nodePath != null && (nodeWrite || !write) && !contended) {
+                    holders++;
+                    cancelExpiry();
+                    ZimbraPerf.COUNTER_MBOX_DLOCK_LEASE.increment(100);
+                    return true;
+                }
+                if (!acquiring && holders == 0) {
+                    break;
+                }
+                // Another local thread is in ZooKeeper, or the node is still held but can't be shared.
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                stateChanged.awaitNanos(remaining);
+            }
+            ZimbraPerf.COUNTER_MBOX_DLOCK_LEASE.increment(0);
+            acquiring = true;
+            if (nodePath != null) {
+                // Give up the idle node first: it's a read node and we want to write, or another server is waiting
+                // for it.  Otherwise we would queue behind ourselves.
+                cancelExpiry();
+                stale = detachNode();
+            }
+        } finally {
+            stateLock.unlock();
+        }
+
+        String path = null;
+        try {
+            if (stale != null) {
+                deleteNode(stale);
+            }
+            path = createNode(write, deadline);
+        } finally {
+            stateLock.lock();
+            try {
+                acquiring = false;
+                if (path != null) {
+                    nodePath = path;
+                    nodeWrite = write;
+                    holders = 1;
+                    contended = false;
+                }
+                stateChanged.signalAll();
+            } finally {
+                stateLock.unlock();
+            }
+        }
+        if (path == null) {
+            return false;
+        }
+        watchWaiters(path);
+        return true;
+    }
+
+    /**
+     * Releases the lock for the calling thread.  The node is deleted when the lease runs out, unless another local
+     * thread acquires the lock before then.  If another server is waiting for it, it is deleted right away.
+     */
+    public void release() {
+        String stale = null;
+        stateLock.lock();
+        try {
+            if (holders <= 0) {
+                throw new IllegalStateException("lock not held on " + basePath);
+            }
+            if (--holders > 0) {
+                return;
+            }
+            if (leaseMillis <= 0 || contended) {
+                stale = detachNode();
+            } else {
+                LeaseExpiry task = new LeaseExpiry();
+                expiry = task.timeout = Zimbra.sTimingWheel.schedule("DistributedLockLease", task, leaseMillis);
+            }
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+        if (stale != null) {
+            deleteNode(stale);
+        }
+    }
+
+    private final class LeaseExpiry implements Runnable {
+        TimingWheel.Timeout timeout;  // guarded by stateLock
+
+        @Override
+        public void run() {
+            String stale = null;
+            stateLock.lock();
+            try {
+                if (expiry == timeout) {
+                    expiry = null;
+                    stale = detachNode();
+                    stateChanged.signalAll();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+            if (stale != null) {
+                deleteNode(stale);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    String getNodePath() {
+        stateLock.lock();
+        try {
+            return nodePath;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    boolean isContended() {
+        stateLock.lock();
+        try {
+            return contended;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+    }
+
+    /**
+     * Forgets our node, which the caller must delete once it has released stateLock.
+     */
+    private String detachNode() {
+        String path = nodePath;
+        nodePath = null;
+        holders = 0;
+        contended = false;
+        return path;
+    }
+
+    private void deleteNode(String path) {
+        try {
+            client.delete().guaranteed().forPath(path);
+        } catch (Exception e) {
+            // the node is ephemeral, and goes away with the session if all else fails
+            ZimbraLog.mailbox.warn("error while releasing distributed lock %s", path, e);
+        }
+    }
+
+    /**
+     * Watches the lock's children for as long as we hold {@code path}, and marks the node contended as soon as a
+     * node that has to wait for it shows up.
+     */
+    private void watchWaiters(final String path) {
+        Watcher watcher = new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (path.equals(getNodePath())) {
+                    watchWaiters(path);
+                }
+            }
+        };
+        BackgroundCallback callback = new BackgroundCallback() {
+            @Override
+            public void processResult(CuratorFramework zk, CuratorEvent event) {
+                List<String> children = event.getChildren();
+                if (children != null && hasWaiters(ZKPaths.getNodeFromPath(path), children)) {
+                    setContended(path);
+                }
+            }
+        };
+        try {
+            client.getChildren().usingWatcher(watcher).inBackground(callback).forPath(basePath);
+        } catch (Exception e) {
+            ZimbraLog.mailbox.warn("unable to watch distributed lock %s", path, e);
+        }
+    }
+
+    private static boolean hasWaiters(String node, List<String> children) {
+        boolean write = node.startsWith(WRITE_PREFIX);
+        String sequence = sequence(node);
+        for (String child : children) {
+            if (sequence(child).compareTo(sequence) > 0 && (write || child.startsWith(WRITE_PREFIX))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setContended(String path) {
+        String stale = null;
+        stateLock.lock();
+        try {
+            if (!path.equals(nodePath)) {
+                return;
+            }
+            contended = true;
+            if (holders == 0) {
+                // only kept for the lease; let the waiter in now
+                cancelExpiry();
+                stale = detachNode();
+                stateChanged.signalAll();
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (stale != null) {
+            deleteNode(stale);
+        }
+    }
+
+    private String createNode(boolean write, long deadline) throws Exception {
+        String path = client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                .forPath(ZKPaths.makePath(basePath, write ? WRITE_PREFIX : READ_PREFIX));
+        String node = ZKPaths.getNodeFromPath(path);
+        boolean acquired = false;
+        try {
+            while (true) {
+                List<String> children = sortBySequence(client.getChildren().forPath(basePath));
+                int index = children.indexOf(node);
+                if (index < 0) {
+                    throw new IllegalStateException("lock node disappeared: " + path);
+                }
+                // Find the closest lower node we have to wait for.
+                String blocker = null;
+                for (int i = index - 1; i >= 0 && blocker == null; i--) {
+                    String child = children.get(i);
+                    if (write || child.startsWith(WRITE_PREFIX)) {
+                        blocker = child;
+                    }
+                }
+                if (blocker == null) {
+                    acquired = true;
+                    return path;
+                }
+                final CountDownLatch gone = new CountDownLatch(1);
+                Watcher watcher = new Watcher() {
+                    @Override
+                    public void process(WatchedEvent event) {
+                        gone.countDown();
+                    }
+                };
+                if (client.checkExists().usingWatcher(watcher).forPath(ZKPaths.makePath(basePath, blocker)) != null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !gone.await(remaining, TimeUnit.NANOSECONDS)) {
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            if (!acquired) {
+                try {
+                    client.delete().guaranteed().forPath(path);
+                } catch (Exception e) {
+                    ZimbraLog.mailbox.warn("error while removing distributed lock node %s", path, e);
+                }
+            }
+        }
+    }
+
+    private static List<String> sortBySequence(List<String> children) {
+        List<String> sorted = new ArrayList<String>(children);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return sequence(a).compareTo(sequence(b));
+            }
+        });
+        return sorted;
+    }
+
+    private static String sequence(String node) {
+        return node.length() > SEQUENCE_LENGTH ? node.substring(node.length() - SEQUENCE_LENGTH) : node;
+    }
+}
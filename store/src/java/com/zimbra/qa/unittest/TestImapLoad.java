@@ -0,0 +1,150 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2017 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.qa.unittest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailclient.imap.ImapConfig;
+import com.zimbra.cs.mailclient.imap.ImapConnection;
+
+/**
+ * Load generator for the IMAP server's request scheduling: a few accounts keep several connections busy with
+ * FETCH and SEARCH while another account measures NOOP latency. Compare the logged latencies with
+ * {@code nio_fair_scheduling_enabled} on and off.
+ */
+public class TestImapLoad {
+    private static final String HOST = "localhost";
+    private static final int PORT = 7143;
+    private static final String PASS = "test123";
+    private static final String[] HEAVY_USERS = { "imap-load-heavy1", "imap-load-heavy2" };
+    private static final String LIGHT_USER = "imap-load-light";
+    private static final int CONNECTIONS_PER_HEAVY_USER = 8;
+    private static final int NUM_MESSAGES = 200;
+    private static final int NUM_NOOPS = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        cleanUp();
+        for (String user : HEAVY_USERS) {
+            TestUtil.createAccount(user);
+            Mailbox mbox = TestUtil.getMailbox(user);
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                TestUtil.addMessage(mbox, "load test message " + i);
+            }
+        }
+        TestUtil.createAccount(LIGHT_USER);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cleanUp();
+    }
+
+    private void cleanUp() throws Exception {
+        for (String user : HEAVY_USERS) {
+            TestUtil.deleteAccount(user);
+        }
+        TestUtil.deleteAccount(LIGHT_USER);
+    }
+
+    @Test
+    public void noopLatencyUnderLoad() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger heavyRequests = new AtomicInteger();
+        final AtomicInteger heavyFailures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String user : HEAVY_USERS) {
+            for (int i = 0; i < CONNECTIONS_PER_HEAVY_USER; i++) {
+                Thread thread = new Thread("imap-load-" + user + "-" + i) {
+                    @Override
+                    public void run() {
+                        ImapConnection conn = null;
+                        try {
+                            conn = connect(user);
+                            // vary the requests so that they aren't throttled as repeats
+                            for (int n = 1; !done.get(); n++) {
+                                int last = 1 + n % NUM_MESSAGES;
+                                conn.fetch("1:" + last, new String[] { "FLAGS", "UID", "ENVELOPE", "BODY.PEEK[]" });
+                                conn.search((Object[]) new String[] { "TEXT", "\"message " + n % NUM_MESSAGES + "\"" });
+                                heavyRequests.addAndGet(2);
+                            }
+                        } catch (IOException e) {
+                            heavyFailures.incrementAndGet();
+                            ZimbraLog.test.info("heavy connection of %s failed", user, e);
+                        } finally {
+                            if (conn != null) {
+                                conn.close();
+                            }
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        List<Long> latencies = new ArrayList<Long>(NUM_NOOPS);
+        ImapConnection light = connect(LIGHT_USER);
+        try {
+            Thread.sleep(2000); // let the load build up
+            for (int i = 0; i < NUM_NOOPS; i++) {
+                long start = System.nanoTime();
+                light.noop();
+                latencies.add((System.nanoTime() - start) / 1000);
+                Thread.sleep(10);
+            }
+        } finally {
+            done.set(true);
+            light.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        Collections.sort(latencies);
+        ZimbraLog.test.info("NOOP latency under load (fair scheduling %s): p50 %dus, p95 %dus, max %dus; " +
+                "%d heavy requests, %d heavy connections failed",
+                LC.nio_fair_scheduling_enabled.booleanValue() ? "on" : "off",
+                latencies.get(NUM_NOOPS / 2), latencies.get(NUM_NOOPS * 95 / 100), latencies.get(NUM_NOOPS - 1),
+                heavyRequests.get(), heavyFailures.get());
+        Assert.assertEquals(NUM_NOOPS, latencies.size());
+    }
+
+    private static ImapConnection connect(String user) throws IOException {
+        ImapConfig config = new ImapConfig(HOST);
+        config.setPort(PORT);
+        config.setAuthenticationId(user);
+        ImapConnection connection = new ImapConnection(config);
+        connection.connect();
+        connection.login(PASS);
+        connection.select("INBOX");
+        return connection;
+    }
+}
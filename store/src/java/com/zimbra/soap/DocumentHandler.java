@@ -277,6 +277,13 @@ public abstract class DocumentHandler {
         return true;
     }
 
+    /** Returns <tt>true</tt> if this request may run concurrently with the other
+     *  sub-requests of a <tt>BatchRequest</tt> sent with <tt>parallel="1"</tt>.
+     *  Such a request must not change backend state and must not suspend. */
+    public boolean isParallelBatchSafe(Element request) throws ServiceException {
+        return false;
+    }
+
     /** Returns whether the client making the SOAP request is localhost. */
     protected boolean clientIsLocal(Map<String, Object> context) {
         HttpServletRequest req = (HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST);
@@ -20,7 +20,18 @@ package com.zimbra.soap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -30,6 +41,10 @@ import javax.xml.stream.XMLStreamReader;
 
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -108,6 +123,19 @@ public class SoapEngine {
 
     private final DocumentDispatcher dispatcher = new DocumentDispatcher();
 
+    // Shared by all BatchRequests sent with parallel="1"; when every thread is busy the
+    // sub-request runs on the SOAP thread instead.
+    private static final int BATCH_THREADS = Math.max(LC.soap_batch_parallel_threads.intValue(), 1);
+    private static final ThreadPoolExecutor BATCH_EXECUTOR = new ThreadPoolExecutor(
+            BATCH_THREADS, BATCH_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("SoapBatch-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    static {
+        BATCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private ExecutorService batchExecutor = BATCH_EXECUTOR;
+
     SoapEngine() {
         SoapTransport.setDefaultUserAgent(SoapTransport.DEFAULT_USER_AGENT_NAME, BuildInfo.VERSION);
     }
@@ -429,31 +457,11 @@ public class SoapEngine {
             acknowledgeNotifications(zsc);
 
             if (doc.getQName().equals(ZimbraNamespace.E_BATCH_REQUEST)) {
-                boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
                 responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
                 if (!isResumed) {
                     ZimbraLog.soap.info(doc.getName());
                 }
-                for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
-                    }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
-                    }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
-                        break;
-                    }
-                    if (proxyAuthToken != null) {
-                        // requests will invalidate it when proxying locally;
-                        // make sure it's set for each sub-request in batch
-                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
-                    }
-                }
+                dispatchBatch(doc, responseBody, context, zsc, isResumed, proxyAuthToken);
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
                 long start = System.currentTimeMillis();
@@ -499,6 +507,171 @@ public class SoapEngine {
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
 
+    /**
+     * Handles the sub-requests of a <tt>BatchRequest</tt> and adds their responses to
+     * <tt>responseBody</tt> in request order.
+     */
+    @VisibleForTesting
+    void dispatchBatch(Element batch, Element responseBody, Map<String, Object> context, ZimbraSoapContext zsc,
+            boolean isResumed, String proxyAuthToken) {
+        SoapProtocol responseProto = zsc.getResponseProtocol();
+        boolean contOnError = batch.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR)
+                .equals("continue");
+        boolean parallel = isParallelBatch(batch);
+        List<Element> requests = batch.listElements();
+        boolean stop = false;
+        for (int i = 0; i < requests.size() && !stop; ) {
+            int end = parallel ? endOfParallelRun(requests, i) : i + 1;
+            List<Element> responses;
+            if (end - i > 1) {
+                responses = dispatchParallel(requests.subList(i, end), context, zsc, isResumed);
+            } else {
+                responses = Collections.singletonList(
+                        dispatchBatchedRequest(requests.get(i), context, zsc, isResumed));
+            }
+            i = end;
+            for (Element br : responses) {
+                responseBody.addNonUniqueElement(br);
+                if (!contOnError && responseProto.isFault(br)) {
+                    // parallel sub-requests don't change state, so dropping the responses
+                    // after the fault is the same as never having run them
+                    stop = true;
+                    break;
+                }
+            }
+            if (proxyAuthToken != null) {
+                // requests will invalidate it when proxying locally;
+                // make sure it's set for each sub-request in batch
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+    }
+
+    private static boolean isParallelBatch(Element batch) {
+        try {
+            return batch.getAttributeBool(ZimbraNamespace.A_PARALLEL, false);
+        } catch (ServiceException e) {
+            return false;
+        }
+    }
+
+    private boolean isParallelBatchSafe(Element request) {
+        DocumentHandler handler = dispatcher.getHandler(request);
+        try {
+            return handler != null && handler.isParallelBatchSafe(request);
+        } catch (ServiceException e) {
+            return false; // let the handler report it when the request is dispatched
+        }
+    }
+
+    /**
+     * Returns the end (exclusive) of the run of parallel-safe sub-requests starting at
+     * <tt>start</tt>, or <tt>start + 1</tt> if that sub-request has to run on its own.
+     */
+    private int endOfParallelRun(List<Element> requests, int start) {
+        int end = start;
+        while (end < requests.size() && isParallelBatchSafe(requests.get(end))) {
+            end++;
+        }
+        return Math.max(end, start + 1);
+    }
+
+    /**
+     * Handles one sub-request of a batch and tags the response with its correlator.
+     */
+    private Element dispatchBatchedRequest(Element req, Map<String, Object> context, ZimbraSoapContext zsc,
+            boolean isResumed) {
+        String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
+        long start = System.currentTimeMillis();
+        Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
+        ZimbraPerf.STOPWATCH_SOAP_BATCH_SUB.stop(start);
+        if (!isResumed) {
+            ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+        }
+        if (id != null) {
+            br.addAttribute(A_REQUEST_CORRELATOR, id);
+        }
+        return br;
+    }
+
+    /**
+     * Handles a run of parallel-safe sub-requests concurrently and returns their responses in
+     * request order.  The first one runs on the calling thread.
+     */
+    private List<Element> dispatchParallel(List<Element> requests, Map<String, Object> context,
+            final ZimbraSoapContext zsc, final boolean isResumed) {
+        // Proxying sets the proxy auth token on the context's AuthToken, so each sub-request
+        // but the first gets its own copy of the context.
+        List<ZimbraSoapContext> subZscs = new ArrayList<ZimbraSoapContext>(requests.size() - 1);
+        for (int i = 1; i < requests.size(); i++) {
+            ZimbraSoapContext subZsc = zsc.copyForParallelRequest();
+            if (subZsc == null) {
+                List<Element> responses = new ArrayList<Element>(requests.size());
+                for (Element req : requests) {
+                    responses.add(dispatchBatchedRequest(req, context, zsc, isResumed));
+                }
+                return responses;
+            }
+            subZscs.add(subZsc);
+        }
+
+        long start = System.currentTimeMillis();
+        final Thread caller = Thread.currentThread();
+        final Map<String, String> logContext = ZimbraLog.getContext();
+        List<Future<Element>> futures = new ArrayList<Future<Element>>(requests.size());
+        for (Element req : requests) {
+            // handlers may rewrite their request, so keep them off the shared batch element
+            req.detach();
+        }
+        for (int i = 1; i < requests.size(); i++) {
+            final Element req = requests.get(i);
+            final ZimbraSoapContext subZsc = subZscs.get(i - 1);
+            // dispatchRequest() stores the session in the context, so each sub-request gets its own
+            final Map<String, Object> subContext = new HashMap<String, Object>(context);
+            subContext.put(ZIMBRA_CONTEXT, subZsc);
+            futures.add(batchExecutor.submit(new Callable<Element>() {
+                @Override
+                public Element call() {
+                    if (Thread.currentThread() == caller) { // pool saturated
+                        return dispatchBatchedRequest(req, subContext, subZsc, isResumed);
+                    }
+                    ZimbraLog.setContext(logContext);
+                    try {
+                        return dispatchBatchedRequest(req, subContext, subZsc, isResumed);
+                    } finally {
+                        ZimbraLog.clearContext();
+                    }
+                }
+            }));
+        }
+
+        List<Element> responses = new ArrayList<Element>(requests.size());
+        responses.add(dispatchBatchedRequest(requests.get(0), context, zsc, isResumed));
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                responses.add(Uninterruptibles.getUninterruptibly(futures.get(i)));
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                Element fault = zsc.getResponseProtocol().soapFault(ServiceException.FAILURE(t.toString(), t));
+                String id = requests.get(i + 1).getAttribute(A_REQUEST_CORRELATOR, null);
+                if (id != null) {
+                    fault.addAttribute(A_REQUEST_CORRELATOR, id);
+                }
+                responses.add(fault);
+                LOG.warn("handler exception", t);
+            }
+        }
+        // list a session created by one of the copies in the response header
+        for (ZimbraSoapContext subZsc : subZscs) {
+            SessionInfo sinfo = subZsc.getSessionInfo();
+            if (zsc.getSessionInfo() == null && sinfo != null && sinfo.created) {
+                zsc.recordNewSession(sinfo.sessionId);
+            }
+        }
+        ZimbraPerf.STOPWATCH_SOAP_BATCH_PARALLEL.stop(start);
+        return responses;
+    }
+
     /**
      * Handles individual requests, either direct or from a batch
      */
@@ -676,6 +849,11 @@ public class SoapEngine {
         return statName;
     }
 
+    @VisibleForTesting
+    void setBatchExecutor(ExecutorService executor) {
+        batchExecutor = executor;
+    }
+
     public DocumentDispatcher getDocumentDispatcher() {
         return dispatcher;
     }
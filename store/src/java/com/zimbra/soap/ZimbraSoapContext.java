@@ -248,6 +248,48 @@ public final class ZimbraSoapContext {
         }
     }
 
+    private ZimbraSoapContext() {
+    }
+
+    /** Returns a copy of this context for a sub-request of a parallel <tt>BatchRequest</tt>.
+     *  Proxying sets the proxy auth token on the context's {@link AuthToken}, so the copy gets
+     *  its own copy of the token.  Returns <tt>null</tt> if the token can't be copied. */
+    public ZimbraSoapContext copyForParallelRequest() {
+        AuthToken authToken = null;
+        if (mAuthToken != null) {
+            authToken = mAuthToken.copy();
+            if (authToken == null) {
+                return null;
+            }
+        }
+        ZimbraSoapContext zsc = new ZimbraSoapContext();
+        zsc.mRawAuthToken = mRawAuthToken;
+        zsc.mAuthToken = authToken;
+        zsc.mAuthTokenAccountId = mAuthTokenAccountId;
+        zsc.mRequestedAccountId = mRequestedAccountId;
+        zsc.mRequestProtocol = mRequestProtocol;
+        zsc.mResponseProtocol = mResponseProtocol;
+        zsc.mChangeConstraintType = mChangeConstraintType;
+        zsc.mMaximumChangeId = mMaximumChangeId;
+        zsc.mSessionEnabled = mSessionEnabled;
+        zsc.mSessionProxied = mSessionProxied;
+        zsc.mSessionInfo = mSessionInfo;
+        zsc.mUnqualifiedItemIds = mUnqualifiedItemIds;
+        zsc.mWaitForNotifications = mWaitForNotifications;
+        zsc.mCanceledWaitForNotifications = mCanceledWaitForNotifications;
+        zsc.continuationResume = continuationResume;
+        zsc.mProxyTarget = mProxyTarget;
+        zsc.mIsProxyRequest = mIsProxyRequest;
+        zsc.mHopCount = mHopCount;
+        zsc.mMountpointTraversed = mMountpointTraversed;
+        zsc.mUserAgent = mUserAgent;
+        zsc.mRequestIP = mRequestIP;
+        zsc.mPort = mPort;
+        zsc.mVia = mVia;
+        zsc.soapRequestId = soapRequestId;
+        return zsc;
+    }
+
     /**
      * Creates a {@link ZimbraSoapContext} from the {@code <context>}
      * {@link Element} from the SOAP header.